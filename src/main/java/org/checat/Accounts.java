@@ -0,0 +1,40 @@
+package org.checat;
+
+import org.checat.storage.Account;
+import org.checat.storage.Shards;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.NotFoundException;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+
+/**
+ * Root resource (exposed at "account" path)
+ * Balance of internal account with aggregates of its transfers, read from the shard owning it without looking at
+ * any transaction, see Account.
+ */
+@Path("account")
+public class Accounts
+{
+    private final Shards shards = Shards.SHARDS;
+
+    /**
+     * Method handling HTTP GET requests to /{id} subpath.
+     * Returns Account with requested id. Account nothing touched yet has zero balance and aggregates.
+     *
+     * @param id @PathParam id of internal account
+     * @return Account with requested id.
+     */
+    @GET
+    @Path("{id}")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Account get(@PathParam("id") long id) {
+        if (!Account.isAccountInternal(id)) {
+            throw new NotFoundException("External account " + id + " has no balance");
+        }
+        Account account = shards.forAccount(id).findAccount(id);
+        return account != null ? account : new Account(id);
+    }
+}
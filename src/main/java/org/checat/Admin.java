@@ -0,0 +1,42 @@
+package org.checat;
+
+import javax.ws.rs.ClientErrorException;
+import javax.ws.rs.InternalServerErrorException;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.core.Response;
+import java.io.IOException;
+
+/**
+ * Root resource (exposed at "admin" path)
+ * Changes role of this node. Accepted from followers too, see Transactions.ReadOnlyFilter.
+ */
+@Path(Admin.PATH)
+public class Admin {
+
+    static final String PATH = "admin";
+
+    private static volatile Node node;
+
+    static void setNode(Node node) {
+        Admin.node = node;
+    }
+
+    /**
+     * Method handling HTTP POST requests to promote path: makes follower primary, see Node.promote().
+     * @return 204 status once node is primary and accepts changes. 409 if it is primary already.
+     */
+    @POST
+    @Path("promote")
+    public Response promote() {
+        Node current = node;
+        try {
+            if (current == null || !current.promote()) {
+                throw new ClientErrorException("Node is primary already", Response.Status.CONFLICT);
+            }
+        } catch (IOException e) {
+            throw new InternalServerErrorException("Can't start journal of promoted node", e);
+        }
+        return Response.noContent().build();
+    }
+}
@@ -0,0 +1,44 @@
+package org.checat;
+
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * One operation of batch request.
+ * INITIATE uses source, destination and amount fields, CONFIRM and CANCEL use id field.
+ */
+@XmlRootElement
+public class BatchOperation {
+    public Type type;
+    public long source;
+    public long destination;
+    public long amount;
+    public long id;
+
+    public enum Type {
+        INITIATE,
+        CONFIRM,
+        CANCEL,
+    }
+
+    public BatchOperation() {}
+
+    public BatchOperation(Type type, long source, long destination, long amount, long id) {
+        this.type = type;
+        this.source = source;
+        this.destination = destination;
+        this.amount = amount;
+        this.id = id;
+    }
+
+    public static BatchOperation initiate(long source, long destination, long amount) {
+        return new BatchOperation(Type.INITIATE, source, destination, amount, 0);
+    }
+
+    public static BatchOperation confirm(long id) {
+        return new BatchOperation(Type.CONFIRM, 0, 0, 0, id);
+    }
+
+    public static BatchOperation cancel(long id) {
+        return new BatchOperation(Type.CANCEL, 0, 0, 0, id);
+    }
+}
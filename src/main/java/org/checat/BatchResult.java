@@ -0,0 +1,41 @@
+package org.checat;
+
+import javax.xml.bind.annotation.XmlRootElement;
+import java.util.Objects;
+
+/**
+ * Result of one operation of batch request.
+ * For INITIATE id is id of created transaction, null if operation failed.
+ * For CONFIRM and CANCEL id is id of requested transaction and success tells whether it ended up in
+ * CONFIRMED or CANCELED state respectively, same as single operation endpoints do.
+ */
+@XmlRootElement
+public class BatchResult {
+    public Long id;
+    public boolean success;
+
+    public BatchResult() {}
+
+    public BatchResult(Long id, boolean success) {
+        this.id = id;
+        this.success = success;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof BatchResult)) return false;
+        BatchResult that = (BatchResult) o;
+        return success == that.success && Objects.equals(id, that.id);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(id, success);
+    }
+
+    @Override
+    public String toString() {
+        return "BatchResult{id=" + id + ", success=" + success + '}';
+    }
+}
@@ -0,0 +1,43 @@
+package org.checat;
+
+/**
+ * Fixed-length binary protocol of BinaryServer. All numbers are big-endian.
+ *
+ * Request, REQUEST_BYTES long: int tag chosen by client, byte operation, 3 reserved bytes and three long
+ * arguments. INITIATE takes source, destination and amount, CONFIRM and CANCEL take id of transaction in the first
+ * argument and ignore the rest.
+ *
+ * Response, RESPONSE_BYTES long: int tag of request, byte status, 3 reserved bytes and long value: id of created
+ * transaction for successful INITIATE, id of transaction for CONFIRM and CANCEL, 0 otherwise.
+ *
+ * Client may send any number of requests without waiting for responses. Responses come in order of requests.
+ * Outcomes are the same as of the HTTP endpoints of Transactions: OK corresponds to an id or true, REJECTED to
+ * no content or false.
+ */
+public final class BinaryProtocol {
+    public static final int REQUEST_BYTES = 32;
+    public static final int RESPONSE_BYTES = 16;
+
+    public static final byte INITIATE = 1;
+    public static final byte CONFIRM = 2;
+    public static final byte CANCEL = 3;
+
+    /**
+     * Operation succeeded.
+     */
+    public static final byte OK = 0;
+    /**
+     * Operation is invalid or its conditions don't hold.
+     */
+    public static final byte REJECTED = 1;
+    /**
+     * Operation is unknown.
+     */
+    public static final byte BAD_REQUEST = 2;
+    /**
+     * Operation failed unexpectedly, it may or may not have been executed.
+     */
+    public static final byte ERROR = 3;
+
+    private BinaryProtocol() {}
+}
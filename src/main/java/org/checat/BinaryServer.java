@@ -0,0 +1,506 @@
+package org.checat;
+
+import org.checat.audit.AuditLog;
+import org.checat.storage.DataTransaction;
+import org.checat.storage.Shards;
+import org.checat.storage.Storage;
+import org.checat.storage.Transaction;
+import org.checat.storage.Transfers;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * TCP listener speaking BinaryProtocol, for clients that don't need HTTP and JSON.
+ *
+ * Every connection belongs to one of few event loop threads, each with its own selector; the first loop also
+ * accepts connections and hands them out in turn. Connection owns a pair of direct buffers, recycled by its loop
+ * when it closes. All complete requests found in input after a read are parsed by the loop and handed together as
+ * one batch to a pool of commit threads, so loops never wait for locks of accounts or for the journal. Batch is
+ * executed by Storage.commitAll(): pipelined requests take locks of their accounts once and share waiting for the
+ * journal, and each succeeds or fails on its own exactly as through Transactions, routed to shards the same way.
+ * Commit thread writes responses in order of requests and gives connection back to its loop, which sends them and
+ * hands out the next batch. Loop neither reads from connection while its batch is executed nor until the client
+ * takes responses it hasn't read yet.
+ */
+public class BinaryServer implements Closeable {
+
+    private static final Logger LOGGER = Logger.getLogger(BinaryServer.class.getName());
+
+    private static final int BUFFER_BYTES = 1 << 16;
+    private static final int MAX_BATCH = 256;
+    private static final int MAX_SPARE_BUFFERS = 64;
+    private static final int MAX_SPARE_BATCHES = 16;
+    private static final int BACKLOG = 1024;
+    private static final long CLOSE_SECONDS = 10;
+
+    private final Shards shards = Shards.SHARDS;
+    private final ServerSocketChannel server;
+    private final Loop[] loops;
+    private final ExecutorService commits;
+    private final LongAdder requests = new LongAdder();
+    private final AtomicInteger connections = new AtomicInteger();
+    private volatile boolean closed;
+
+    /**
+     * Starts listening.
+     * @param address InetSocketAddress to listen on. Port 0 picks a free one, see getPort().
+     * @param threads int Number of event loop threads.
+     * @param commitThreads int Number of threads executing batches.
+     * @throws IOException if address can't be bound.
+     */
+    public BinaryServer(InetSocketAddress address, int threads, int commitThreads) throws IOException {
+        if (threads <= 0 || commitThreads <= 0) {
+            throw new IllegalArgumentException("Number of threads should be positive");
+        }
+        AtomicInteger number = new AtomicInteger();
+        commits = Executors.newFixedThreadPool(commitThreads, runnable -> {
+            Thread thread = new Thread(runnable, "binary-commit-" + number.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        server = ServerSocketChannel.open();
+        loops = new Loop[threads];
+        try {
+            server.configureBlocking(false);
+            server.bind(address, BACKLOG);
+            for (int i = 0; i < threads; i++) {
+                loops[i] = new Loop("binary-" + i);
+            }
+            server.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+        for (Loop loop : loops) {
+            loop.thread.start();
+        }
+    }
+
+    /**
+     * @return port the server listens on.
+     */
+    public int getPort() {
+        return server.socket().getLocalPort();
+    }
+
+    /**
+     * @return number of requests executed since start.
+     */
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    /**
+     * @return number of open connections.
+     */
+    public int getConnections() {
+        return connections.get();
+    }
+
+    /**
+     * Stops accepting and closes all connections. Batches being executed are completed.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (Loop loop : loops) {
+            if (loop != null) {
+                loop.selector.wakeup();
+                if (loop.thread.isAlive()) {
+                    try {
+                        loop.thread.join();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        }
+        commits.shutdown();
+        try {
+            if (!commits.awaitTermination(CLOSE_SECONDS, TimeUnit.SECONDS)) {
+                LOGGER.warning("Binary batches are still being executed.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            server.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Can't close binary listener.", e);
+        }
+    }
+
+    private static final class Connection {
+        final SocketChannel channel;
+        final ByteBuffer input;
+        final ByteBuffer output;
+        SelectionKey key;
+        // Batch being executed by commit thread, which owns output meanwhile. Touched only by the loop.
+        Batch batch;
+
+        Connection(SocketChannel channel, ByteBuffer input, ByteBuffer output) {
+            this.channel = channel;
+            this.input = input;
+            this.output = output;
+        }
+    }
+
+    private final class Loop implements Runnable {
+        final Selector selector;
+        final Thread thread;
+        final Queue<SocketChannel> accepted = new ConcurrentLinkedQueue<>();
+        final Queue<Connection> executed = new ConcurrentLinkedQueue<>();
+        private final ArrayDeque<ByteBuffer> spareBuffers = new ArrayDeque<>();
+        private final ArrayDeque<Batch> spareBatches = new ArrayDeque<>();
+        private int nextLoop;
+
+        Loop(String name) throws IOException {
+            selector = Selector.open();
+            thread = new Thread(this, name);
+            thread.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (!closed) {
+                try {
+                    selector.select();
+                    SocketChannel channel;
+                    while ((channel = accepted.poll()) != null) {
+                        register(channel);
+                    }
+                    Connection connection;
+                    while ((connection = executed.poll()) != null) {
+                        resume(connection);
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        handle(key);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    LOGGER.log(Level.WARNING, "Binary event loop failed.", e);
+                }
+            }
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() != null) {
+                    close(key);
+                }
+            }
+            SocketChannel channel;
+            while ((channel = accepted.poll()) != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    LOGGER.log(Level.FINE, "Can't close connection.", e);
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Can't close selector.", e);
+            }
+        }
+
+        private void handle(SelectionKey key) throws IOException {
+            if (!key.isValid()) {
+                return;
+            }
+            if (key.isAcceptable()) {
+                accept();
+                return;
+            }
+            Connection connection = (Connection) key.attachment();
+            if (connection.batch != null) {
+                return;
+            }
+            try {
+                if (key.isReadable() && connection.channel.read(connection.input) < 0) {
+                    close(key);
+                    return;
+                }
+                proceed(key, connection);
+            } catch (IOException e) {
+                // Client went away.
+                close(key);
+            }
+        }
+
+        /**
+         * Takes back connection whose batch commit thread has executed.
+         */
+        private void resume(Connection connection) {
+            Batch batch = connection.batch;
+            connection.batch = null;
+            if (spareBatches.size() < MAX_SPARE_BATCHES) {
+                spareBatches.add(batch);
+            }
+            SelectionKey key = connection.key;
+            if (!key.isValid()) {
+                return;
+            }
+            try {
+                proceed(key, connection);
+            } catch (IOException e) {
+                close(key);
+            }
+        }
+
+        private void accept() throws IOException {
+            SocketChannel channel;
+            while ((channel = server.accept()) != null) {
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                Loop loop = loops[nextLoop];
+                nextLoop = (nextLoop + 1) % loops.length;
+                if (loop == this) {
+                    register(channel);
+                } else {
+                    loop.accepted.add(channel);
+                    loop.selector.wakeup();
+                }
+            }
+        }
+
+        private void register(SocketChannel channel) throws IOException {
+            ByteBuffer input = spareBuffers.poll();
+            ByteBuffer output = spareBuffers.poll();
+            Connection connection = new Connection(channel,
+                    input != null ? input : ByteBuffer.allocateDirect(BUFFER_BYTES),
+                    output != null ? output : ByteBuffer.allocateDirect(BUFFER_BYTES));
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            connections.incrementAndGet();
+        }
+
+        private void close(SelectionKey key) {
+            Connection connection = (Connection) key.attachment();
+            key.cancel();
+            try {
+                connection.channel.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Can't close connection.", e);
+            }
+            connections.decrementAndGet();
+            if (connection.batch != null) {
+                // Commit thread still writes to output.
+                return;
+            }
+            for (ByteBuffer buffer : new ByteBuffer[]{connection.input, connection.output}) {
+                if (spareBuffers.size() < MAX_SPARE_BUFFERS) {
+                    buffer.clear();
+                    spareBuffers.add(buffer);
+                }
+            }
+        }
+
+        /**
+         * Writes pending responses and, once all of them are written, hands the next batch to commit threads.
+         */
+        private void proceed(SelectionKey key, Connection connection) throws IOException {
+            flush(key, connection);
+            if ((key.interestOps() & SelectionKey.OP_WRITE) == 0) {
+                process(key, connection);
+            }
+        }
+
+        /**
+         * Writes pending responses. Reading resumes only when all of them are written.
+         */
+        private void flush(SelectionKey key, Connection connection) throws IOException {
+            ByteBuffer output = connection.output;
+            output.flip();
+            connection.channel.write(output);
+            boolean pending = output.hasRemaining();
+            output.compact();
+            key.interestOps(pending ? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        }
+
+        /**
+         * Parses complete requests of input, as many as output has room for responses to, and hands them to commit
+         * threads. Connection isn't read until they are executed.
+         */
+        private void process(SelectionKey key, Connection connection) {
+            ByteBuffer input = connection.input;
+            input.flip();
+            int count = Math.min(MAX_BATCH, Math.min(input.remaining() / BinaryProtocol.REQUEST_BYTES,
+                    connection.output.remaining() / BinaryProtocol.RESPONSE_BYTES));
+            if (count > 0) {
+                Batch batch = spareBatches.poll();
+                if (batch == null) {
+                    batch = new Batch();
+                }
+                batch.parse(input, count);
+                batch.loop = this;
+                batch.connection = connection;
+                connection.batch = batch;
+                key.interestOps(0);
+                try {
+                    commits.execute(batch);
+                } catch (RejectedExecutionException e) {
+                    LOGGER.log(Level.WARNING, "Binary batch rejected.", e);
+                    close(key);
+                }
+            }
+            input.compact();
+        }
+    }
+
+    /**
+     * Requests of connection executed together, reused for other batches of the same loop.
+     */
+    private final class Batch implements Runnable {
+        // DataTransactions of every shard by position in batch.
+        private DataTransaction[][] shardTransactions = new DataTransaction[0][];
+        private final DataTransaction[] dataTransactions = new DataTransaction[MAX_BATCH];
+        private final List<DataTransaction> prepared = new ArrayList<>(MAX_BATCH);
+        private final int[] tags = new int[MAX_BATCH];
+        private final byte[] operations = new byte[MAX_BATCH];
+        private final long[][] arguments = new long[3][MAX_BATCH];
+        private final boolean[] valid = new boolean[MAX_BATCH];
+        private int count;
+        private Loop loop;
+        private Connection connection;
+
+        /**
+         * Reads requests and prepares their DataTransactions. Run by the loop.
+         */
+        void parse(ByteBuffer input, int count) {
+            this.count = count;
+            prepared.clear();
+            for (int i = 0; i < count; i++) {
+                tags[i] = input.getInt();
+                operations[i] = input.get();
+                input.position(input.position() + 3);
+                for (long[] argument : arguments) {
+                    argument[i] = input.getLong();
+                }
+                Storage storage = operations[i] == BinaryProtocol.INITIATE
+                        ? shards.forInitiate(arguments[0][i], arguments[1][i])
+                        : shards.forTransaction(arguments[0][i]);
+                DataTransaction dataTransaction = dataTransaction(storage, i);
+                dataTransaction.reset();
+                dataTransactions[i] = dataTransaction;
+                switch (operations[i]) {
+                    case BinaryProtocol.INITIATE:
+                        valid[i] = Transfers.initiate(dataTransaction, arguments[0][i], arguments[1][i],
+                                arguments[2][i]);
+                        break;
+                    case BinaryProtocol.CONFIRM:
+                        valid[i] = Transfers.confirm(dataTransaction, shards.localId(arguments[0][i]));
+                        break;
+                    case BinaryProtocol.CANCEL:
+                        valid[i] = Transfers.cancel(dataTransaction, shards.localId(arguments[0][i]));
+                        break;
+                    default:
+                        valid[i] = false;
+                        break;
+                }
+                if (valid[i]) {
+                    prepared.add(dataTransaction);
+                }
+            }
+        }
+
+        /**
+         * Commits requests, writes responses to output of connection and gives it back to the loop. Run by commit
+         * thread.
+         */
+        @Override
+        public void run() {
+            try {
+                execute(connection.output);
+            } finally {
+                loop.executed.add(connection);
+                loop.selector.wakeup();
+            }
+        }
+
+        private void execute(ByteBuffer output) {
+            boolean failed = false;
+            try {
+                if (!prepared.isEmpty()) {
+                    shards.commitAll(prepared);
+                }
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Binary batch failed.", e);
+                failed = true;
+            }
+            for (int i = 0; i < count; i++) {
+                output.putInt(tags[i]);
+                long id = arguments[0][i];
+                byte status;
+                long value = 0;
+                if (failed) {
+                    status = BinaryProtocol.ERROR;
+                } else {
+                    switch (operations[i]) {
+                        case BinaryProtocol.INITIATE: {
+                            boolean done = valid[i] && dataTransactions[i].isCommitted();
+                            value = done ? shards.globalId(dataTransactions[i].getStorage(),
+                                    dataTransactions[i].getInsertedId(0)) : 0;
+                            status = done ? BinaryProtocol.OK : BinaryProtocol.REJECTED;
+                            Transactions.audit(AuditLog.Event.INITIATE, done, value, arguments[0][i],
+                                    arguments[1][i], arguments[2][i]);
+                            break;
+                        }
+                        case BinaryProtocol.CONFIRM:
+                            status = complete(AuditLog.Event.CONFIRM, Transaction.State.CONFIRMED, valid[i], id);
+                            value = id;
+                            break;
+                        case BinaryProtocol.CANCEL:
+                            status = complete(AuditLog.Event.CANCEL, Transaction.State.CANCELED, valid[i], id);
+                            value = id;
+                            break;
+                        default:
+                            status = BinaryProtocol.BAD_REQUEST;
+                            break;
+                    }
+                }
+                output.put(status);
+                output.put((byte) 0).put((byte) 0).put((byte) 0);
+                output.putLong(value);
+            }
+            requests.add(count);
+        }
+
+        private DataTransaction dataTransaction(Storage storage, int position) {
+            if (shardTransactions.length != shards.getCount()) {
+                shardTransactions = new DataTransaction[shards.getCount()][MAX_BATCH];
+            }
+            DataTransaction[] ofShard = shardTransactions[storage.getShard()];
+            if (ofShard[position] == null || ofShard[position].getStorage() != storage) {
+                ofShard[position] = storage.startDataTransaction();
+            }
+            return ofShard[position];
+        }
+
+        private byte complete(AuditLog.Event event, Transaction.State state, boolean valid, long id) {
+            boolean done = valid && Transfers.isInState(shards.forTransaction(id), shards.localId(id), state);
+            Transactions.audit(event, done, id, 0, 0, 0);
+            return done ? BinaryProtocol.OK : BinaryProtocol.REJECTED;
+        }
+    }
+}
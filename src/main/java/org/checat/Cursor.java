@@ -0,0 +1,44 @@
+package org.checat;
+
+import javax.ws.rs.BadRequestException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Opaque pagination cursor pointing after particular transaction.
+ * Cursor is built on transaction id, so it stays valid however storage changes between pages.
+ */
+public final class Cursor {
+    private static final String PREFIX = "tx:";
+
+    private Cursor() {}
+
+    /**
+     * @param transaction_id long Id of the last transaction returned to client.
+     * @return cursor to pass in after parameter to request the next page.
+     */
+    public static String encode(long transaction_id) {
+        return Base64.getUrlEncoder().withoutPadding()
+                .encodeToString((PREFIX + transaction_id).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param cursor String Cursor produced by encode or null.
+     * @return id of transaction to continue after. 0 if cursor is null.
+     * @throws BadRequestException if cursor is malformed.
+     */
+    public static long decode(String cursor) {
+        if (cursor == null) {
+            return 0;
+        }
+        try {
+            String decoded = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+            if (!decoded.startsWith(PREFIX)) {
+                throw new BadRequestException("Malformed cursor " + cursor);
+            }
+            return Long.parseLong(decoded.substring(PREFIX.length()));
+        } catch (IllegalArgumentException e) {
+            throw new BadRequestException("Malformed cursor " + cursor, e);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package org.checat;
+
+import javax.ws.rs.ServiceUnavailableException;
+import javax.ws.rs.container.AsyncResponse;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Runs work of suspended requests according to ExecutionMode: on the calling worker thread, or on pool of commit
+ * threads in ExecutionMode.ASYNC.
+ */
+final class Execution {
+
+    private static volatile ExecutorService commits;
+
+    private Execution() {}
+
+    /**
+     * Switches execution of suspended requests. Should be called before server starts.
+     * @param mode ExecutionMode to use.
+     * @param commitThreads int Number of commit threads for ExecutionMode.ASYNC. Ignored otherwise.
+     */
+    static synchronized void configure(ExecutionMode mode, int commitThreads) {
+        ExecutorService previous = commits;
+        if (mode == ExecutionMode.ASYNC) {
+            AtomicInteger number = new AtomicInteger();
+            commits = Executors.newFixedThreadPool(commitThreads, runnable -> {
+                Thread thread = new Thread(runnable, "commit-" + number.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            });
+        } else {
+            commits = null;
+        }
+        if (previous != null) {
+            previous.shutdown();
+        }
+    }
+
+    /**
+     * Executes work and resumes response with its result, or with exception it throws.
+     * @param response AsyncResponse of suspended request.
+     * @param work Supplier of response entity.
+     * @return false if work was rejected and response was resumed with ServiceUnavailableException.
+     */
+    static <T> boolean resume(AsyncResponse response, Supplier<T> work) {
+        ExecutorService executor = commits;
+        if (executor == null) {
+            run(response, work);
+            return true;
+        }
+        try {
+            executor.execute(() -> run(response, work));
+            return true;
+        } catch (RejectedExecutionException e) {
+            response.resume(new ServiceUnavailableException());
+            return false;
+        }
+    }
+
+    private static <T> void run(AsyncResponse response, Supplier<T> work) {
+        try {
+            response.resume(work.get());
+        } catch (RuntimeException e) {
+            response.resume(e);
+        }
+    }
+
+    /**
+     * @return executor starting new virtual thread per task.
+     * @throws IllegalStateException if runtime has no virtual threads.
+     */
+    static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Virtual threads need Java 21 or newer", e);
+        }
+    }
+}
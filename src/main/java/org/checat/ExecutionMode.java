@@ -0,0 +1,20 @@
+package org.checat;
+
+/**
+ * The way HTTP requests that commit to storage are executed.
+ */
+public enum ExecutionMode {
+    /**
+     * Commit runs on Grizzly worker thread, which stays busy while commit waits for account locks.
+     */
+    WORKER,
+    /**
+     * Committing endpoints suspend request and run commit on separate pool of commit threads, so workers are free
+     * to serve cheap requests like GET /transaction/{id} while commits wait for account locks.
+     */
+    ASYNC,
+    /**
+     * Every request runs on its own virtual thread instead of pooled worker. Needs Java 21 or newer at runtime.
+     */
+    VIRTUAL,
+}
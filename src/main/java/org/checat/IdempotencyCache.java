@@ -0,0 +1,162 @@
+package org.checat;
+
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+/**
+ * Bounded cache of outcomes of initiate requests by client supplied idempotency key.
+ *
+ * The first request with a key claims it and executes; concurrent and later requests with the same key get the
+ * outcome of the first one. Entries are evicted in order of insertion, which is also order of expiry as all of
+ * them live for the same time, once they expire or once there are more of them than the limit. Number of entries
+ * thus exceeds the limit at most by number of concurrent inserts, and every entry costs a map node, a
+ * queue node, the key and one small object.
+ */
+class IdempotencyCache {
+
+    /**
+     * Outcome of request with a key.
+     */
+    static final class Entry {
+        private final String key;
+        private final long source;
+        private final long destination;
+        private final long amount;
+        private final long expiresNanos;
+        private final CompletableFuture<Long> result = new CompletableFuture<>();
+
+        private Entry(String key, long source, long destination, long amount, long expiresNanos) {
+            this.key = key;
+            this.source = source;
+            this.destination = destination;
+            this.amount = amount;
+            this.expiresNanos = expiresNanos;
+        }
+
+        /**
+         * @return true if entry was created by request with the same parameters.
+         */
+        boolean matches(long source, long destination, long amount) {
+            return this.source == source && this.destination == destination && this.amount == amount;
+        }
+
+        /**
+         * @return id of initiated transaction, null if request failed. Completed exceptionally if request threw.
+         */
+        CompletableFuture<Long> result() {
+            return result;
+        }
+
+        private boolean expired(long now) {
+            return now - expiresNanos >= 0;
+        }
+    }
+
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Queue<Entry> insertions = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final ReentrantLock evicting = new ReentrantLock();
+    private final long ttlNanos;
+    private final int maxEntries;
+    private final LongSupplier clock;
+
+    /**
+     * @param ttl long Time outcome is kept for.
+     * @param unit TimeUnit of ttl.
+     * @param maxEntries int Maximum number of kept outcomes.
+     */
+    IdempotencyCache(long ttl, TimeUnit unit, int maxEntries) {
+        this(ttl, unit, maxEntries, System::nanoTime);
+    }
+
+    IdempotencyCache(long ttl, TimeUnit unit, int maxEntries, LongSupplier clock) {
+        this.ttlNanos = unit.toNanos(ttl);
+        this.maxEntries = maxEntries;
+        this.clock = clock;
+    }
+
+    /**
+     * @return entry of request with key and parameters, to be claimed by claim().
+     */
+    Entry newEntry(String key, long source, long destination, long amount) {
+        return new Entry(key, source, destination, amount, clock.getAsLong() + ttlNanos);
+    }
+
+    /**
+     * Claims key of entry for request or finds the request that claimed it before.
+     * @return null if key is claimed by caller, who must then complete entry with complete() or fail(),
+     * unexpired entry of earlier request otherwise.
+     */
+    Entry claim(Entry entry) {
+        long now = clock.getAsLong();
+        while (true) {
+            Entry existing = entries.putIfAbsent(entry.key, entry);
+            if (existing == null) {
+                break;
+            }
+            if (!existing.expired(now)) {
+                return existing;
+            }
+            if (entries.replace(entry.key, existing, entry)) {
+                break;
+            }
+        }
+        insertions.add(entry);
+        size.incrementAndGet();
+        evict(now);
+        return null;
+    }
+
+    /**
+     * Records outcome of request that claimed key.
+     * @param id Long Id of initiated transaction or null if request failed.
+     */
+    void complete(Entry entry, Long id) {
+        entry.result.complete(id);
+    }
+
+    /**
+     * Forgets entry of request that threw instead of producing outcome, so retries execute again.
+     */
+    void fail(Entry entry, Throwable error) {
+        entries.remove(entry.key, entry);
+        entry.result.completeExceptionally(error);
+    }
+
+    /**
+     * Evicts oldest entries while they are expired or there are too many of them. Only one thread evicts at
+     * a time, others rely on it to evict what they inserted too.
+     */
+    private void evict(long now) {
+        if (!evicting.tryLock()) {
+            return;
+        }
+        try {
+            while (true) {
+                Entry oldest = insertions.peek();
+                if (oldest == null || size.get() <= maxEntries && !oldest.expired(now)) {
+                    return;
+                }
+                insertions.poll();
+                size.decrementAndGet();
+                entries.remove(oldest.key, oldest);
+            }
+        } finally {
+            evicting.unlock();
+        }
+    }
+
+    /**
+     * @return number of kept entries, including expired ones not evicted yet.
+     */
+    int size() {
+        return size.get();
+    }
+}
@@ -1,32 +1,313 @@
 package org.checat;
 
+import org.checat.audit.AuditLog;
+import org.checat.storage.ChangeFeed;
+import org.checat.storage.CommitMode;
+import org.checat.storage.HoldExpiry;
+import org.checat.storage.Journal;
+import org.checat.storage.Replica;
+import org.checat.storage.Replicator;
+import org.checat.storage.Shards;
+import org.checat.storage.Snapshotter;
+import org.checat.storage.Storage;
+import org.checat.storage.Tiering;
 import org.glassfish.grizzly.http.server.HttpServer;
+import org.glassfish.grizzly.nio.transport.TCPNIOTransport;
+import org.glassfish.grizzly.threadpool.ThreadPoolConfig;
 import org.glassfish.jersey.grizzly2.httpserver.GrizzlyHttpServerFactory;
 import org.glassfish.jersey.server.ResourceConfig;
 
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.core.UriBuilder;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.URI;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
 
 /**
  * Main class.
  *
  */
 public class Main {
+    private static final Logger LOGGER = Logger.getLogger(Main.class.getName());
     // Base URI the Grizzly HTTP server will listen on
     public static final String BASE_URI = "http://localhost:8080/";
+    // Name of the listener created by GrizzlyHttpServerFactory
+    private static final String LISTENER_NAME = "grizzly";
+
+    /**
+     * @return BASE_URI with configured port.
+     */
+    static URI baseUri() {
+        URI base = URI.create(BASE_URI);
+        return UriBuilder.fromUri(base).port((int) Settings.getLong(Settings.SERVER_PORT, base.getPort())).build();
+    }
 
     /**
      * Starts Grizzly HTTP server exposing JAX-RS resources defined in this application.
+     * Execution mode and thread pool sizes are taken from settings.
      * @return Grizzly HTTP server.
      */
     public static HttpServer startServer() {
+        return startServer(Settings.getEnum(Settings.SERVER_MODE, ExecutionMode.class, ExecutionMode.WORKER),
+                (int) Settings.getLong(Settings.SERVER_WORKER_THREADS, 0));
+    }
+
+    /**
+     * Starts Grizzly HTTP server exposing JAX-RS resources defined in this application.
+     * @param mode ExecutionMode of requests.
+     * @param workerThreads int Number of Grizzly worker threads. Grizzly default if not positive.
+     * @return Grizzly HTTP server.
+     */
+    public static HttpServer startServer(ExecutionMode mode, int workerThreads) {
         // create a resource config that scans for JAX-RS resources and providers
         // in org.checat package
         final ResourceConfig rc = new ResourceConfig().packages("org.checat");
 
-        // create and start a new instance of grizzly http server
-        // exposing the Jersey application at BASE_URI
-        return GrizzlyHttpServerFactory.createHttpServer(URI.create(BASE_URI), rc);
+        Execution.configure(mode, (int) Settings.getLong(Settings.SERVER_COMMIT_THREADS,
+                2 * Runtime.getRuntime().availableProcessors()));
+        Transactions.configureIdempotency(Settings.getLong(Settings.IDEMPOTENCY_TTL_SECONDS, 24 * 60 * 60),
+                (int) Settings.getLong(Settings.IDEMPOTENCY_MAX_KEYS, 1_000_000));
+        Transactions.configureBatch((int) Settings.getLong(Settings.BATCH_MAX_OPERATIONS, 10_000));
+
+        // create a new instance of grizzly http server exposing the Jersey application at BASE_URI
+        final HttpServer server = GrizzlyHttpServerFactory.createHttpServer(baseUri(), rc, false);
+        TCPNIOTransport transport = server.getListener(LISTENER_NAME).getTransport();
+        if (mode == ExecutionMode.VIRTUAL) {
+            transport.setWorkerThreadPool(Execution.newVirtualThreadExecutor());
+        } else if (workerThreads > 0) {
+            transport.setWorkerThreadPoolConfig(ThreadPoolConfig.defaultConfig()
+                    .setCorePoolSize(workerThreads)
+                    .setMaxPoolSize(workerThreads));
+        }
+        int selectorThreads = (int) Settings.getLong(Settings.SERVER_SELECTOR_THREADS, 0);
+        if (selectorThreads > 0) {
+            transport.setSelectorRunnersCount(selectorThreads);
+        }
+        try {
+            server.start();
+        } catch (IOException e) {
+            server.shutdownNow();
+            throw new ProcessingException("Can't start server", e);
+        }
+        Status.serverStarted();
+        return server;
+    }
+
+    /**
+     * Splits storage into configured number of shards and switches every shard to configured commit mode. Storage
+     * of several shards is in-memory only, see openJournal(), so it is experimental and refused unless explicitly
+     * allowed.
+     * @throws IllegalArgumentException if storage is configured to have several shards without
+     * Settings.SHARDS_EXPERIMENTAL.
+     */
+    public static void configureStorage() {
+        CommitMode mode = Settings.getEnum(Settings.COMMIT_MODE, CommitMode.class, CommitMode.LOCKING);
+        int partitions = (int) Settings.getLong(Settings.COMMIT_PARTITIONS,
+                Runtime.getRuntime().availableProcessors());
+        int shards = (int) Settings.getLong(Settings.SHARDS, 1);
+        if (shards > 1 && !Settings.getBoolean(Settings.SHARDS_EXPERIMENTAL)) {
+            throw new IllegalArgumentException("Storage of several shards is experimental and in-memory only: journal,"
+                    + " snapshots and replication can't be used with it. Set " + Settings.SHARDS_EXPERIMENTAL
+                    + "=true to run it anyway");
+        }
+        Shards.SHARDS.configure(shards);
+        if (Shards.SHARDS.getCount() > 1) {
+            LOGGER.warning(String.format("Storage is split into %d shards and is IN-MEMORY ONLY: journal, snapshots"
+                    + " and replication can't be used with several shards, every transaction is lost on restart.",
+                    Shards.SHARDS.getCount()));
+        }
+        for (int i = 0; i < Shards.SHARDS.getCount(); i++) {
+            Shards.SHARDS.get(i).setCommitMode(mode, partitions);
+        }
+    }
+
+    /**
+     * Recovers storage from journal and starts journaling if journal directory is configured.
+     * @return Journal attached to storage or null if journal isn't configured.
+     * @throws IOException if journal can't be read or created.
+     * @throws IllegalStateException if storage has several shards: records of one commit across shards would be
+     * made durable by several journals independently, and a crash between them would keep only some parts of it.
+     * Sharded storage is therefore never durable.
+     */
+    public static Journal openJournal() throws IOException {
+        String directory = Settings.getString(Settings.JOURNAL_DIRECTORY, null);
+        if (directory == null) {
+            return null;
+        }
+        if (Shards.SHARDS.getCount() > 1) {
+            throw new IllegalStateException("Journal can't be used with several shards");
+        }
+        return Journal.open(Paths.get(directory),
+                Settings.getEnum(Settings.JOURNAL_DURABILITY, Journal.Durability.class, Journal.Durability.GROUP),
+                Settings.getLong(Settings.JOURNAL_SEGMENT_BYTES, 64L << 20),
+                Settings.getLong(Settings.JOURNAL_FLUSH_INTERVAL_MILLIS, 10),
+                Storage.STORAGE);
+    }
+
+    /**
+     * Starts journaling storage as it is, without recovering from journal directory, if it is configured. Used
+     * when follower becomes primary, see Node.promote().
+     * @return Journal attached to storage or null if journal isn't configured.
+     * @throws IOException if journal directory can't be prepared or snapshot of storage can't be written.
+     * @throws IllegalStateException if storage has several shards.
+     */
+    public static Journal createJournal() throws IOException {
+        String directory = Settings.getString(Settings.JOURNAL_DIRECTORY, null);
+        if (directory == null) {
+            return null;
+        }
+        if (Shards.SHARDS.getCount() > 1) {
+            throw new IllegalStateException("Journal can't be used with several shards");
+        }
+        return Journal.create(Paths.get(directory),
+                Settings.getEnum(Settings.JOURNAL_DURABILITY, Journal.Durability.class, Journal.Durability.GROUP),
+                Settings.getLong(Settings.JOURNAL_SEGMENT_BYTES, 64L << 20),
+                Settings.getLong(Settings.JOURNAL_FLUSH_INTERVAL_MILLIS, 10),
+                Storage.STORAGE);
+    }
+
+    /**
+     * Opens audit log of transfer requests if audit directory is configured.
+     * @return AuditLog or null if audit log isn't configured.
+     * @throws IOException if audit directory can't be read or created.
+     */
+    public static AuditLog openAuditLog() throws IOException {
+        String directory = Settings.getString(Settings.AUDIT_DIRECTORY, null);
+        if (directory == null) {
+            return null;
+        }
+        return AuditLog.open(Paths.get(directory),
+                Settings.getEnum(Settings.AUDIT_OVERFLOW, AuditLog.Overflow.class, AuditLog.Overflow.BLOCK),
+                (int) Settings.getLong(Settings.AUDIT_BUFFER_RECORDS, 1 << 16),
+                Settings.getLong(Settings.AUDIT_FILE_BYTES, 64L << 20),
+                (int) Settings.getLong(Settings.AUDIT_KEEP_FILES, 16));
+    }
+
+    /**
+     * Starts periodic snapshots of storage if they aren't disabled.
+     * @param journal Journal attached to storage.
+     * @return Snapshotter or null if snapshots are disabled.
+     * @throws IllegalArgumentException if number of snapshots to keep isn't positive.
+     */
+    public static Snapshotter startSnapshotter(Journal journal) {
+        long interval = Settings.getLong(Settings.SNAPSHOT_INTERVAL_SECONDS, 300);
+        if (interval <= 0) {
+            return null;
+        }
+        return new Snapshotter(Storage.STORAGE, journal, interval, (int) Settings.getLong(Settings.SNAPSHOT_KEEP, 2));
+    }
+
+    /**
+     * Starts cancelling transactions left initiated for too long on every shard if hold TTL is configured.
+     * @return HoldExpiry of every shard, empty if holds never expire.
+     */
+    public static List<HoldExpiry> startHoldExpiry() {
+        long ttl = Settings.getLong(Settings.HOLD_TTL_SECONDS, 0);
+        List<HoldExpiry> expiries = new ArrayList<>();
+        for (int i = 0; i < Shards.SHARDS.getCount() && ttl > 0; i++) {
+            expiries.add(new HoldExpiry(Shards.SHARDS.get(i), TimeUnit.SECONDS.toMillis(ttl),
+                    Settings.getLong(Settings.HOLD_TICK_MILLIS, 100)));
+        }
+        return expiries;
+    }
+
+    /**
+     * Starts binary protocol listener next to HTTP server if its port is configured.
+     * @return BinaryServer or null if binary listener is disabled.
+     * @throws IOException if port can't be bound.
+     */
+    public static BinaryServer startBinaryServer() throws IOException {
+        long port = Settings.getLong(Settings.BINARY_PORT, 0);
+        if (port <= 0) {
+            return null;
+        }
+        return new BinaryServer(new InetSocketAddress(URI.create(BASE_URI).getHost(), (int) port),
+                (int) Settings.getLong(Settings.BINARY_THREADS, Runtime.getRuntime().availableProcessors()),
+                (int) Settings.getLong(Settings.BINARY_COMMIT_THREADS, 2 * Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Prepares moving transactions that will never change out of memory on every shard if tier directory is
+     * configured, see Tiering.start(). Shards beyond the first one keep segments in subdirectories shard-N of it.
+     * @param recover boolean true if storage is about to be recovered from journal, see openJournal(): segments
+     * written before restart are attached again, so recovery doesn't load their transactions into memory. False if
+     * storage holds its transactions already, e.g. when follower becomes primary: segments are deleted.
+     * @return Tiering of every shard, empty if all transactions stay in memory.
+     * @throws IOException if tier directory can't be prepared.
+     */
+    public static List<Tiering> openTiering(boolean recover) throws IOException {
+        String directory = Settings.getString(Settings.TIER_DIRECTORY, null);
+        // Without journal storage starts empty, and segments of the previous run would bring back only some of it.
+        boolean reattach = recover && Settings.getString(Settings.JOURNAL_DIRECTORY, null) != null;
+        List<Tiering> tierings = new ArrayList<>();
+        for (int i = 0; i < Shards.SHARDS.getCount() && directory != null; i++) {
+            tierings.add(new Tiering(Shards.SHARDS.get(i),
+                    i == 0 ? Paths.get(directory) : Paths.get(directory, "shard-" + i),
+                    Settings.getLong(Settings.TIER_HOT_TRANSACTIONS, 1 << 20),
+                    Settings.getLong(Settings.TIER_INTERVAL_SECONDS, 60),
+                    (int) Settings.getLong(Settings.TIER_CACHE_BLOCKS, 1 << 12),
+                    reattach));
+        }
+        return tierings;
+    }
+
+    /**
+     * Starts shipping commits to followers if replication port is configured.
+     * @return Replicator attached to storage or null if commits aren't replicated.
+     * @throws IOException if port can't be bound.
+     * @throws IllegalStateException if storage has several shards: one stream can't order commits of all of them.
+     */
+    public static Replicator startReplicator() throws IOException {
+        long port = Settings.getLong(Settings.REPLICATION_PORT, 0);
+        if (port <= 0) {
+            return null;
+        }
+        if (Shards.SHARDS.getCount() > 1) {
+            throw new IllegalStateException("Replication can't be used with several shards");
+        }
+        return new Replicator(Storage.STORAGE, new InetSocketAddress(URI.create(BASE_URI).getHost(), (int) port),
+                Settings.getEnum(Settings.REPLICATION_ACK, Replicator.Ack.class, Replicator.Ack.ASYNC),
+                Settings.getLong(Settings.REPLICATION_ACK_TIMEOUT_MILLIS, 1000));
+    }
+
+    /**
+     * Starts following primary if its address is configured.
+     * @return Replica keeping storage a copy of primary or null if this node is primary itself.
+     * @throws IllegalArgumentException if address isn't host:port.
+     * @throws IllegalStateException if storage has several shards.
+     */
+    public static Replica startReplica() {
+        String primary = Settings.getString(Settings.REPLICATION_PRIMARY, null);
+        if (primary == null) {
+            return null;
+        }
+        if (Shards.SHARDS.getCount() > 1) {
+            throw new IllegalStateException("Replication can't be used with several shards");
+        }
+        int colon = primary.lastIndexOf(':');
+        if (colon <= 0) {
+            throw new IllegalArgumentException("Address of primary should be host:port");
+        }
+        return new Replica(Storage.STORAGE,
+                new InetSocketAddress(primary.substring(0, colon), Integer.parseInt(primary.substring(colon + 1))),
+                Settings.getLong(Settings.REPLICATION_RETRY_MILLIS, 1000));
+    }
+
+    /**
+     * Starts feeding changes of transactions of every shard to subscribers unless change feed is disabled.
+     * @return ChangeFeed or null if it is disabled.
+     */
+    public static ChangeFeed startChangeFeed() {
+        long capacity = Settings.getLong(Settings.FEED_CAPACITY, 1 << 16);
+        if (capacity <= 0) {
+            return null;
+        }
+        return new ChangeFeed(Shards.SHARDS, (int) capacity);
     }
 
     /**
@@ -35,10 +316,27 @@ public class Main {
      * @throws IOException
      */
     public static void main(String[] args) throws IOException {
+        configureStorage();
+        // Follower applies what primary commits and does nothing that would change storage itself until promoted.
+        final Node node = Node.start(startReplica());
+        Admin.setNode(node);
+        final AuditLog auditLog = openAuditLog();
+        Transactions.setAuditLog(auditLog);
+        final ChangeFeed changeFeed = startChangeFeed();
+        Transactions.setChangeFeed(changeFeed, Settings.getLong(Settings.FEED_HEARTBEAT_MILLIS, 15_000),
+                (int) Settings.getLong(Settings.FEED_MAX_SUBSCRIBERS, 256));
+        Metrics.setChangeFeed(changeFeed);
         final HttpServer server = startServer();
-        System.out.println(String.format("Jersey app started at %stransaction\nHit enter to stop it...", BASE_URI));
+        System.out.println(String.format("Jersey app started at %stransaction\nHit enter to stop it...", baseUri()));
         System.in.read();
+        if (changeFeed != null) {
+            // Ends streams of subscribers, so server doesn't wait for them.
+            changeFeed.close();
+        }
         server.stop();
+        node.close();
+        if (auditLog != null) {
+            auditLog.close();
+        }
     }
 }
-
@@ -0,0 +1,351 @@
+package org.checat;
+
+import org.checat.audit.AuditLog;
+import org.checat.metrics.Exposition;
+import org.checat.metrics.Histogram;
+import org.checat.storage.ChangeFeed;
+import org.checat.storage.CommitMetrics;
+import org.checat.storage.HoldExpiry;
+import org.checat.storage.Replica;
+import org.checat.storage.Replicator;
+import org.checat.storage.Shards;
+import org.checat.storage.Tiering;
+import org.checat.storage.Transaction;
+
+import javax.ws.rs.BadRequestException;
+import javax.ws.rs.DefaultValue;
+import javax.ws.rs.GET;
+import javax.ws.rs.HttpMethod;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
+import javax.ws.rs.container.DynamicFeature;
+import javax.ws.rs.container.ResourceInfo;
+import javax.ws.rs.core.FeatureContext;
+import javax.ws.rs.ext.Provider;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Root resource (exposed at "metrics" path)
+ * Reports request latencies and commit counters in Prometheus text format.
+ */
+@Path("metrics")
+public class Metrics {
+
+    private static final String START_PROPERTY = Metrics.class.getName() + ".start";
+
+    // Latency histograms of endpoints keyed by their labels.
+    private static final ConcurrentMap<String, Histogram> LATENCIES = new ConcurrentSkipListMap<>();
+    private static volatile List<HoldExpiry> holdExpiry = Collections.emptyList();
+    private static volatile List<Tiering> tiering = Collections.emptyList();
+    private static volatile BinaryServer binaryServer;
+    private static volatile Replicator replicator;
+    private static volatile Replica replica;
+    private static volatile ChangeFeed changeFeed;
+
+    private final Shards shards = Shards.SHARDS;
+
+    /**
+     * Binds latency filter with its own histogram to every resource method, so requests don't look anything up.
+     */
+    @Provider
+    public static class LatencyFeature implements DynamicFeature {
+        @Override
+        public void configure(ResourceInfo resourceInfo, FeatureContext context) {
+            Method method = resourceInfo.getResourceMethod();
+            String labels = "method=\"" + httpMethod(method) + "\",path=\""
+                    + Exposition.escape(path(resourceInfo.getResourceClass(), method)) + "\"";
+            context.register(new LatencyFilter(LATENCIES.computeIfAbsent(labels, unused_key -> new Histogram())));
+        }
+    }
+
+    /**
+     * Records time from matching of request until its response is ready, including time it was suspended.
+     */
+    static class LatencyFilter implements ContainerRequestFilter, ContainerResponseFilter {
+        private final Histogram histogram;
+
+        LatencyFilter(Histogram histogram) {
+            this.histogram = histogram;
+        }
+
+        @Override
+        public void filter(ContainerRequestContext requestContext) {
+            requestContext.setProperty(START_PROPERTY, System.nanoTime());
+        }
+
+        @Override
+        public void filter(ContainerRequestContext requestContext, ContainerResponseContext responseContext) {
+            Object start = requestContext.getProperty(START_PROPERTY);
+            if (start != null) {
+                histogram.record(System.nanoTime() - (Long) start);
+            }
+        }
+    }
+
+    static void setHoldExpiry(List<HoldExpiry> holdExpiry) {
+        Metrics.holdExpiry = holdExpiry;
+    }
+
+    static void setTiering(List<Tiering> tiering) {
+        Metrics.tiering = tiering;
+    }
+
+    static void setBinaryServer(BinaryServer binaryServer) {
+        Metrics.binaryServer = binaryServer;
+    }
+
+    static void setReplicator(Replicator replicator) {
+        Metrics.replicator = replicator;
+    }
+
+    static void setReplica(Replica replica) {
+        Metrics.replica = replica;
+    }
+
+    static void setChangeFeed(ChangeFeed changeFeed) {
+        Metrics.changeFeed = changeFeed;
+    }
+
+    private static String httpMethod(Method method) {
+        for (Annotation annotation : method.getAnnotations()) {
+            HttpMethod httpMethod = annotation.annotationType().getAnnotation(HttpMethod.class);
+            if (httpMethod != null) {
+                return httpMethod.value();
+            }
+        }
+        return "";
+    }
+
+    private static String path(Class<?> resource, Method method) {
+        StringBuilder path = new StringBuilder();
+        Path classPath = resource.getAnnotation(Path.class);
+        if (classPath != null) {
+            path.append('/').append(classPath.value());
+        }
+        Path methodPath = method.getAnnotation(Path.class);
+        if (methodPath != null) {
+            path.append('/').append(methodPath.value());
+        }
+        return path.toString().replaceAll("/+", "/");
+    }
+
+    /**
+     * Method handling HTTP GET requests to base path.
+     *
+     * @param top @QueryParam. Number of the most contended accounts to report. 10 by default.
+     * @return request latency histograms per endpoint, commit outcomes, lock wait and hold time histograms,
+     * number of transactions in every state and the most contended accounts. Values of storage are summed over
+     * shards, histograms are labelled by shard if there are several.
+     * @throws BadRequestException if top is negative
+     */
+    @GET
+    @Produces(Exposition.CONTENT_TYPE)
+    public String get(@QueryParam("top") @DefaultValue("10") int top) {
+        if (top < 0) {
+            throw new BadRequestException("Top should not be negative");
+        }
+        Exposition out = new Exposition();
+        out.family("transactions_http_request_duration_seconds", "histogram",
+                "Time from matching of request until its response is ready.");
+        for (Map.Entry<String, Histogram> latency : LATENCIES.entrySet()) {
+            latency.getValue().writeTo(out, "transactions_http_request_duration_seconds", latency.getKey());
+        }
+
+        int count = shards.getCount();
+        long committed = 0;
+        long failed = 0;
+        long conflicts = 0;
+        long fallbacks = 0;
+        for (int i = 0; i < count; i++) {
+            CommitMetrics commits = shards.get(i).getCommitMetrics();
+            committed += commits.getCommitted();
+            failed += commits.getFailed();
+            conflicts += commits.getConflicts();
+            fallbacks += commits.getFallbacks();
+        }
+        out.family("transactions_commits_total", "counter", "DataTransaction commits by outcome.")
+                .sample("transactions_commits_total", "outcome=\"committed\"", committed)
+                .sample("transactions_commits_total", "outcome=\"condition_failed\"", failed);
+        out.family("transactions_commit_conflicts_total", "counter",
+                "Times optimistic commit found its accounts changed or owned by another commit.")
+                .sample("transactions_commit_conflicts_total", "", conflicts);
+        out.family("transactions_commit_fallbacks_total", "counter",
+                "Optimistic commits that took account locks after repeated conflicts.")
+                .sample("transactions_commit_fallbacks_total", "", fallbacks);
+        out.family("transactions_commit_lock_wait_seconds", "histogram",
+                "Time commit waited for exclusive access to its accounts.");
+        for (int i = 0; i < count; i++) {
+            shards.get(i).getCommitMetrics().getLockWait()
+                    .writeTo(out, "transactions_commit_lock_wait_seconds", shardLabel(i, count));
+        }
+        out.family("transactions_commit_lock_hold_seconds", "histogram",
+                "Time commit held exclusive access to its accounts.");
+        for (int i = 0; i < count; i++) {
+            shards.get(i).getCommitMetrics().getLockHold()
+                    .writeTo(out, "transactions_commit_lock_hold_seconds", shardLabel(i, count));
+        }
+        out.family("transactions_shards", "gauge", "Number of shards storage is split into.")
+                .sample("transactions_shards", "", count);
+        out.family("transactions_cross_shard_commits_total", "counter",
+                "Committed DataTransactions that changed accounts of several shards.")
+                .sample("transactions_cross_shard_commits_total", "", shards.getCrossShardCommits());
+
+        List<HoldExpiry> expiries = holdExpiry;
+        if (!expiries.isEmpty()) {
+            long expired = 0;
+            long pending = 0;
+            for (HoldExpiry expiry : expiries) {
+                expired += expiry.getExpired();
+                pending += expiry.getPending();
+            }
+            out.family("transactions_holds_expired_total", "counter",
+                    "Initiated transactions cancelled because hold TTL passed.")
+                    .sample("transactions_holds_expired_total", "", expired);
+            out.family("transactions_holds_pending", "gauge", "Transactions scheduled for hold expiry.")
+                    .sample("transactions_holds_pending", "", pending);
+        }
+
+        BinaryServer binary = binaryServer;
+        if (binary != null) {
+            out.family("transactions_binary_requests_total", "counter", "Requests executed by binary listener.")
+                    .sample("transactions_binary_requests_total", "", binary.getRequests());
+            out.family("transactions_binary_connections", "gauge", "Open connections of binary listener.")
+                    .sample("transactions_binary_connections", "", binary.getConnections());
+        }
+
+        Replicator primary = replicator;
+        if (primary != null) {
+            out.family("transactions_replication_followers", "gauge", "Followers connected to replicator.")
+                    .sample("transactions_replication_followers", "", primary.getFollowerCount());
+            out.family("transactions_replication_sequence", "counter", "Commits shipped to followers.")
+                    .sample("transactions_replication_sequence", "", primary.getAppendedSequence());
+            out.family("transactions_replication_lag_records", "gauge",
+                    "Shipped commits not yet applied by follower.");
+            for (Map.Entry<String, Long> lag : primary.getLagRecords().entrySet()) {
+                out.sample("transactions_replication_lag_records", "follower=\"" + lag.getKey() + "\"",
+                        lag.getValue());
+            }
+            out.family("transactions_replication_lag_seconds", "gauge",
+                    "Time since follower last applied every commit shipped by then.");
+            for (Map.Entry<String, Long> lag : primary.getLagNanos().entrySet()) {
+                out.sample("transactions_replication_lag_seconds", "follower=\"" + lag.getKey() + "\"",
+                        Double.toString(lag.getValue() / 1e9));
+            }
+            out.family("transactions_replication_ack_timeouts_total", "counter",
+                    "Followers disconnected because they didn't apply a commit within ack timeout.")
+                    .sample("transactions_replication_ack_timeouts_total", "", primary.getAckTimeouts());
+        }
+        Replica follower = replica;
+        if (follower != null) {
+            out.family("transactions_replica_connected", "gauge", "1 while follower is connected to primary.")
+                    .sample("transactions_replica_connected", "", follower.isConnected() ? 1 : 0);
+            out.family("transactions_replica_applied_sequence", "counter",
+                    "Sequence of the last commit of primary applied by follower.")
+                    .sample("transactions_replica_applied_sequence", "", follower.getAppliedSequence());
+            out.family("transactions_replica_connections_total", "counter", "Connections made to primary.")
+                    .sample("transactions_replica_connections_total", "", follower.getConnections());
+        }
+        ChangeFeed feed = changeFeed;
+        if (feed != null) {
+            out.family("transactions_feed_sequence", "counter", "Changes of transactions fed to subscribers.")
+                    .sample("transactions_feed_sequence", "", feed.getSequence());
+            out.family("transactions_feed_subscribers", "gauge", "Open subscriptions to change feed.")
+                    .sample("transactions_feed_subscribers", "", feed.getSubscriberCount());
+            out.family("transactions_feed_lost_total", "counter",
+                    "Subscribers dropped because changes were overwritten before they read them.")
+                    .sample("transactions_feed_lost_total", "", feed.getLostCount());
+        }
+
+        long views = 0;
+        long segments = 0;
+        long segmentBytes = 0;
+        for (int i = 0; i < count; i++) {
+            views += shards.get(i).getOpenViewCount();
+            segments += shards.get(i).getSegmentCount();
+            segmentBytes += shards.get(i).getSegmentBytes();
+        }
+        out.family("transactions_views_open", "gauge", "Open consistent views of storage.")
+                .sample("transactions_views_open", "", views);
+
+        List<Tiering> tierings = tiering;
+        if (!tierings.isEmpty()) {
+            long hits = 0;
+            long misses = 0;
+            for (Tiering shardTiering : tierings) {
+                hits += shardTiering.getCacheHits();
+                misses += shardTiering.getCacheMisses();
+            }
+            out.family("transactions_tier_segments", "gauge", "Chunks of transactions moved to segment files.")
+                    .sample("transactions_tier_segments", "", segments);
+            out.family("transactions_tier_segment_bytes", "gauge", "Total size of segment files.")
+                    .sample("transactions_tier_segment_bytes", "", segmentBytes);
+            out.family("transactions_tier_block_reads_total", "counter",
+                    "Reads of transactions in segments by block cache result.")
+                    .sample("transactions_tier_block_reads_total", "result=\"hit\"", hits)
+                    .sample("transactions_tier_block_reads_total", "result=\"miss\"", misses);
+        }
+
+        AuditLog auditLog = Transactions.getAuditLog();
+        if (auditLog != null) {
+            out.family("transactions_audit_records_total", "counter", "Records accepted by audit log.")
+                    .sample("transactions_audit_records_total", "", auditLog.getRecorded());
+            out.family("transactions_audit_dropped_total", "counter",
+                    "Audit records dropped because audit buffer was full or audit log failed.")
+                    .sample("transactions_audit_dropped_total", "", auditLog.getDropped());
+        }
+
+        out.family("transactions_stored", "gauge", "Transactions in storage by state.");
+        for (Transaction.State state : Transaction.State.values()) {
+            long stored = 0;
+            for (int i = 0; i < count; i++) {
+                stored += shards.get(i).getTransactionCount(state);
+            }
+            out.sample("transactions_stored", "state=\"" + state + "\"", stored);
+        }
+
+        out.family("transactions_account_lock_contentions", "gauge",
+                "Times lock of account was found taken, for the most contended accounts.");
+        for (Map.Entry<Long, Long> account : mostContendedAccounts(top).entrySet()) {
+            out.sample("transactions_account_lock_contentions", "account=\"" + account.getKey() + "\"",
+                    account.getValue());
+        }
+        return out.toString();
+    }
+
+    private static String shardLabel(int shard, int count) {
+        return count > 1 ? "shard=\"" + shard + "\"" : "";
+    }
+
+    /**
+     * Accounts of different shards are distinct, so the most contended ones are among the most contended of
+     * their shards.
+     */
+    private Map<Long, Long> mostContendedAccounts(int top) {
+        if (shards.getCount() == 1) {
+            return shards.get(0).getMostContendedAccounts(top);
+        }
+        List<Map.Entry<Long, Long>> accounts = new ArrayList<>();
+        for (int i = 0; i < shards.getCount(); i++) {
+            accounts.addAll(shards.get(i).getMostContendedAccounts(top).entrySet());
+        }
+        accounts.sort(Map.Entry.<Long, Long>comparingByValue().reversed());
+        Map<Long, Long> result = new LinkedHashMap<>();
+        for (Map.Entry<Long, Long> account : accounts.subList(0, Math.min(top, accounts.size()))) {
+            result.put(account.getKey(), account.getValue());
+        }
+        return result;
+    }
+}
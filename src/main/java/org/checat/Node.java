@@ -0,0 +1,126 @@
+package org.checat;
+
+import org.checat.storage.HoldExpiry;
+import org.checat.storage.Journal;
+import org.checat.storage.Replica;
+import org.checat.storage.Replicator;
+import org.checat.storage.Snapshotter;
+import org.checat.storage.Tiering;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Components of this node that depend on its role. Primary journals commits, expires holds, moves transactions
+ * out of memory, ships commits to followers and serves binary protocol. Follower only applies what its primary
+ * ships and serves reads until it is promoted, see promote().
+ */
+final class Node implements Closeable {
+
+    private static final Logger LOGGER = Logger.getLogger(Node.class.getName());
+
+    private Replica replica;
+    private Journal journal;
+    private Snapshotter snapshotter;
+    private List<HoldExpiry> holdExpiry = Collections.emptyList();
+    private List<Tiering> tiering = Collections.emptyList();
+    private Replicator replicator;
+    private BinaryServer binaryServer;
+
+    private Node() {}
+
+    /**
+     * Starts node as follower, or as primary recovering storage from journal.
+     * @param replica Replica following primary or null if this node is primary.
+     * @return Node running components of its role.
+     * @throws IOException if journal can't be read or a port can't be bound.
+     */
+    static Node start(Replica replica) throws IOException {
+        Node node = new Node();
+        if (replica != null) {
+            node.replica = replica;
+            Metrics.setReplica(replica);
+            Transactions.setReadOnly(true);
+        } else {
+            // Segments are attached before recovery, which then skips their transactions.
+            List<Tiering> tiering = Main.openTiering(true);
+            node.startPrimary(Main.openJournal(), tiering);
+        }
+        return node;
+    }
+
+    /**
+     * Makes follower primary. Stops following, so storage keeps state applied so far, and journals storage as it
+     * is, starting from its snapshot, before any change is accepted. Then starts everything else primary runs.
+     * @return false if node is primary already.
+     * @throws IOException if journal can't be created or a port can't be bound.
+     */
+    synchronized boolean promote() throws IOException {
+        if (replica == null) {
+            return false;
+        }
+        replica.close();
+        replica = null;
+        Metrics.setReplica(null);
+        startPrimary(Main.createJournal(), Main.openTiering(false));
+        LOGGER.info("Follower is promoted to primary.");
+        return true;
+    }
+
+    /**
+     * @return true while node follows primary.
+     */
+    synchronized boolean isFollower() {
+        return replica != null;
+    }
+
+    private void startPrimary(Journal journal, List<Tiering> tiering) throws IOException {
+        this.journal = journal;
+        Status.setJournal(journal);
+        snapshotter = journal != null ? Main.startSnapshotter(journal) : null;
+        holdExpiry = Main.startHoldExpiry();
+        Metrics.setHoldExpiry(holdExpiry);
+        this.tiering = tiering;
+        for (Tiering shardTiering : tiering) {
+            shardTiering.start();
+        }
+        Metrics.setTiering(tiering);
+        replicator = Main.startReplicator();
+        Metrics.setReplicator(replicator);
+        Transactions.setReadOnly(false);
+        binaryServer = Main.startBinaryServer();
+        Metrics.setBinaryServer(binaryServer);
+    }
+
+    /**
+     * Stops every component, journal the last.
+     * @throws IOException if journal can't be closed.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (binaryServer != null) {
+            binaryServer.close();
+        }
+        if (replica != null) {
+            replica.close();
+        }
+        for (HoldExpiry expiry : holdExpiry) {
+            expiry.close();
+        }
+        for (Tiering shardTiering : tiering) {
+            shardTiering.close();
+        }
+        if (replicator != null) {
+            replicator.close();
+        }
+        if (snapshotter != null) {
+            snapshotter.close();
+        }
+        if (journal != null) {
+            journal.close();
+        }
+    }
+}
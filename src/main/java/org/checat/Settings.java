@@ -0,0 +1,197 @@
+package org.checat;
+
+/**
+ * Startup settings of the service, read from system properties (-Dname=value).
+ */
+public final class Settings {
+
+    /**
+     * Directory of write-ahead journal. Journal is disabled if not set.
+     */
+    public static final String JOURNAL_DIRECTORY = "transactions.journal.dir";
+    /**
+     * One of org.checat.storage.Journal.Durability values. GROUP by default.
+     */
+    public static final String JOURNAL_DURABILITY = "transactions.journal.durability";
+    /**
+     * Size of journal segment file in bytes.
+     */
+    public static final String JOURNAL_SEGMENT_BYTES = "transactions.journal.segmentBytes";
+    /**
+     * Interval between journal fsyncs in ASYNC durability mode.
+     */
+    public static final String JOURNAL_FLUSH_INTERVAL_MILLIS = "transactions.journal.flushIntervalMillis";
+    /**
+     * Interval between storage snapshots in seconds. 0 disables snapshots. Used only with journal.
+     */
+    public static final String SNAPSHOT_INTERVAL_SECONDS = "transactions.snapshot.intervalSeconds";
+    /**
+     * Number of the newest snapshots kept on disk.
+     */
+    public static final String SNAPSHOT_KEEP = "transactions.snapshot.keep";
+    /**
+     * One of org.checat.storage.CommitMode values. LOCKING by default.
+     */
+    public static final String COMMIT_MODE = "transactions.commit.mode";
+    /**
+     * Number of partitions in PARTITIONED commit mode. Number of processors by default.
+     */
+    public static final String COMMIT_PARTITIONS = "transactions.commit.partitions";
+    /**
+     * Number of shards storage is split into by account id, see org.checat.storage.Shards. 1 by default. Storage of
+     * several shards is in-memory only: it can't be used with journal, snapshots or replication. Experimental, so
+     * more than 1 is refused unless SHARDS_EXPERIMENTAL is true.
+     */
+    public static final String SHARDS = "transactions.shards";
+    /**
+     * Allows SHARDS greater than 1, acknowledging that such storage loses every transaction on restart. false by
+     * default.
+     */
+    public static final String SHARDS_EXPERIMENTAL = "transactions.shards.experimental";
+    /**
+     * Port of HTTP server. Port of Main.BASE_URI by default.
+     */
+    public static final String SERVER_PORT = "transactions.server.port";
+    /**
+     * One of org.checat.ExecutionMode values. WORKER by default.
+     */
+    public static final String SERVER_MODE = "transactions.server.mode";
+    /**
+     * Number of Grizzly worker threads. Grizzly default if not set. Ignored in VIRTUAL execution mode.
+     */
+    public static final String SERVER_WORKER_THREADS = "transactions.server.workerThreads";
+    /**
+     * Number of Grizzly selector threads. Grizzly default if not set.
+     */
+    public static final String SERVER_SELECTOR_THREADS = "transactions.server.selectorThreads";
+    /**
+     * Number of commit threads in ASYNC execution mode. Twice the number of processors by default.
+     */
+    public static final String SERVER_COMMIT_THREADS = "transactions.server.commitThreads";
+    /**
+     * Port of binary protocol listener, see BinaryServer. Binary listener is disabled if not set.
+     */
+    public static final String BINARY_PORT = "transactions.binary.port";
+    /**
+     * Number of event loop threads of binary protocol listener. Number of processors by default.
+     */
+    public static final String BINARY_THREADS = "transactions.binary.threads";
+    /**
+     * Number of threads executing batches of binary protocol requests. Twice the number of processors by default.
+     */
+    public static final String BINARY_COMMIT_THREADS = "transactions.binary.commitThreads";
+    /**
+     * Time in seconds outcome of initiate request with Idempotency-Key header is kept for. One day by default.
+     */
+    public static final String IDEMPOTENCY_TTL_SECONDS = "transactions.idempotency.ttlSeconds";
+    /**
+     * Maximum number of kept outcomes of initiate requests with Idempotency-Key header. Oldest are evicted first.
+     */
+    public static final String IDEMPOTENCY_MAX_KEYS = "transactions.idempotency.maxKeys";
+    /**
+     * Maximum number of operations in one POST /transaction/batch request. Larger batches are refused with 413
+     * status. 10000 by default.
+     */
+    public static final String BATCH_MAX_OPERATIONS = "transactions.batch.maxOperations";
+    /**
+     * Directory of audit log of transfer requests. Audit log is disabled if not set.
+     */
+    public static final String AUDIT_DIRECTORY = "transactions.audit.dir";
+    /**
+     * One of org.checat.audit.AuditLog.Overflow values. BLOCK by default.
+     */
+    public static final String AUDIT_OVERFLOW = "transactions.audit.overflow";
+    /**
+     * Number of audit records buffered in memory before Overflow applies.
+     */
+    public static final String AUDIT_BUFFER_RECORDS = "transactions.audit.bufferRecords";
+    /**
+     * Size of audit file in bytes.
+     */
+    public static final String AUDIT_FILE_BYTES = "transactions.audit.fileBytes";
+    /**
+     * Number of the newest audit files kept on disk.
+     */
+    public static final String AUDIT_KEEP_FILES = "transactions.audit.keepFiles";
+    /**
+     * Time in seconds transaction may stay initiated before it is cancelled and its hold released. 0 disables
+     * expiry, which is the default.
+     */
+    public static final String HOLD_TTL_SECONDS = "transactions.hold.ttlSeconds";
+    /**
+     * Resolution of hold expiry in milliseconds.
+     */
+    public static final String HOLD_TICK_MILLIS = "transactions.hold.tickMillis";
+    /**
+     * Directory of segment files of transactions moved out of memory. Transactions stay in memory if not set.
+     */
+    public static final String TIER_DIRECTORY = "transactions.tier.dir";
+    /**
+     * Number of the newest transactions always kept in memory.
+     */
+    public static final String TIER_HOT_TRANSACTIONS = "transactions.tier.hotTransactions";
+    /**
+     * Interval in seconds between checks for transactions to move out of memory.
+     */
+    public static final String TIER_INTERVAL_SECONDS = "transactions.tier.intervalSeconds";
+    /**
+     * Number of decoded blocks of segment files cached in memory.
+     */
+    public static final String TIER_CACHE_BLOCKS = "transactions.tier.cacheBlocks";
+    /**
+     * Port followers connect to for commits of this node, see org.checat.storage.Replicator. Commits aren't
+     * replicated if not set.
+     */
+    public static final String REPLICATION_PORT = "transactions.replication.port";
+    /**
+     * One of org.checat.storage.Replicator.Ack values. ASYNC by default.
+     */
+    public static final String REPLICATION_ACK = "transactions.replication.ack";
+    /**
+     * Time in milliseconds commit waits for a follower in APPLIED mode before the follower is disconnected.
+     */
+    public static final String REPLICATION_ACK_TIMEOUT_MILLIS = "transactions.replication.ackTimeoutMillis";
+    /**
+     * Address host:port of primary to follow. If set, this node is a read-only follower, see
+     * org.checat.storage.Replica.
+     */
+    public static final String REPLICATION_PRIMARY = "transactions.replication.primary";
+    /**
+     * Interval in milliseconds between attempts of follower to connect to primary.
+     */
+    public static final String REPLICATION_RETRY_MILLIS = "transactions.replication.retryMillis";
+    /**
+     * Number of the latest changes of transactions kept by change feed for subscribers that resume or fall behind,
+     * see org.checat.storage.ChangeFeed. Feed is disabled if not positive.
+     */
+    public static final String FEED_CAPACITY = "transactions.feed.capacity";
+    /**
+     * Interval in milliseconds of comments sent to idle subscribers of change feed, so closed connections are
+     * noticed.
+     */
+    public static final String FEED_HEARTBEAT_MILLIS = "transactions.feed.heartbeatMillis";
+    /**
+     * Maximum number of subscribers change feed streams to at once, each on a thread of its own. Further ones are
+     * refused with 503 status. 256 by default.
+     */
+    public static final String FEED_MAX_SUBSCRIBERS = "transactions.feed.maxSubscribers";
+
+    private Settings() {}
+
+    static String getString(String name, String defaultValue) {
+        return System.getProperty(name, defaultValue);
+    }
+
+    static long getLong(String name, long defaultValue) {
+        return Long.getLong(name, defaultValue);
+    }
+
+    static boolean getBoolean(String name) {
+        return Boolean.getBoolean(name);
+    }
+
+    static <E extends Enum<E>> E getEnum(String name, Class<E> type, E defaultValue) {
+        String value = System.getProperty(name);
+        return value == null ? defaultValue : Enum.valueOf(type, value.trim().toUpperCase());
+    }
+}
@@ -0,0 +1,81 @@
+package org.checat;
+
+import org.checat.storage.Journal;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.ext.Provider;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Root resource (exposed at "status" path)
+ * Reports how long the service took to start.
+ */
+@Path("status")
+public class Status {
+
+    private static volatile Journal journal;
+    private static volatile long readyMillis = -1;
+    private static volatile long firstRequestMillis = -1;
+
+    /**
+     * Records first request served since JVM start.
+     */
+    @Provider
+    public static class FirstRequestFilter implements ContainerRequestFilter {
+        @Override
+        public void filter(ContainerRequestContext requestContext) {
+            if (firstRequestMillis < 0) {
+                synchronized (Status.class) {
+                    if (firstRequestMillis < 0) {
+                        firstRequestMillis = uptimeMillis();
+                    }
+                }
+            }
+        }
+    }
+
+    static synchronized void serverStarted() {
+        if (readyMillis < 0) {
+            readyMillis = uptimeMillis();
+        }
+    }
+
+    static void setJournal(Journal journal) {
+        Status.journal = journal;
+    }
+
+    private static long uptimeMillis() {
+        return ManagementFactory.getRuntimeMXBean().getUptime();
+    }
+
+    /**
+     * Method handling HTTP GET requests to base path.
+     * All times are measured in milliseconds since JVM start, -1 if the event didn't happen yet.
+     *
+     * @return readyMillis when server started to accept requests, firstRequestMillis when the first request
+     * came, and if journal is enabled recoveryMillis spent on recovery, snapshotSequence of snapshot it started
+     * from and replayedRecords of journal applied over snapshot.
+     */
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    public Map<String, Object> get() {
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("readyMillis", readyMillis);
+        status.put("firstRequestMillis", firstRequestMillis);
+        Journal current = journal;
+        if (current != null) {
+            status.put("recoveryMillis", TimeUnit.NANOSECONDS.toMillis(current.getRecoveryNanos()));
+            status.put("snapshotSequence", current.getRecoveredSnapshotSequence());
+            status.put("replayedRecords", current.getReplayedRecords());
+        }
+        return status;
+    }
+}
@@ -1,33 +1,165 @@
 package org.checat;
 
-import org.checat.storage.Account;
+import org.checat.audit.AuditLog;
+import org.checat.storage.ChangeFeed;
 import org.checat.storage.DataTransaction;
+import org.checat.storage.Query;
+import org.checat.storage.Shards;
 import org.checat.storage.Storage;
 import org.checat.storage.Transaction;
+import org.checat.storage.Transfers;
+import org.checat.storage.View;
+
+import org.glassfish.jersey.server.ChunkedOutput;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
 
 import javax.ws.rs.*;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.core.GenericEntity;
 import javax.ws.rs.core.MediaType;
-import java.util.Collection;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.ext.Provider;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Objects;
-import java.util.logging.ConsoleHandler;
-import java.util.logging.Handler;
-import java.util.logging.Level;
-import java.util.logging.Logger;
-import java.util.stream.Collectors;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Root resource (exposed at "transaction" path)
+ * Every request is routed to the shard owning its accounts or transaction, see Shards; ids of transactions are
+ * global ones.
  */
 @Path("transaction")
 public class Transactions
 {
-    private static final Logger LOGGER = Logger.getLogger( Transactions.class.getName() );
-    private static final Handler HANDLER = new ConsoleHandler();
-    static {
-        LOGGER.addHandler(HANDLER);
+    public static final String NDJSON = "application/x-ndjson";
+    public static final String EVENT_STREAM = "text/event-stream";
+    public static final String LAST_EVENT_ID_HEADER = "Last-Event-ID";
+    public static final String NEXT_CURSOR_HEADER = "X-Next-Cursor";
+    public static final String IDEMPOTENCY_KEY_HEADER = "Idempotency-Key";
+    public static final int MAX_IDEMPOTENCY_KEY_LENGTH = 255;
+    private static final int UNPROCESSABLE_ENTITY = 422;
+    private static final int STREAM_FLUSH_ROWS = 256;
+    // Changes already there are sent in one chunk of about this many characters at most.
+    private static final int EVENT_CHUNK_CHARS = 1 << 16;
+    // Longest time View of stream ordered by amount is kept open.
+    private static final long STREAM_VIEW_SECONDS = 10;
+    private static final ObjectMapper JSON = new ObjectMapper()
+            .disable(SerializationFeature.FLUSH_AFTER_WRITE_VALUE)
+            .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+    private static volatile AuditLog auditLog;
+    private static volatile boolean readOnly;
+    private static volatile ChangeFeed changeFeed;
+    private static volatile ExecutorService subscribers;
+    private static volatile long heartbeatNanos = TimeUnit.SECONDS.toNanos(15);
+    private static volatile IdempotencyCache idempotency = new IdempotencyCache(1, TimeUnit.DAYS, 1_000_000);
+    private static volatile int maxBatchOperations = 10_000;
+    private final Shards shards = Shards.SHARDS;
+
+    /**
+     * Replaces cache of outcomes of initiate requests with Idempotency-Key header, forgetting all kept outcomes.
+     * @param ttlSeconds long Time outcome is kept for.
+     * @param maxKeys int Maximum number of kept outcomes.
+     */
+    static void configureIdempotency(long ttlSeconds, int maxKeys) {
+        idempotency = new IdempotencyCache(ttlSeconds, TimeUnit.SECONDS, maxKeys);
+    }
+
+    /**
+     * Sets maximum number of operations in one batch, larger batches are refused with 413 status.
+     * @param maxOperations int Maximum number of operations.
+     */
+    static void configureBatch(int maxOperations) {
+        maxBatchOperations = maxOperations;
+    }
+
+    /**
+     * Sets audit log of initiate, confirm and cancel requests.
+     * @param auditLog AuditLog or null to stop auditing.
+     */
+    static void setAuditLog(AuditLog auditLog) {
+        Transactions.auditLog = auditLog;
+    }
+
+    /**
+     * Sets feed of changes of transactions served by events().
+     * @param changeFeed ChangeFeed or null to refuse subscriptions.
+     * @param heartbeatMillis long Interval of comments sent to idle subscribers.
+     * @param maxSubscribers int Maximum number of subscribers streamed to at once. Ignored if feed is null.
+     */
+    static synchronized void setChangeFeed(ChangeFeed changeFeed, long heartbeatMillis, int maxSubscribers) {
+        ExecutorService previous = subscribers;
+        if (changeFeed != null) {
+            AtomicInteger number = new AtomicInteger();
+            // Every subscriber waits for changes and for its connection on a thread of its own, not on a worker.
+            subscribers = new ThreadPoolExecutor(0, maxSubscribers, 60, TimeUnit.SECONDS, new SynchronousQueue<>(),
+                    runnable -> {
+                        Thread thread = new Thread(runnable, "feed-subscriber-" + number.getAndIncrement());
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+        } else {
+            subscribers = null;
+        }
+        Transactions.changeFeed = changeFeed;
+        Transactions.heartbeatNanos = TimeUnit.MILLISECONDS.toNanos(heartbeatMillis);
+        if (previous != null) {
+            previous.shutdown();
+        }
+    }
+
+    /**
+     * Refuses requests that would change storage while this node is a read-only follower, see setReadOnly().
+     * Requests to Admin are let through, so follower can be promoted.
+     */
+    @Provider
+    public static class ReadOnlyFilter implements ContainerRequestFilter {
+        @Override
+        public void filter(ContainerRequestContext requestContext) {
+            String method = requestContext.getMethod();
+            if (readOnly && !HttpMethod.GET.equals(method) && !HttpMethod.HEAD.equals(method)
+                    && !requestContext.getUriInfo().getPath().startsWith(Admin.PATH)) {
+                requestContext.abortWith(Response.status(Response.Status.FORBIDDEN)
+                        .type(MediaType.TEXT_PLAIN)
+                        .entity("Read-only follower, send changes to primary")
+                        .build());
+            }
+        }
+    }
+
+    /**
+     * Makes this node serve only reads, e.g. while storage follows primary.
+     * @param readOnly boolean true to refuse requests other than GET and HEAD with 403 status.
+     */
+    static void setReadOnly(boolean readOnly) {
+        Transactions.readOnly = readOnly;
+    }
+
+    static AuditLog getAuditLog() {
+        return auditLog;
+    }
+
+    static void audit(AuditLog.Event event, boolean success, long id, long source, long destination,
+                      long amount) {
+        AuditLog log = auditLog;
+        if (log != null) {
+            log.record(event, success, id, source, destination, amount);
+        }
     }
-    private final Storage storage = Storage.STORAGE;
 
     /**
      * Method handling HTTP GET requests to /{id} subpath.
@@ -40,30 +172,335 @@ public class Transactions
     @Path("{id}")
     @Produces(MediaType.APPLICATION_JSON)
     public Transaction get(@PathParam("id") long id) {
-        return storage.getTransaction(id);
+        return shards.getTransaction(id);
     }
 
     /**
      * Method handling HTTP GET requests to base path.
-     * Returns transactions with filtering.
+     * Returns transactions with filtering, ordered by id unless order is requested.
+     * If limit is present at most limit transactions are returned. When more transactions match, the response
+     * carries X-Next-Cursor header which should be passed as after parameter to request the next page.
      *
      * @param source @QueryParam. If present only transactions with same value of source field will be returned.
      * @param destination @QueryParam. If present only transactions with same value of destination field will
      *                   be returned.
      * @param amount @QueryParam. If present only transactions with same value of amount field will be returned.
+     * @param minAmount @QueryParam. If present only transactions with amount not less will be returned.
+     * @param maxAmount @QueryParam. If present only transactions with amount not greater will be returned.
+     * @param minId @QueryParam. If present only transactions with id not less will be returned.
+     * @param maxId @QueryParam. If present only transactions with id not greater will be returned.
+     * @param state @QueryParam. If present only transactions in this state will be returned.
+     * @param order @QueryParam. id (default), -id for newest first, amount or -amount for the greatest amounts
+     *              first. Ordered by amount, limit gives top K without sorting all matches, and there are no
+     *              further pages.
+     * @param limit @QueryParam. If present maximal number of returned transactions. Must be positive.
+     * @param after @QueryParam. If present cursor returned with previous page.
      * @return Transactions matching requested criteria.
      */
     @GET
     @Produces(MediaType.APPLICATION_JSON)
-    public Collection<Transaction> search(@QueryParam("source") Long source,
-                                          @QueryParam("destination") Long destination,
-                                          @QueryParam("amount") Long amount
+    public Response search(@QueryParam("source") Long source,
+                           @QueryParam("destination") Long destination,
+                           @QueryParam("amount") Long amount,
+                           @QueryParam("minAmount") Long minAmount,
+                           @QueryParam("maxAmount") Long maxAmount,
+                           @QueryParam("minId") Long minId,
+                           @QueryParam("maxId") Long maxId,
+                           @QueryParam("state") String state,
+                           @QueryParam("order") String order,
+                           @QueryParam("limit") Integer limit,
+                           @QueryParam("after") String after
                          ) {
-        return storage.getTransactions().stream()
-                .filter(transaction -> Objects.isNull(source) || source.equals(transaction.getSource()))
-                .filter(transaction -> Objects.isNull(destination) || destination.equals(transaction.getDestination()))
-                .filter(transaction -> Objects.isNull(amount) || amount.equals(transaction.getAmount()))
-                .collect(Collectors.toList());
+        checkLimit(limit);
+        Query query = query(source, destination, amount, minAmount, maxAmount, minId, maxId, state, order, after);
+        List<Transaction> page = new ArrayList<>();
+        boolean more;
+        try (View view = shards.openView()) {
+            Iterator<Transaction> transactions = view.scanTransactions(query);
+            while (transactions.hasNext() && (limit == null || page.size() < limit)) {
+                page.add(transactions.next());
+            }
+            more = transactions.hasNext();
+        }
+        Response.ResponseBuilder response = Response.ok(new GenericEntity<List<Transaction>>(page) {});
+        if (more && !page.isEmpty() && !isByAmount(query)) {
+            response.header(NEXT_CURSOR_HEADER, Cursor.encode(page.get(page.size() - 1).getId()));
+        }
+        return response.build();
+    }
+
+    /**
+     * Method handling HTTP GET requests to stream subpath.
+     * Same as search, but writes matching transactions as newline delimited JSON while they are scanned, so
+     * response of any size is never held in memory. View of storage is open only while a page of rows is read,
+     * never while it is written to a slow client: transactions ordered by id are read page by page, each from a
+     * new View after the last id written, so later pages may include newer commits.
+     * If limit is present and more transactions match, the last line is an object with single next field holding
+     * cursor of the next page. Transactions ordered by amount can't be read page by page, so their stream ends
+     * with an object with truncated field true once it took longer than 10 seconds.
+     *
+     * @param source @QueryParam. If present only transactions with same value of source field will be returned.
+     * @param destination @QueryParam. If present only transactions with same value of destination field will
+     *                   be returned.
+     * @param amount @QueryParam. If present only transactions with same value of amount field will be returned.
+     * @param minAmount @QueryParam. If present only transactions with amount not less will be returned.
+     * @param maxAmount @QueryParam. If present only transactions with amount not greater will be returned.
+     * @param minId @QueryParam. If present only transactions with id not less will be returned.
+     * @param maxId @QueryParam. If present only transactions with id not greater will be returned.
+     * @param state @QueryParam. If present only transactions in this state will be returned.
+     * @param order @QueryParam. id (default), -id for newest first, amount or -amount for the greatest amounts
+     *              first. Ordered by amount, limit gives top K without sorting all matches, and there are no
+     *              further pages.
+     * @param limit @QueryParam. If present maximal number of returned transactions. Must be positive.
+     * @param after @QueryParam. If present cursor returned with previous page.
+     * @return Transactions matching requested criteria, one JSON object per line.
+     */
+    @GET
+    @Path("stream")
+    @Produces(NDJSON)
+    public StreamingOutput stream(@QueryParam("source") Long source,
+                                  @QueryParam("destination") Long destination,
+                                  @QueryParam("amount") Long amount,
+                                  @QueryParam("minAmount") Long minAmount,
+                                  @QueryParam("maxAmount") Long maxAmount,
+                                  @QueryParam("minId") Long minId,
+                                  @QueryParam("maxId") Long maxId,
+                                  @QueryParam("state") String state,
+                                  @QueryParam("order") String order,
+                                  @QueryParam("limit") Integer limit,
+                                  @QueryParam("after") String after) {
+        checkLimit(limit);
+        Query query = query(source, destination, amount, minAmount, maxAmount, minId, maxId, state, order, after);
+        return output -> write(query, limit, output);
+    }
+
+    /**
+     * Method handling HTTP GET requests to events subpath.
+     * Streams every transaction inserted or changed from now on as Server-Sent Events, see ChangeFeed: event
+     * transaction with id epoch-sequence of the change and data holding transaction as JSON. Idle stream gets a
+     * comment every heartbeat interval. Stream ends if subscriber falls so far behind that changes it didn't read
+     * are no longer kept, and reconnecting with its last id then fails too, so it should read current state by
+     * search before subscribing anew. So does reconnecting with id of another epoch, e.g. one given out before
+     * restart, as sequences start over with every epoch.
+     *
+     * @param source @QueryParam. If present only transactions with same value of source field will be sent.
+     * @param destination @QueryParam. If present only transactions with same value of destination field will
+     *                   be sent.
+     * @param account @QueryParam. If present only transactions with same value of source or destination field
+     *                will be sent.
+     * @param after @QueryParam. If present id of the last change seen, to resume after it.
+     * @param lastEventId @HeaderParam Last-Event-ID. Same as after, sent by EventSource when it reconnects.
+     * @return Stream of events, 410 status if changes following after are no longer kept or belong to another
+     * epoch, 503 status if feed streams to as many subscribers as it may, 404 status if change feed is disabled.
+     */
+    @GET
+    @Path("events")
+    @Produces(EVENT_STREAM)
+    public ChunkedOutput<String> events(@QueryParam("source") Long source,
+                                        @QueryParam("destination") Long destination,
+                                        @QueryParam("account") Long account,
+                                        @QueryParam("after") String after,
+                                        @HeaderParam(LAST_EVENT_ID_HEADER) String lastEventId) {
+        ChangeFeed feed = changeFeed;
+        ExecutorService executor = subscribers;
+        if (feed == null || executor == null) {
+            throw new NotFoundException("Change feed is disabled");
+        }
+        String id = after != null ? after : lastEventId;
+        Long resumed = id != null ? resumedSequence(feed, id.trim()) : null;
+        ChangeFeed.Subscription subscription = feed.subscribe(resumed, source, destination, account);
+        if (subscription == null) {
+            throw new ClientErrorException("Changes following " + id + " are no longer kept",
+                    Response.Status.GONE);
+        }
+        ChunkedOutput<String> output = new ChunkedOutput<>(String.class);
+        long heartbeat = heartbeatNanos;
+        try {
+            executor.execute(() -> send(feed, subscription, output, heartbeat));
+        } catch (RejectedExecutionException e) {
+            subscription.close();
+            throw new ServiceUnavailableException("Change feed has too many subscribers");
+        }
+        return output;
+    }
+
+    /**
+     * @param id String Id of event, see ChangeFeed.Event.getId().
+     * @return sequence of event.
+     * @throws BadRequestException if id is malformed.
+     * @throws ClientErrorException with 410 status if id has no epoch or epoch of another feed.
+     */
+    private static long resumedSequence(ChangeFeed feed, String id) {
+        int dash = id.indexOf('-');
+        long epoch;
+        long sequence;
+        try {
+            epoch = dash > 0 ? Long.parseLong(id.substring(0, dash)) : -1;
+            sequence = Long.parseLong(id.substring(dash + 1));
+        } catch (NumberFormatException e) {
+            throw new BadRequestException("Malformed event id " + id, e);
+        }
+        if (epoch != feed.getEpoch()) {
+            throw new ClientErrorException("Event " + id + " belongs to another epoch of change feed",
+                    Response.Status.GONE);
+        }
+        return sequence;
+    }
+
+    private static void send(ChangeFeed feed, ChangeFeed.Subscription subscription, ChunkedOutput<String> output,
+                             long heartbeat) {
+        StringBuilder chunk = new StringBuilder();
+        try (ChangeFeed.Subscription subscribed = subscription) {
+            // Sends headers at once, so subscriber knows it is subscribed before the first change.
+            output.write(":\n\n");
+            while (!feed.isClosed() && !output.isClosed()) {
+                // Changes that are already there go out in one chunk, sent before waiting for more.
+                ChangeFeed.Event event = subscribed.next(0);
+                if (event == null) {
+                    flush(output, chunk);
+                    event = subscribed.next(heartbeat);
+                    if (event == null) {
+                        output.write(":\n\n");
+                        continue;
+                    }
+                }
+                chunk.append("id: ").append(event.getId()).append("\nevent: transaction\ndata: ")
+                        .append(JSON.writeValueAsString(event.getTransaction())).append("\n\n");
+                if (chunk.length() >= EVENT_CHUNK_CHARS) {
+                    flush(output, chunk);
+                }
+            }
+        } catch (IllegalStateException e) {
+            // Subscriber fell behind, ending the stream tells it to start over.
+        } catch (IOException e) {
+            // Subscriber went away.
+        } finally {
+            try {
+                flush(output, chunk);
+            } catch (IOException e) {
+                // Subscriber went away.
+            }
+            try {
+                output.close();
+            } catch (IOException e) {
+                // Already closed by subscriber.
+            }
+        }
+    }
+
+    private static void flush(ChunkedOutput<String> output, StringBuilder chunk) throws IOException {
+        if (chunk.length() > 0 && !output.isClosed()) {
+            output.write(chunk.toString());
+            chunk.setLength(0);
+        }
+    }
+
+    /**
+     * Builds query of search parameters, see search().
+     * @throws BadRequestException if state, order or after is malformed, or after is used with order by amount.
+     */
+    private static Query query(Long source, Long destination, Long amount, Long minAmount, Long maxAmount,
+                               Long minId, Long maxId, String state, String order, String after) {
+        Query query = Query.of(source, destination, amount).withAmounts(minAmount, maxAmount).withIds(minId, maxId);
+        if (state != null) {
+            try {
+                query = query.withState(Transaction.State.valueOf(state));
+            } catch (IllegalArgumentException e) {
+                throw new BadRequestException("Unknown state " + state, e);
+            }
+        }
+        if (order != null) {
+            switch (order) {
+                case "id":
+                    break;
+                case "-id":
+                    query = query.withOrder(Query.Order.ID_DESCENDING);
+                    break;
+                case "amount":
+                    query = query.withOrder(Query.Order.AMOUNT);
+                    break;
+                case "-amount":
+                    query = query.withOrder(Query.Order.AMOUNT_DESCENDING);
+                    break;
+                default:
+                    throw new BadRequestException("Order should be id, -id, amount or -amount");
+            }
+        }
+        if (after != null) {
+            if (isByAmount(query)) {
+                throw new BadRequestException("Transactions ordered by amount have no further pages");
+            }
+            query = query.after(Cursor.decode(after));
+        }
+        return query;
+    }
+
+    private static boolean isByAmount(Query query) {
+        return query.getOrder() == Query.Order.AMOUNT || query.getOrder() == Query.Order.AMOUNT_DESCENDING;
+    }
+
+    private void write(Query query, Integer limit, OutputStream output) throws IOException {
+        JsonGenerator generator = JSON.getFactory().createGenerator(output);
+        generator.setRootValueSeparator(null);
+        if (isByAmount(query)) {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(STREAM_VIEW_SECONDS);
+            int written = 0;
+            try (View view = shards.openView()) {
+                Iterator<Transaction> transactions = view.scanTransactions(query);
+                while (transactions.hasNext() && (limit == null || written < limit)) {
+                    JSON.writeValue(generator, transactions.next());
+                    generator.writeRaw('\n');
+                    if (++written % STREAM_FLUSH_ROWS == 0) {
+                        generator.flush();
+                        if (System.nanoTime() - deadline > 0 && transactions.hasNext()) {
+                            generator.writeStartObject();
+                            generator.writeBooleanField("truncated", true);
+                            generator.writeEndObject();
+                            generator.writeRaw('\n');
+                            break;
+                        }
+                    }
+                }
+            }
+            generator.close();
+            return;
+        }
+        List<Transaction> page = new ArrayList<>(STREAM_FLUSH_ROWS);
+        long last_id = 0;
+        int written = 0;
+        boolean more = true;
+        while (more && (limit == null || written < limit)) {
+            int size = limit == null ? STREAM_FLUSH_ROWS : Math.min(STREAM_FLUSH_ROWS, limit - written);
+            try (View view = shards.openView()) {
+                Iterator<Transaction> transactions = view.scanTransactions(written == 0 ? query
+                        : query.after(last_id));
+                while (transactions.hasNext() && page.size() < size) {
+                    page.add(transactions.next());
+                }
+                more = transactions.hasNext();
+            }
+            for (Transaction transaction : page) {
+                JSON.writeValue(generator, transaction);
+                generator.writeRaw('\n');
+                last_id = transaction.getId();
+            }
+            written += page.size();
+            page.clear();
+            generator.flush();
+        }
+        if (more && written > 0) {
+            generator.writeStartObject();
+            generator.writeStringField("next", Cursor.encode(last_id));
+            generator.writeEndObject();
+            generator.writeRaw('\n');
+        }
+        generator.close();
+    }
+
+    private static void checkLimit(Integer limit) {
+        if (limit != null && limit <= 0) {
+            throw new BadRequestException("Limit should be positive");
+        }
     }
 
     /**
@@ -78,34 +515,80 @@ public class Transactions
      * @param source @PathParam. Id of account from which money are paid.
      * @param destination @PathParam. Id of account to which money are paid.
      * @param amount @PathParam. Amount of money transferred. Must be positive.
-     * @return Id of created transaction if successful. Null otherwise.
+     * @param idempotencyKey @HeaderParam Idempotency-Key. If present, request with the same key and parameters
+     *                       made earlier or concurrently is executed only once, and every one of them gets its
+     *                       outcome. Using the key with other parameters fails with 422 status.
+     * @param response @Suspended. Resumed with id of created transaction if successful, with no content otherwise.
      */
     @POST
     @Path("initiate/{source}/{destination}/{amount}")
     @Produces(MediaType.APPLICATION_JSON)
-    public Long initiate(@PathParam("source") long source,
-                           @PathParam("destination") long destination,
-                           @PathParam("amount") long amount) {
-        LOGGER.log(Level.INFO,
-                "Transaction request to transfer {2} amount of money from {0} to {1}.",
-                   new Object[]{ source, destination, amount});
-        if (amount <= 0 || !Account.isAccountInternal(source) && !Account.isAccountInternal(destination)) {
-            return null;
-        }
-        DataTransaction dataTransaction = storage.startDataTransaction();
-        if (Account.isAccountInternal(source)) {
-            dataTransaction.addAccountCondition(source, Account.haveEnoughMoneyPredicate(amount));
-            dataTransaction.updateAccout(source, Account.holdMoneyUpdater(amount));
-        }
-        dataTransaction.insertTransaction(source, destination, amount);
-        List<Long> ids = dataTransaction.commit();
-        if (ids.size() == 1) {
-            return storage.getTransaction(ids.get(0)).id;
-        } else {
-            return null;
+    public void initiate(@PathParam("source") long source,
+                         @PathParam("destination") long destination,
+                         @PathParam("amount") long amount,
+                         @HeaderParam(IDEMPOTENCY_KEY_HEADER) String idempotencyKey,
+                         @Suspended AsyncResponse response) {
+        if (idempotencyKey == null) {
+            Execution.resume(response, () -> initiate(source, destination, amount));
+            return;
+        }
+        if (idempotencyKey.isEmpty() || idempotencyKey.length() > MAX_IDEMPOTENCY_KEY_LENGTH) {
+            throw new BadRequestException("Idempotency key should have 1 to " + MAX_IDEMPOTENCY_KEY_LENGTH
+                    + " characters");
+        }
+        IdempotencyCache cache = idempotency;
+        IdempotencyCache.Entry entry = cache.newEntry(idempotencyKey, source, destination, amount);
+        IdempotencyCache.Entry earlier = cache.claim(entry);
+        if (earlier != null) {
+            if (!earlier.matches(source, destination, amount)) {
+                throw new ClientErrorException("Idempotency key was used with other parameters",
+                        UNPROCESSABLE_ENTITY);
+            }
+            earlier.result().whenComplete((id, error) -> {
+                if (error != null) {
+                    response.resume(error);
+                } else {
+                    response.resume(id);
+                }
+            });
+            return;
+        }
+        boolean accepted = Execution.resume(response, () -> {
+            try {
+                Long id = initiate(source, destination, amount);
+                cache.complete(entry, id);
+                return id;
+            } catch (RuntimeException e) {
+                cache.fail(entry, e);
+                throw e;
+            }
+        });
+        if (!accepted) {
+            cache.fail(entry, new ServiceUnavailableException());
         }
     }
 
+    /**
+     * Initiates transfer on calling thread, see initiate(long, long, long, AsyncResponse).
+     * @return Id of created transaction if successful. Null otherwise.
+     */
+    public Long initiate(long source, long destination, long amount) {
+        Storage storage = shards.forInitiate(source, destination);
+        DataTransaction dataTransaction = storage.borrowDataTransaction();
+        long id;
+        try {
+            if (!Transfers.initiate(dataTransaction, source, destination, amount) || !dataTransaction.commit()) {
+                audit(AuditLog.Event.INITIATE, false, 0, source, destination, amount);
+                return null;
+            }
+            id = shards.globalId(storage, dataTransaction.getInsertedId(0));
+        } finally {
+            storage.giveBack(dataTransaction);
+        }
+        audit(AuditLog.Event.INITIATE, true, id, source, destination, amount);
+        return id;
+    }
+
     /**
      * Method handling HTTP POST requests to confirm/{id} subpath.
      * Confirms initiated earlier transaction.
@@ -114,35 +597,36 @@ public class Transactions
      * nothing.
      *
      * @param transaction_id @PathParam. Id of transaction to be confirmed.
-     * @return true if requested transaction is in org.checat.storage.Transaction.State.CONFIRMED state, false
-     *  otherwise.
+     * @param response @Suspended. Resumed with true if requested transaction is in
+     *  org.checat.storage.Transaction.State.CONFIRMED state, false otherwise.
      */
     @POST
     @Path("confirm/{id}")
     @Produces(MediaType.APPLICATION_JSON)
-    public boolean confirm(@PathParam("id") long transaction_id) {
-        LOGGER.log(Level.INFO, "Confirmation request for transaction {0} received.", transaction_id);
-        Transaction confirmed = storage.getTransaction(transaction_id);
-        if (confirmed != null) {
-            DataTransaction dataTransaction = storage.startDataTransaction();
-            dataTransaction.addTransactionCondition(transaction_id, Transaction::isTransactionInitiated);
-            dataTransaction.updateTransaction(transaction_id, Transaction::confirmTransaction);
-            if (Account.isAccountInternal(confirmed.getSource())) {
-                dataTransaction.updateAccout(
-                        confirmed.getSource(),
-                        Account.transferMoneyUpdater(confirmed.getAmount()));
-            }
-            if (Account.isAccountInternal(confirmed.getDestination())) {
-                dataTransaction.updateAccout(
-                        confirmed.getDestination(),
-                        Account.addMoneyUpdater(confirmed.getAmount()));
-            }
-            dataTransaction.commit();
-            Transaction result_transaction = storage.getTransaction(transaction_id);
-            return result_transaction.getState().equals(Transaction.State.CONFIRMED);
-        } else {
-            return false;
+    public void confirm(@PathParam("id") long transaction_id, @Suspended AsyncResponse response) {
+        Execution.resume(response, () -> confirm(transaction_id));
+    }
+
+    /**
+     * Confirms transaction on calling thread, see confirm(long, AsyncResponse).
+     * @return true if requested transaction is in org.checat.storage.Transaction.State.CONFIRMED state, false
+     *  otherwise.
+     */
+    public boolean confirm(long transaction_id) {
+        Storage storage = shards.forTransaction(transaction_id);
+        long id = shards.localId(transaction_id);
+        DataTransaction dataTransaction = storage.borrowDataTransaction();
+        boolean done = false;
+        try {
+            if (Transfers.confirm(dataTransaction, id)) {
+                dataTransaction.commit();
+                done = Transfers.isInState(storage, id, Transaction.State.CONFIRMED);
+            }
+        } finally {
+            storage.giveBack(dataTransaction);
         }
+        audit(AuditLog.Event.CONFIRM, done, transaction_id, 0, 0, 0);
+        return done;
     }
 
     /**
@@ -153,27 +637,121 @@ public class Transactions
      * nothing.
      *
      * @param transaction_id @PathParam. Id of transaction to be cancelled.
+     * @param response @Suspended. Resumed with true if requested transaction is in
+     *  org.checat.storage.Transaction.State.CANCELLED state, false otherwise.
+     */
+    @POST
+    @Path("cancel/{id}")
+    @Produces(MediaType.APPLICATION_JSON)
+    public void cancel(@PathParam("id") long transaction_id, @Suspended AsyncResponse response) {
+        Execution.resume(response, () -> cancel(transaction_id));
+    }
+
+    /**
+     * Cancels transaction on calling thread, see cancel(long, AsyncResponse).
      * @return true if requested transaction is in org.checat.storage.Transaction.State.CANCELLED state, false
      *  otherwise.
      */
+    public boolean cancel(long transaction_id) {
+        Storage storage = shards.forTransaction(transaction_id);
+        long id = shards.localId(transaction_id);
+        DataTransaction dataTransaction = storage.borrowDataTransaction();
+        boolean done = false;
+        try {
+            if (Transfers.cancel(dataTransaction, id)) {
+                dataTransaction.commit();
+                done = Transfers.isInState(storage, id, Transaction.State.CANCELED);
+            }
+        } finally {
+            storage.giveBack(dataTransaction);
+        }
+        audit(AuditLog.Event.CANCEL, done, transaction_id, 0, 0, 0);
+        return done;
+    }
+
+    /**
+     * Method handling HTTP POST requests to batch subpath.
+     * Executes many initiate, confirm and cancel operations at once. Every operation succeeds or fails on its own,
+     * exactly as it would through its own endpoint, in the order of the request. Lock of every account needed by
+     * the batch is taken only once for the whole batch.
+     *
+     * @param operations Operations to execute.
+     * @param response @Suspended. Resumed with result for every operation, in the order of the request.
+     */
     @POST
-    @Path("cancel/{id}")
+    @Path("batch")
+    @Consumes(MediaType.APPLICATION_JSON)
     @Produces(MediaType.APPLICATION_JSON)
-    public boolean cancel(@PathParam("id") long transaction_id) {
-        LOGGER.log(Level.INFO, "Cancellation request for transaction {0} received.", transaction_id);
-        Transaction cancelled = storage.getTransaction(transaction_id);
-        if (cancelled != null) {
-            DataTransaction dataTransaction = storage.startDataTransaction();
-            dataTransaction.addTransactionCondition(transaction_id, Transaction::isTransactionInitiated);
-            dataTransaction.updateTransaction(transaction_id, Transaction::cancelTransaction);
-            if (Account.isAccountInternal(cancelled.getSource())) {
-                dataTransaction.updateAccout(cancelled.getSource(), Account.releaseMoneyUpdater(cancelled.getAmount()));
-            }
-            dataTransaction.commit();
-            Transaction result_transaction = storage.getTransaction(transaction_id);
-            return result_transaction.getState().equals(Transaction.State.CANCELED);
-        } else {
-            return false;
+    public void batch(List<BatchOperation> operations, @Suspended AsyncResponse response) {
+        Execution.resume(response, () -> new GenericEntity<List<BatchResult>>(batch(operations)) {});
+    }
+
+    /**
+     * Executes batch on calling thread, see batch(List, AsyncResponse).
+     * @return Result for every operation, in the order of the request.
+     * @throws ClientErrorException with 413 status if there are more operations than configured maximum
+     */
+    public List<BatchResult> batch(List<BatchOperation> operations) {
+        if (operations == null) {
+            throw new BadRequestException("Operations are missing");
+        }
+        if (operations.size() > maxBatchOperations) {
+            throw new ClientErrorException("Batch should have at most " + maxBatchOperations + " operations",
+                    Response.Status.REQUEST_ENTITY_TOO_LARGE);
+        }
+        List<DataTransaction> prepared = new ArrayList<>(operations.size());
+        DataTransaction[] byOperation = new DataTransaction[operations.size()];
+        for (int i = 0; i < operations.size(); i++) {
+            BatchOperation operation = operations.get(i);
+            if (operation == null || operation.type == null) {
+                throw new BadRequestException("Operation " + i + " has no type");
+            }
+            switch (operation.type) {
+                case INITIATE:
+                    byOperation[i] = Transfers.initiate(shards.forInitiate(operation.source, operation.destination),
+                            operation.source, operation.destination, operation.amount);
+                    break;
+                case CONFIRM:
+                    byOperation[i] = Transfers.confirm(shards.forTransaction(operation.id),
+                            shards.localId(operation.id));
+                    break;
+                case CANCEL:
+                    byOperation[i] = Transfers.cancel(shards.forTransaction(operation.id),
+                            shards.localId(operation.id));
+                    break;
+            }
+            if (byOperation[i] != null) {
+                prepared.add(byOperation[i]);
+            }
+        }
+        shards.commitAll(prepared);
+        List<BatchResult> results = new ArrayList<>(operations.size());
+        for (int i = 0; i < operations.size(); i++) {
+            BatchOperation operation = operations.get(i);
+            switch (operation.type) {
+                case INITIATE:
+                    Long id = byOperation[i] != null && byOperation[i].isCommitted()
+                            ? shards.globalId(byOperation[i].getStorage(), byOperation[i].getInsertedId(0)) : null;
+                    results.add(new BatchResult(id, id != null));
+                    audit(AuditLog.Event.INITIATE, id != null, id != null ? id : 0, operation.source,
+                            operation.destination, operation.amount);
+                    break;
+                case CONFIRM: {
+                    boolean done = Transfers.isInState(shards.forTransaction(operation.id),
+                            shards.localId(operation.id), Transaction.State.CONFIRMED);
+                    results.add(new BatchResult(operation.id, done));
+                    audit(AuditLog.Event.CONFIRM, done, operation.id, 0, 0, 0);
+                    break;
+                }
+                case CANCEL: {
+                    boolean done = Transfers.isInState(shards.forTransaction(operation.id),
+                            shards.localId(operation.id), Transaction.State.CANCELED);
+                    results.add(new BatchResult(operation.id, done));
+                    audit(AuditLog.Event.CANCEL, done, operation.id, 0, 0, 0);
+                    break;
+                }
+            }
         }
+        return results;
     }
 }
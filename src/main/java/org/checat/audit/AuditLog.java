@@ -0,0 +1,428 @@
+package org.checat.audit;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Audit log of transfer requests written to rotating files by background thread.
+ *
+ * Request thread claims a slot of preallocated ring by one atomic operation, writes fixed number of primitive
+ * fields into it and publishes the slot with ordered store: no locks, no formatting and no allocation. Writer
+ * thread drains published slots in order into a direct buffer and writes it out once ring is empty, so one file
+ * write covers every record accumulated meanwhile. Files are not fsynced: audit log is a record of requests,
+ * not the source of truth, which is journal.
+ *
+ * When ring is full Overflow decides whether request thread waits for writer or record is dropped and counted.
+ *
+ * File layout: records of RECORD_BYTES bytes: long sequence, long time in milliseconds since epoch, int event
+ * ordinal, int 1 if request succeeded or 0, long transaction id or 0 if none, long source, long destination,
+ * long amount. Files are named after sequence of their first record, and only the newest ones are kept.
+ */
+public class AuditLog implements Closeable {
+
+    /**
+     * Kind of audited request.
+     */
+    public enum Event {
+        INITIATE,
+        CONFIRM,
+        CANCEL,
+    }
+
+    /**
+     * What request thread does when ring is full.
+     */
+    public enum Overflow {
+        /**
+         * Wait until writer frees a slot, so no record is lost but writes slow down requests.
+         */
+        BLOCK,
+        /**
+         * Drop the record and count it, so requests never wait for disk.
+         */
+        DROP,
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(AuditLog.class.getName());
+
+    static final String FILE_PREFIX = "audit-";
+    static final String FILE_SUFFIX = ".log";
+    public static final int RECORD_BYTES = 6 * Long.BYTES + 2 * Integer.BYTES;
+    // Fields of slot: time, event and outcome, id, source, destination, amount.
+    private static final int FIELDS = 6;
+    private static final int WRITE_BUFFER_BYTES = 1 << 16;
+    // Slots are given back to request threads after this many records are drained.
+    private static final int RELEASE_BATCH = 64;
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long BLOCK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+    private static final Event[] EVENTS = Event.values();
+
+    private final Path directory;
+    private final Overflow overflow;
+    private final long fileBytes;
+    private final int keepFiles;
+
+    private final int capacity;
+    private final int mask;
+    private final long[] slots;
+    // Sequence of record published in every slot.
+    private final AtomicLongArray published;
+    // Next sequence to claim.
+    private final AtomicLong claimed;
+    // Sequences below it are drained and their slots are free.
+    private volatile long drained;
+    private final LongAdder dropped = new LongAdder();
+
+    // Owned by writer thread.
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_BYTES);
+    private long bufferFirstSequence;
+    private FileChannel channel;
+    private long channelSize;
+
+    private final Thread writer;
+    private volatile boolean closed;
+    private volatile IOException failure;
+
+    /**
+     * Opens audit log in directory, continuing sequence of records found there, and starts writer thread.
+     * @param directory Path Directory of audit files. Created if absent.
+     * @param overflow Overflow policy.
+     * @param bufferRecords int Number of records ring holds. Rounded up to a power of two.
+     * @param fileBytes long Size after which a new file is started.
+     * @param keepFiles int Number of the newest files kept.
+     * @return AuditLog ready to record.
+     * @throws IOException if directory can't be read or created.
+     */
+    public static AuditLog open(Path directory, Overflow overflow, int bufferRecords, long fileBytes, int keepFiles)
+            throws IOException {
+        Files.createDirectories(directory);
+        List<Path> files = files(directory);
+        long next = 0;
+        if (!files.isEmpty()) {
+            Path last = files.get(files.size() - 1);
+            next = firstSequence(last) + Files.size(last) / RECORD_BYTES;
+        }
+        AuditLog log = new AuditLog(directory, overflow, bufferRecords, fileBytes, keepFiles, next);
+        log.writer.start();
+        return log;
+    }
+
+    private AuditLog(Path directory, Overflow overflow, int bufferRecords, long fileBytes, int keepFiles,
+                     long next) {
+        this.directory = directory;
+        this.overflow = overflow;
+        this.fileBytes = fileBytes;
+        this.keepFiles = Math.max(1, keepFiles);
+        this.capacity = Integer.highestOneBit(Math.max(2, bufferRecords) * 2 - 1);
+        this.mask = capacity - 1;
+        this.slots = new long[capacity * FIELDS];
+        this.published = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            published.set(i, -1);
+        }
+        this.claimed = new AtomicLong(next);
+        this.drained = next;
+        this.bufferFirstSequence = next;
+        this.writer = new Thread(this::writeLoop, "audit-writer");
+        this.writer.setDaemon(true);
+    }
+
+    /**
+     * Records request. Never throws: records are dropped once log is closed or failed.
+     * @param event Event of request.
+     * @param success boolean true if request succeeded.
+     * @param id long Id of transaction, 0 if there is none.
+     * @param source long Source account or 0 if not known.
+     * @param destination long Destination account or 0 if not known.
+     * @param amount long Amount or 0 if not known.
+     */
+    public void record(Event event, boolean success, long id, long source, long destination, long amount) {
+        long sequence = claim();
+        if (sequence < 0) {
+            dropped.increment();
+            return;
+        }
+        int slot = (int) sequence & mask;
+        int base = slot * FIELDS;
+        slots[base] = System.currentTimeMillis();
+        slots[base + 1] = (long) event.ordinal() << 1 | (success ? 1 : 0);
+        slots[base + 2] = id;
+        slots[base + 3] = source;
+        slots[base + 4] = destination;
+        slots[base + 5] = amount;
+        published.lazySet(slot, sequence);
+    }
+
+    /**
+     * @return claimed sequence or -1 if record should be dropped.
+     */
+    private long claim() {
+        if (closed || failure != null) {
+            return -1;
+        }
+        if (overflow == Overflow.DROP) {
+            while (true) {
+                long sequence = claimed.get();
+                if (sequence - drained >= capacity) {
+                    return -1;
+                }
+                if (claimed.compareAndSet(sequence, sequence + 1)) {
+                    return sequence;
+                }
+            }
+        }
+        long sequence = claimed.getAndIncrement();
+        while (sequence - drained >= capacity) {
+            if (failure != null) {
+                // Writer is gone, the slot is never freed. Fill gap in sequence with nothing.
+                return -1;
+            }
+            LockSupport.parkNanos(this, BLOCK_NANOS);
+        }
+        return sequence;
+    }
+
+    private void writeLoop() {
+        try {
+            while (true) {
+                boolean last = closed;
+                if (drain() == 0) {
+                    // Records claimed before close are still written.
+                    if (last && drained == claimed.get()) {
+                        break;
+                    }
+                    LockSupport.parkNanos(this, IDLE_NANOS);
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Audit log write failed.", e);
+            failure = e;
+        } finally {
+            try {
+                if (channel != null) {
+                    channel.close();
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Can't close audit log file.", e);
+            }
+        }
+    }
+
+    /**
+     * Writes all published records in order of sequence.
+     * @return number of written records.
+     */
+    private int drain() throws IOException {
+        long next = drained;
+        int count = 0;
+        while (true) {
+            int slot = (int) next & mask;
+            if (published.get(slot) != next) {
+                break;
+            }
+            if (buffer.remaining() < RECORD_BYTES) {
+                write();
+            }
+            int base = slot * FIELDS;
+            long eventAndOutcome = slots[base + 1];
+            buffer.putLong(next);
+            buffer.putLong(slots[base]);
+            buffer.putInt((int) (eventAndOutcome >>> 1));
+            buffer.putInt((int) (eventAndOutcome & 1));
+            buffer.putLong(slots[base + 2]);
+            buffer.putLong(slots[base + 3]);
+            buffer.putLong(slots[base + 4]);
+            buffer.putLong(slots[base + 5]);
+            next++;
+            if (++count % RELEASE_BATCH == 0) {
+                drained = next;
+            }
+        }
+        drained = next;
+        write();
+        return count;
+    }
+
+    private void write() throws IOException {
+        if (buffer.position() == 0) {
+            return;
+        }
+        buffer.flip();
+        int records = buffer.remaining() / RECORD_BYTES;
+        if (channel == null || channelSize > 0 && channelSize + buffer.remaining() > fileBytes) {
+            startFile();
+        }
+        while (buffer.hasRemaining()) {
+            channelSize += channel.write(buffer);
+        }
+        buffer.clear();
+        bufferFirstSequence += records;
+    }
+
+    private void startFile() throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+        channel = FileChannel.open(directory.resolve(fileName(bufferFirstSequence)),
+                StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE);
+        channelSize = 0;
+        List<Path> files = files(directory);
+        for (int i = 0; i < files.size() - keepFiles; i++) {
+            Files.deleteIfExists(files.get(i));
+        }
+    }
+
+    static String fileName(long firstSequence) {
+        return String.format("%s%020d%s", FILE_PREFIX, firstSequence, FILE_SUFFIX);
+    }
+
+    private static long firstSequence(Path file) {
+        String name = file.getFileName().toString();
+        return Long.parseLong(name.substring(FILE_PREFIX.length(), name.length() - FILE_SUFFIX.length()));
+    }
+
+    /**
+     * @return audit files in directory ordered by sequence of their first record.
+     */
+    public static List<Path> files(Path directory) throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, FILE_PREFIX + "*" + FILE_SUFFIX)) {
+            for (Path file : stream) {
+                files.add(file);
+            }
+        }
+        Collections.sort(files);
+        return files;
+    }
+
+    /**
+     * One record of audit file.
+     */
+    public static final class Record {
+        private final long sequence;
+        private final long timeMillis;
+        private final Event event;
+        private final boolean success;
+        private final long id;
+        private final long source;
+        private final long destination;
+        private final long amount;
+
+        private Record(ByteBuffer buffer) {
+            sequence = buffer.getLong();
+            timeMillis = buffer.getLong();
+            event = EVENTS[buffer.getInt()];
+            success = buffer.getInt() != 0;
+            id = buffer.getLong();
+            source = buffer.getLong();
+            destination = buffer.getLong();
+            amount = buffer.getLong();
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        public long getTimeMillis() {
+            return timeMillis;
+        }
+
+        public Event getEvent() {
+            return event;
+        }
+
+        public boolean isSuccess() {
+            return success;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public long getSource() {
+            return source;
+        }
+
+        public long getDestination() {
+            return destination;
+        }
+
+        public long getAmount() {
+            return amount;
+        }
+
+        @Override
+        public String toString() {
+            return sequence + " " + timeMillis + " " + event + " " + (success ? "OK" : "FAILED") + " " + id + " "
+                    + source + " " + destination + " " + amount;
+        }
+    }
+
+    /**
+     * Reads all records kept in directory. Incomplete record at the end of a file is skipped.
+     * @param directory Path Directory of audit files.
+     * @return records ordered by sequence.
+     * @throws IOException if files can't be read.
+     */
+    public static List<Record> read(Path directory) throws IOException {
+        List<Record> records = new ArrayList<>();
+        for (Path file : files(directory)) {
+            ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(file));
+            while (data.remaining() >= RECORD_BYTES) {
+                records.add(new Record(data));
+            }
+        }
+        return records;
+    }
+
+    /**
+     * @return number of records claimed so far, including ones not written yet.
+     */
+    public long getRecorded() {
+        return claimed.get();
+    }
+
+    /**
+     * @return number of records dropped because ring was full or log was closed or failed.
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Stops accepting records and waits until writer writes all accepted ones.
+     * @throws IOException if records couldn't be written.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted closing audit log");
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
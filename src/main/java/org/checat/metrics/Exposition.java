@@ -0,0 +1,57 @@
+package org.checat.metrics;
+
+/**
+ * Builds metrics in Prometheus text exposition format, version 0.0.4.
+ */
+public final class Exposition {
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final StringBuilder text = new StringBuilder();
+
+    /**
+     * Starts metric family.
+     * @param name String Metric name.
+     * @param type String One of counter, gauge, histogram.
+     * @param help String Description of metric.
+     */
+    public Exposition family(String name, String type, String help) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        return this;
+    }
+
+    /**
+     * @param labels String Labels without braces, e.g. state="INITIATED". Empty if none.
+     */
+    public Exposition sample(String name, String labels, long value) {
+        return sample(name, labels, Long.toString(value));
+    }
+
+    public Exposition sample(String name, String labels, String value) {
+        text.append(name);
+        if (!labels.isEmpty()) {
+            text.append('{').append(labels).append('}');
+        }
+        text.append(' ').append(value).append('\n');
+        return this;
+    }
+
+    /**
+     * @return label value escaped as format requires.
+     */
+    public static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    /**
+     * @return nanoseconds as decimal number of seconds.
+     */
+    static String seconds(long nanos) {
+        return Double.toString(nanos / 1e9);
+    }
+
+    @Override
+    public String toString() {
+        return text.toString();
+    }
+}
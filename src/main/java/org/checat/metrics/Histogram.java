@@ -0,0 +1,138 @@
+package org.checat.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of durations in nanoseconds with log-linear buckets, in the manner of HdrHistogram.
+ *
+ * Every power of two range is split into 16 buckets of equal width, so a recorded value is known within 1/16 of
+ * it. Recording is one bucket index computation and one atomic increment, plus one for the sum.
+ */
+public final class Histogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (Long.SIZE - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    /**
+     * Bucket bounds of Prometheus exposition in nanoseconds: 1-2.5-5 series from 1 microsecond to 10 seconds.
+     */
+    private static final long[] BOUNDS;
+
+    static {
+        long[] factors = {1000, 2500, 5000};
+        BOUNDS = new long[22];
+        long scale = 1;
+        for (int i = 0; i < BOUNDS.length; i++) {
+            BOUNDS[i] = factors[i % 3] * scale;
+            if (i % 3 == 2) {
+                scale *= 10;
+            }
+        }
+    }
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder sum = new LongAdder();
+
+    static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) Math.max(value, 0);
+        }
+        int shift = Long.SIZE - 1 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    /**
+     * @return the lowest value not falling into bucket any more.
+     */
+    static long upperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index + 1;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long upper = (long) (SUB_BUCKETS + index % SUB_BUCKETS + 1) << shift;
+        // The last bucket reaches Long.MAX_VALUE.
+        return upper > 0 ? upper : Long.MAX_VALUE;
+    }
+
+    /**
+     * @param nanos long Duration to record. Negative durations are recorded as 0.
+     */
+    public void record(long nanos) {
+        counts.incrementAndGet(index(nanos));
+        sum.add(Math.max(nanos, 0));
+    }
+
+    /**
+     * @return number of recorded values.
+     */
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * @return sum of recorded values in nanoseconds.
+     */
+    public long getSum() {
+        return sum.sum();
+    }
+
+    /**
+     * @param quantile double in range [0, 1].
+     * @return upper bound of bucket holding the value at quantile, 0 if nothing is recorded.
+     */
+    public long getValueAtQuantile(double quantile) {
+        long[] snapshot = snapshot();
+        long total = 0;
+        for (long count : snapshot) {
+            total += count;
+        }
+        long rank = (long) Math.ceil(quantile * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank && seen > 0) {
+                return upperBound(i);
+            }
+        }
+        return 0;
+    }
+
+    private long[] snapshot() {
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Writes samples of Prometheus histogram in seconds. A value is counted in the first exposition bucket whose
+     * bound is not below the upper bound of its own bucket, so exposed buckets may overstate values by 1/16.
+     * @param out Exposition to write to.
+     * @param name String Metric name.
+     * @param labels String Labels without braces, e.g. method="GET". Empty if none.
+     */
+    public void writeTo(Exposition out, String name, String labels) {
+        long[] snapshot = snapshot();
+        String prefix = labels.isEmpty() ? "" : labels + ",";
+        long cumulative = 0;
+        int bucket = 0;
+        for (long bound : BOUNDS) {
+            while (bucket < BUCKETS && upperBound(bucket) <= bound) {
+                cumulative += snapshot[bucket++];
+            }
+            out.sample(name + "_bucket", prefix + "le=\"" + Exposition.seconds(bound) + "\"", cumulative);
+        }
+        while (bucket < BUCKETS) {
+            cumulative += snapshot[bucket++];
+        }
+        out.sample(name + "_bucket", prefix + "le=\"+Inf\"", cumulative);
+        out.sample(name + "_sum", labels, Exposition.seconds(sum.sum()));
+        out.sample(name + "_count", labels, cumulative);
+    }
+}
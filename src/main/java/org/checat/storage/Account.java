@@ -1,14 +1,69 @@
 package org.checat.storage;
 
 import javax.xml.bind.annotation.XmlRootElement;
-import java.util.function.Predicate;
-import java.util.function.UnaryOperator;
+import javax.xml.bind.annotation.XmlTransient;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * Balance of account. Storage keeps one Account object per id for its whole life and commits change it in place
+ * while holding its lock. Balance fields are volatile, so readers without the lock see every field up to date,
+ * though money and hold may come from different commits.
+ *
+ * Besides that, every commit publishes the balance it leaves as a new version on top of a list of older ones, so
+ * View reads balance of its version without locks, see Versions. Versions older than the newest one any View may
+ * read are cut off the list by the next commit of the account and reused by later ones.
+ *
+ * Aggregates of transfers of the account change in place together with balance by the same steps: holds and
+ * confirmed and cancelled counts are of transfers from the account, sent and received are confirmed amounts from
+ * and to it, and hold is the pending amount of its holds. They aren't versioned, View doesn't see them.
+ */
 @XmlRootElement
 public class Account {
     public long id;
-    public long money;
-    public long hold;
+    public volatile long money;
+    public volatile long hold;
+    public volatile long holds;
+    public volatile long sent;
+    public volatile long received;
+    public volatile long confirmed;
+    public volatile long cancelled;
+
+    @XmlTransient
+    final ReentrantLock lock = new ReentrantLock();
+
+    private static final AtomicLongFieldUpdater<Account> CONTENTIONS =
+            AtomicLongFieldUpdater.newUpdater(Account.class, "contentions");
+    // Number of times commit found lock of the account taken.
+    private volatile long contentions;
+
+    private static final AtomicLongFieldUpdater<Account> VERSION =
+            AtomicLongFieldUpdater.newUpdater(Account.class, "version");
+    // Even while balance is stable, odd while optimistic commit owns the account. Grows by 2 with every change
+    // made by optimistic commit.
+    private volatile long version;
+
+    /**
+     * Balance as of version. Fields change only while the node isn't reachable by readers of its version: before
+     * the version is visible or after the node is cut off.
+     */
+    static final class Balance {
+        long version;
+        long money;
+        long hold;
+        Balance previous;
+
+        Balance(long version, long money, long hold) {
+            this.version = version;
+            this.money = money;
+            this.hold = hold;
+        }
+    }
+
+    // Newest version first. Nodes are cut off at the horizon by commits, the last one is kept for reuse.
+    private volatile Balance balances = new Balance(0, 0, 0);
+    // Guarded by lock of the account.
+    private Balance spare;
 
     public Account() {}
 
@@ -30,55 +85,188 @@ public class Account {
     }
 
     /**
-     * Returns UnaryOperator that will put specified amount of money on hold.
+     * Takes lock of the account, counting contention if it is taken by somebody else.
+     */
+    void lock() {
+        if (!lock.tryLock()) {
+            CONTENTIONS.incrementAndGet(this);
+            lock.lock();
+        }
+    }
+
+    long contentions() {
+        return contentions;
+    }
+
+    long version() {
+        return version;
+    }
+
+    /**
+     * Takes ownership of the account for optimistic commit if nobody changed it since version was read.
+     * @param expected long Even version read before.
+     * @return true if ownership was taken.
+     */
+    boolean own(long expected) {
+        return VERSION.compareAndSet(this, expected, expected + 1);
+    }
+
+    /**
+     * Gives up ownership taken by own(expected).
+     * @param changed boolean true if balance was changed while owned.
+     */
+    void disown(long expected, boolean changed) {
+        version = changed ? expected + 2 : expected;
+    }
+
+    /**
+     * Checks that account has enough money not put on hold yet. Caller should hold lock of the account.
+     * @param amount long Amount of money needed.
+     * @return true if account has enough money.
+     */
+    boolean haveEnoughMoney(long amount) {
+        return money >= hold + amount;
+    }
+
+    /**
+     * Puts specified amount of money on hold. Caller should hold lock of the account.
      * @param amount long Amount of money to hold.
-     * @return UnaryOperator that put specified amount of money on hold.
      */
-    public static UnaryOperator<Account> holdMoneyUpdater(long amount) {
-        return account -> new Account(
-                account.getId(),
-                account.getMoney(),
-                account.getHold() + amount);
+    void holdMoney(long amount) {
+        hold += amount;
+        holds++;
     }
 
     /**
-     * Returns UnaryOperator that will add specified amount of money to account.
+     * Adds specified amount of money to account. Caller should hold lock of the account.
      * @param amount long Amount of money to add.
-     * @return UnaryOperator that add specified amount of money to account.
      */
-    public static UnaryOperator<Account> addMoneyUpdater(long amount) {
-        return account -> new Account(
-                account.getId(),
-                account.getMoney() + amount,
-                account.getHold());
+    void addMoney(long amount) {
+        money += amount;
+        received += amount;
     }
 
     /**
-     * Returns UnaryOperator that transfers specified amount of money from account.
+     * Transfers specified amount of money held earlier from account. Caller should hold lock of the account.
      * @param amount long Amount of money to transfer.
-     * @return UnaryOperator that transfer specified amount of money from account.
      */
-    public static UnaryOperator<Account> transferMoneyUpdater(long amount) {
-        return account -> new Account(
-                account.getId(),
-                account.getMoney() - amount,
-                account.getHold() - amount);
+    void transferMoney(long amount) {
+        money -= amount;
+        hold -= amount;
+        holds--;
+        sent += amount;
+        confirmed++;
     }
 
     /**
-     * Returns UnaryOperator that will release specified amount of money from being held.
+     * Releases specified amount of money from being held. Caller should hold lock of the account.
      * @param amount long Amount of money to release.
-     * @return UnaryOperator that release specified amount of money from being held.
      */
-    public static UnaryOperator<Account> releaseMoneyUpdater(long amount) {
-        return account -> new Account(
-                account.getId(),
-                account.getMoney(),
-                account.getHold() - amount);
+    void releaseMoney(long amount) {
+        hold -= amount;
+        holds--;
+        cancelled++;
     }
 
-    public static Predicate<Account> haveEnoughMoneyPredicate(long money) {
-        return account -> account.getMoney() >= account.getHold() + money;
+    /**
+     * Replaces balance of account, e.g. while recovering from journal.
+     */
+    void restore(long money, long hold) {
+        this.money = money;
+        this.hold = hold;
+        balances = new Balance(0, money, hold);
+    }
+
+    /**
+     * Adds to aggregates what transfer in state contributes to them, or takes it away, e.g. while recovering from
+     * journal, where balance is restored as a whole.
+     * @param outgoing boolean true if account is source of transfer, false if destination.
+     * @param state Transaction.State of transfer.
+     * @param amount long Amount of transfer.
+     * @param sign int 1 to add, -1 to take away.
+     */
+    void restoreTransfer(boolean outgoing, Transaction.State state, long amount, int sign) {
+        switch (state) {
+            case INITIATED:
+                if (outgoing) {
+                    holds += sign;
+                }
+                break;
+            case CONFIRMED:
+                if (outgoing) {
+                    sent += sign * amount;
+                    confirmed += sign;
+                } else {
+                    received += sign * amount;
+                }
+                break;
+            case CANCELED:
+                if (outgoing) {
+                    cancelled += sign;
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Publishes current balance as of version of commit. Caller should hold lock of the account.
+     * @param version long Version of commit, not visible yet.
+     * @param horizon long The oldest version open Views may read, see Versions.horizon().
+     */
+    void publish(long version, long horizon) {
+        Balance head = balances;
+        if (head.version == version) {
+            // Changed once more by the same commit, readers don't look into it yet.
+            head.money = money;
+            head.hold = hold;
+            return;
+        }
+        Balance cut = head;
+        while (cut.version > horizon && cut.previous != null) {
+            cut = cut.previous;
+        }
+        if (cut.previous != null) {
+            // One spare node is enough while versions are reclaimed as fast as they are made.
+            spare = cut.previous;
+            spare.previous = null;
+            cut.previous = null;
+        }
+        Balance balance = spare;
+        if (balance != null) {
+            spare = balance.previous;
+            balance.version = version;
+            balance.money = money;
+            balance.hold = hold;
+        } else {
+            balance = new Balance(version, money, hold);
+        }
+        balance.previous = head;
+        balances = balance;
+    }
+
+    /**
+     * @param version long Version read by open View.
+     * @return copy of account with balance as of version.
+     */
+    Account balanceAt(long version) {
+        Balance balance = balances;
+        while (balance.version > version) {
+            balance = balance.previous;
+        }
+        return new Account(id, balance.money, balance.hold);
+    }
+
+    /**
+     * @return number of kept versions of balance.
+     */
+    int versionCount() {
+        int count = 0;
+        for (Balance balance = balances; balance != null; balance = balance.previous) {
+            count++;
+        }
+        return count;
     }
 
     public long getId() {
@@ -93,9 +281,30 @@ public class Account {
         return hold;
     }
 
+    public long getHolds() {
+        return holds;
+    }
+
+    public long getSent() {
+        return sent;
+    }
+
+    public long getReceived() {
+        return received;
+    }
+
+    public long getConfirmed() {
+        return confirmed;
+    }
+
+    public long getCancelled() {
+        return cancelled;
+    }
+
     public Account(long id, long money, long hold) {
         this.id = id;
         this.money = money;
         this.hold = hold;
+        this.balances = new Balance(0, money, hold);
     }
 }
@@ -0,0 +1,102 @@
+package org.checat.storage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Open addressing hash table of accounts keyed by primitive id, so lookups neither box ids nor allocate.
+ *
+ * Lookups take no lock. Accounts are only ever added, under the table monitor; table is rebuilt into a bigger one
+ * when half full and the new one is published through volatile field. Reader holding the old table may miss an
+ * account added after rebuild and then find it under the monitor.
+ */
+class AccountTable {
+    private static final int INITIAL_CAPACITY = 1 << 10;
+
+    private volatile AtomicReferenceArray<Account> slots = new AtomicReferenceArray<>(INITIAL_CAPACITY);
+    private int size;
+
+    private static int slot(long id, int mask) {
+        long hash = id * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ hash >>> 32) & mask;
+    }
+
+    private static Account find(AtomicReferenceArray<Account> slots, long id) {
+        int mask = slots.length() - 1;
+        for (int i = slot(id, mask); ; i = (i + 1) & mask) {
+            Account account = slots.get(i);
+            if (account == null || account.getId() == id) {
+                return account;
+            }
+        }
+    }
+
+    private static void insert(AtomicReferenceArray<Account> slots, Account account) {
+        int mask = slots.length() - 1;
+        int i = slot(account.getId(), mask);
+        while (slots.get(i) != null) {
+            i = (i + 1) & mask;
+        }
+        slots.set(i, account);
+    }
+
+    /**
+     * @return account with id or null if there is none.
+     */
+    Account get(long id) {
+        return find(slots, id);
+    }
+
+    /**
+     * @return account with id, created if there was none.
+     */
+    Account getOrCreate(long id) {
+        Account account = find(slots, id);
+        return account != null ? account : create(id);
+    }
+
+    private synchronized Account create(long id) {
+        AtomicReferenceArray<Account> current = slots;
+        Account account = find(current, id);
+        if (account != null) {
+            return account;
+        }
+        account = new Account(id);
+        if ((size + 1) * 2 > current.length()) {
+            AtomicReferenceArray<Account> grown = new AtomicReferenceArray<>(current.length() * 2);
+            for (int i = 0; i < current.length(); i++) {
+                Account existing = current.get(i);
+                if (existing != null) {
+                    insert(grown, existing);
+                }
+            }
+            insert(grown, account);
+            slots = grown;
+        } else {
+            insert(current, account);
+        }
+        size++;
+        return account;
+    }
+
+    /**
+     * @return copy of list of all accounts. Accounts added concurrently may or may not be included.
+     */
+    List<Account> values() {
+        AtomicReferenceArray<Account> current = slots;
+        List<Account> values = new ArrayList<>();
+        for (int i = 0; i < current.length(); i++) {
+            Account account = current.get(i);
+            if (account != null) {
+                values.add(account);
+            }
+        }
+        return values;
+    }
+
+    synchronized void clear() {
+        slots = new AtomicReferenceArray<>(INITIAL_CAPACITY);
+        size = 0;
+    }
+}
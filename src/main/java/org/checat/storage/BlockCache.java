@@ -0,0 +1,75 @@
+package org.checat.storage;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded cache of decoded segment blocks evicting the least recently used ones.
+ *
+ * Cache is split into stripes with their own locks, so reads of different blocks rarely wait for each other.
+ * Block is decoded outside of the lock; two readers missing the same block both decode it and the later one
+ * replaces the earlier, which is harmless as blocks never change.
+ */
+final class BlockCache {
+    private static final int STRIPES = 16;
+
+    private static final class Stripe extends LinkedHashMap<Long, Segment.Block> {
+        private static final long serialVersionUID = 1L;
+
+        private final int capacity;
+
+        Stripe(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Segment.Block> eldest) {
+            return size() > capacity;
+        }
+    }
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * @param capacity int Maximum number of cached blocks.
+     */
+    BlockCache(int capacity) {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe(Math.max(1, capacity / STRIPES));
+        }
+    }
+
+    /**
+     * @return decoded block of segment, from cache if it is there.
+     */
+    Segment.Block get(Segment segment, int block) {
+        long key = (long) segment.getNumber() << 32 | block;
+        Stripe stripe = stripes[(segment.getNumber() * 31 + block) & (STRIPES - 1)];
+        Segment.Block cached;
+        synchronized (stripe) {
+            cached = stripe.get(key);
+        }
+        if (cached != null) {
+            hits.increment();
+            return cached;
+        }
+        misses.increment();
+        Segment.Block decoded = segment.decode(block);
+        synchronized (stripe) {
+            stripe.put(key, decoded);
+        }
+        return decoded;
+    }
+
+    long getHits() {
+        return hits.sum();
+    }
+
+    long getMisses() {
+        return misses.sum();
+    }
+}
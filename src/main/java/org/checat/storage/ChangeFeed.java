@@ -0,0 +1,311 @@
+package org.checat.storage;
+
+import java.io.Closeable;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Feed of every transaction inserted or changed by commits of all shards, numbered by sequence from 1 in order
+ * of commits, so changes of the same account come in the order they were made. Transactions carry global ids.
+ *
+ * Commit writes its rows into a ring of the last capacity events and signals dispatcher thread, which wakes
+ * waiting subscribers, so commit never waits for them nor wakes every one of them itself. Every Subscription only
+ * keeps its position in the ring, so a subscriber slower than commits costs no memory: once the ring overwrites
+ * events it hasn't read, it is told it lost them and should start over. Rows of ring are stamped with their
+ * sequence after they are written and checked again after they are read, so readers take no lock either.
+ *
+ * Events come as soon as changes are installed, before commit returns to its caller and before its changes are
+ * durable. Sequences start over with every feed, e.g. after restart, so every feed has an epoch of its own: the
+ * time it was opened in milliseconds, greater than epoch of any feed opened before it in this process. Id of event
+ * is epoch and sequence, see Event.getId().
+ */
+public class ChangeFeed implements Closeable {
+
+    private static final int FIELDS = 5;
+    private static final Transaction.State[] STATES = Transaction.State.values();
+    // Stamp of row being written.
+    private static final long WRITING = -1;
+    private static final AtomicLong EPOCHS = new AtomicLong();
+
+    /**
+     * Transaction as it was left by commit with sequence of the change.
+     */
+    public static final class Event {
+        private final long epoch;
+        private final long sequence;
+        private final Transaction transaction;
+
+        Event(long epoch, long sequence, Transaction transaction) {
+            this.epoch = epoch;
+            this.sequence = sequence;
+            this.transaction = transaction;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        /**
+         * @return epoch of feed and sequence, as epoch-sequence.
+         */
+        public String getId() {
+            return epoch + "-" + sequence;
+        }
+
+        public Transaction getTransaction() {
+            return transaction;
+        }
+    }
+
+    private final Storage[] attached;
+    private final CommitListener[] listeners;
+    private final int mask;
+    private final AtomicLongArray stamps;
+    private final AtomicLongArray rows;
+    private final long epoch = EPOCHS.updateAndGet(last -> Math.max(last + 1, System.currentTimeMillis()));
+    private final AtomicLong sequence = new AtomicLong();
+    private final Set<Thread> waiting = ConcurrentHashMap.newKeySet();
+    // Set by commits having events for waiting subscribers, cleared by dispatcher before it wakes them.
+    private final AtomicBoolean signalled = new AtomicBoolean();
+    private final Thread dispatcher;
+    private final AtomicInteger subscribers = new AtomicInteger();
+    private final LongAdder lost = new LongAdder();
+    private volatile boolean closed;
+
+    /**
+     * Starts feeding commits of every shard.
+     * @param shards Shards to listen to. Shouldn't be reconfigured while feed is open.
+     * @param capacity int Number of the latest events kept for subscribers, rounded up to a power of two.
+     */
+    public ChangeFeed(Shards shards, int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity of change feed should be positive");
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        mask = size - 1;
+        stamps = new AtomicLongArray(size);
+        rows = new AtomicLongArray(size * FIELDS);
+        int count = shards.getCount();
+        attached = new Storage[count];
+        listeners = new CommitListener[count];
+        for (int i = 0; i < count; i++) {
+            Storage storage = shards.get(i);
+            attached[i] = storage;
+            listeners[i] = changes -> append(changes, shards, storage);
+            attached[i].addCommitListener(listeners[i]);
+        }
+        dispatcher = new Thread(this::dispatch, "feed-dispatcher");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    private void dispatch() {
+        while (!closed) {
+            if (!signalled.getAndSet(false)) {
+                LockSupport.park(this);
+                continue;
+            }
+            for (Thread thread : waiting) {
+                LockSupport.unpark(thread);
+            }
+        }
+        for (Thread thread : waiting) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    private void append(Changes changes, Shards shards, Storage storage) {
+        for (int i = 0; i < changes.getTransactionCount(); i++) {
+            long next = sequence.incrementAndGet();
+            int slot = (int) (next & mask);
+            int row = slot * FIELDS;
+            stamps.set(slot, WRITING);
+            rows.lazySet(row, shards.globalId(storage, changes.getTransactionId(i)));
+            rows.lazySet(row + 1, changes.getTransactionSource(i));
+            rows.lazySet(row + 2, changes.getTransactionDestination(i));
+            rows.lazySet(row + 3, changes.getTransactionAmount(i));
+            rows.lazySet(row + 4, changes.getTransactionState(i).ordinal());
+            stamps.set(slot, next);
+        }
+        if (!waiting.isEmpty() && !signalled.get() && signalled.compareAndSet(false, true)) {
+            LockSupport.unpark(dispatcher);
+        }
+    }
+
+    /**
+     * Subscribes to events following sequence after.
+     * @param after Long Sequence of the last event subscriber has seen, e.g. before it reconnected, or null to
+     *              get only events fed from now on.
+     * @param source Long If not null only transactions with same source are fed.
+     * @param destination Long If not null only transactions with same destination are fed.
+     * @param account Long If not null only transactions with same source or destination are fed.
+     * @return Subscription, null if events following after aren't kept any more or were never fed.
+     */
+    public Subscription subscribe(Long after, Long source, Long destination, Long account) {
+        long last = sequence.get();
+        if (after == null) {
+            return new Subscription(last + 1, source, destination, account);
+        }
+        if (after < 0 || after > last || after + 1 < last - mask) {
+            return null;
+        }
+        return new Subscription(after + 1, source, destination, account);
+    }
+
+    /**
+     * @return epoch of feed, see Event.getId().
+     */
+    public long getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * @return sequence of the latest event.
+     */
+    public long getSequence() {
+        return sequence.get();
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * @return number of open subscriptions.
+     */
+    public int getSubscriberCount() {
+        return subscribers.get();
+    }
+
+    /**
+     * @return number of times subscriber lost events overwritten before it read them.
+     */
+    public long getLostCount() {
+        return lost.sum();
+    }
+
+    /**
+     * Stops feeding commits and wakes up subscribers, which then see no more events.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (int i = 0; i < attached.length; i++) {
+            attached[i].removeCommitListener(listeners[i]);
+        }
+        LockSupport.unpark(dispatcher);
+        for (Thread thread : waiting) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * Position of one subscriber in the feed, used by one thread at a time.
+     */
+    public final class Subscription implements Closeable {
+        private final Long source;
+        private final Long destination;
+        private final Long account;
+        private long next;
+        private boolean open = true;
+
+        private Subscription(long next, Long source, Long destination, Long account) {
+            this.next = next;
+            this.source = source;
+            this.destination = destination;
+            this.account = account;
+            subscribers.incrementAndGet();
+        }
+
+        /**
+         * Waits for the next event matching filters of subscription.
+         * @param timeoutNanos long Maximum time to wait.
+         * @return Event or null if none came in time or feed is closed.
+         * @throws IllegalStateException if events following the last one returned were overwritten before they
+         * were read: subscriber is too slow and should start over.
+         */
+        public Event next(long timeoutNanos) {
+            long deadline = System.nanoTime() + timeoutNanos;
+            while (!closed) {
+                Event event = read();
+                if (event != null) {
+                    next++;
+                    Transaction transaction = event.transaction;
+                    if ((source == null || source == transaction.getSource())
+                            && (destination == null || destination == transaction.getDestination())
+                            && (account == null || account == transaction.getSource()
+                                    || account == transaction.getDestination())) {
+                        return event;
+                    }
+                    continue;
+                }
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return null;
+                }
+                Thread current = Thread.currentThread();
+                waiting.add(current);
+                try {
+                    // Commit signals dispatcher after it stamps rows, so one stamped meanwhile is seen here.
+                    if (!isAvailable()) {
+                        LockSupport.parkNanos(this, remaining);
+                    }
+                } finally {
+                    waiting.remove(current);
+                }
+            }
+            return null;
+        }
+
+        /**
+         * @return true if the next event, matching filters or not, can be read without waiting.
+         */
+        public boolean isAvailable() {
+            return stamps.get((int) (next & mask)) >= next || closed;
+        }
+
+        /**
+         * @return the next event or null if it isn't written yet.
+         */
+        private Event read() {
+            int slot = (int) (next & mask);
+            long stamp = stamps.get(slot);
+            if (stamp == next) {
+                int row = slot * FIELDS;
+                Transaction transaction = new Transaction(rows.get(row), rows.get(row + 1), rows.get(row + 2),
+                        rows.get(row + 3), STATES[(int) rows.get(row + 4)]);
+                if (stamps.get(slot) == next) {
+                    return new Event(epoch, next, transaction);
+                }
+            } else if (stamp < next && sequence.get() - next <= mask) {
+                return null;
+            }
+            lost.increment();
+            throw new IllegalStateException("Change feed overwrote event " + next + " before it was read");
+        }
+
+        /**
+         * @return sequence of the next event subscriber would read.
+         */
+        public long getNextSequence() {
+            return next;
+        }
+
+        @Override
+        public void close() {
+            if (open) {
+                open = false;
+                subscribers.decrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package org.checat.storage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Outcome of committed DataTransaction: new states of every account and transaction it changed or inserted,
+ * in order of application.
+ *
+ * Rows are kept in primitive arrays owned by DataTransaction and reused by its next commit, so listeners should
+ * copy whatever they need before released() returns.
+ */
+public class Changes {
+    private static final Transaction.State[] STATES = Transaction.State.values();
+    private static final int INITIAL_ROWS = 4;
+
+    private int accountCount;
+    private long[] accountIds = new long[INITIAL_ROWS];
+    private long[] accountMoney = new long[INITIAL_ROWS];
+    private long[] accountHold = new long[INITIAL_ROWS];
+
+    private int transactionCount;
+    private long[] transactionIds = new long[INITIAL_ROWS];
+    private long[] transactionSources = new long[INITIAL_ROWS];
+    private long[] transactionDestinations = new long[INITIAL_ROWS];
+    private long[] transactionAmounts = new long[INITIAL_ROWS];
+    private byte[] transactionStates = new byte[INITIAL_ROWS];
+
+    private long sequence;
+    private long replicationSequence;
+    private long version;
+
+    void addAccount(Account account) {
+        if (accountCount == accountIds.length) {
+            int capacity = accountCount * 2;
+            accountIds = Arrays.copyOf(accountIds, capacity);
+            accountMoney = Arrays.copyOf(accountMoney, capacity);
+            accountHold = Arrays.copyOf(accountHold, capacity);
+        }
+        accountIds[accountCount] = account.getId();
+        accountMoney[accountCount] = account.getMoney();
+        accountHold[accountCount] = account.getHold();
+        accountCount++;
+    }
+
+    void addTransaction(long id, long source, long destination, long amount, Transaction.State state) {
+        if (transactionCount == transactionIds.length) {
+            int capacity = transactionCount * 2;
+            transactionIds = Arrays.copyOf(transactionIds, capacity);
+            transactionSources = Arrays.copyOf(transactionSources, capacity);
+            transactionDestinations = Arrays.copyOf(transactionDestinations, capacity);
+            transactionAmounts = Arrays.copyOf(transactionAmounts, capacity);
+            transactionStates = Arrays.copyOf(transactionStates, capacity);
+        }
+        transactionIds[transactionCount] = id;
+        transactionSources[transactionCount] = source;
+        transactionDestinations[transactionCount] = destination;
+        transactionAmounts[transactionCount] = amount;
+        transactionStates[transactionCount] = (byte) state.ordinal();
+        transactionCount++;
+    }
+
+    /**
+     * Forgets all rows, keeping arrays for the next commit.
+     */
+    void clear() {
+        accountCount = 0;
+        transactionCount = 0;
+        sequence = 0;
+        replicationSequence = 0;
+        version = 0;
+    }
+
+    public int getAccountCount() {
+        return accountCount;
+    }
+
+    public long getAccountId(int index) {
+        return accountIds[index];
+    }
+
+    public long getAccountMoney(int index) {
+        return accountMoney[index];
+    }
+
+    public long getAccountHold(int index) {
+        return accountHold[index];
+    }
+
+    public int getTransactionCount() {
+        return transactionCount;
+    }
+
+    public long getTransactionId(int index) {
+        return transactionIds[index];
+    }
+
+    public long getTransactionSource(int index) {
+        return transactionSources[index];
+    }
+
+    public long getTransactionDestination(int index) {
+        return transactionDestinations[index];
+    }
+
+    public long getTransactionAmount(int index) {
+        return transactionAmounts[index];
+    }
+
+    public Transaction.State getTransactionState(int index) {
+        return STATES[transactionStates[index]];
+    }
+
+    /**
+     * Copies rows into new objects. Allocates, prefer indexed getters on hot paths.
+     * @return new states of updated accounts.
+     */
+    public List<Account> getAccounts() {
+        List<Account> accounts = new ArrayList<>(accountCount);
+        for (int i = 0; i < accountCount; i++) {
+            accounts.add(new Account(accountIds[i], accountMoney[i], accountHold[i]));
+        }
+        return accounts;
+    }
+
+    /**
+     * Copies rows into new objects. Allocates, prefer indexed getters on hot paths.
+     * @return new states of inserted and updated transactions.
+     */
+    public List<Transaction> getTransactions() {
+        List<Transaction> transactions = new ArrayList<>(transactionCount);
+        for (int i = 0; i < transactionCount; i++) {
+            transactions.add(new Transaction(transactionIds[i],
+                    transactionSources[i],
+                    transactionDestinations[i],
+                    transactionAmounts[i],
+                    STATES[transactionStates[i]]));
+        }
+        return transactions;
+    }
+
+    /**
+     * @return position of this commit in journal. 0 if it wasn't journaled.
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+
+    /**
+     * @return position of this commit in stream shipped to followers, see Replicator. 0 if it wasn't replicated.
+     */
+    public long getReplicationSequence() {
+        return replicationSequence;
+    }
+
+    void setReplicationSequence(long replicationSequence) {
+        this.replicationSequence = replicationSequence;
+    }
+
+    /**
+     * @return version of this commit, see Storage.openView().
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    void setVersion(long version) {
+        this.version = version;
+    }
+}
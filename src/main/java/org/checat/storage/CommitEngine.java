@@ -0,0 +1,27 @@
+package org.checat.storage;
+
+import java.util.List;
+
+/**
+ * Executes DataTransactions with exclusive access to accounts they touch.
+ */
+interface CommitEngine {
+
+    /**
+     * Executes DataTransaction. Notifies commit listeners of storage if it is committed.
+     * @param dataTransaction DataTransaction to execute.
+     */
+    void commit(DataTransaction dataTransaction);
+
+    /**
+     * Executes DataTransactions one by one as a group. Notifies commit listeners of storage about committed ones.
+     * Outcome of every DataTransaction is left in it, see DataTransaction.isCommitted().
+     * @param dataTransactions DataTransactions to execute.
+     */
+    void commitAll(List<DataTransaction> dataTransactions);
+
+    /**
+     * Releases resources of engine. Called when storage switches to another engine.
+     */
+    default void close() {}
+}
@@ -0,0 +1,21 @@
+package org.checat.storage;
+
+/**
+ * Receives changes of every successful DataTransaction commit.
+ */
+public interface CommitListener {
+
+    /**
+     * Called while locks of all accounts touched by commit are still held, so calls for commits touching the
+     * same account come in the order of commits. Should be fast and must not wait for other commits.
+     * @param changes Changes made by commit.
+     */
+    void committed(Changes changes);
+
+    /**
+     * Called after locks of the commit are released, but before commit returns to its caller.
+     * May block, e.g. until changes become durable.
+     * @param changes Changes made by commit.
+     */
+    default void released(Changes changes) {}
+}
@@ -0,0 +1,81 @@
+package org.checat.storage;
+
+import org.checat.metrics.Histogram;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of commits of storage. Recording takes a few nanoseconds and never blocks.
+ */
+public class CommitMetrics {
+    private final LongAdder committed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder conflicts = new LongAdder();
+    private final LongAdder fallbacks = new LongAdder();
+    private final Histogram lockWait = new Histogram();
+    private final Histogram lockHold = new Histogram();
+
+    void recordOutcome(boolean committed) {
+        (committed ? this.committed : failed).increment();
+    }
+
+    void recordConflict() {
+        conflicts.increment();
+    }
+
+    void recordFallback() {
+        fallbacks.increment();
+    }
+
+    /**
+     * @param waitNanos long Time spent acquiring exclusive access to accounts.
+     * @param holdNanos long Time exclusive access was held.
+     */
+    void recordExclusiveAccess(long waitNanos, long holdNanos) {
+        lockWait.record(waitNanos);
+        lockHold.record(holdNanos);
+    }
+
+    /**
+     * @return number of DataTransactions that executed their operations.
+     */
+    public long getCommitted() {
+        return committed.sum();
+    }
+
+    /**
+     * @return number of DataTransactions whose conditions didn't hold.
+     */
+    public long getFailed() {
+        return failed.sum();
+    }
+
+    /**
+     * @return number of times optimistic commit found its accounts changed or owned by another commit.
+     */
+    public long getConflicts() {
+        return conflicts.sum();
+    }
+
+    /**
+     * @return number of optimistic commits that gave up after conflicts and took account locks.
+     */
+    public long getFallbacks() {
+        return fallbacks.sum();
+    }
+
+    /**
+     * @return time from start of commit until all account locks were taken, or until partition executor started
+     * it in CommitMode.PARTITIONED, or until optimistic commit owned all its accounts.
+     */
+    public Histogram getLockWait() {
+        return lockWait;
+    }
+
+    /**
+     * @return time account locks were held, or partition executors were busy, per commit.
+     */
+    public Histogram getLockHold() {
+        return lockHold;
+    }
+}
@@ -0,0 +1,21 @@
+package org.checat.storage;
+
+/**
+ * The way DataTransactions get exclusive access to accounts they change.
+ */
+public enum CommitMode {
+    /**
+     * Committing thread takes lock of every account in ascending order of ids.
+     */
+    LOCKING,
+    /**
+     * Accounts are partitioned across fixed number of partition threads. Commit runs on the thread owning its
+     * accounts without any account locks.
+     */
+    PARTITIONED,
+    /**
+     * Commit checks conditions without locks and installs changes if versions of its accounts didn't change
+     * meanwhile, retrying on conflict and taking locks after few conflicts in a row.
+     */
+    OPTIMISTIC,
+}
@@ -1,85 +1,204 @@
 package org.checat.storage;
 
-import org.glassfish.jersey.internal.util.Producer;
-
-import java.util.*;
-import java.util.concurrent.locks.Lock;
-import java.util.function.Predicate;
-import java.util.function.UnaryOperator;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 
+/**
+ * Group of conditions and operations on storage committed atomically.
+ *
+ * Conditions and operations are recorded as opcodes with primitive arguments in arrays, accounts they touch are
+ * resolved once when recorded, and balances are changed in place while locks are held. Arrays are kept by
+ * reset(), so DataTransaction reused for every commit of a thread doesn't allocate once arrays have grown to fit.
+ *
+ * Successful commit stamps everything it writes with its own version and publishes new balances of internal
+ * accounts under it, so Views see the commit either whole or not at all.
+ *
+ * If storage is one of several shards, operations on accounts of other shards are recorded in parts started on
+ * their owners. Such distributed DataTransaction is committed by Shards: conditions of all parts are checked
+ * before any of them is installed, so it is executed on every shard or on none.
+ */
 public class DataTransaction {
-    private final List<Producer<Optional<Long>>> operations = new LinkedList<>();
+    private static final Transaction.State[] STATES = Transaction.State.values();
+
+    // Conditions.
+    private static final int NEVER = 0;
+    private static final int REQUIRE_MONEY = 1;
+    private static final int REQUIRE_STATE = 2;
+    // Operations.
+    private static final int HOLD_MONEY = 3;
+    private static final int ADD_MONEY = 4;
+    private static final int TRANSFER_MONEY = 5;
+    private static final int RELEASE_MONEY = 6;
+    private static final int SET_STATE = 7;
+    private static final int INSERT = 8;
+
+    private static final int ARGUMENTS = 3;
+    private static final int INITIAL_STEPS = 4;
+
     private final Storage storage;
-    // Should be ordered to avoid deadlocks.
-    private final Set<Long> lockIds = new TreeSet<>();
-    private final List<Producer<Boolean>> conditions = new LinkedList<>();
+    private final LockSet locks = new LockSet();
+    private final Changes changes = new Changes();
+
+    private int size;
+    private int[] codes = new int[INITIAL_STEPS];
+    private long[] arguments = new long[INITIAL_STEPS * ARGUMENTS];
+    private Account[] targets = new Account[INITIAL_STEPS];
+
+    private boolean committed;
+    private int insertedCount;
+    private long[] insertedIds = new long[1];
+
+    // Parts on other shards by their positions, created when first needed and kept by reset().
+    private DataTransaction[] parts;
+    private boolean distributed;
+
+    // State of commits by PartitionedCommitEngine, created when first needed and kept by reset().
+    private PartitionedCommitEngine.Commit partitionedCommit;
 
     DataTransaction(Storage storage) {
         this.storage = storage;
     }
 
     /**
-     * Adds lock corresponding to account with specified id to execution of transaction.
-     * The method does nothing If lockId isn't internal.
-     * @param lockId id of lock to hold.
+     * @return Storage DataTransaction was started on.
      */
-    private void addLock(Long lockId) {
-        if (Account.isAccountInternal(lockId)) {
-            this.lockIds.add(lockId);
+    public Storage getStorage() {
+        return storage;
+    }
+
+    /**
+     * Forgets all conditions, operations and results, so the object can be used for another commit.
+     */
+    public void reset() {
+        Arrays.fill(targets, 0, size, null);
+        size = 0;
+        locks.clear();
+        changes.clear();
+        committed = false;
+        insertedCount = 0;
+        if (distributed) {
+            for (DataTransaction part : parts) {
+                if (part != null) {
+                    part.reset();
+                }
+            }
+            distributed = false;
         }
     }
 
     /**
-     * Add condition that transaction with particular id exists and matches predicate.
+     * Adds lock of account with specified id to execution of transaction.
+     * The method does nothing if account isn't internal or belongs to another shard: transaction is changed only
+     * together with its source account, see Shards.
+     */
+    private void addLock(long id) {
+        if (Account.isAccountInternal(id) && storage.owns(id)) {
+            locks.add(storage.getAccount(id));
+        }
+    }
+
+    private void add(int code, Account target, long first, long second, long third) {
+        if (size == codes.length) {
+            int capacity = size * 2;
+            codes = Arrays.copyOf(codes, capacity);
+            arguments = Arrays.copyOf(arguments, capacity * ARGUMENTS);
+            targets = Arrays.copyOf(targets, capacity);
+        }
+        codes[size] = code;
+        targets[size] = target;
+        arguments[size * ARGUMENTS] = first;
+        arguments[size * ARGUMENTS + 1] = second;
+        arguments[size * ARGUMENTS + 2] = third;
+        size++;
+    }
+
+    private void addAccountOperation(int code, long id, long amount) {
+        if (!storage.owns(id)) {
+            part(storage.owner(id)).addAccountOperation(code, id, amount);
+            return;
+        }
+        Account account = storage.getAccount(id);
+        if (Account.isAccountInternal(id)) {
+            locks.add(account);
+        }
+        add(code, account, amount, 0, 0);
+    }
+
+    /**
+     * Add condition that transaction with particular id exists and is in specified state.
      * @param id long Id of transaction to test. It should already exist at time of call to this method.
-     * @param condition Predicate that tests transaction.
-     */
-    public void addTransactionCondition(long id, Predicate<Transaction> condition) {
-        Transaction transaction = storage.getTransaction(id);
-        if (transaction != null) {
-            addLock(transaction.getSource());
-            addLock(transaction.getDestination());
-            conditions.add(() -> condition.test(storage.getTransaction(id)));
+     * @param state expected state.
+     */
+    public void requireTransactionState(long id, Transaction.State state) {
+        if (storage.getTransactionState(id) != null) {
+            addLock(storage.getTransactionSource(id));
+            addLock(storage.getTransactionDestination(id));
+            add(REQUIRE_STATE, null, id, state.ordinal(), 0);
         } else {
-            conditions.add(() -> false);
+            add(NEVER, null, 0, 0, 0);
         }
     }
 
     /**
-     * Add condition that account with particular id matches predicate.
+     * Add condition that account with particular id has enough money not put on hold.
      * @param id long Id of account to test.
-     * @param condition Predicate that test account.
+     * @param amount long Amount of money needed.
+     */
+    public void requireMoney(long id, long amount) {
+        addAccountOperation(REQUIRE_MONEY, id, amount);
+    }
+
+    /**
+     * Add operation that puts amount of money of account on hold.
+     * @param id long Id of account to update.
+     * @param amount long Amount of money to hold.
      */
-    public void addAccountCondition(long id, Predicate<Account> condition) {
-        addLock(id);
-        conditions.add(() -> condition.test(storage.getAccount(id)));
+    public void holdMoney(long id, long amount) {
+        addAccountOperation(HOLD_MONEY, id, amount);
     }
 
     /**
-     * Add updater, that will construct new Account object instead of one with specified id.
+     * Add operation that adds amount of money to account.
      * @param id long Id of account to update.
-     * @param updater UnaryOperator that updates produces new Account object.
+     * @param amount long Amount of money to add.
      */
-    public void updateAccout(long id, UnaryOperator<Account> updater) {
-        addLock(id);
-        operations.add(() -> {
-            storage.updateAccount(updater.apply(storage.getAccount(id)));
-            return Optional.empty();
-        });
+    public void addMoney(long id, long amount) {
+        addAccountOperation(ADD_MONEY, id, amount);
     }
 
     /**
-     * Add updater, that will construct new Account object instead of one with specified id.
+     * Add operation that takes amount of money put on hold earlier from account.
      * @param id long Id of account to update.
-     * @param updater UnaryOperator that updates produces new Account object.
+     * @param amount long Amount of money to transfer.
      */
-    public void updateTransaction(long id, UnaryOperator<Transaction> updater) {
-        addTransactionCondition(id, Objects::nonNull);
-        operations.add(() -> {
-            storage.updateTransaction(updater.apply(storage.getTransaction(id)));
-            return Optional.empty();
-        });
+    public void transferMoney(long id, long amount) {
+        addAccountOperation(TRANSFER_MONEY, id, amount);
+    }
+
+    /**
+     * Add operation that releases amount of money of account from being held.
+     * @param id long Id of account to update.
+     * @param amount long Amount of money to release.
+     */
+    public void releaseMoney(long id, long amount) {
+        addAccountOperation(RELEASE_MONEY, id, amount);
+    }
+
+    /**
+     * Add operation that changes state of existing transaction. Adds condition that transaction exists.
+     * @param id long Id of transaction to update. It should already exist at time of call to this method.
+     * @param state new state.
+     */
+    public void setTransactionState(long id, Transaction.State state) {
+        if (storage.getTransactionState(id) != null) {
+            addLock(storage.getTransactionSource(id));
+            addLock(storage.getTransactionDestination(id));
+            add(SET_STATE, null, id, state.ordinal(), 0);
+        } else {
+            add(NEVER, null, 0, 0, 0);
+        }
     }
 
     /**
@@ -93,37 +212,260 @@ public class DataTransaction {
                                   long amount) {
         addLock(source_id);
         addLock(destination_id);
-        operations.add(() -> Optional.of(storage.insertTransaction(source_id, destination_id, amount)));
+        add(INSERT, null, source_id, destination_id, amount);
+    }
+
+    private DataTransaction part(Storage shard) {
+        if (parts == null || parts.length != storage.getShardCount()) {
+            parts = new DataTransaction[storage.getShardCount()];
+        }
+        DataTransaction part = parts[shard.getShard()];
+        if (part == null) {
+            part = new DataTransaction(shard);
+            parts[shard.getShard()] = part;
+        }
+        distributed = true;
+        return part;
+    }
+
+    /**
+     * Executes all stored operations if all conditions hold.
+     * Commit listeners of storage are notified about changes before locks are released and once more after that.
+     * @return true if conditions held and operations were executed.
+     */
+    public boolean commit() {
+        if (distributed) {
+            Shards.commitAcross(Collections.singletonList(this));
+        } else {
+            storage.commit(this);
+        }
+        return committed;
+    }
+
+    /**
+     * @return true if some operations change accounts of other shards.
+     */
+    boolean isDistributed() {
+        return distributed;
+    }
+
+    /**
+     * @return parts on other shards indexed by shard, null or empty where there is none. Meaningful if
+     * distributed.
+     */
+    DataTransaction[] getParts() {
+        return parts;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
     }
 
     /**
-     * Executes all stored operations.
-     * @return List of ids of all inserted transactions.
+     * @return true if last commit executed operations.
      */
-    public List<Long> commit() {
-        Stack<Lock> lockedLocks = new Stack<>();
+    public boolean isCommitted() {
+        return committed;
+    }
+
+    /**
+     * @return number of transactions inserted by last commit.
+     */
+    public int getInsertedCount() {
+        return insertedCount;
+    }
+
+    /**
+     * @param index int Position of insert operation among insert operations of this DataTransaction.
+     * @return id of transaction inserted by last commit.
+     */
+    public long getInsertedId(int index) {
+        if (index >= insertedCount) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", inserted: " + insertedCount);
+        }
+        return insertedIds[index];
+    }
+
+    LockSet getLocks() {
+        return locks;
+    }
+
+    /**
+     * @return state of commits of this DataTransaction by PartitionedCommitEngine, null if there is none yet.
+     */
+    PartitionedCommitEngine.Commit getPartitionedCommit() {
+        return partitionedCommit;
+    }
+
+    void setPartitionedCommit(PartitionedCommitEngine.Commit partitionedCommit) {
+        this.partitionedCommit = partitionedCommit;
+    }
+
+    Changes getChanges() {
+        return changes;
+    }
+
+    /**
+     * Executes DataTransactions one by one, each succeeds or fails on its own conditions, so later ones see
+     * changes of earlier ones. Caller should have exclusive access to all accounts in locks of every one.
+     * @param dataTransactions DataTransactions to execute.
+     */
+    static void applyAll(List<DataTransaction> dataTransactions) {
+        for (int i = 0; i < dataTransactions.size(); i++) {
+            DataTransaction dataTransaction = dataTransactions.get(i);
+            if (dataTransaction.distributed) {
+                dataTransaction.applyDistributed();
+            } else {
+                dataTransaction.apply();
+            }
+        }
+    }
+
+    /**
+     * Checks conditions and executes operations if all of them hold. Caller should hold all locks.
+     * @return true if operations were executed.
+     */
+    boolean apply() {
+        if (!checkConditions()) {
+            fail();
+            return false;
+        }
+        install();
+        return true;
+    }
+
+    /**
+     * Checks conditions of all parts and executes operations of all of them if all hold. Caller should hold locks
+     * of all parts.
+     * @return true if operations were executed.
+     */
+    boolean applyDistributed() {
+        boolean hold = checkConditions();
+        for (int i = 0; i < parts.length && hold; i++) {
+            if (parts[i] != null && !parts[i].isEmpty()) {
+                hold = parts[i].checkConditions();
+            }
+        }
+        if (!hold) {
+            fail();
+            return false;
+        }
+        install();
+        for (DataTransaction part : parts) {
+            if (part != null && !part.isEmpty()) {
+                part.install();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Forgets outcome of previous commit and checks conditions. Changes nothing in storage.
+     * @return true if all conditions hold.
+     */
+    boolean checkConditions() {
+        changes.clear();
+        insertedCount = 0;
+        committed = false;
+        for (int i = 0; i < size; i++) {
+            if (!check(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Records that conditions checked by checkConditions() don't hold.
+     */
+    void fail() {
+        storage.getCommitMetrics().recordOutcome(false);
+    }
+
+    /**
+     * Executes operations after conditions are checked by checkConditions(). Caller should hold all locks.
+     */
+    void install() {
+        Versions versions = storage.getVersions();
+        long version = versions.begin();
         try {
-            for (Long lockId : lockIds) {
-                Lock lock = storage.getAccountLock(lockId);
-                lockedLocks.push(lock);
-                lock.lock();
+            for (int i = 0; i < size; i++) {
+                execute(i, version);
             }
-            boolean condition_result = conditions.stream()
-                    .map(Producer::call)
-                    .reduce(true, (l, r) -> l && r);
-            if (condition_result) {
-                List<Long> result = new ArrayList<>();
-                operations.stream()
-                        .forEachOrdered(op -> op.call().ifPresent(result::add));
-                return result;
-            } else {
-                return Collections.emptyList();
+            long horizon = versions.horizon();
+            for (int i = 0; i < size; i++) {
+                if (targets[i] != null && codes[i] >= HOLD_MONEY && Account.isAccountInternal(targets[i].getId())) {
+                    targets[i].publish(version, horizon);
+                }
             }
+            changes.setVersion(version);
+            committed = true;
+            storage.getCommitMetrics().recordOutcome(true);
+            storage.committed(changes);
         } finally {
-            while (!lockedLocks.empty()) {
-                Lock lock = lockedLocks.pop();
-                lock.unlock();
+            versions.end(version);
+        }
+    }
+
+    private boolean check(int step) {
+        int argument = step * ARGUMENTS;
+        switch (codes[step]) {
+            case NEVER:
+                return false;
+            case REQUIRE_MONEY:
+                return targets[step].haveEnoughMoney(arguments[argument]);
+            case REQUIRE_STATE:
+                return storage.getTransactionState(arguments[argument]) == STATES[(int) arguments[argument + 1]];
+            default:
+                return true;
+        }
+    }
+
+    private void execute(int step, long version) {
+        int argument = step * ARGUMENTS;
+        Account account = targets[step];
+        switch (codes[step]) {
+            case HOLD_MONEY:
+                account.holdMoney(arguments[argument]);
+                changes.addAccount(account);
+                break;
+            case ADD_MONEY:
+                account.addMoney(arguments[argument]);
+                changes.addAccount(account);
+                break;
+            case TRANSFER_MONEY:
+                account.transferMoney(arguments[argument]);
+                changes.addAccount(account);
+                break;
+            case RELEASE_MONEY:
+                account.releaseMoney(arguments[argument]);
+                changes.addAccount(account);
+                break;
+            case SET_STATE: {
+                long id = arguments[argument];
+                Transaction.State state = STATES[(int) arguments[argument + 1]];
+                storage.setTransactionState(id, state, version);
+                changes.addTransaction(id,
+                        storage.getTransactionSource(id),
+                        storage.getTransactionDestination(id),
+                        storage.getTransactionAmount(id),
+                        state);
+                break;
+            }
+            case INSERT: {
+                long source = arguments[argument];
+                long destination = arguments[argument + 1];
+                long amount = arguments[argument + 2];
+                long id = storage.insertTransaction(source, destination, amount, version);
+                if (insertedCount == insertedIds.length) {
+                    insertedIds = Arrays.copyOf(insertedIds, insertedCount * 2);
+                }
+                insertedIds[insertedCount++] = id;
+                changes.addTransaction(id, source, destination, amount, Transaction.State.INITIATED);
+                break;
             }
+            default:
+                break;
         }
     }
 }
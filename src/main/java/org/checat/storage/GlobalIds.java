@@ -0,0 +1,205 @@
+package org.checat.storage;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Global ids of transactions of several shards, see Shards.
+ *
+ * Every shard keeps its transactions by local ids, dense on the shard. Global ids are taken from one sequence
+ * shared by all shards as transactions are inserted, so they are dense as well and follow the order transactions
+ * are inserted in across shards, as ids of a single storage do: paging after an id, order by descending id and
+ * ranges of ids mean the same whatever number of shards. Every shard maps its local ids to global ones in a column
+ * ascending with local ids, and a directory maps every global id to its shard and local id, 16 bytes per
+ * transaction in total. Both grow in chunks, so growth never copies them.
+ */
+final class GlobalIds {
+    private static final int CHUNK_BITS = 16;
+    private static final int CHUNK_ROWS = 1 << CHUNK_BITS;
+    private static final int ROW_MASK = CHUNK_ROWS - 1;
+
+    /**
+     * Longs indexed from 1, 0 where none is set.
+     */
+    private static final class Column {
+        private volatile AtomicLongArray[] chunks = new AtomicLongArray[0];
+        // The greatest index set, written after its value.
+        private volatile long size;
+
+        long get(long index) {
+            AtomicLongArray[] current = chunks;
+            long number = index >>> CHUNK_BITS;
+            return index > 0 && number < current.length ? current[(int) number].get((int) (index & ROW_MASK)) : 0;
+        }
+
+        void set(long index, long value) {
+            AtomicLongArray[] current = chunks;
+            int number = (int) (index >>> CHUNK_BITS);
+            if (number >= current.length) {
+                current = grow(number);
+            }
+            current[number].set((int) (index & ROW_MASK), value);
+        }
+
+        private synchronized AtomicLongArray[] grow(int number) {
+            AtomicLongArray[] current = chunks;
+            if (number >= current.length) {
+                AtomicLongArray[] grown = Arrays.copyOf(current, Math.max(number + 1, current.length * 2));
+                for (int i = current.length; i < grown.length; i++) {
+                    grown[i] = new AtomicLongArray(CHUNK_ROWS);
+                }
+                chunks = grown;
+                current = grown;
+            }
+            return current;
+        }
+    }
+
+    private final int count;
+    private final AtomicLong last = new AtomicLong();
+    // Every global id up to it is present in every open and future View of its shard.
+    private final AtomicLong installed = new AtomicLong();
+    private volatile Column directory = new Column();
+    private volatile Column[] columns;
+
+    GlobalIds(int count) {
+        this.count = count;
+        columns = newColumns(count);
+    }
+
+    private static Column[] newColumns(int count) {
+        Column[] columns = new Column[count];
+        for (int i = 0; i < count; i++) {
+            columns[i] = new Column();
+        }
+        return columns;
+    }
+
+    /**
+     * Takes ids of transaction inserted on shard.
+     * @param shard int Position of shard.
+     * @param localIds AtomicLong The greatest local id of the shard, advanced to the one taken.
+     * @return local id of transaction.
+     */
+    long insert(int shard, AtomicLong localIds) {
+        Column column = columns[shard];
+        // Ids of a shard are taken together, so its global ids ascend with local ones and its transactions read
+        // in order of local ids are in order of global ids.
+        synchronized (column) {
+            long local = localIds.get() + 1;
+            long global = last.incrementAndGet();
+            column.set(local, global);
+            directory.set(global, (local - 1) * count + shard + 1);
+            column.size = local;
+            localIds.set(local);
+            return local;
+        }
+    }
+
+    /**
+     * @return global id of transaction with local id on shard, 0 if there is none.
+     */
+    long global(int shard, long local) {
+        return columns[shard].get(local);
+    }
+
+    /**
+     * @return position of shard keeping transaction with global id, 0 if there is none.
+     */
+    int shard(long global) {
+        long place = directory.get(global);
+        return place == 0 ? 0 : (int) ((place - 1) % count);
+    }
+
+    /**
+     * @return local id of transaction with global id on its shard, 0 if there is none.
+     */
+    long local(long global) {
+        long place = directory.get(global);
+        return place == 0 ? 0 : (place - 1) / count + 1;
+    }
+
+    /**
+     * @return the least local id of shard whose global id is not less than min_id, greater than every local id
+     * taken if there is none.
+     */
+    long firstLocal(int shard, long min_id) {
+        if (min_id == Long.MIN_VALUE) {
+            return Long.MIN_VALUE;
+        }
+        Column column = columns[shard];
+        long low = 1;
+        long high = column.size + 1;
+        while (low < high) {
+            long middle = (low + high) >>> 1;
+            if (column.get(middle) < min_id) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Local ids taken later have greater global ids and aren't read by Views open before.
+     * @return the greatest local id of shard whose global id is not greater than max_id, 0 if there is none.
+     */
+    long lastLocal(int shard, long max_id) {
+        if (max_id == Long.MAX_VALUE) {
+            return Long.MAX_VALUE;
+        }
+        Column column = columns[shard];
+        long low = 0;
+        long high = column.size;
+        while (low < high) {
+            long middle = (low + high + 1) >>> 1;
+            if (column.get(middle) > max_id) {
+                high = middle - 1;
+            } else {
+                low = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Same as Storage.installedUpTo() across shards: a transaction of one shard may still be missing while ones of
+     * other shards with greater global ids are there already, so merged scans stop at the returned id.
+     * @param views View[] Views of every shard.
+     * @return the greatest global id such that every transaction up to it is present in view of its shard.
+     */
+    long installedUpTo(View[] views) {
+        long newest = last.get();
+        long current = installed.get();
+        while (current < newest && isInstalled(current + 1, views, false)) {
+            installed.compareAndSet(current, current + 1);
+            current = installed.get();
+        }
+        while (current < newest && isInstalled(current + 1, views, true)) {
+            current++;
+        }
+        return current;
+    }
+
+    private boolean isInstalled(long global, View[] views, boolean ofViews) {
+        long place = directory.get(global);
+        if (place == 0) {
+            return false;
+        }
+        View view = views[(int) ((place - 1) % count)];
+        long local = (place - 1) / count + 1;
+        return ofViews ? view.isInstalled(local) : view.isInstalledForAll(local);
+    }
+
+    /**
+     * Forgets all ids, used to reset shards.
+     */
+    synchronized void clear() {
+        directory = new Column();
+        columns = newColumns(count);
+        last.set(0);
+        installed.set(0);
+    }
+}
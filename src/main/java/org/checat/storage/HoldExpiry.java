@@ -0,0 +1,245 @@
+package org.checat.storage;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Cancels transactions left in Transaction.State.INITIATED for longer than hold TTL, releasing money they hold.
+ *
+ * Commits hand ids of initiated transactions over through a lock-free inbox, after their locks are released: a
+ * list of fixed chunks of ids, where commit takes a slot of the last chunk by one atomic increment and links a new
+ * chunk by CAS when it is full, so commits never wait for each other or for expiry thread. Background thread
+ * moves them into a TimingWheel every tick, with deadline TTL ahead, and cancels transactions
+ * the wheel expires exactly as Transfers.cancel() does. Transaction confirmed or cancelled meanwhile fails the
+ * state condition and stays as it is. Cancellations are committed in small groups, so accounts they touch are
+ * held only briefly. Nothing is allocated per transaction besides inbox chunks and wheel slots, and storage is never
+ * scanned after start, when transactions recovered in INITIATED state are scheduled.
+ */
+public class HoldExpiry implements CommitListener, Closeable {
+
+    private static final Logger LOGGER = Logger.getLogger(HoldExpiry.class.getName());
+
+    private static final int BATCH = 32;
+    private static final int INBOX_CHUNK = 1 << 10;
+    private static final int INITIAL_DUE = 1 << 10;
+
+    /**
+     * Chunk of inbox. Slot is taken by incrementing claimed and holds 0 until its id is written; ids are positive.
+     */
+    private static final class InboxChunk {
+        final AtomicLongArray ids = new AtomicLongArray(INBOX_CHUNK);
+        final AtomicInteger claimed = new AtomicInteger();
+        final AtomicReference<InboxChunk> next = new AtomicReference<>();
+    }
+
+    private final Storage storage;
+    private final long tickNanos;
+    private final long ttlTicks;
+    private final long startNanos;
+
+    // The last chunk of inbox, or one before it while the last is being linked.
+    private final AtomicReference<InboxChunk> inboxTail;
+
+    // Owned by expiry thread.
+    private InboxChunk inboxHead;
+    private int inboxRead;
+    private final TimingWheel wheel = new TimingWheel(0);
+    private long[] due = new long[INITIAL_DUE];
+    private int dueSize;
+    private final List<DataTransaction> batch = new ArrayList<>(BATCH);
+
+    private final LongAdder expired = new LongAdder();
+    private volatile int pending;
+    private final Thread thread;
+    private volatile boolean closed;
+
+    /**
+     * Starts expiring transactions initiated in storage from now on and ones already in INITIATED state.
+     * @param storage Storage to watch.
+     * @param ttlMillis long Time transaction may stay initiated.
+     * @param tickMillis long Resolution of expiry.
+     * @throws IllegalArgumentException if TTL is too long for tick.
+     */
+    public HoldExpiry(Storage storage, long ttlMillis, long tickMillis) {
+        if (tickMillis <= 0 || ttlMillis <= 0) {
+            throw new IllegalArgumentException("TTL and tick should be positive");
+        }
+        this.storage = storage;
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        this.ttlTicks = (ttlMillis + tickMillis - 1) / tickMillis;
+        if (ttlTicks >= TimingWheel.MAX_DELAY) {
+            throw new IllegalArgumentException("TTL " + ttlMillis + " ms is too long for tick " + tickMillis + " ms");
+        }
+        this.startNanos = System.nanoTime();
+        inboxHead = new InboxChunk();
+        inboxTail = new AtomicReference<>(inboxHead);
+        storage.addCommitListener(this);
+        // Transactions initiated concurrently may be scheduled twice, second cancellation just fails.
+        long last = storage.getMaxTransactionId();
+        for (long id = 1; id <= last; id++) {
+            if (storage.getTransactionState(id) == Transaction.State.INITIATED) {
+                add(id);
+            }
+        }
+        thread = new Thread(this::expiryLoop, "hold-expiry");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void committed(Changes changes) {
+    }
+
+    @Override
+    public void released(Changes changes) {
+        for (int i = 0; i < changes.getTransactionCount(); i++) {
+            if (changes.getTransactionState(i) == Transaction.State.INITIATED) {
+                add(changes.getTransactionId(i));
+            }
+        }
+    }
+
+    private void add(long id) {
+        while (true) {
+            InboxChunk chunk = inboxTail.get();
+            int slot = chunk.claimed.getAndIncrement();
+            if (slot < INBOX_CHUNK) {
+                chunk.ids.set(slot, id);
+                return;
+            }
+            // Chunk is full: whoever links the next one first wins, everyone helps moving tail to it.
+            InboxChunk next = chunk.next.get();
+            if (next == null) {
+                InboxChunk created = new InboxChunk();
+                next = chunk.next.compareAndSet(null, created) ? created : chunk.next.get();
+            }
+            inboxTail.compareAndSet(chunk, next);
+        }
+    }
+
+    /**
+     * Schedules ids written to inbox since the last tick. Id whose slot is taken but not written yet stops the
+     * drain, and is scheduled on the next tick with the ones after it.
+     */
+    private void drainInbox(long deadline) {
+        while (true) {
+            int written = Math.min(inboxHead.claimed.get(), INBOX_CHUNK);
+            for (; inboxRead < written; inboxRead++) {
+                long id = inboxHead.ids.get(inboxRead);
+                if (id == 0) {
+                    return;
+                }
+                wheel.schedule(id, deadline);
+            }
+            InboxChunk next = inboxHead.next.get();
+            if (inboxRead < INBOX_CHUNK || next == null) {
+                return;
+            }
+            inboxHead = next;
+            inboxRead = 0;
+        }
+    }
+
+    private void expiryLoop() {
+        while (!closed) {
+            LockSupport.parkNanos(this, tickNanos);
+            try {
+                tick();
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Hold expiry failed.", e);
+            }
+        }
+    }
+
+    /**
+     * Advances wheel to current time, schedules transactions initiated meanwhile and cancels expired ones.
+     */
+    void tick() {
+        long now = (System.nanoTime() - startNanos) / tickNanos;
+        while (wheel.getTick() < now) {
+            wheel.advance(this::addDue);
+        }
+        drainInbox(now + ttlTicks);
+        pending = wheel.size();
+        cancelDue();
+    }
+
+    private void addDue(long id) {
+        if (dueSize == due.length) {
+            due = Arrays.copyOf(due, dueSize * 2);
+        }
+        due[dueSize++] = id;
+    }
+
+    private void cancelDue() {
+        for (int i = 0; i < dueSize; i++) {
+            long id = due[i];
+            // Most transactions are confirmed or cancelled long before they expire.
+            if (storage.getTransactionState(id) != Transaction.State.INITIATED) {
+                continue;
+            }
+            DataTransaction dataTransaction = Transfers.cancel(storage, id);
+            if (dataTransaction != null) {
+                batch.add(dataTransaction);
+            }
+            if (batch.size() == BATCH) {
+                commitBatch();
+            }
+        }
+        commitBatch();
+        dueSize = 0;
+    }
+
+    private void commitBatch() {
+        if (batch.isEmpty()) {
+            return;
+        }
+        storage.commitAll(batch);
+        for (DataTransaction dataTransaction : batch) {
+            if (dataTransaction.isCommitted()) {
+                expired.increment();
+            }
+        }
+        batch.clear();
+    }
+
+    /**
+     * @return number of transactions cancelled because they expired.
+     */
+    public long getExpired() {
+        return expired.sum();
+    }
+
+    /**
+     * @return number of transactions waiting for expiry as of the last tick, including ones confirmed or
+     * cancelled since they were initiated.
+     */
+    public int getPending() {
+        return pending;
+    }
+
+    /**
+     * Stops expiring transactions. Expiry in progress is completed.
+     */
+    @Override
+    public void close() {
+        storage.removeCommitListener(this);
+        closed = true;
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
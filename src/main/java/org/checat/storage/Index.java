@@ -0,0 +1,125 @@
+package org.checat.storage;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Secondary index mapping value of some transaction field to ids of transactions having that value.
+ * Ids of every value are kept sorted in ascending order. Sorted index also keeps values in ascending order, in a
+ * skip list, so ranges of values are walked without looking at values outside them.
+ * Every id costs a skip list node and a boxed Long, which outweighs the row itself, see TransactionStore.
+ */
+class Index {
+
+    /**
+     * Ids of transactions having the same indexed value.
+     */
+    static class Postings {
+        private final NavigableSet<Long> ids = new ConcurrentSkipListSet<>();
+        // ConcurrentSkipListSet.size() is linear, so the size is tracked separately.
+        private final AtomicInteger size = new AtomicInteger();
+        // Set once postings are empty and dropped from index, adders then retry with new postings.
+        private volatile boolean removed;
+
+        private void add(long id) {
+            if (ids.add(id)) {
+                size.incrementAndGet();
+            }
+        }
+
+        private void remove(long id) {
+            if (ids.remove(id)) {
+                size.decrementAndGet();
+            }
+        }
+
+        NavigableSet<Long> ids() {
+            return ids;
+        }
+
+        int size() {
+            return size.get();
+        }
+
+        boolean contains(long id) {
+            return ids.contains(id);
+        }
+    }
+
+    private static final Postings EMPTY = new Postings();
+
+    private final ConcurrentMap<Long, Postings> postings;
+
+    /**
+     * @param sorted boolean true to keep values in order for range(), false for faster lookups of single values.
+     */
+    Index(boolean sorted) {
+        postings = sorted ? new ConcurrentSkipListMap<>() : new ConcurrentHashMap<>();
+    }
+
+    void add(long value, long id) {
+        while (true) {
+            Postings found = postings.computeIfAbsent(value, unused_key -> new Postings());
+            found.add(id);
+            // Remover sets the flag before it checks size, adder checks the flag after it grows size, so
+            // either remover keeps postings or adder sees them dropped.
+            if (!found.removed) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Removes id from postings of value and drops postings that become empty, so values of removed
+     * transactions don't stay in memory. Removers are serialized, since skip list may apply the function of
+     * removal more than once.
+     */
+    synchronized void remove(long value, long id) {
+        postings.computeIfPresent(value, (unused_key, found) -> {
+            found.remove(id);
+            if (found.size() == 0) {
+                found.removed = true;
+                if (found.size() == 0) {
+                    return null;
+                }
+                found.removed = false;
+            }
+            return found;
+        });
+    }
+
+    /**
+     * @param value indexed value.
+     * @return ids of transactions with requested value. Empty postings if there is none.
+     */
+    Postings get(long value) {
+        return postings.getOrDefault(value, EMPTY);
+    }
+
+    /**
+     * @param from long Least value.
+     * @param to long Greatest value.
+     * @param descending boolean true to walk values from the greatest.
+     * @return postings of values within range in order of values. Index should be sorted.
+     */
+    Iterator<Map.Entry<Long, Postings>> range(long from, long to, boolean descending) {
+        if (from > to) {
+            return Collections.emptyIterator();
+        }
+        ConcurrentNavigableMap<Long, Postings> range =
+                ((ConcurrentNavigableMap<Long, Postings>) postings).subMap(from, true, to, true);
+        return (descending ? range.descendingMap() : range).entrySet().iterator();
+    }
+
+    void clear() {
+        postings.clear();
+    }
+}
@@ -0,0 +1,622 @@
+package org.checat.storage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only write-ahead journal of committed DataTransactions.
+ *
+ * Every commit takes the sequence of its record while its account locks are held, so the order of records agrees
+ * with the order of commits on every account; that is all the journal does under locks. The record is encoded
+ * after locks are released into a slot of a ring of records, and the writer copies the run of encoded records
+ * following the last one it wrote, writes them to disk and fsyncs, so concurrent committers share one fsync
+ * (group commit) and no committer waits for another one to encode.
+ *
+ * Failure to write the journal is fatal: commits already applied can't be made durable, so storage is halted and
+ * refuses every commit from then on, and committers waiting for durability are told their commit may be lost.
+ *
+ * Record layout: int body length, int CRC32 of body, body. Body: long sequence, int number of transactions,
+ * int number of accounts, transactions (long id, long source, long destination, long amount, byte state),
+ * accounts (long id, long money, long hold). Records hold new values rather than deltas, so replaying a record
+ * more than once is harmless.
+ *
+ * Records are written to segment files named after sequence of their first record.
+ */
+public class Journal implements CommitListener, Closeable {
+
+    /**
+     * When DataTransaction.commit() returns relative to its record being on disk.
+     */
+    public enum Durability {
+        /**
+         * Committer writes and fsyncs journal itself. Committers waiting meanwhile are covered by the same fsync.
+         */
+        SYNC,
+        /**
+         * Background thread fsyncs everything accumulated during the previous fsync. Committer waits for it.
+         */
+        GROUP,
+        /**
+         * Background thread fsyncs journal periodically. Committer doesn't wait, so the last flush interval of
+         * commits may be lost on crash.
+         */
+        ASYNC,
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(Journal.class.getName());
+
+    static final String SEGMENT_PREFIX = "journal-";
+    static final String SEGMENT_SUFFIX = ".log";
+    private static final int HEADER_BYTES = 2 * Integer.BYTES;
+    private static final int BODY_HEADER_BYTES = Long.BYTES + 2 * Integer.BYTES;
+    static final int TRANSACTION_BYTES = 4 * Long.BYTES + 1;
+    static final int ACCOUNT_BYTES = 3 * Long.BYTES;
+    private static final int INITIAL_BUFFER_BYTES = 1 << 20;
+    private static final int INITIAL_RECORD_BYTES = 256;
+    // Records encoded but not yet copied by writer. Committer finding its slot still taken waits for the writer.
+    private static final int RING = 1 << 12;
+    private static final int MASK = RING - 1;
+
+    private final Path directory;
+    private final Durability durability;
+    private final long segmentBytes;
+    private final long flushIntervalNanos;
+    private final Storage storage;
+
+    private final AtomicLong lastSequence;
+    // Slot of sequence holds its encoded record once its stamp is the sequence.
+    private final ByteBuffer[] records = new ByteBuffer[RING];
+    private final AtomicLongArray stamps = new AtomicLongArray(RING);
+
+    // Guarded by flushLock.
+    private final Lock flushLock = new ReentrantLock();
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(INITIAL_BUFFER_BYTES);
+    private final CRC32 crc = new CRC32();
+    private FileChannel channel;
+    private long channelSize;
+
+    // Written under flushLock.
+    private volatile long writtenSequence;
+    private volatile long durableSequence;
+    private volatile IOException failure;
+    private final Object durableMonitor = new Object();
+
+    private final Thread flusher;
+    private volatile boolean closed;
+
+    private long recoveredSnapshotSequence;
+    private long recoveredSequence;
+    private long recoveryNanos;
+
+    private Journal(Path directory,
+                    Durability durability,
+                    long segmentBytes,
+                    long flushIntervalMillis,
+                    Storage storage,
+                    long lastSequence) {
+        this.directory = directory;
+        this.durability = durability;
+        this.segmentBytes = segmentBytes;
+        this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+        this.storage = storage;
+        this.lastSequence = new AtomicLong(lastSequence);
+        this.writtenSequence = lastSequence;
+        this.durableSequence = lastSequence;
+        if (durability == Durability.SYNC) {
+            flusher = null;
+        } else {
+            flusher = new Thread(this::flushLoop, "journal-flusher");
+            flusher.setDaemon(true);
+        }
+    }
+
+    /**
+     * Loads the newest snapshot found in directory into storage and replays journal records after it, then starts
+     * journaling every commit of storage. Recovery time thus depends on journal tail after the snapshot.
+     * New records are appended to a new segment, so a torn record at the end of the last segment is never
+     * followed by valid ones within one file.
+     * @param directory Path Directory with journal segments. Created if absent.
+     * @param durability Durability of commits.
+     * @param segmentBytes long Size after which a new segment file is started.
+     * @param flushIntervalMillis long Interval between fsyncs in Durability.ASYNC mode.
+     * @param storage Storage to recover and journal.
+     * @return Journal attached to storage.
+     * @throws IOException if journal can't be read or created.
+     */
+    public static Journal open(Path directory,
+                               Durability durability,
+                               long segmentBytes,
+                               long flushIntervalMillis,
+                               Storage storage) throws IOException {
+        Files.createDirectories(directory);
+        long started = System.nanoTime();
+        long snapshotSequence = Snapshot.loadLatest(directory, storage);
+        long lastSequence = replay(directory, storage, snapshotSequence);
+        storage.restoreInstalled(storage.getMaxTransactionId());
+        long recoveryNanos = System.nanoTime() - started;
+        LOGGER.log(Level.INFO, "Recovered from snapshot {0} and {1} journal records in {2} ms.", new Object[]{
+                snapshotSequence, lastSequence - snapshotSequence, TimeUnit.NANOSECONDS.toMillis(recoveryNanos)});
+        Journal journal = start(directory, durability, segmentBytes, flushIntervalMillis, storage, lastSequence);
+        journal.recoveredSnapshotSequence = snapshotSequence;
+        journal.recoveredSequence = lastSequence;
+        journal.recoveryNanos = recoveryNanos;
+        return journal;
+    }
+
+    /**
+     * Starts journaling every commit of storage as it is, without recovering anything, e.g. when follower becomes
+     * primary. Snapshot of storage is written first, so recovery starts from it. Segments and snapshots found in
+     * directory belong to an earlier state of storage and are moved into its subdirectory replaced-N, N being the
+     * current time in milliseconds. Storage should not be committed to until this returns.
+     * @param directory Path Directory with journal segments. Created if absent.
+     * @param durability Durability of commits.
+     * @param segmentBytes long Size after which a new segment file is started.
+     * @param flushIntervalMillis long Interval between fsyncs in Durability.ASYNC mode.
+     * @param storage Storage to journal.
+     * @return Journal attached to storage.
+     * @throws IOException if directory can't be prepared or snapshot can't be written.
+     */
+    public static Journal create(Path directory,
+                                 Durability durability,
+                                 long segmentBytes,
+                                 long flushIntervalMillis,
+                                 Storage storage) throws IOException {
+        Files.createDirectories(directory);
+        List<Path> replaced = new ArrayList<>(segments(directory));
+        replaced.addAll(Snapshot.snapshots(directory));
+        if (!replaced.isEmpty()) {
+            Path aside = Files.createDirectory(directory.resolve("replaced-" + System.currentTimeMillis()));
+            for (Path file : replaced) {
+                Files.move(file, aside.resolve(file.getFileName()));
+            }
+            LOGGER.log(Level.WARNING, "Moved {0} files of earlier journal to {1}.",
+                    new Object[]{replaced.size(), aside});
+        }
+        Journal journal = start(directory, durability, segmentBytes, flushIntervalMillis, storage, 0);
+        try {
+            Snapshot.write(storage, journal);
+        } catch (IOException | RuntimeException e) {
+            try {
+                journal.close();
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw e;
+        }
+        return journal;
+    }
+
+    static Journal start(Path directory,
+                         Durability durability,
+                         long segmentBytes,
+                         long flushIntervalMillis,
+                         Storage storage,
+                         long lastSequence) {
+        Journal journal = new Journal(directory, durability, segmentBytes, flushIntervalMillis, storage,
+                lastSequence);
+        if (journal.flusher != null) {
+            journal.flusher.start();
+        }
+        storage.addCommitListener(journal);
+        return journal;
+    }
+
+    /**
+     * Applies journal records with sequence greater than afterSequence to storage.
+     * Reading of a segment stops at the first incomplete or corrupted record.
+     * @param directory Path Directory with journal segments.
+     * @param storage Storage to apply records to.
+     * @param afterSequence long Records up to this sequence are skipped.
+     * @return sequence of the last record in journal or afterSequence if there are no newer records.
+     * @throws IOException if journal can't be read.
+     */
+    static long replay(Path directory, Storage storage, long afterSequence) throws IOException {
+        List<Path> segments = segments(directory);
+        long last = afterSequence;
+        for (int i = 0; i < segments.size(); i++) {
+            if (i + 1 < segments.size() && firstSequence(segments.get(i + 1)) <= afterSequence + 1) {
+                continue;
+            }
+            last = replaySegment(segments.get(i), storage, last);
+        }
+        return last;
+    }
+
+    private static long replaySegment(Path segment, Storage storage, long last) throws IOException {
+        try (FileChannel file = FileChannel.open(segment, StandardOpenOption.READ)) {
+            MappedByteBuffer data = file.map(FileChannel.MapMode.READ_ONLY, 0, file.size());
+            CRC32 checksum = new CRC32();
+            while (data.remaining() >= HEADER_BYTES) {
+                int length = data.getInt();
+                int expectedCrc = data.getInt();
+                if (length < BODY_HEADER_BYTES || length > data.remaining()) {
+                    LOGGER.log(Level.WARNING, "Incomplete record at the end of {0}.", segment);
+                    break;
+                }
+                ByteBuffer body = data.slice();
+                body.limit(length);
+                checksum.reset();
+                checksum.update(body.duplicate());
+                if ((int) checksum.getValue() != expectedCrc) {
+                    LOGGER.log(Level.WARNING, "Corrupted record at the end of {0}.", segment);
+                    break;
+                }
+                data.position(data.position() + length);
+                long sequence = body.getLong();
+                if (sequence <= last) {
+                    continue;
+                }
+                if (last != 0 && sequence != last + 1) {
+                    throw new IOException("Journal record " + (last + 1) + " is missing in " + segment);
+                }
+                apply(body, storage);
+                last = sequence;
+            }
+        }
+        return last;
+    }
+
+    /**
+     * Applies body of record to storage. Body should be positioned after sequence.
+     */
+    static void apply(ByteBuffer body, Storage storage) {
+        int transactions = body.getInt();
+        int accounts = body.getInt();
+        for (int i = 0; i < transactions; i++) {
+            storage.restoreTransaction(new Transaction(body.getLong(),
+                    body.getLong(),
+                    body.getLong(),
+                    body.getLong(),
+                    Transaction.State.values()[body.get()]));
+        }
+        for (int i = 0; i < accounts; i++) {
+            storage.restoreAccount(body.getLong(), body.getLong(), body.getLong());
+        }
+    }
+
+    static List<Path> segments(Path directory) throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory,
+                SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            files.forEach(segments::add);
+        }
+        // Names have fixed width, so lexicographic order is order of sequences.
+        Collections.sort(segments);
+        return segments;
+    }
+
+    static long firstSequence(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    private Path segmentPath(long firstSequence) {
+        return directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, firstSequence, SEGMENT_SUFFIX));
+    }
+
+    /**
+     * @return length of body of record with specified numbers of transactions and accounts.
+     */
+    static int bodyBytes(int transactions, int accounts) {
+        return BODY_HEADER_BYTES + transactions * TRANSACTION_BYTES + accounts * ACCOUNT_BYTES;
+    }
+
+    /**
+     * Writes body of record holding changes to buffer, which should have bodyBytes() remaining.
+     */
+    static void putBody(ByteBuffer buffer, long sequence, Changes changes) {
+        int transactions = changes.getTransactionCount();
+        int accounts = changes.getAccountCount();
+        buffer.putLong(sequence);
+        buffer.putInt(transactions);
+        buffer.putInt(accounts);
+        for (int i = 0; i < transactions; i++) {
+            buffer.putLong(changes.getTransactionId(i));
+            buffer.putLong(changes.getTransactionSource(i));
+            buffer.putLong(changes.getTransactionDestination(i));
+            buffer.putLong(changes.getTransactionAmount(i));
+            buffer.put((byte) changes.getTransactionState(i).ordinal());
+        }
+        for (int i = 0; i < accounts; i++) {
+            buffer.putLong(changes.getAccountId(i));
+            buffer.putLong(changes.getAccountMoney(i));
+            buffer.putLong(changes.getAccountHold(i));
+        }
+    }
+
+    @Override
+    public void committed(Changes changes) {
+        changes.setSequence(lastSequence.incrementAndGet());
+    }
+
+    /**
+     * Encodes record of changes into its slot of ring, waiting for writer if the slot is still taken.
+     */
+    private void encode(Changes changes) {
+        long sequence = changes.getSequence();
+        if (sequence - writtenSequence > RING) {
+            synchronized (durableMonitor) {
+                while (sequence - writtenSequence > RING) {
+                    checkFailure();
+                    waitDurable();
+                }
+            }
+        }
+        int slot = (int) sequence & MASK;
+        int length = bodyBytes(changes.getTransactionCount(), changes.getAccountCount());
+        ByteBuffer record = records[slot];
+        if (record == null || record.capacity() < HEADER_BYTES + length) {
+            record = ByteBuffer.allocate(Math.max(INITIAL_RECORD_BYTES, HEADER_BYTES + length));
+            records[slot] = record;
+        }
+        record.clear();
+        record.putInt(length);
+        record.putInt(0);
+        putBody(record, sequence, changes);
+        record.flip();
+        stamps.set(slot, sequence);
+    }
+
+    @Override
+    public void released(Changes changes) {
+        encode(changes);
+        switch (durability) {
+            case SYNC:
+                sync(changes.getSequence());
+                break;
+            case GROUP:
+                LockSupport.unpark(flusher);
+                awaitDurable(changes.getSequence());
+                break;
+            case ASYNC:
+                break;
+        }
+    }
+
+    /**
+     * Makes sure record with specified sequence is on disk, writing the journal if needed. If some record before
+     * it is still being encoded, waits for its committer or the flusher to write both.
+     * @param sequence long Sequence of record.
+     * @throws IllegalStateException if journal failed.
+     */
+    public void sync(long sequence) {
+        if (durableSequence >= sequence) {
+            return;
+        }
+        flushLock.lock();
+        try {
+            if (durableSequence < sequence) {
+                flush();
+            }
+        } catch (IOException e) {
+            fail(e);
+        } finally {
+            flushLock.unlock();
+        }
+        awaitDurable(sequence);
+    }
+
+    private void awaitDurable(long sequence) {
+        if (durableSequence >= sequence) {
+            return;
+        }
+        synchronized (durableMonitor) {
+            while (durableSequence < sequence) {
+                checkFailure();
+                waitDurable();
+            }
+        }
+    }
+
+    /**
+     * Waits for writer to make progress. Caller should hold durableMonitor.
+     */
+    private void waitDurable() {
+        try {
+            durableMonitor.wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted waiting for journal, commit may be lost");
+        }
+    }
+
+    private void checkFailure() {
+        IOException e = failure;
+        if (e != null) {
+            throw new IllegalStateException("Journal failed and storage is halted, commit may be lost", e);
+        }
+    }
+
+    private void fail(IOException e) {
+        LOGGER.log(Level.SEVERE, "Journal write failed, storage is halted.", e);
+        failure = e;
+        storage.halt(e);
+        synchronized (durableMonitor) {
+            durableMonitor.notifyAll();
+        }
+    }
+
+    /**
+     * Writes and fsyncs the run of encoded records following the last written one. Caller should hold flushLock.
+     * @return true if some records were written.
+     */
+    private boolean flush() throws IOException {
+        if (failure != null) {
+            return false;
+        }
+        long firstSequence = writtenSequence + 1;
+        long next = firstSequence;
+        buffer.clear();
+        while (next - firstSequence < RING && stamps.get((int) next & MASK) == next) {
+            ByteBuffer record = records[(int) next & MASK];
+            // Checksum is computed over the record in place, without a duplicate() view.
+            record.position(HEADER_BYTES);
+            crc.reset();
+            crc.update(record);
+            record.putInt(Integer.BYTES, (int) crc.getValue());
+            record.position(0);
+            ensureCapacity(record.remaining());
+            buffer.put(record);
+            next++;
+        }
+        if (next == firstSequence) {
+            return false;
+        }
+        long upTo = next - 1;
+        // Slots are copied, so committers waiting for them may go on.
+        writtenSequence = upTo;
+        buffer.flip();
+        if (channel == null || channelSize > 0 && channelSize + buffer.remaining() > segmentBytes) {
+            startSegment(firstSequence);
+        }
+        while (buffer.hasRemaining()) {
+            channelSize += channel.write(buffer);
+        }
+        channel.force(false);
+        durableSequence = upTo;
+        synchronized (durableMonitor) {
+            durableMonitor.notifyAll();
+        }
+        return true;
+    }
+
+    private void ensureCapacity(int bytes) {
+        if (buffer.remaining() < bytes) {
+            ByteBuffer grown = ByteBuffer.allocateDirect(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+            buffer.flip();
+            grown.put(buffer);
+            buffer = grown;
+        }
+    }
+
+    private void startSegment(long firstSequence) throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+        channel = FileChannel.open(segmentPath(firstSequence),
+                StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE);
+        channelSize = 0;
+        // Make the new file itself durable.
+        try (FileChannel dir = FileChannel.open(directory, StandardOpenOption.READ)) {
+            dir.force(true);
+        } catch (IOException e) {
+            // Not every platform allows to open directories.
+            LOGGER.log(Level.FINE, "Can't fsync journal directory.", e);
+        }
+    }
+
+    private void flushLoop() {
+        boolean wrote = false;
+        while (!closed) {
+            if (durability == Durability.ASYNC) {
+                LockSupport.parkNanos(this, flushIntervalNanos);
+            } else if (!wrote) {
+                // Woken up by committers, timeout only guards against missed wakeups.
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(1));
+            }
+            flushLock.lock();
+            try {
+                wrote = flush();
+            } catch (IOException e) {
+                fail(e);
+                return;
+            } finally {
+                flushLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * @return directory of journal segments and snapshots.
+     */
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @return journal sequence of snapshot loaded at recovery. 0 if none was loaded.
+     */
+    public long getRecoveredSnapshotSequence() {
+        return recoveredSnapshotSequence;
+    }
+
+    /**
+     * @return number of journal records replayed over snapshot at recovery.
+     */
+    public long getReplayedRecords() {
+        return recoveredSequence - recoveredSnapshotSequence;
+    }
+
+    /**
+     * @return time spent loading snapshot and replaying journal at recovery.
+     */
+    public long getRecoveryNanos() {
+        return recoveryNanos;
+    }
+
+    /**
+     * @return sequence of the last record taken by a commit. Changes of every record up to it are applied to
+     * storage, though the record itself may still be being encoded, see sync().
+     */
+    public long getAppendedSequence() {
+        return lastSequence.get();
+    }
+
+    /**
+     * @return sequence of the last record known to be on disk.
+     */
+    public long getDurableSequence() {
+        return durableSequence;
+    }
+
+    /**
+     * Detaches journal from storage and writes all appended records.
+     * @throws IOException if records can't be written.
+     */
+    @Override
+    public void close() throws IOException {
+        storage.removeCommitListener(this);
+        closed = true;
+        if (flusher != null) {
+            LockSupport.unpark(flusher);
+            try {
+                flusher.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted closing journal");
+            }
+        }
+        flushLock.lock();
+        try {
+            while (flush()) {
+                // Ring may hold more than one run of records.
+            }
+            if (channel != null) {
+                channel.close();
+            }
+        } finally {
+            flushLock.unlock();
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package org.checat.storage;
+
+import java.util.Arrays;
+
+/**
+ * Internal accounts whose locks a commit needs, kept sorted by id without duplicates, so locks are always taken
+ * in the same order, which avoids deadlocks. Array is reused when set is cleared.
+ */
+class LockSet {
+    private Account[] accounts = new Account[4];
+    // Versions of accounts read by optimistic commit.
+    private long[] versions = new long[4];
+    private int size;
+
+    void add(Account account) {
+        long id = account.getId();
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            long middleId = accounts[middle].getId();
+            if (middleId < id) {
+                low = middle + 1;
+            } else if (middleId > id) {
+                high = middle - 1;
+            } else {
+                return;
+            }
+        }
+        if (size == accounts.length) {
+            accounts = Arrays.copyOf(accounts, size * 2);
+            versions = Arrays.copyOf(versions, size * 2);
+        }
+        System.arraycopy(accounts, low, accounts, low + 1, size - low);
+        accounts[low] = account;
+        size++;
+    }
+
+    void addAll(LockSet other) {
+        for (int i = 0; i < other.size; i++) {
+            add(other.accounts[i]);
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    Account get(int index) {
+        return accounts[index];
+    }
+
+    long version(int index) {
+        return versions[index];
+    }
+
+    void setVersion(int index, long version) {
+        versions[index] = version;
+    }
+
+    void clear() {
+        Arrays.fill(accounts, 0, size, null);
+        size = 0;
+    }
+}
@@ -0,0 +1,72 @@
+package org.checat.storage;
+
+import java.util.List;
+
+/**
+ * Gives exclusive access to accounts by locking them in ascending order of ids, which avoids deadlocks.
+ * Lock of every account is taken only once even if several DataTransactions are executed together.
+ */
+class LockingCommitEngine implements CommitEngine {
+    private final Storage storage;
+
+    LockingCommitEngine(Storage storage) {
+        this.storage = storage;
+    }
+
+    @Override
+    public void commit(DataTransaction dataTransaction) {
+        LockSet locks = dataTransaction.getLocks();
+        int locked = 0;
+        long start = System.nanoTime();
+        long acquired = start;
+        try {
+            for (; locked < locks.size(); locked++) {
+                locks.get(locked).lock();
+            }
+            acquired = System.nanoTime();
+            dataTransaction.apply();
+        } finally {
+            unlock(locks, locked);
+            storage.getCommitMetrics().recordExclusiveAccess(acquired - start, System.nanoTime() - acquired);
+        }
+        if (dataTransaction.isCommitted()) {
+            storage.released(dataTransaction.getChanges());
+        }
+    }
+
+    @Override
+    public void commitAll(List<DataTransaction> dataTransactions) {
+        if (dataTransactions.size() == 1) {
+            commit(dataTransactions.get(0));
+            return;
+        }
+        LockSet locks = new LockSet();
+        for (DataTransaction dataTransaction : dataTransactions) {
+            locks.addAll(dataTransaction.getLocks());
+        }
+        int locked = 0;
+        long start = System.nanoTime();
+        long acquired = start;
+        try {
+            for (; locked < locks.size(); locked++) {
+                locks.get(locked).lock();
+            }
+            acquired = System.nanoTime();
+            DataTransaction.applyAll(dataTransactions);
+        } finally {
+            unlock(locks, locked);
+            storage.getCommitMetrics().recordExclusiveAccess(acquired - start, System.nanoTime() - acquired);
+            for (DataTransaction dataTransaction : dataTransactions) {
+                if (dataTransaction.isCommitted()) {
+                    storage.released(dataTransaction.getChanges());
+                }
+            }
+        }
+    }
+
+    private static void unlock(LockSet locks, int locked) {
+        for (int i = locked - 1; i >= 0; i--) {
+            locks.get(i).lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package org.checat.storage;
+
+import java.util.List;
+
+/**
+ * Gives exclusive access to accounts through their version words instead of locks.
+ *
+ * Commit reads versions of its accounts, checks conditions without any locks and then owns every account by CAS
+ * of its version from the value read to odd one, in ascending order of ids. Successful CAS proves nobody changed
+ * the account since conditions were checked, so owning all of them validates the whole read. Changes are then
+ * installed and every version is advanced by 2. Commit whose conditions don't hold only checks that versions
+ * didn't change and writes nothing. Transaction state needs no version of its own: it changes only once, from
+ * INITIATED, and only by commit owning both accounts of the transaction.
+ *
+ * Optimistic commit never waits while owning accounts: if CAS fails it gives all of them back and retries. After
+ * few conflicts in a row it falls back to taking account locks, which orders it against other fallen back
+ * commits, and then waits for owners of its accounts, who never wait themselves, to finish.
+ */
+class OptimisticCommitEngine implements CommitEngine {
+    private static final int ATTEMPTS = 4;
+
+    private final Storage storage;
+
+    OptimisticCommitEngine(Storage storage) {
+        this.storage = storage;
+    }
+
+    @Override
+    public void commit(DataTransaction dataTransaction) {
+        LockSet locks = dataTransaction.getLocks();
+        CommitMetrics metrics = storage.getCommitMetrics();
+        long start = System.nanoTime();
+        for (int attempt = 0; attempt < ATTEMPTS; attempt++) {
+            if (!readVersions(locks)) {
+                metrics.recordConflict();
+                continue;
+            }
+            if (!dataTransaction.checkConditions()) {
+                if (versionsUnchanged(locks)) {
+                    dataTransaction.fail();
+                    return;
+                }
+                metrics.recordConflict();
+                continue;
+            }
+            int owned = own(locks);
+            if (owned < locks.size()) {
+                disown(locks, owned, false);
+                metrics.recordConflict();
+                continue;
+            }
+            long acquired = System.nanoTime();
+            try {
+                dataTransaction.install();
+            } finally {
+                disown(locks, owned, true);
+                metrics.recordExclusiveAccess(acquired - start, System.nanoTime() - acquired);
+            }
+            storage.released(dataTransaction.getChanges());
+            return;
+        }
+        metrics.recordFallback();
+        commitLocked(locks, dataTransaction, null, start);
+    }
+
+    /**
+     * DataTransactions of group see changes of each other, so their conditions can't be checked ahead. Group owns
+     * all its accounts first and only then executes DataTransactions.
+     */
+    @Override
+    public void commitAll(List<DataTransaction> dataTransactions) {
+        if (dataTransactions.size() == 1) {
+            commit(dataTransactions.get(0));
+            return;
+        }
+        LockSet locks = new LockSet();
+        for (DataTransaction dataTransaction : dataTransactions) {
+            locks.addAll(dataTransaction.getLocks());
+        }
+        CommitMetrics metrics = storage.getCommitMetrics();
+        long start = System.nanoTime();
+        for (int attempt = 0; attempt < ATTEMPTS; attempt++) {
+            int owned = readVersions(locks) ? own(locks) : 0;
+            if (owned < locks.size()) {
+                disown(locks, owned, false);
+                metrics.recordConflict();
+                continue;
+            }
+            long acquired = System.nanoTime();
+            try {
+                DataTransaction.applyAll(dataTransactions);
+            } finally {
+                disown(locks, owned, true);
+                metrics.recordExclusiveAccess(acquired - start, System.nanoTime() - acquired);
+                releaseCommitted(dataTransactions);
+            }
+            return;
+        }
+        metrics.recordFallback();
+        commitLocked(locks, null, dataTransactions, start);
+    }
+
+    /**
+     * Commits holding locks of accounts and owning them. Exactly one of dataTransaction and dataTransactions
+     * is not null.
+     */
+    private void commitLocked(LockSet locks, DataTransaction dataTransaction, List<DataTransaction> dataTransactions,
+                              long start) {
+        int locked = 0;
+        int owned = 0;
+        long acquired = start;
+        try {
+            for (; locked < locks.size(); locked++) {
+                locks.get(locked).lock();
+            }
+            for (; owned < locks.size(); owned++) {
+                awaitOwnership(locks, owned);
+            }
+            acquired = System.nanoTime();
+            if (dataTransaction != null) {
+                dataTransaction.apply();
+            } else {
+                DataTransaction.applyAll(dataTransactions);
+            }
+        } finally {
+            disown(locks, owned, true);
+            for (int i = locked - 1; i >= 0; i--) {
+                locks.get(i).lock.unlock();
+            }
+            storage.getCommitMetrics().recordExclusiveAccess(acquired - start, System.nanoTime() - acquired);
+            if (dataTransaction != null) {
+                if (dataTransaction.isCommitted()) {
+                    storage.released(dataTransaction.getChanges());
+                }
+            } else {
+                releaseCommitted(dataTransactions);
+            }
+        }
+    }
+
+    private void releaseCommitted(List<DataTransaction> dataTransactions) {
+        for (DataTransaction dataTransaction : dataTransactions) {
+            if (dataTransaction.isCommitted()) {
+                storage.released(dataTransaction.getChanges());
+            }
+        }
+    }
+
+    /**
+     * Remembers versions of all accounts.
+     * @return false if some account is owned by another commit right now.
+     */
+    private static boolean readVersions(LockSet locks) {
+        for (int i = 0; i < locks.size(); i++) {
+            long version = locks.get(i).version();
+            if ((version & 1) != 0) {
+                return false;
+            }
+            locks.setVersion(i, version);
+        }
+        return true;
+    }
+
+    private static boolean versionsUnchanged(LockSet locks) {
+        for (int i = 0; i < locks.size(); i++) {
+            if (locks.get(i).version() != locks.version(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Owns accounts in order while their versions are the ones read.
+     * @return number of owned accounts.
+     */
+    private static int own(LockSet locks) {
+        for (int i = 0; i < locks.size(); i++) {
+            if (!locks.get(i).own(locks.version(i))) {
+                return i;
+            }
+        }
+        return locks.size();
+    }
+
+    static void disown(LockSet locks, int owned, boolean changed) {
+        for (int i = owned - 1; i >= 0; i--) {
+            locks.get(i).disown(locks.version(i), changed);
+        }
+    }
+
+    /**
+     * Waits until optimistic owner, if any, gives the account back and owns it.
+     */
+    static void awaitOwnership(LockSet locks, int index) {
+        Account account = locks.get(index);
+        while (true) {
+            long version = account.version();
+            if ((version & 1) == 0 && account.own(version)) {
+                locks.setVersion(index, version);
+                return;
+            }
+            Thread.yield();
+        }
+    }
+}
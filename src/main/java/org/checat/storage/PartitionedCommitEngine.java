@@ -0,0 +1,345 @@
+package org.checat.storage;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Gives exclusive access to accounts by running every DataTransaction on single thread of partition owning them.
+ *
+ * Every account belongs to one partition and only thread of that partition changes it, so DataTransactions
+ * touching accounts of one partition run one after another without any locks.
+ *
+ * DataTransactions touching several partitions are coordinated as follows. A ticket is queued to every involved
+ * partition; on arrival it reports and waits until the last of them to arrive executes the DataTransactions.
+ * Tickets of such DataTransactions are queued under one sequencer lock, so they come in the same relative order to
+ * every partition and can't wait for each other in a cycle. Tickets of single partition DataTransactions never
+ * wait, so they may be queued without the sequencer.
+ *
+ * Nothing is allocated per commit: state of commit and its tickets are a Commit kept by DataTransaction across
+ * commits, see DataTransaction.getPartitionedCommit(), tickets are linked into queues of partitions by themselves,
+ * and threads wait for each other by parking.
+ */
+class PartitionedCommitEngine implements CommitEngine {
+    private final Storage storage;
+    private final Partition[] partitions;
+    private final Lock sequencer = new ReentrantLock();
+    private volatile boolean closed;
+
+    /**
+     * Queue entry of Commit on one partition.
+     */
+    private static final class Ticket {
+        final Commit commit;
+        // Next ticket in queue of partition, see Partition.
+        Ticket next;
+
+        Ticket(Commit commit) {
+            this.commit = commit;
+        }
+    }
+
+    /**
+     * Commit of DataTransactions in progress, reused for every commit of DataTransaction it belongs to. Commits of
+     * it never overlap: the next one starts after the previous one is completed.
+     */
+    static final class Commit {
+        private final PartitionedCommitEngine engine;
+        // Created when partition is first involved.
+        private final Ticket[] tickets;
+        // Bit of every involved partition.
+        private final long[] involved;
+        private final AtomicInteger arrivals = new AtomicInteger();
+        // Number of the commit in progress, the latest executed and the latest completed one. Partitions waiting
+        // for execution read them as the commit may already be reused.
+        private long generation;
+        private volatile long executed;
+        private volatile long completed;
+        private int count;
+        private DataTransaction single;
+        private List<DataTransaction> dataTransactions;
+        private Thread committer;
+        private long start;
+        private Throwable failure;
+
+        private Commit(PartitionedCommitEngine engine) {
+            this.engine = engine;
+            tickets = new Ticket[engine.partitions.length];
+            involved = new long[(engine.partitions.length + 63) >>> 6];
+        }
+
+        private void involve(LockSet locks) {
+            for (int i = 0; i < locks.size(); i++) {
+                int partition = engine.partition(locks.get(i).getId());
+                long bit = 1L << partition;
+                if ((involved[partition >>> 6] & bit) == 0) {
+                    involved[partition >>> 6] |= bit;
+                    count++;
+                }
+            }
+        }
+
+        /**
+         * @return the least involved partition not less than from, -1 if there is none.
+         */
+        private int nextInvolved(int from) {
+            for (int word = from >>> 6; word < involved.length; word++) {
+                long bits = involved[word] & (word == from >>> 6 ? -1L << from : -1L);
+                if (bits != 0) {
+                    return (word << 6) + Long.numberOfTrailingZeros(bits);
+                }
+            }
+            return -1;
+        }
+
+        private Ticket ticket(int partition) {
+            if (tickets[partition] == null) {
+                tickets[partition] = new Ticket(this);
+            }
+            return tickets[partition];
+        }
+
+        /**
+         * Executes DataTransactions, keeping failure for the committer.
+         */
+        private void execute() {
+            long started = System.nanoTime();
+            try {
+                if (dataTransactions != null) {
+                    DataTransaction.applyAll(dataTransactions);
+                } else {
+                    single.apply();
+                }
+                engine.storage.getCommitMetrics().recordExclusiveAccess(started - start,
+                        System.nanoTime() - started);
+            } catch (RuntimeException | Error e) {
+                failure = e;
+            }
+        }
+
+        private void complete() {
+            Thread waiting = committer;
+            completed = generation;
+            LockSupport.unpark(waiting);
+        }
+
+        /**
+         * Reports arrival of partition at ticket of cross-partition commit. The last one to arrive executes the
+         * commit and releases the others, which wait until then.
+         */
+        private void arrive(Partition partition) {
+            long current = generation;
+            if (arrivals.decrementAndGet() == 0) {
+                execute();
+                executed = current;
+                for (int i = nextInvolved(0); i >= 0; i = nextInvolved(i + 1)) {
+                    if (engine.partitions[i] != partition) {
+                        LockSupport.unpark(engine.partitions[i].thread);
+                    }
+                }
+                complete();
+                return;
+            }
+            boolean interrupted = false;
+            while (executed < current) {
+                LockSupport.park(this);
+                interrupted |= Thread.interrupted();
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Thread owning accounts of partition. Tickets are pushed to a stack, which the thread takes whole and runs in
+     * order of pushes. Ticket is pushed again only after its commit is completed, so after the thread is done
+     * with it.
+     */
+    private final class Partition implements Runnable {
+        private final AtomicReference<Ticket> pushed = new AtomicReference<>();
+        private final Thread thread;
+
+        Partition(int number) {
+            thread = new Thread(this, "partition-" + number);
+            thread.setDaemon(true);
+        }
+
+        void push(Ticket ticket) {
+            Ticket top;
+            do {
+                top = pushed.get();
+                ticket.next = top;
+            } while (!pushed.compareAndSet(top, ticket));
+            LockSupport.unpark(thread);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Ticket batch = pushed.getAndSet(null);
+                if (batch == null) {
+                    if (closed) {
+                        return;
+                    }
+                    LockSupport.park(this);
+                    continue;
+                }
+                Ticket ordered = null;
+                while (batch != null) {
+                    Ticket next = batch.next;
+                    batch.next = ordered;
+                    ordered = batch;
+                    batch = next;
+                }
+                while (ordered != null) {
+                    // Ticket may be pushed again as soon as its commit is completed.
+                    Ticket next = ordered.next;
+                    handle(ordered.commit);
+                    ordered = next;
+                }
+            }
+        }
+
+        private void handle(Commit commit) {
+            if (commit.count == 1) {
+                commit.execute();
+                commit.complete();
+            } else {
+                commit.arrive(this);
+            }
+        }
+    }
+
+    PartitionedCommitEngine(Storage storage, int partitions) {
+        this.storage = storage;
+        this.partitions = new Partition[partitions];
+        for (int i = 0; i < partitions; i++) {
+            this.partitions[i] = new Partition(i);
+        }
+        for (Partition partition : this.partitions) {
+            partition.thread.start();
+        }
+    }
+
+    private int partition(long accountId) {
+        return (int) Math.floorMod(accountId, (long) partitions.length);
+    }
+
+    /**
+     * @return Commit of this engine kept by dataTransaction.
+     */
+    private Commit commitOf(DataTransaction dataTransaction) {
+        Commit commit = dataTransaction.getPartitionedCommit();
+        if (commit == null || commit.engine != this) {
+            commit = new Commit(this);
+            dataTransaction.setPartitionedCommit(commit);
+        }
+        return commit;
+    }
+
+    @Override
+    public void commit(DataTransaction dataTransaction) {
+        Commit commit = commitOf(dataTransaction);
+        commit.single = dataTransaction;
+        commit.involve(dataTransaction.getLocks());
+        try {
+            run(commit);
+        } finally {
+            if (dataTransaction.isCommitted()) {
+                storage.released(dataTransaction.getChanges());
+            }
+        }
+    }
+
+    @Override
+    public void commitAll(List<DataTransaction> dataTransactions) {
+        if (dataTransactions.isEmpty()) {
+            return;
+        }
+        Commit commit = commitOf(dataTransactions.get(0));
+        commit.dataTransactions = dataTransactions;
+        for (int i = 0; i < dataTransactions.size(); i++) {
+            commit.involve(dataTransactions.get(i).getLocks());
+        }
+        try {
+            run(commit);
+        } finally {
+            for (int i = 0; i < dataTransactions.size(); i++) {
+                DataTransaction dataTransaction = dataTransactions.get(i);
+                if (dataTransaction.isCommitted()) {
+                    storage.released(dataTransaction.getChanges());
+                }
+            }
+        }
+    }
+
+    /**
+     * Executes commit on partitions involved and waits for it, then makes commit ready for reuse.
+     */
+    private void run(Commit commit) {
+        commit.generation++;
+        commit.committer = Thread.currentThread();
+        commit.start = System.nanoTime();
+        try {
+            if (commit.count == 0) {
+                // Only external accounts, nobody else can touch them.
+                commit.execute();
+            } else if (commit.count == 1) {
+                partitions[commit.nextInvolved(0)].push(commit.ticket(commit.nextInvolved(0)));
+                awaitCompleted(commit);
+            } else {
+                commit.arrivals.set(commit.count);
+                sequencer.lock();
+                try {
+                    for (int i = commit.nextInvolved(0); i >= 0; i = commit.nextInvolved(i + 1)) {
+                        partitions[i].push(commit.ticket(i));
+                    }
+                } finally {
+                    sequencer.unlock();
+                }
+                awaitCompleted(commit);
+            }
+            Throwable failure = commit.failure;
+            if (failure instanceof RuntimeException) {
+                throw (RuntimeException) failure;
+            }
+            if (failure != null) {
+                throw (Error) failure;
+            }
+        } finally {
+            Arrays.fill(commit.involved, 0);
+            commit.count = 0;
+            commit.single = null;
+            commit.dataTransactions = null;
+            commit.committer = null;
+            commit.failure = null;
+        }
+    }
+
+    /**
+     * Execution can't be revoked once queued, so interrupted committer waits for it anyway.
+     */
+    private static void awaitCompleted(Commit commit) {
+        boolean interrupted = false;
+        while (commit.completed < commit.generation) {
+            LockSupport.park(commit);
+            interrupted |= Thread.interrupted();
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        for (Partition partition : partitions) {
+            LockSupport.unpark(partition.thread);
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package org.checat.storage;
+
+import java.util.Comparator;
+
+/**
+ * Criteria and order of transactions search, see Storage.scanTransactions(Query). Immutable: every with method
+ * returns a changed copy.
+ *
+ * Exact source, destination and amount are looked up in secondary indexes, amount range in sorted index of
+ * amounts and id range in ids themselves, which are dense; state is only checked on transactions found by the
+ * rest. Ranges are inclusive.
+ */
+public final class Query {
+
+    public enum Order {
+        /** Ascending ids, oldest first. */
+        ID,
+        /** Descending ids, newest first. */
+        ID_DESCENDING,
+        /** Ascending amounts, ascending ids within the same amount. */
+        AMOUNT,
+        /** Descending amounts, ascending ids within the same amount. The first K are top K by amount. */
+        AMOUNT_DESCENDING;
+
+        boolean byAmount() {
+            return this == AMOUNT || this == AMOUNT_DESCENDING;
+        }
+
+        boolean descending() {
+            return this == ID_DESCENDING || this == AMOUNT_DESCENDING;
+        }
+
+        /**
+         * @return comparator of transactions in this order.
+         */
+        Comparator<Transaction> comparator() {
+            switch (this) {
+                case ID_DESCENDING:
+                    return Comparator.comparingLong(Transaction::getId).reversed();
+                case AMOUNT:
+                    return Comparator.comparingLong(Transaction::getAmount).thenComparingLong(Transaction::getId);
+                case AMOUNT_DESCENDING:
+                    return Comparator.comparingLong(Transaction::getAmount).reversed()
+                            .thenComparingLong(Transaction::getId);
+                default:
+                    return Comparator.comparingLong(Transaction::getId);
+            }
+        }
+    }
+
+    public static final Query ALL = new Query(null, null, null, Long.MIN_VALUE, Long.MAX_VALUE, Long.MIN_VALUE,
+            Long.MAX_VALUE, null, Order.ID);
+
+    private final Long source;
+    private final Long destination;
+    private final Long amount;
+    private final long minAmount;
+    private final long maxAmount;
+    private final long minId;
+    private final long maxId;
+    private final Transaction.State state;
+    private final Order order;
+
+    private Query(Long source, Long destination, Long amount, long minAmount, long maxAmount, long minId,
+                  long maxId, Transaction.State state, Order order) {
+        this.source = source;
+        this.destination = destination;
+        this.amount = amount;
+        this.minAmount = minAmount;
+        this.maxAmount = maxAmount;
+        this.minId = minId;
+        this.maxId = maxId;
+        this.state = state;
+        this.order = order;
+    }
+
+    /**
+     * @return query matching transactions with exact values of not null fields, ordered by id, as
+     * Storage.findTransactions() does.
+     */
+    public static Query of(Long source, Long destination, Long amount) {
+        return new Query(source, destination, amount, Long.MIN_VALUE, Long.MAX_VALUE, Long.MIN_VALUE,
+                Long.MAX_VALUE, null, Order.ID);
+    }
+
+    /**
+     * @param minAmount Long Least amount or null for no bound.
+     * @param maxAmount Long Greatest amount or null for no bound.
+     */
+    public Query withAmounts(Long minAmount, Long maxAmount) {
+        return new Query(source, destination, amount,
+                minAmount != null ? minAmount : Long.MIN_VALUE, maxAmount != null ? maxAmount : Long.MAX_VALUE,
+                minId, maxId, state, order);
+    }
+
+    /**
+     * @param minId Long Least id or null for no bound.
+     * @param maxId Long Greatest id or null for no bound.
+     */
+    public Query withIds(Long minId, Long maxId) {
+        return new Query(source, destination, amount, minAmount, maxAmount,
+                minId != null ? minId : Long.MIN_VALUE, maxId != null ? maxId : Long.MAX_VALUE, state, order);
+    }
+
+    /**
+     * @param state Transaction.State of matching transactions or null for any.
+     */
+    public Query withState(Transaction.State state) {
+        return new Query(source, destination, amount, minAmount, maxAmount, minId, maxId, state, order);
+    }
+
+    public Query withOrder(Order order) {
+        return new Query(source, destination, amount, minAmount, maxAmount, minId, maxId, state, order);
+    }
+
+    /**
+     * Narrows query to transactions following transaction with id after_id in the order of id, which should be
+     * Order.ID or Order.ID_DESCENDING.
+     */
+    public Query after(long after_id) {
+        if (order.byAmount()) {
+            throw new IllegalStateException("Query ordered by amount can't continue after id");
+        }
+        return order.descending()
+                ? withIds(minId, Math.min(maxId, after_id - 1))
+                : withIds(Math.max(minId, after_id + 1), maxId);
+    }
+
+    public Long getSource() {
+        return source;
+    }
+
+    public Long getDestination() {
+        return destination;
+    }
+
+    public Long getAmount() {
+        return amount;
+    }
+
+    /**
+     * @return least amount, narrowed to exact amount if there is one.
+     */
+    public long getMinAmount() {
+        return amount != null ? Math.max(minAmount, amount) : minAmount;
+    }
+
+    /**
+     * @return greatest amount, narrowed to exact amount if there is one.
+     */
+    public long getMaxAmount() {
+        return amount != null ? Math.min(maxAmount, amount) : maxAmount;
+    }
+
+    boolean hasAmountRange() {
+        return minAmount != Long.MIN_VALUE || maxAmount != Long.MAX_VALUE;
+    }
+
+    public long getMinId() {
+        return minId;
+    }
+
+    public long getMaxId() {
+        return maxId;
+    }
+
+    public Transaction.State getState() {
+        return state;
+    }
+
+    public Order getOrder() {
+        return order;
+    }
+
+    /**
+     * @return true if transaction meets all criteria.
+     */
+    boolean matches(Transaction transaction) {
+        return (source == null || source == transaction.getSource())
+                && (destination == null || destination == transaction.getDestination())
+                && transaction.getAmount() >= getMinAmount() && transaction.getAmount() <= getMaxAmount()
+                && transaction.getId() >= minId && transaction.getId() <= maxId
+                && (state == null || state == transaction.getState());
+    }
+
+    /**
+     * @return the same query over local ids of shard, see Shards.
+     */
+    Query onShard(int shard, GlobalIds ids) {
+        // Global ids of a shard ascend with its local ids, so range of ones is range of the others.
+        return withIds(ids.firstLocal(shard, minId), ids.lastLocal(shard, maxId));
+    }
+}
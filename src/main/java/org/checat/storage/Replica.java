@@ -0,0 +1,172 @@
+package org.checat.storage;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Follower side of primary-backup replication: keeps storage a copy of the storage of a primary by applying
+ * records shipped by its Replicator, reconnecting whenever connection is lost.
+ *
+ * Records are applied in the order they come by one thread, with restore operations recovery uses, so storage
+ * of a follower should only be read. They come in order of commits rather than ids, so scans pass a transaction
+ * only once every one with a smaller id is there, see Storage.installedUpTo(), except ones primary told are
+ * missing for good when image ends. Every read sees the latest applied state of a transaction or account on its
+ * own; View of a follower doesn't see applied records as of one commit. After reading everything the primary sent
+ * so far, follower acknowledges the sequence of the last applied record.
+ *
+ * When the follower connects to another primary, or the same one started again, storage is emptied before image
+ * of the new primary is applied. Reconnecting to the same primary keeps serving the old state while image is
+ * applied over it.
+ */
+public class Replica implements Closeable {
+
+    private static final Logger LOGGER = Logger.getLogger(Replica.class.getName());
+    private static final int BUFFER_BYTES = 1 << 16;
+
+    private final Storage storage;
+    private final InetSocketAddress primary;
+    private final long retryNanos;
+    private final Thread follower;
+    private final LongAdder connections = new LongAdder();
+    private volatile SocketChannel channel;
+    private volatile boolean connected;
+    private volatile long appliedSequence;
+    private long epoch;
+    private volatile boolean closed;
+
+    /**
+     * Starts following primary.
+     * @param storage Storage to keep a copy in. Should be written by nobody else.
+     * @param primary InetSocketAddress of Replicator of primary.
+     * @param retryMillis long Interval between attempts to connect.
+     */
+    public Replica(Storage storage, InetSocketAddress primary, long retryMillis) {
+        this.storage = storage;
+        this.primary = primary;
+        this.retryNanos = TimeUnit.MILLISECONDS.toNanos(retryMillis);
+        follower = new Thread(this::run, "replica");
+        follower.setDaemon(true);
+        follower.start();
+    }
+
+    private void run() {
+        while (!closed) {
+            try (SocketChannel opened = SocketChannel.open(primary)) {
+                opened.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                channel = opened;
+                if (closed) {
+                    return;
+                }
+                connections.increment();
+                follow(opened);
+            } catch (EOFException e) {
+                LOGGER.log(Level.INFO, "Primary {0} closed connection, reconnecting.", primary);
+            } catch (IOException e) {
+                if (!closed) {
+                    LOGGER.log(Level.WARNING, "Replication from " + primary + " failed, reconnecting.", e);
+                }
+            } finally {
+                connected = false;
+            }
+            if (!closed) {
+                LockSupport.parkNanos(this, retryNanos);
+            }
+        }
+    }
+
+    private void follow(SocketChannel opened) throws IOException {
+        DataInputStream input = new DataInputStream(new BufferedInputStream(Channels.newInputStream(opened),
+                BUFFER_BYTES));
+        ByteBuffer acknowledgement = ByteBuffer.allocate(Long.BYTES);
+        long primaryEpoch = input.readLong();
+        long startSequence = input.readLong();
+        long installed = input.readLong();
+        if (primaryEpoch != epoch) {
+            storage.reset();
+            appliedSequence = 0;
+            epoch = primaryEpoch;
+        }
+        connected = true;
+        LOGGER.log(Level.INFO, "Following {0} from record {1}.", new Object[]{primary, startSequence});
+        ByteBuffer body = ByteBuffer.allocate(BUFFER_BYTES);
+        while (!closed) {
+            int length = input.readInt();
+            if (body.capacity() < length) {
+                body = ByteBuffer.allocate(Math.max(body.capacity() * 2, length));
+            }
+            body.clear();
+            input.readFully(body.array(), 0, length);
+            body.limit(length);
+            long sequence = body.getLong();
+            Journal.apply(body, storage);
+            if (sequence == startSequence && length == Journal.bodyBytes(0, 0)) {
+                // End of image: whatever primary had installed when image was taken is restored.
+                storage.restoreInstalled(installed);
+            }
+            appliedSequence = sequence;
+            if (input.available() == 0) {
+                acknowledgement.clear();
+                acknowledgement.putLong(sequence).flip();
+                while (acknowledgement.hasRemaining()) {
+                    opened.write(acknowledgement);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true while connected to primary.
+     */
+    public boolean isConnected() {
+        return connected;
+    }
+
+    /**
+     * @return sequence of the last applied record of primary, see Replicator.
+     */
+    public long getAppliedSequence() {
+        return appliedSequence;
+    }
+
+    /**
+     * @return number of connections made to primary.
+     */
+    public long getConnections() {
+        return connections.sum();
+    }
+
+    /**
+     * Stops following primary. Storage keeps state applied so far.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        SocketChannel current = channel;
+        if (current != null) {
+            try {
+                current.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Can't close connection to primary.", e);
+            }
+        }
+        LockSupport.unpark(follower);
+        try {
+            follower.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,509 @@
+package org.checat.storage;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Primary side of primary-backup replication: ships every commit of storage to followers connected over TCP, see
+ * Replica.
+ *
+ * Every commit takes the sequence of its record while its account locks are held, so the order of records agrees
+ * with the order of commits on every account; that is all replication does under locks, as journal does. The
+ * record is encoded after locks are released, in the body layout of journal records, into the slot of its sequence
+ * in a ring of every connected follower. Sender thread of the follower writes the run of encoded records following
+ * the last one it wrote at once, without waiting for acknowledgements of earlier writes, so shipping is batched
+ * and pipelined, and records go out in order of sequences whatever order their commits are released in. Follower
+ * acknowledges the sequence of the last record it applied.
+ *
+ * Stream to follower: long epoch of this replicator, long sequence S of the last record appended before the
+ * follower connected, long id every transaction up to which is in storage when image is taken, then records (int
+ * body length, body). The first records all have sequence S and carry image of storage taken without locks, like
+ * Snapshot does, and an empty record of sequence S ends it; then come records after S. Image may contain part of
+ * commits after S, which is fine because records hold new values rather than deltas.
+ *
+ * With Ack.APPLIED commit returns after every follower connected before it acknowledged it. Follower that doesn't
+ * acknowledge within ack timeout, or falls behind by more records than its ring holds, is disconnected and receives
+ * a fresh image when it connects again, so a slow follower never stops commits for long.
+ */
+public class Replicator implements CommitListener, Closeable {
+
+    /**
+     * When DataTransaction.commit() returns relative to followers applying it.
+     */
+    public enum Ack {
+        /**
+         * Commit doesn't wait for followers, so the last commits may be missing on a follower taking over.
+         */
+        ASYNC,
+        /**
+         * Commit waits until every connected follower applied it.
+         */
+        APPLIED,
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(Replicator.class.getName());
+
+    private static final int INITIAL_BUFFER_BYTES = 1 << 16;
+    private static final int INITIAL_RECORD_BYTES = 256;
+    // Records encoded for a follower but not yet written to it. Follower falling further behind is disconnected.
+    private static final int RING = 1 << 16;
+    private static final int MASK = RING - 1;
+    private static final int IMAGE_ROWS = 4096;
+
+    private final Storage storage;
+    private final Ack ack;
+    private final long ackTimeoutNanos;
+    // Followers holding image of other storage with the same sequences tell it by epoch.
+    private final long epoch = ThreadLocalRandom.current().nextLong();
+    private final ServerSocketChannel server;
+    private final Thread acceptor;
+
+    private final AtomicLong lastSequence = new AtomicLong();
+    private final List<Follower> followers = new CopyOnWriteArrayList<>();
+    private final Object ackMonitor = new Object();
+    private final LongAdder ackTimeouts = new LongAdder();
+    private volatile boolean closed;
+
+    /**
+     * Starts accepting followers and shipping every commit of storage to them.
+     * @param storage Storage to replicate.
+     * @param address InetSocketAddress to accept followers on. Port 0 picks a free one.
+     * @param ack Ack of commits.
+     * @param ackTimeoutMillis long Time commit waits for a follower in Ack.APPLIED mode before disconnecting it.
+     * @throws IOException if address can't be bound.
+     */
+    public Replicator(Storage storage, InetSocketAddress address, Ack ack, long ackTimeoutMillis)
+            throws IOException {
+        this.storage = storage;
+        this.ack = ack;
+        this.ackTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(ackTimeoutMillis);
+        server = ServerSocketChannel.open();
+        try {
+            server.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            server.bind(address);
+        } catch (IOException e) {
+            server.close();
+            throw e;
+        }
+        storage.addCommitListener(this);
+        acceptor = new Thread(this::accept, "replication-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * @return port followers connect to.
+     */
+    public int getPort() {
+        return server.socket().getLocalPort();
+    }
+
+    private void accept() {
+        while (!closed) {
+            SocketChannel channel;
+            try {
+                channel = server.accept();
+            } catch (IOException e) {
+                if (!closed) {
+                    LOGGER.log(Level.SEVERE, "Replication listener failed.", e);
+                }
+                return;
+            }
+            try {
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                // Records up to the sequence taken before the follower is added are covered by image, later ones
+                // are appended to its ring from then on, and image is taken after the start sequence.
+                Follower follower = new Follower(channel, lastSequence.get());
+                followers.add(follower);
+                follower.startSequence = lastSequence.get();
+                follower.start();
+                LOGGER.log(Level.INFO, "Follower {0} connected at record {1}.",
+                        new Object[]{follower.name, follower.startSequence});
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Can't accept follower.", e);
+                closeQuietly(channel);
+            }
+        }
+    }
+
+    @Override
+    public void committed(Changes changes) {
+        changes.setReplicationSequence(lastSequence.incrementAndGet());
+    }
+
+    @Override
+    public void released(Changes changes) {
+        long sequence = changes.getReplicationSequence();
+        for (Follower follower : followers) {
+            follower.append(sequence, changes);
+        }
+        if (ack != Ack.APPLIED) {
+            return;
+        }
+        long deadline = System.nanoTime() + ackTimeoutNanos;
+        for (Follower follower : followers) {
+            // Image sent to followers connected later covers the commit.
+            if (follower.startSequence < sequence) {
+                awaitAck(follower, sequence, deadline);
+            }
+        }
+    }
+
+    private void awaitAck(Follower follower, long sequence, long deadline) {
+        if (follower.acked >= sequence) {
+            return;
+        }
+        synchronized (ackMonitor) {
+            while (follower.acked < sequence && !follower.dropped) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    ackTimeouts.increment();
+                    follower.drop("no acknowledgement of record " + sequence + " in time");
+                    return;
+                }
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(ackMonitor, remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return number of connected followers.
+     */
+    public int getFollowerCount() {
+        return followers.size();
+    }
+
+    /**
+     * @return sequence of the last shipped commit.
+     */
+    public long getAppendedSequence() {
+        return lastSequence.get();
+    }
+
+    /**
+     * @return number of records appended but not yet acknowledged by every connected follower, by follower
+     * address.
+     */
+    public Map<String, Long> getLagRecords() {
+        Map<String, Long> lag = new LinkedHashMap<>();
+        long appended = lastSequence.get();
+        for (Follower follower : followers) {
+            lag.put(follower.name, Math.max(0, appended - follower.acked));
+        }
+        return lag;
+    }
+
+    /**
+     * @return time since every connected follower last acknowledged all records appended by then, 0 for ones
+     * that are caught up, by follower address.
+     */
+    public Map<String, Long> getLagNanos() {
+        Map<String, Long> lag = new LinkedHashMap<>();
+        long appended = lastSequence.get();
+        long now = System.nanoTime();
+        for (Follower follower : followers) {
+            lag.put(follower.name, follower.acked >= appended ? 0 : now - follower.caughtUpNanos);
+        }
+        return lag;
+    }
+
+    /**
+     * @return number of followers disconnected because they didn't acknowledge commits in time.
+     */
+    public long getAckTimeouts() {
+        return ackTimeouts.sum();
+    }
+
+    /**
+     * Stops shipping commits and disconnects followers.
+     * @throws IOException if listener can't be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        storage.removeCommitListener(this);
+        server.close();
+        for (Follower follower : followers) {
+            follower.drop(null);
+        }
+        try {
+            acceptor.join();
+            for (Follower follower : new ArrayList<>(followers)) {
+                follower.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Can't close follower connection.", e);
+        }
+    }
+
+    /**
+     * Connection to one follower with its sender and acknowledgement reader threads.
+     */
+    private final class Follower {
+        final SocketChannel channel;
+        final String name;
+        // Written after the follower is added to followers, before its sender starts.
+        volatile long startSequence = Long.MAX_VALUE;
+        // Slot of sequence holds its encoded record once its stamp is the sequence.
+        private final ByteBuffer[] records = new ByteBuffer[RING];
+        private final AtomicLongArray stamps = new AtomicLongArray(RING);
+        // Sequence of the last record written to follower, or skipped because image covers it.
+        private volatile long sentSequence;
+        // Used by sender only.
+        private ByteBuffer buffer = ByteBuffer.allocateDirect(INITIAL_BUFFER_BYTES);
+        volatile long acked;
+        volatile long caughtUpNanos = System.nanoTime();
+        volatile boolean dropped;
+        private final Thread sender;
+        private final Thread acknowledgements;
+
+        Follower(SocketChannel channel, long sentSequence) throws IOException {
+            this.channel = channel;
+            this.sentSequence = sentSequence;
+            this.name = String.valueOf(channel.getRemoteAddress()).replaceFirst("^/", "");
+            sender = new Thread(this::send, "replication-sender-" + name);
+            sender.setDaemon(true);
+            acknowledgements = new Thread(this::readAcknowledgements, "replication-acks-" + name);
+            acknowledgements.setDaemon(true);
+        }
+
+        void start() {
+            sender.start();
+            acknowledgements.start();
+        }
+
+        void join() throws InterruptedException {
+            sender.join();
+            acknowledgements.join();
+        }
+
+        /**
+         * Encodes record of changes into the slot of its sequence, unless image covers it. Disconnects follower
+         * if the slot still holds a record not yet written to it.
+         */
+        void append(long sequence, Changes changes) {
+            long sent = sentSequence;
+            if (dropped || sequence <= sent) {
+                return;
+            }
+            int slot = (int) sequence & MASK;
+            long stamp = stamps.get(slot);
+            if (sequence - sent > RING || stamp > sent) {
+                drop("it fell behind by more than " + RING + " records");
+                return;
+            }
+            int length = Journal.bodyBytes(changes.getTransactionCount(), changes.getAccountCount());
+            ByteBuffer record = records[slot];
+            if (record == null || record.capacity() < Integer.BYTES + length) {
+                record = ByteBuffer.allocate(Math.max(INITIAL_RECORD_BYTES, Integer.BYTES + length));
+                records[slot] = record;
+            }
+            record.clear();
+            record.putInt(length);
+            Journal.putBody(record, sequence, changes);
+            record.flip();
+            stamps.set(slot, sequence);
+            LockSupport.unpark(sender);
+        }
+
+        private void send() {
+            try {
+                sendImage();
+                sentSequence = startSequence;
+                while (!dropped) {
+                    if (!flush()) {
+                        // Woken up by committers, timeout only guards against missed wakeups.
+                        LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(100));
+                    }
+                }
+            } catch (ClosedChannelException e) {
+                // Dropped.
+            } catch (IOException e) {
+                if (!dropped) {
+                    LOGGER.log(Level.WARNING, "Replication to " + name + " failed.", e);
+                }
+            } finally {
+                drop(null);
+            }
+        }
+
+        /**
+         * Writes the run of encoded records following the last written one.
+         * @return true if some records were written.
+         */
+        private boolean flush() throws IOException {
+            long first = sentSequence + 1;
+            long next = first;
+            buffer.clear();
+            while (next - first < RING && stamps.get((int) next & MASK) == next) {
+                ByteBuffer record = records[(int) next & MASK];
+                if (buffer.remaining() < record.remaining()) {
+                    ByteBuffer grown = ByteBuffer.allocateDirect(Math.max(buffer.capacity() * 2,
+                            buffer.position() + record.remaining()));
+                    buffer.flip();
+                    grown.put(buffer);
+                    buffer = grown;
+                }
+                buffer.put(record);
+                next++;
+            }
+            if (next == first) {
+                return false;
+            }
+            // Slots are copied, so committers may reuse them.
+            sentSequence = next - 1;
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            return true;
+        }
+
+        private void sendImage() throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(Integer.BYTES
+                    + Journal.bodyBytes(IMAGE_ROWS, IMAGE_ROWS));
+            buffer.putLong(epoch);
+            buffer.putLong(startSequence);
+            buffer.putLong(storage.installedUpTo(Long.MAX_VALUE));
+            List<Account> accounts = new ArrayList<>(IMAGE_ROWS);
+            for (Account account : storage.getAccounts()) {
+                accounts.add(account);
+                if (accounts.size() == IMAGE_ROWS) {
+                    writeImage(buffer, new ArrayList<>(), accounts);
+                }
+            }
+            List<Transaction> transactions = new ArrayList<>(IMAGE_ROWS);
+            Iterator<Transaction> scan = storage.copyTransactions();
+            while (scan.hasNext()) {
+                transactions.add(scan.next());
+                if (transactions.size() == IMAGE_ROWS) {
+                    writeImage(buffer, transactions, accounts);
+                }
+            }
+            writeImage(buffer, transactions, accounts);
+            buffer.putInt(Journal.bodyBytes(0, 0));
+            buffer.putLong(startSequence);
+            buffer.putInt(0);
+            buffer.putInt(0);
+            writeImage(buffer, transactions, accounts);
+        }
+
+        private void writeImage(ByteBuffer buffer, List<Transaction> transactions, List<Account> accounts)
+                throws IOException {
+            if (!transactions.isEmpty() || !accounts.isEmpty()) {
+                buffer.putInt(Journal.bodyBytes(transactions.size(), accounts.size()));
+                buffer.putLong(startSequence);
+                buffer.putInt(transactions.size());
+                buffer.putInt(accounts.size());
+                for (Transaction transaction : transactions) {
+                    buffer.putLong(transaction.getId());
+                    buffer.putLong(transaction.getSource());
+                    buffer.putLong(transaction.getDestination());
+                    buffer.putLong(transaction.getAmount());
+                    buffer.put((byte) transaction.getState().ordinal());
+                }
+                for (Account account : accounts) {
+                    buffer.putLong(account.getId());
+                    buffer.putLong(account.getMoney());
+                    buffer.putLong(account.getHold());
+                }
+                transactions.clear();
+                accounts.clear();
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        private void readAcknowledgements() {
+            ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES);
+            try {
+                while (!dropped) {
+                    buffer.clear();
+                    while (buffer.hasRemaining()) {
+                        if (channel.read(buffer) < 0) {
+                            throw new EOFException();
+                        }
+                    }
+                    buffer.flip();
+                    long sequence = buffer.getLong();
+                    acked = sequence;
+                    if (sequence >= lastSequence.get()) {
+                        caughtUpNanos = System.nanoTime();
+                    }
+                    if (ack == Ack.APPLIED) {
+                        synchronized (ackMonitor) {
+                            ackMonitor.notifyAll();
+                        }
+                    }
+                }
+            } catch (ClosedChannelException e) {
+                // Dropped.
+            } catch (EOFException e) {
+                LOGGER.log(Level.INFO, "Follower {0} disconnected.", name);
+            } catch (IOException e) {
+                if (!dropped) {
+                    LOGGER.log(Level.WARNING, "Follower " + name + " failed.", e);
+                }
+            } finally {
+                drop(null);
+            }
+        }
+
+        /**
+         * Disconnects follower. It gets new image when it connects again.
+         * @param reason String Logged reason or null if it needs no logging.
+         */
+        void drop(String reason) {
+            if (dropped) {
+                return;
+            }
+            dropped = true;
+            followers.remove(this);
+            if (reason != null) {
+                LOGGER.log(Level.WARNING, "Disconnecting follower {0}: {1}.", new Object[]{name, reason});
+            }
+            closeQuietly(channel);
+            LockSupport.unpark(sender);
+            synchronized (ackMonitor) {
+                ackMonitor.notifyAll();
+            }
+        }
+    }
+}
@@ -0,0 +1,501 @@
+package org.checat.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongPredicate;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Immutable file holding one chunk of transactions that will never change, memory-mapped for reads.
+ *
+ * Layout: header, blocks of BLOCK_ROWS rows, block offsets and sorted postings of every indexed field.
+ * Header: int MAGIC, int number of rows, long first id, long position of block offsets, long position of postings
+ * of source, destination and amount. Block: every row as state byte (0 if row is absent, state ordinal + 1
+ * otherwise) followed by source, destination and amount as zigzag varints, compressed with Deflater as a whole.
+ * Block offsets: int position of every block and end of the last one. Postings of field: int number of distinct values, the values ascending as longs,
+ * int start of rows of every value and end of the last one, rows relative to first id as chars, ascending within
+ * every value.
+ *
+ * Reading a row decodes its whole block through BlockCache, so hot rows of cold tier cost one cache lookup.
+ *
+ * File is written under a temporary name and renamed when complete, so a segment file found after restart is whole
+ * and may be attached again, see Tiering.
+ */
+final class Segment {
+    static final int SOURCE = 0;
+    static final int DESTINATION = 1;
+    static final int AMOUNT = 2;
+    private static final int FIELDS = 3;
+
+    static final int BLOCK_ROWS = 1 << 10;
+    private static final int MAGIC = 0x54534547;
+    private static final int HEADER_BYTES = 2 * Integer.BYTES + (2 + FIELDS) * Long.BYTES;
+    private static final int MAX_ROW_BYTES = 1 + FIELDS * 10;
+    private static final Transaction.State[] STATES = Transaction.State.values();
+    private static final AtomicInteger NUMBERS = new AtomicInteger();
+
+    /**
+     * Decoded block. Arrays are never modified.
+     */
+    static final class Block {
+        final byte[] states;
+        final long[] source;
+        final long[] destination;
+        final long[] amount;
+
+        private Block(int rows) {
+            states = new byte[rows];
+            source = new long[rows];
+            destination = new long[rows];
+            amount = new long[rows];
+        }
+    }
+
+    // Identity of segment in BlockCache.
+    private final int number = NUMBERS.incrementAndGet();
+    private final ByteBuffer data;
+    private final long firstId;
+    private final int rows;
+    private final int offsetsPosition;
+    private final int[] postingsPositions = new int[FIELDS];
+    private final BlockCache cache;
+
+    private Segment(ByteBuffer data, BlockCache cache) throws IOException {
+        this.data = data;
+        this.cache = cache;
+        if (data.capacity() < HEADER_BYTES || data.getInt(0) != MAGIC) {
+            throw new IOException("Not a segment file");
+        }
+        rows = data.getInt(Integer.BYTES);
+        firstId = data.getLong(2 * Integer.BYTES);
+        long offsets = data.getLong(2 * Integer.BYTES + Long.BYTES);
+        if (rows < 0 || offsets < HEADER_BYTES
+                || offsets + ((rows + BLOCK_ROWS - 1) / BLOCK_ROWS + 1) * Integer.BYTES > data.capacity()) {
+            throw new IOException("Segment file is damaged");
+        }
+        offsetsPosition = (int) offsets;
+        for (int field = 0; field < FIELDS; field++) {
+            long position = data.getLong(2 * Integer.BYTES + (2 + field) * Long.BYTES);
+            if (position < offsetsPosition || position + Integer.BYTES > data.capacity()) {
+                throw new IOException("Segment file is damaged");
+            }
+            postingsPositions[field] = (int) position;
+        }
+    }
+
+    /**
+     * Maps segment file written before.
+     * @param file Path of segment file.
+     * @param cache BlockCache of decoded blocks.
+     * @return Segment mapped from file.
+     * @throws IOException if file can't be read or isn't a segment.
+     */
+    static Segment open(Path file, BlockCache cache) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return new Segment(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), cache);
+        }
+    }
+
+    /**
+     * Writes rows of store with ids from firstId on into new file and maps it. Rows written should never change.
+     * @param file Path of new segment file.
+     * @param store TransactionStore to copy rows from.
+     * @param firstId long Id of the first row.
+     * @param rows int Number of rows.
+     * @param written LongPredicate Ids of rows to write, the rest are written absent.
+     * @param cache BlockCache of decoded blocks.
+     * @return Segment mapped from file.
+     * @throws IOException if file can't be written.
+     */
+    static Segment write(Path file, TransactionStore store, long firstId, int rows, LongPredicate written,
+                         BlockCache cache) throws IOException {
+        int blocks = (rows + BLOCK_ROWS - 1) / BLOCK_ROWS;
+        long[][] values = new long[FIELDS][rows];
+        boolean[] present = new boolean[rows];
+        // Deflater adds a few bytes per block to data it can't compress.
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + rows * MAX_ROW_BYTES + blocks * 64
+                + (blocks + 1) * Integer.BYTES);
+        ByteBuffer block = ByteBuffer.allocate(BLOCK_ROWS * MAX_ROW_BYTES);
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        int[] offsets = new int[blocks + 1];
+        buffer.position(HEADER_BYTES);
+        try {
+            for (int row = 0; row < rows; row++) {
+                long id = firstId + row;
+                Transaction.State state = written.test(id) ? store.state(id) : null;
+                present[row] = state != null;
+                block.put((byte) (state == null ? 0 : state.ordinal() + 1));
+                if (state != null) {
+                    values[SOURCE][row] = store.source(id);
+                    values[DESTINATION][row] = store.destination(id);
+                    values[AMOUNT][row] = store.amount(id);
+                }
+                for (int field = 0; field < FIELDS; field++) {
+                    putVarLong(block, values[field][row]);
+                }
+                if (row % BLOCK_ROWS == BLOCK_ROWS - 1 || row == rows - 1) {
+                    offsets[row / BLOCK_ROWS] = buffer.position();
+                    deflater.reset();
+                    deflater.setInput(block.array(), 0, block.position());
+                    deflater.finish();
+                    while (!deflater.finished()) {
+                        buffer.position(buffer.position() + deflater.deflate(buffer.array(), buffer.position(),
+                                buffer.remaining()));
+                    }
+                    block.clear();
+                }
+            }
+        } finally {
+            deflater.end();
+        }
+        offsets[blocks] = buffer.position();
+        int offsetsPosition = buffer.position();
+        for (int offset : offsets) {
+            buffer.putInt(offset);
+        }
+        long[] postingsPositions = new long[FIELDS];
+        ByteBuffer[] postings = new ByteBuffer[FIELDS];
+        long position = buffer.position();
+        for (int field = 0; field < FIELDS; field++) {
+            postings[field] = postings(values[field], present);
+            postingsPositions[field] = position;
+            position += postings[field].remaining();
+        }
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(Integer.BYTES, rows);
+        buffer.putLong(2 * Integer.BYTES, firstId);
+        buffer.putLong(2 * Integer.BYTES + Long.BYTES, offsetsPosition);
+        for (int field = 0; field < FIELDS; field++) {
+            buffer.putLong(2 * Integer.BYTES + (2 + field) * Long.BYTES, postingsPositions[field]);
+        }
+        buffer.flip();
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            // Leftover of failed attempt.
+            Files.deleteIfExists(temporary);
+            try (FileChannel channel = FileChannel.open(temporary,
+                    StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.WRITE)) {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                for (ByteBuffer fieldPostings : postings) {
+                    while (fieldPostings.hasRemaining()) {
+                        channel.write(fieldPostings);
+                    }
+                }
+                channel.force(false);
+            }
+            // Readers of a replaced segment keep their mapping.
+            Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+        return open(file, cache);
+    }
+
+    /**
+     * Groups rows by value: distinct values are sorted, then rows are counted and placed per value in order.
+     */
+    private static ByteBuffer postings(long[] values, boolean[] present) {
+        int rows = values.length;
+        long[] distinct = new long[rows];
+        int count = 0;
+        for (int row = 0; row < rows; row++) {
+            if (present[row]) {
+                distinct[count++] = values[row];
+            }
+        }
+        Arrays.sort(distinct, 0, count);
+        int size = 0;
+        for (int i = 0; i < count; i++) {
+            if (i == 0 || distinct[i] != distinct[size - 1]) {
+                distinct[size++] = distinct[i];
+            }
+        }
+        int[] starts = new int[size + 1];
+        int[] valueOf = new int[rows];
+        for (int row = 0; row < rows; row++) {
+            if (present[row]) {
+                valueOf[row] = Arrays.binarySearch(distinct, 0, size, values[row]);
+                starts[valueOf[row] + 1]++;
+            }
+        }
+        for (int i = 0; i < size; i++) {
+            starts[i + 1] += starts[i];
+        }
+        char[] grouped = new char[count];
+        int[] next = Arrays.copyOf(starts, size);
+        for (int row = 0; row < rows; row++) {
+            if (present[row]) {
+                grouped[next[valueOf[row]]++] = (char) row;
+            }
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES + size * Long.BYTES + (size + 1) * Integer.BYTES
+                + count * Character.BYTES);
+        buffer.putInt(size);
+        for (int i = 0; i < size; i++) {
+            buffer.putLong(distinct[i]);
+        }
+        for (int start : starts) {
+            buffer.putInt(start);
+        }
+        for (char row : grouped) {
+            buffer.putChar(row);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static void putVarLong(ByteBuffer buffer, long value) {
+        long zigzag = (value << 1) ^ (value >> 63);
+        while ((zigzag & ~0x7FL) != 0) {
+            buffer.put((byte) ((zigzag & 0x7F) | 0x80));
+            zigzag >>>= 7;
+        }
+        buffer.put((byte) zigzag);
+    }
+
+    int getNumber() {
+        return number;
+    }
+
+    long getFirstId() {
+        return firstId;
+    }
+
+    int getRows() {
+        return rows;
+    }
+
+    /**
+     * Decodes block from file, see BlockCache.
+     */
+    Block decode(int block) {
+        int start = block * BLOCK_ROWS;
+        Block decoded = new Block(Math.min(BLOCK_ROWS, rows - start));
+        int from = data.getInt(offsetsPosition + block * Integer.BYTES);
+        byte[] compressed = new byte[data.getInt(offsetsPosition + (block + 1) * Integer.BYTES) - from];
+        ByteBuffer view = data.duplicate();
+        view.position(from);
+        view.get(compressed);
+        byte[] bytes = new byte[decoded.states.length * MAX_ROW_BYTES];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            inflater.inflate(bytes);
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Segment block " + block + " is damaged", e);
+        } finally {
+            inflater.end();
+        }
+        int position = 0;
+        long[][] columns = {decoded.source, decoded.destination, decoded.amount};
+        for (int row = 0; row < decoded.states.length; row++) {
+            decoded.states[row] = bytes[position++];
+            for (long[] column : columns) {
+                long zigzag = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = bytes[position++];
+                    zigzag |= (long) (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+                column[row] = (zigzag >>> 1) ^ -(zigzag & 1);
+            }
+        }
+        return decoded;
+    }
+
+    private Block block(long id) {
+        return cache.get(this, (int) (id - firstId) / BLOCK_ROWS);
+    }
+
+    private static int row(long id, long firstId) {
+        return (int) (id - firstId) % BLOCK_ROWS;
+    }
+
+    /**
+     * @return state of transaction or null if it is absent. Transaction should be within segment.
+     */
+    Transaction.State state(long id) {
+        int state = block(id).states[row(id, firstId)];
+        return state == 0 ? null : STATES[state - 1];
+    }
+
+    long source(long id) {
+        return block(id).source[row(id, firstId)];
+    }
+
+    long destination(long id) {
+        return block(id).destination[row(id, firstId)];
+    }
+
+    long amount(long id) {
+        return block(id).amount[row(id, firstId)];
+    }
+
+    /**
+     * @return Transaction built from row or null if it is absent.
+     */
+    Transaction get(long id) {
+        Block block = block(id);
+        int row = row(id, firstId);
+        int state = block.states[row];
+        if (state == 0) {
+            return null;
+        }
+        return new Transaction(id, block.source[row], block.destination[row], block.amount[row], STATES[state - 1]);
+    }
+
+    /**
+     * Checks that transaction exists and matches all not null criteria.
+     */
+    boolean matches(long id, Long source, Long destination, Long amount) {
+        Block block = block(id);
+        int row = row(id, firstId);
+        return block.states[row] != 0
+                && (source == null || source == block.source[row])
+                && (destination == null || destination == block.destination[row])
+                && (amount == null || amount == block.amount[row]);
+    }
+
+    /**
+     * @param field int SOURCE, DESTINATION or AMOUNT.
+     * @param value long Value of field.
+     * @return ids of transactions with value of field, ascending.
+     */
+    long[] ids(int field, long value) {
+        int index = valueIndex(field, value);
+        return index < valueCount(field) && value(field, index) == value ? idsAt(field, index) : new long[0];
+    }
+
+    /**
+     * @return number of distinct values of field, see valueIndex().
+     */
+    int valueCount(int field) {
+        return data.getInt(postingsPositions[field]);
+    }
+
+    /**
+     * @return index of the least distinct value of field not less than value, valueCount() if there is none.
+     */
+    int valueIndex(int field, long value) {
+        int position = postingsPositions[field];
+        int size = data.getInt(position);
+        int valuesPosition = position + Integer.BYTES;
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (data.getLong(valuesPosition + middle * Long.BYTES) < value) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return distinct value of field at index, values ascend with index.
+     */
+    long value(int field, int index) {
+        return data.getLong(postingsPositions[field] + Integer.BYTES + index * Long.BYTES);
+    }
+
+    /**
+     * @return number of rows having distinct values of field with indexes from inclusive to exclusive.
+     */
+    int rows(int field, int from, int to) {
+        int position = postingsPositions[field];
+        int startsPosition = position + Integer.BYTES + data.getInt(position) * Long.BYTES;
+        return data.getInt(startsPosition + to * Integer.BYTES) - data.getInt(startsPosition + from * Integer.BYTES);
+    }
+
+    /**
+     * @return ids of transactions with distinct value of field at index, ascending.
+     */
+    long[] idsAt(int field, int index) {
+        int position = postingsPositions[field];
+        int size = data.getInt(position);
+        int startsPosition = position + Integer.BYTES + size * Long.BYTES;
+        int start = data.getInt(startsPosition + index * Integer.BYTES);
+        int end = data.getInt(startsPosition + (index + 1) * Integer.BYTES);
+        int rowsPosition = startsPosition + (size + 1) * Integer.BYTES;
+        long[] ids = new long[end - start];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = firstId + data.getChar(rowsPosition + (start + i) * Character.BYTES);
+        }
+        return ids;
+    }
+
+    /**
+     * Iterates over ids of transactions with distinct value of field at index within id range, reading them from
+     * the file one at a time.
+     * @param descending boolean true to start from the greatest id.
+     * @return ids, ascending or descending.
+     */
+    PrimitiveIterator.OfLong idsAt(int field, int index, long minId, long maxId, boolean descending) {
+        int position = postingsPositions[field];
+        int size = data.getInt(position);
+        int startsPosition = position + Integer.BYTES + size * Long.BYTES;
+        int rowsPosition = startsPosition + (size + 1) * Integer.BYTES;
+        int last = data.getInt(startsPosition + (index + 1) * Integer.BYTES);
+        int start = rowIndex(rowsPosition, data.getInt(startsPosition + index * Integer.BYTES), last, minId);
+        int end = maxId - firstId >= getRows() ? last : rowIndex(rowsPosition, start, last, maxId + 1);
+        return new PrimitiveIterator.OfLong() {
+            private int next = descending ? end - 1 : start;
+
+            @Override
+            public boolean hasNext() {
+                return descending ? next >= start : next < end;
+            }
+
+            @Override
+            public long nextLong() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                int row = descending ? next-- : next++;
+                return firstId + data.getChar(rowsPosition + row * Character.BYTES);
+            }
+        };
+    }
+
+    /**
+     * @return index of the first of ascending rows from inclusive to exclusive whose id isn't less than id.
+     */
+    private int rowIndex(int rowsPosition, int from, int to, long id) {
+        int low = from;
+        int high = to;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (firstId + data.getChar(rowsPosition + middle * Character.BYTES) < id) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return size of segment file in bytes.
+     */
+    int getBytes() {
+        return data.capacity();
+    }
+}
@@ -0,0 +1,326 @@
+package org.checat.storage;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Storage split by account id into shards, each a Storage of its own with its own accounts, transactions,
+ * versions and commit engine, so commits on different shards share nothing.
+ *
+ * Internal account belongs to shard id mod number of shards. Transaction is kept on the shard of its source
+ * account, or of its destination if source is external, so initiate and cancel always run on one shard, and
+ * confirm does too unless source and destination belong to different shards. Ids of transactions outside storage
+ * are global: they are taken from one sequence of all shards together with local ids of the shard, see GlobalIds,
+ * so they follow the order of inserts across shards. With one shard they are ids of the storage itself.
+ *
+ * DataTransaction changing accounts of several shards is committed by deterministic ordering: it takes locks of
+ * all its accounts in ascending order of ids, the order every single shard commit takes them in, and owns them
+ * as fallback of optimistic commit does, so neither locking nor optimistic commits of shards can interleave with
+ * it. Then conditions of all its parts are checked and all parts are installed, or none. View of several shards
+ * opens views of all of them while no such commit is being installed and every finished one is visible on all
+ * its shards, so it never sees one part of a commit without the others. It checks that optimistically, by counts
+ * of started and finished commits across shards read before and after opening, and takes the cut lock excluding
+ * such commits only when they keep overlapping it.
+ *
+ * The first shard is Storage.STORAGE, so code working with it alone keeps working while there is one shard.
+ *
+ * Storage of several shards is experimental and in-memory only: there is no journal for it, see
+ * Main.openJournal(), as journals of shards made durable independently could keep one part of a commit across
+ * shards without the others.
+ */
+public class Shards {
+
+    public static final Shards SHARDS = new Shards();
+
+    private volatile Storage[] shards = {Storage.STORAGE};
+    // Null while there is one shard, written before shards.
+    private GlobalIds ids;
+
+    private static final int VIEW_ATTEMPTS = 8;
+
+    // Commits across shards hold read lock until they are visible, views of several shards take write lock only
+    // when they fail to open between such commits VIEW_ATTEMPTS times.
+    private final ReentrantReadWriteLock cut = new ReentrantReadWriteLock();
+    private final AtomicLong startedCommits = new AtomicLong();
+    private final AtomicLong finishedCommits = new AtomicLong();
+    private final LongAdder crossShardCommits = new LongAdder();
+
+    private Shards() {}
+
+    /**
+     * Splits storage into shards. Storage.STORAGE stays the first one, others start empty. Should be called
+     * while nothing is committed.
+     * @param count int Number of shards.
+     * @throws IllegalArgumentException if count isn't positive or storage uses CommitMode.PARTITIONED.
+     */
+    public synchronized void configure(int count) {
+        if (count <= 0) {
+            throw new IllegalArgumentException("Number of shards should be positive");
+        }
+        if (count > 1 && Storage.STORAGE.isPartitioned()) {
+            throw new IllegalArgumentException("Partitioned commit mode can't be used with several shards");
+        }
+        Storage[] configured = new Storage[count];
+        configured[0] = Storage.STORAGE;
+        for (int i = 1; i < count; i++) {
+            configured[i] = new Storage();
+        }
+        ids = count > 1 ? new GlobalIds(count) : null;
+        for (int i = 0; i < count; i++) {
+            configured[i].joinShards(configured, i, ids);
+        }
+        shards = configured;
+    }
+
+    /**
+     * @return number of shards.
+     */
+    public int getCount() {
+        return shards.length;
+    }
+
+    /**
+     * @param shard int Position of shard.
+     * @return Storage of shard.
+     */
+    public Storage get(int shard) {
+        return shards[shard];
+    }
+
+    static int shardOfAccount(long accountId, int count) {
+        return (int) Math.floorMod(accountId, (long) count);
+    }
+
+    /**
+     * @param accountId long Id of account.
+     * @return shard owning internal account, the first shard for external one.
+     */
+    public Storage forAccount(long accountId) {
+        Storage[] all = shards;
+        return Account.isAccountInternal(accountId) ? all[shardOfAccount(accountId, all.length)] : all[0];
+    }
+
+    /**
+     * @return shard DataTransaction initiating transfer between accounts should be started on, see
+     * Transfers.initiate().
+     */
+    public Storage forInitiate(long source, long destination) {
+        return forAccount(Account.isAccountInternal(source) ? source : destination);
+    }
+
+    /**
+     * @param id long Global id of transaction.
+     * @return shard keeping transaction with the id if there is one.
+     */
+    public Storage forTransaction(long id) {
+        Storage[] all = shards;
+        return all.length == 1 ? all[0] : all[ids.shard(id)];
+    }
+
+    /**
+     * @param id long Global id of transaction.
+     * @return id of transaction on its shard, see forTransaction(). Not positive if there is no such transaction.
+     */
+    public long localId(long id) {
+        return shards.length == 1 ? id : ids.local(id);
+    }
+
+    /**
+     * @param shard Storage of shard.
+     * @param localId long Id of transaction on the shard.
+     * @return global id of transaction, 0 if there is no such transaction.
+     */
+    public long globalId(Storage shard, long localId) {
+        return shards.length == 1 ? localId : ids.global(shard.getShard(), localId);
+    }
+
+    /**
+     * Replaces local id of transaction read from shard with global one.
+     * @param ids GlobalIds of shards, null if there is one shard.
+     * @return the same transaction, null if it is null.
+     */
+    static Transaction globalize(Transaction transaction, GlobalIds ids, int shard) {
+        if (transaction != null && ids != null) {
+            transaction.id = ids.global(shard, transaction.id);
+        }
+        return transaction;
+    }
+
+    /**
+     * @param id long Global id of transaction.
+     * @return Transaction with global id or null if not present.
+     */
+    public Transaction getTransaction(long id) {
+        Storage shard = forTransaction(id);
+        return globalize(shard.getTransaction(localId(id)), shards.length == 1 ? null : ids, shard.getShard());
+    }
+
+    /**
+     * Opens consistent view of all shards, see Storage.openView().
+     * @return new View reading global ids of transactions. Should be closed.
+     */
+    public View openView() {
+        Storage[] all = shards;
+        if (all.length == 1) {
+            return all[0].openView();
+        }
+        View[] views = new View[all.length];
+        for (int attempt = 0; attempt < VIEW_ATTEMPTS; attempt++) {
+            long finished = finishedCommits.get();
+            long started = startedCommits.get();
+            if (started == finished) {
+                open(all, views);
+                if (startedCommits.get() == started) {
+                    return new View(views, ids);
+                }
+                for (View view : views) {
+                    view.close();
+                }
+            }
+            Thread.yield();
+        }
+        cut.writeLock().lock();
+        try {
+            open(all, views);
+        } finally {
+            cut.writeLock().unlock();
+        }
+        return new View(views, ids);
+    }
+
+    private static void open(Storage[] all, View[] views) {
+        for (int i = 0; i < all.length; i++) {
+            views[i] = all[i].openView();
+        }
+    }
+
+    /**
+     * Commits DataTransactions together, each succeeds or fails on its own in the order of the list, see
+     * Storage.commitAll(). They may be started on different shards.
+     * @param dataTransactions DataTransactions started on shards.
+     */
+    public void commitAll(List<DataTransaction> dataTransactions) {
+        if (dataTransactions.isEmpty()) {
+            return;
+        }
+        Storage storage = dataTransactions.get(0).getStorage();
+        for (int i = 0; i < dataTransactions.size(); i++) {
+            if (dataTransactions.get(i).getStorage() != storage) {
+                commitAcross(dataTransactions);
+                return;
+            }
+        }
+        storage.commitAll(dataTransactions);
+    }
+
+    /**
+     * Commits DataTransactions whose accounts may belong to several shards, see commitAll().
+     */
+    static void commitAcross(List<DataTransaction> dataTransactions) {
+        SHARDS.commitLocked(dataTransactions);
+    }
+
+    private void commitLocked(List<DataTransaction> dataTransactions) {
+        LockSet locks = new LockSet();
+        for (int i = 0; i < dataTransactions.size(); i++) {
+            DataTransaction dataTransaction = dataTransactions.get(i);
+            locks.addAll(dataTransaction.getLocks());
+            if (dataTransaction.isDistributed()) {
+                for (DataTransaction part : dataTransaction.getParts()) {
+                    if (part != null && !part.isEmpty()) {
+                        locks.addAll(part.getLocks());
+                    }
+                }
+            }
+        }
+        int locked = 0;
+        int owned = 0;
+        boolean installing = false;
+        long start = System.nanoTime();
+        long acquired = start;
+        try {
+            for (; locked < locks.size(); locked++) {
+                locks.get(locked).lock();
+            }
+            for (; owned < locks.size(); owned++) {
+                OptimisticCommitEngine.awaitOwnership(locks, owned);
+            }
+            cut.readLock().lock();
+            startedCommits.incrementAndGet();
+            installing = true;
+            acquired = System.nanoTime();
+            DataTransaction.applyAll(dataTransactions);
+        } finally {
+            OptimisticCommitEngine.disown(locks, owned, true);
+            for (int i = locked - 1; i >= 0; i--) {
+                locks.get(i).lock.unlock();
+            }
+            dataTransactions.get(0).getStorage().getCommitMetrics()
+                    .recordExclusiveAccess(acquired - start, System.nanoTime() - acquired);
+            if (installing) {
+                try {
+                    forEachCommitted(dataTransactions, false);
+                } finally {
+                    finishedCommits.incrementAndGet();
+                    cut.readLock().unlock();
+                }
+            }
+            forEachCommitted(dataTransactions, true);
+        }
+    }
+
+    /**
+     * Waits until every committed DataTransaction and part is visible on its shard or notifies listeners of its
+     * shard that it's released.
+     */
+    private void forEachCommitted(List<DataTransaction> dataTransactions, boolean release) {
+        for (int i = 0; i < dataTransactions.size(); i++) {
+            DataTransaction dataTransaction = dataTransactions.get(i);
+            if (!dataTransaction.isCommitted()) {
+                continue;
+            }
+            completed(dataTransaction, release);
+            if (dataTransaction.isDistributed()) {
+                for (DataTransaction part : dataTransaction.getParts()) {
+                    if (part != null && !part.isEmpty()) {
+                        completed(part, release);
+                    }
+                }
+                if (release) {
+                    crossShardCommits.increment();
+                }
+            }
+        }
+    }
+
+    private static void completed(DataTransaction dataTransaction, boolean release) {
+        Storage storage = dataTransaction.getStorage();
+        if (release) {
+            storage.released(dataTransaction.getChanges());
+        } else {
+            storage.getVersions().await(dataTransaction.getChanges().getVersion());
+        }
+    }
+
+    /**
+     * @return number of committed DataTransactions that changed accounts of several shards.
+     */
+    public long getCrossShardCommits() {
+        return crossShardCommits.sum();
+    }
+
+    /**
+     * Used to reset all shards to start state in tests.
+     */
+    public void reset() {
+        for (Storage storage : shards) {
+            storage.reset();
+        }
+        if (shards.length > 1) {
+            ids.clear();
+        }
+        crossShardCommits.reset();
+    }
+}
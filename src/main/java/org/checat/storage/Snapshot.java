@@ -0,0 +1,196 @@
+package org.checat.storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Point-in-time image of storage written next to journal, so recovery replays only journal records after it.
+ *
+ * Snapshot is fuzzy: it is taken without stopping commits, so it may contain part of commits newer than its
+ * sequence. That's fine, because every record after the sequence is replayed over the snapshot and records hold
+ * new values rather than deltas. Before snapshot is published, journal is synced up to every record whose
+ * changes it may contain.
+ *
+ * Layout: int magic, int version, long sequence, long max transaction id, accounts (byte 1, long id, long money,
+ * long hold) terminated by byte 0, transactions (byte 1, long id, long source, long destination, long amount,
+ * byte state) terminated by byte 0, int CRC32 of everything before it.
+ */
+public final class Snapshot {
+
+    private static final Logger LOGGER = Logger.getLogger(Snapshot.class.getName());
+
+    static final String PREFIX = "snapshot-";
+    static final String SUFFIX = ".snap";
+    private static final int MAGIC = 0x54585353;
+    private static final int VERSION = 1;
+    private static final int BUFFER_BYTES = 1 << 16;
+
+    private Snapshot() {}
+
+    /**
+     * Writes snapshot of storage to journal directory.
+     * Doesn't take any locks, so commits run undisturbed while snapshot is written.
+     * @param storage Storage to take snapshot of.
+     * @param journal Journal attached to storage.
+     * @return path to written snapshot.
+     * @throws IOException if snapshot can't be written.
+     */
+    public static Path write(Storage storage, Journal journal) throws IOException {
+        // Every record up to this sequence is already applied to storage.
+        long sequence = journal.getAppendedSequence();
+        Path directory = journal.getDirectory();
+        Path temporary = Files.createTempFile(directory, PREFIX, ".tmp");
+        try {
+            CRC32 crc = new CRC32();
+            try (OutputStream file = new BufferedOutputStream(Files.newOutputStream(temporary), BUFFER_BYTES)) {
+                DataOutputStream output = new DataOutputStream(new CheckedOutputStream(file, crc));
+                output.writeInt(MAGIC);
+                output.writeInt(VERSION);
+                output.writeLong(sequence);
+                output.writeLong(storage.getMaxTransactionId());
+                for (Account account : storage.getAccounts()) {
+                    output.writeByte(1);
+                    output.writeLong(account.getId());
+                    output.writeLong(account.getMoney());
+                    output.writeLong(account.getHold());
+                }
+                output.writeByte(0);
+                Iterator<Transaction> transactions = storage.copyTransactions();
+                while (transactions.hasNext()) {
+                    Transaction transaction = transactions.next();
+                    output.writeByte(1);
+                    output.writeLong(transaction.getId());
+                    output.writeLong(transaction.getSource());
+                    output.writeLong(transaction.getDestination());
+                    output.writeLong(transaction.getAmount());
+                    output.writeByte(transaction.getState().ordinal());
+                }
+                output.writeByte(0);
+                new DataOutputStream(file).writeInt((int) crc.getValue());
+            }
+            // Snapshot may contain changes of commits still in flight when it was written. They take sequences of
+            // their records before their versions end, so all of them are synced.
+            Versions versions = storage.getVersions();
+            versions.await(versions.getLast());
+            journal.sync(journal.getAppendedSequence());
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+                channel.force(true);
+            }
+            Path snapshot = directory.resolve(String.format("%s%020d%s", PREFIX, sequence, SUFFIX));
+            Files.move(temporary, snapshot, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            return snapshot;
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    /**
+     * Loads the newest readable snapshot from directory into empty storage.
+     * @param directory Path Journal directory.
+     * @param storage Storage to load snapshot into.
+     * @return journal sequence of loaded snapshot. 0 if there is no snapshot.
+     * @throws IOException if directory can't be read.
+     */
+    static long loadLatest(Path directory, Storage storage) throws IOException {
+        List<Path> snapshots = snapshots(directory);
+        for (int i = snapshots.size() - 1; i >= 0; i--) {
+            try {
+                return load(snapshots.get(i), storage);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Can't load snapshot " + snapshots.get(i) + ", trying older one.", e);
+                storage.reset();
+            }
+        }
+        return 0;
+    }
+
+    private static long load(Path snapshot, Storage storage) throws IOException {
+        CRC32 crc = new CRC32();
+        try (InputStream file = new BufferedInputStream(Files.newInputStream(snapshot), BUFFER_BYTES)) {
+            DataInputStream input = new DataInputStream(new CheckedInputStream(file, crc));
+            if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+                throw new IOException("Unknown snapshot format");
+            }
+            long sequence = input.readLong();
+            long maxTransactionId = input.readLong();
+            while (input.readByte() != 0) {
+                storage.restoreAccount(input.readLong(), input.readLong(), input.readLong());
+            }
+            while (input.readByte() != 0) {
+                storage.restoreTransaction(new Transaction(input.readLong(),
+                        input.readLong(),
+                        input.readLong(),
+                        input.readLong(),
+                        Transaction.State.values()[input.readByte()]));
+            }
+            int expected = (int) crc.getValue();
+            if (new DataInputStream(file).readInt() != expected) {
+                throw new IOException("Snapshot checksum mismatch");
+            }
+            storage.restoreMaxTransactionId(maxTransactionId);
+            return sequence;
+        }
+    }
+
+    /**
+     * Deletes all snapshots but the newest keep ones and journal segments not needed to recover from them.
+     * @param directory Path Journal directory.
+     * @param keep int Number of snapshots to keep.
+     * @throws IOException if directory can't be read.
+     * @throws IllegalArgumentException if keep isn't positive.
+     */
+    public static void prune(Path directory, int keep) throws IOException {
+        if (keep <= 0) {
+            throw new IllegalArgumentException("At least one snapshot should be kept");
+        }
+        List<Path> snapshots = snapshots(directory);
+        if (snapshots.size() < keep) {
+            return;
+        }
+        for (Path old : snapshots.subList(0, snapshots.size() - keep)) {
+            Files.deleteIfExists(old);
+        }
+        long oldestKept = sequence(snapshots.get(snapshots.size() - keep));
+        List<Path> segments = Journal.segments(directory);
+        // A segment is needed while the next one doesn't start right after the oldest kept snapshot or earlier.
+        for (int i = 0; i + 1 < segments.size(); i++) {
+            if (Journal.firstSequence(segments.get(i + 1)) <= oldestKept + 1) {
+                Files.deleteIfExists(segments.get(i));
+            }
+        }
+    }
+
+    static List<Path> snapshots(Path directory) throws IOException {
+        List<Path> snapshots = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+            files.forEach(snapshots::add);
+        }
+        Collections.sort(snapshots);
+        return snapshots;
+    }
+
+    private static long sequence(Path snapshot) {
+        String name = snapshot.getFileName().toString();
+        return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+    }
+}
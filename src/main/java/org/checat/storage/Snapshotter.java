@@ -0,0 +1,75 @@
+package org.checat.storage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Periodically writes snapshots of storage in background thread and deletes files they make unnecessary.
+ */
+public class Snapshotter implements Closeable {
+
+    private static final Logger LOGGER = Logger.getLogger(Snapshotter.class.getName());
+
+    private final Storage storage;
+    private final Journal journal;
+    private final int keep;
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "snapshotter");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private long lastSequence;
+
+    /**
+     * @param storage Storage to take snapshots of.
+     * @param journal Journal attached to storage.
+     * @param intervalSeconds long Interval between snapshots.
+     * @param keep int Number of the newest snapshots to keep, at least one.
+     * @throws IllegalArgumentException if keep isn't positive.
+     */
+    public Snapshotter(Storage storage, Journal journal, long intervalSeconds, int keep) {
+        if (keep <= 0) {
+            throw new IllegalArgumentException("At least one snapshot should be kept");
+        }
+        this.storage = storage;
+        this.journal = journal;
+        this.keep = keep;
+        this.lastSequence = journal.getRecoveredSnapshotSequence();
+        executor.scheduleWithFixedDelay(this::snapshot, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    private void snapshot() {
+        if (journal.getAppendedSequence() == lastSequence) {
+            return;
+        }
+        try {
+            long started = System.nanoTime();
+            long sequence = journal.getAppendedSequence();
+            Snapshot.write(storage, journal);
+            Snapshot.prune(journal.getDirectory(), keep);
+            lastSequence = sequence;
+            LOGGER.log(Level.INFO, "Snapshot at journal record {0} written in {1} ms.",
+                    new Object[]{sequence, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started)});
+        } catch (IOException | RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Snapshot failed.", e);
+        }
+    }
+
+    /**
+     * Stops taking snapshots. Snapshot being written is completed.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
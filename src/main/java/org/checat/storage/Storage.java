@@ -2,27 +2,122 @@ package org.checat.storage;
 
 
 import javax.validation.constraints.NotNull;
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.stream.LongStream;
 
 
+/**
+ * In-memory storage of accounts and transactions.
+ *
+ * Storage itself takes no global lock: accounts are kept in AccountTable and transactions in columnar
+ * TransactionStore, so readers and writers working on different keys never wait for each other. Atomicity of
+ * multi-key updates is provided by DataTransaction, which holds locks of accounts it touches for the whole
+ * duration of its commit. Account objects live as long as storage and are changed in place under their locks.
+ * Transactions that will never change may be moved out of memory into segment files, see Tiering.
+ *
+ * Reads of storage itself see the latest state of every transaction and account, each on its own. View opened by
+ * openView() reads all of them as of one commit version instead, without taking any locks, see Versions.
+ *
+ * Storage may be one of several shards, see Shards. Then it holds only internal accounts it owns and transactions
+ * initiated on it, numbered by its own ids taken together with global ones, see GlobalIds, and operations of its
+ * DataTransactions on accounts of other shards are committed together with them on their owners.
+ */
 public class Storage {
 
     public static final Storage STORAGE = new Storage();
 
-    private final Map<Long, Account> accounts = new HashMap<>();
-    private final Map<Long, Lock> accountLocks = new HashMap<>();
-    private final Map<Long, Transaction> transactions = new HashMap<>();
+    private static final int SPARE_DATA_TRANSACTIONS = 64;
 
-    private long max_transaction_id = 0;
+    private final AccountTable accounts = new AccountTable();
+    private final TransactionStore transactions = new TransactionStore();
+    private final Index sourceIndex = new Index(false);
+    private final Index destinationIndex = new Index(false);
+    private final Index amountIndex = new Index(true);
 
-    private final Lock lock = new ReentrantLock();
+    private final AtomicLong max_transaction_id = new AtomicLong();
+    // Every transaction with id up to it is present and read by every View, see installedUpTo().
+    private final AtomicLong installed = new AtomicLong();
 
-    private Storage() {}
+    private final Versions versions = new Versions();
+
+    private final List<CommitListener> listeners = new CopyOnWriteArrayList<>();
+
+    private final CommitMetrics metrics = new CommitMetrics();
+
+    private volatile CommitEngine engine = new LockingCommitEngine(this);
+
+    // Set once commits can't be made durable any more, see halt().
+    private volatile Throwable halted;
+
+    // DataTransactions given back after commit, lent again to any thread, see borrowDataTransaction().
+    private final AtomicReferenceArray<DataTransaction> spareDataTransactions =
+            new AtomicReferenceArray<>(SPARE_DATA_TRANSACTIONS);
+
+    // All shards including this one, see Shards.
+    private volatile Storage[] shards = {this};
+    // Written before shards, so reading shards first makes them visible.
+    private int shard;
+    // Global ids of transactions of all shards, null if storage isn't split.
+    private GlobalIds globalIds;
+
+    Storage() {}
+
+    /**
+     * Makes storage one of shards. Should be called while nothing is committed.
+     * @param shards Storage[] All shards, this one among them.
+     * @param shard int Position of this storage in shards.
+     * @param globalIds GlobalIds shared by shards, null if there is one shard.
+     */
+    void joinShards(Storage[] shards, int shard, GlobalIds globalIds) {
+        this.shard = shard;
+        this.globalIds = globalIds;
+        this.shards = shards;
+    }
+
+    /**
+     * @return position of storage among shards, 0 if it isn't sharded.
+     */
+    public int getShard() {
+        return shard;
+    }
+
+    /**
+     * @param accountId long Id of account.
+     * @return true if account is external or internal one belonging to this storage.
+     */
+    public boolean owns(long accountId) {
+        Storage[] all = shards;
+        return all.length == 1 || !Account.isAccountInternal(accountId)
+                || Shards.shardOfAccount(accountId, all.length) == shard;
+    }
+
+    /**
+     * @return shard owning internal account.
+     */
+    Storage owner(long accountId) {
+        Storage[] all = shards;
+        return all[Shards.shardOfAccount(accountId, all.length)];
+    }
+
+    int getShardCount() {
+        return shards.length;
+    }
 
     /**
      * Creates DataTransaction object to manipulate data in storage.
@@ -32,40 +127,614 @@ public class Storage {
         return new DataTransaction(this);
     }
 
+    /**
+     * Lends DataTransaction given back by an earlier commit, reset and ready to use, so steady stream of commits
+     * allocates nothing whatever threads run them, virtual ones included. Every call gets its own object, so
+     * nested commits on one thread don't share it. A new one is created when none is spare.
+     * @return reset DataTransaction. Should be given back by giveBack() once its outcome is read.
+     */
+    public DataTransaction borrowDataTransaction() {
+        int start = (int) Thread.currentThread().getId();
+        for (int i = 0; i < SPARE_DATA_TRANSACTIONS; i++) {
+            int slot = (start + i) & (SPARE_DATA_TRANSACTIONS - 1);
+            if (spareDataTransactions.get(slot) != null) {
+                DataTransaction dataTransaction = spareDataTransactions.getAndSet(slot, null);
+                if (dataTransaction != null) {
+                    return dataTransaction;
+                }
+            }
+        }
+        return new DataTransaction(this);
+    }
+
+    /**
+     * Takes back DataTransaction lent by borrowDataTransaction(). Caller shouldn't use it any more.
+     * @param dataTransaction DataTransaction started on this storage.
+     */
+    public void giveBack(DataTransaction dataTransaction) {
+        // Spare ones don't keep accounts reachable.
+        dataTransaction.reset();
+        int start = (int) Thread.currentThread().getId();
+        for (int i = 0; i < SPARE_DATA_TRANSACTIONS; i++) {
+            int slot = (start + i) & (SPARE_DATA_TRANSACTIONS - 1);
+            if (spareDataTransactions.get(slot) == null
+                    && spareDataTransactions.compareAndSet(slot, null, dataTransaction)) {
+                return;
+            }
+        }
+    }
+
+    void commit(DataTransaction dataTransaction) {
+        checkHalted();
+        engine.commit(dataTransaction);
+    }
+
+    /**
+     * Commits several DataTransactions together taking lock of every account they need only once.
+     * Each of them succeeds or fails on its own, in the order of the list, see DataTransaction.isCommitted().
+     * @param dataTransactions DataTransactions started on this storage.
+     */
+    public void commitAll(List<DataTransaction> dataTransactions) {
+        checkHalted();
+        for (int i = 0; i < dataTransactions.size(); i++) {
+            if (dataTransactions.get(i).isDistributed()) {
+                Shards.commitAcross(dataTransactions);
+                return;
+            }
+        }
+        engine.commitAll(dataTransactions);
+    }
+
+    /**
+     * Switches the way DataTransactions are executed. Should be called while nothing is committed.
+     * @param mode CommitMode to use.
+     * @param partitions int Number of partitions for CommitMode.PARTITIONED. Ignored otherwise.
+     */
+    public synchronized void setCommitMode(CommitMode mode, int partitions) {
+        if (mode == CommitMode.PARTITIONED && shards.length > 1) {
+            // Commits across shards exclude others by account locks, which partition threads don't take.
+            throw new IllegalArgumentException("Partitioned commit mode can't be used with several shards");
+        }
+        CommitEngine previous = engine;
+        switch (mode) {
+            case LOCKING:
+                engine = new LockingCommitEngine(this);
+                break;
+            case PARTITIONED:
+                engine = new PartitionedCommitEngine(this, partitions);
+                break;
+            case OPTIMISTIC:
+                engine = new OptimisticCommitEngine(this);
+                break;
+        }
+        previous.close();
+    }
+
+    /**
+     * Makes every commit from now on fail before it changes anything, e.g. once journal can't write records of
+     * commits already applied. Reads go on.
+     * @param cause Throwable Reason reported to committers.
+     */
+    void halt(Throwable cause) {
+        halted = cause;
+    }
+
+    /**
+     * @return true if storage refuses commits, see halt().
+     */
+    public boolean isHalted() {
+        return halted != null;
+    }
+
+    private void checkHalted() {
+        Throwable cause = halted;
+        if (cause != null) {
+            throw new IllegalStateException("Storage is halted and refuses commits", cause);
+        }
+    }
+
+    boolean isPartitioned() {
+        return engine instanceof PartitionedCommitEngine;
+    }
+
     /**
      * Requests transaction with specific id.
      * @param id long Id of requested transaction.
      * @return Transaction object or null if not present.
      */
     public Transaction getTransaction(long id) {
-        lock.lock();
-        try {
-            return transactions.get(id);
-        } finally {
-            lock.unlock();
+        return transactions.get(id);
+    }
+
+    /**
+     * Opens consistent view of storage as of a commit not older than any commit returned by now, so caller reads
+     * what it wrote. Commits that ended before others still in flight become visible only with them, so opening
+     * may wait for those; commits never wait for views. Commits run on undisturbed while view is open, but
+     * versions of balances it may read are kept, so it should be closed soon.
+     * @return new View. Should be closed.
+     */
+    public View openView() {
+        long returned = versions.getLatestEnded();
+        Versions.Reader reader = versions.open();
+        versions.await(returned);
+        return new View(this, reader, versions.getVisible());
+    }
+
+    void closeView(Versions.Reader reader) {
+        versions.close(reader);
+    }
+
+    /**
+     * @return number of open Views.
+     */
+    public int getOpenViewCount() {
+        return versions.readerCount();
+    }
+
+    Versions getVersions() {
+        return versions;
+    }
+
+    Transaction getTransaction(long id, long version) {
+        return transactions.get(id, version);
+    }
+
+    /**
+     * @return balance of account as of version, zero if there is no such account.
+     */
+    Account getAccount(long id, long version) {
+        Account account = accounts.get(id);
+        if (account == null) {
+            return new Account(id);
         }
+        // External accounts are changed without locks and don't keep versions.
+        return Account.isAccountInternal(id) ? account.balanceAt(version)
+                : new Account(id, account.getMoney(), account.getHold());
     }
 
     /**
      * Request all transactions.
+     * The copy is weakly consistent: transactions committed while it is made may or may not be included.
      * @return copy of container containing all transactions.
      */
     public Collection<Transaction> getTransactions() {
-        lock.lock();
-        try {
-            return new ArrayList<>(transactions.values());
-        } finally {
-            lock.unlock();
+        return findTransactions(null, null, null);
+    }
+
+
+    /**
+     * Request transactions matching all specified criteria.
+     * @param source Long If not null only transactions with same source will be returned.
+     * @param destination Long If not null only transactions with same destination will be returned.
+     * @param amount Long If not null only transactions with same amount will be returned.
+     * @return matching transactions ordered by id.
+     */
+    public List<Transaction> findTransactions(Long source, Long destination, Long amount) {
+        List<Transaction> result = new ArrayList<>();
+        scanTransactions(source, destination, amount, 0).forEachRemaining(result::add);
+        return result;
+    }
+
+    /**
+     * Lazily iterates over transactions matching all specified criteria in ascending order of id.
+     * Uses the most selective of secondary indexes of requested fields, together with postings of the same field
+     * in segments, and checks the rest of criteria on their ids, so cost depends on number of matching
+     * transactions rather than on total number of transactions.
+     * Nothing is copied: transactions are looked up one by one as iterator advances.
+     * @param source Long If not null only transactions with same source will be returned.
+     * @param destination Long If not null only transactions with same destination will be returned.
+     * @param amount Long If not null only transactions with same amount will be returned.
+     * @param after_id long Only transactions with id greater than this will be returned.
+     * @return iterator over matching transactions.
+     */
+    public Iterator<Transaction> scanTransactions(Long source, Long destination, Long amount, long after_id) {
+        return scanTransactions(source, destination, amount, after_id, Long.MAX_VALUE);
+    }
+
+    /**
+     * See scanTransactions(Long, Long, Long, long).
+     * @param version long Version to read, Long.MAX_VALUE for the latest state.
+     */
+    Iterator<Transaction> scanTransactions(Long source, Long destination, Long amount, long after_id,
+                                           long version) {
+        return scanTransactions(Query.of(source, destination, amount).after(after_id), version);
+    }
+
+    /**
+     * Lazily iterates over transactions matching query in its order, see Query.
+     * Transactions ordered by id are found in postings of the most selective exact field, or, if there is none,
+     * in postings of amounts within amount range, merged by id as they are read, when they are fewer than ids
+     * within id range, or in ids within id range otherwise. Transactions ordered by amount are found in sorted
+     * postings of amounts within range, walked from the first amount in order, so the first K of them cost about
+     * K steps whatever number of transactions is. The rest of criteria are checked on every transaction found.
+     * Transactions beyond installedUpTo() aren't found yet, so paging after the last id found never skips any.
+     * @param query Query Criteria and order.
+     * @return iterator over matching transactions.
+     */
+    public Iterator<Transaction> scanTransactions(Query query) {
+        return scanTransactions(query, Long.MAX_VALUE);
+    }
+
+    /**
+     * See scanTransactions(Query).
+     * @param version long Version to read, Long.MAX_VALUE for the latest state.
+     */
+    Iterator<Transaction> scanTransactions(Query query, long version) {
+        long minId = Math.max(query.getMinId(), 1);
+        long maxId = Math.min(query.getMaxId(), installedUpTo(version));
+        boolean descending = query.getOrder().descending();
+        if (query.getOrder().byAmount()) {
+            return new ScanIterator(new AmountIds(query.getMinAmount(), query.getMaxAmount(), minId, maxId,
+                    descending), query, version);
+        }
+        int field = -1;
+        Index.Postings postings = null;
+        long value = 0;
+        Long[] values = {query.getSource(), query.getDestination(), query.getAmount()};
+        Index[] indexes = {sourceIndex, destinationIndex, amountIndex};
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != null) {
+                Index.Postings candidate = indexes[i].get(values[i]);
+                if (postings == null || candidate.size() < postings.size()) {
+                    field = i;
+                    postings = candidate;
+                    value = values[i];
+                }
+            }
+        }
+        if (postings != null) {
+            if (minId > maxId) {
+                return new ScanIterator(LongStream.empty().iterator(), query, version);
+            }
+            NavigableSet<Long> ids = postings.ids().subSet(minId, true, maxId, true);
+            return new ScanIterator(new MergedIds(Arrays.asList(
+                    transactions.segmentIds(field, value, minId, maxId, descending),
+                    unboxed(descending ? ids.descendingIterator() : ids.iterator())), descending), query, version);
+        }
+        if (query.hasAmountRange() && countAmounts(query.getMinAmount(), query.getMaxAmount(), maxId - minId)
+                < maxId - minId) {
+            // Ids of every amount within range are merged by id as they are read, so limit stops reading them.
+            List<PrimitiveIterator.OfLong> ofAmounts = new ArrayList<>();
+            for (AmountCursor cursor : amountCursors(query.getMinAmount(), query.getMaxAmount(), minId, maxId,
+                    false)) {
+                do {
+                    ofAmounts.add(cursor.ids(minId, maxId, descending));
+                } while (cursor.advance());
+            }
+            return new ScanIterator(new MergedIds(ofAmounts, descending), query, version);
+        }
+        // Ids are dense, so walking them yields all transactions already ordered.
+        PrimitiveIterator.OfLong ids = minId > maxId ? LongStream.empty().iterator()
+                : descending ? LongStream.rangeClosed(minId, maxId).map(id -> maxId + minId - id).iterator()
+                : LongStream.rangeClosed(minId, maxId).iterator();
+        return new ScanIterator(ids, query, version);
+    }
+
+    /**
+     * Iterates over every transaction present now in ascending order of id, including ones scans don't find yet,
+     * see installedUpTo(). Used for copies of storage that changes made meanwhile are replayed onto.
+     * @return iterator over transactions.
+     */
+    Iterator<Transaction> copyTransactions() {
+        return new ScanIterator(LongStream.rangeClosed(1, max_transaction_id.get()).iterator(), Query.ALL,
+                Long.MAX_VALUE);
+    }
+
+    /**
+     * Ids are taken before rows are written and commits end out of order, so a transaction may still be missing
+     * while ones with greater ids are there already. Scans stop at the returned id: one after it would skip the
+     * missing transaction for good when paging by id.
+     * The shared mark only passes rows every open and future View reads, so it is advanced by readers and never
+     * costs commits anything; each call goes on from it over rows version reads.
+     * @param version long Version to read, Long.MAX_VALUE for the latest state.
+     * @return the greatest id such that every transaction up to it is present as of version.
+     */
+    long installedUpTo(long version) {
+        long last = max_transaction_id.get();
+        long horizon = versions.horizon();
+        long current = installed.get();
+        while (current < last && transactions.insertedAt(current + 1) <= horizon) {
+            installed.compareAndSet(current, current + 1);
+            current = installed.get();
+        }
+        while (current < last && isInstalled(current + 1, version)) {
+            current++;
+        }
+        return current;
+    }
+
+    /**
+     * @return true if transaction is present as of version.
+     */
+    boolean isInstalled(long id, long version) {
+        long inserted = transactions.insertedAt(id);
+        return inserted != Long.MAX_VALUE && inserted <= version;
+    }
+
+    /**
+     * @return true if transaction is present as of every version open and future Views read.
+     */
+    boolean isInstalledForAll(long id) {
+        return transactions.insertedAt(id) <= versions.horizon();
+    }
+
+    /**
+     * @return number of transactions with amounts within range, or some number greater than limit if there are
+     * more than limit of them.
+     */
+    private long countAmounts(long from, long to, long limit) {
+        long count = 0;
+        for (Segment segment : transactions.segments()) {
+            count += segment.rows(Segment.AMOUNT, segment.valueIndex(Segment.AMOUNT, from),
+                    upperIndex(segment, to));
+        }
+        Iterator<Map.Entry<Long, Index.Postings>> values = amountIndex.range(from, to, false);
+        while (count <= limit && values.hasNext()) {
+            count += values.next().getValue().size();
+        }
+        return count;
+    }
+
+    /**
+     * @return index of the least amount of segment greater than to, see Segment.valueIndex().
+     */
+    private static int upperIndex(Segment segment, long to) {
+        return to == Long.MAX_VALUE ? segment.valueCount(Segment.AMOUNT)
+                : segment.valueIndex(Segment.AMOUNT, to + 1);
+    }
+
+    /**
+     * @return cursors of in-memory index and of every segment having ids within id range, each at its first
+     * amount within range, if it has any.
+     */
+    private List<AmountCursor> amountCursors(long from, long to, long minId, long maxId, boolean descending) {
+        List<AmountCursor> cursors = new ArrayList<>();
+        if (from > to || minId > maxId) {
+            return cursors;
+        }
+        AmountCursor memory = new AmountCursor(amountIndex.range(from, to, descending));
+        if (memory.advance()) {
+            cursors.add(memory);
+        }
+        for (Segment segment : transactions.segments()) {
+            long first = segment.getFirstId();
+            if (first > maxId || first + segment.getRows() <= minId) {
+                continue;
+            }
+            AmountCursor cursor = new AmountCursor(segment, segment.valueIndex(Segment.AMOUNT, from),
+                    upperIndex(segment, to), descending);
+            if (cursor.advance()) {
+                cursors.add(cursor);
+            }
+        }
+        return cursors;
+    }
+
+    /**
+     * Ids of transactions with amounts within range and ids within id range, in order of amount and in ascending
+     * order within the same amount, merged from sorted index of amounts and postings of amounts in segments. Only
+     * amounts within range are visited, one at a time, through a heap of current amounts of index and every
+     * segment, and ids of an amount are read as they are taken.
+     */
+    private class AmountIds implements PrimitiveIterator.OfLong {
+        private final long minId;
+        private final long maxId;
+        private final PriorityQueue<AmountCursor> cursors;
+        private PrimitiveIterator.OfLong ids = LongStream.empty().iterator();
+
+        AmountIds(long from, long to, long minId, long maxId, boolean descending) {
+            this.minId = minId;
+            this.maxId = maxId;
+            Comparator<AmountCursor> order = Comparator.comparingLong(cursor -> cursor.amount);
+            cursors = new PriorityQueue<>(descending ? order.reversed() : order);
+            cursors.addAll(amountCursors(from, to, minId, maxId, descending));
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (!ids.hasNext()) {
+                if (cursors.isEmpty()) {
+                    return false;
+                }
+                long amount = cursors.peek().amount;
+                List<PrimitiveIterator.OfLong> ofAmount = new ArrayList<>(2);
+                while (!cursors.isEmpty() && cursors.peek().amount == amount) {
+                    AmountCursor cursor = cursors.poll();
+                    ofAmount.add(cursor.ids(minId, maxId, false));
+                    if (cursor.advance()) {
+                        cursors.add(cursor);
+                    }
+                }
+                ids = ofAmount.size() == 1 ? ofAmount.get(0) : new MergedIds(ofAmount, false);
+            }
+            return true;
+        }
+
+        @Override
+        public long nextLong() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return ids.nextLong();
         }
     }
 
+    /**
+     * Walks distinct amounts within range of either in-memory index or one segment.
+     */
+    private static class AmountCursor {
+        private final Iterator<Map.Entry<Long, Index.Postings>> values;
+        private final Segment segment;
+        private final int end;
+        private final int step;
+        private int position;
+        private Index.Postings postings;
+        long amount;
+
+        AmountCursor(Iterator<Map.Entry<Long, Index.Postings>> values) {
+            this.values = values;
+            this.segment = null;
+            this.end = 0;
+            this.step = 0;
+        }
 
-    Lock getAccountLock(long id) {
-        lock.lock();
-        try {
-            return accountLocks.computeIfAbsent(id, unused_key -> new ReentrantLock());
-        } finally {
-            lock.unlock();
+        /**
+         * @param from int Index of the least amount of segment within range.
+         * @param to int Index of the least amount of segment beyond range.
+         */
+        AmountCursor(Segment segment, int from, int to, boolean descending) {
+            this.values = null;
+            this.segment = segment;
+            this.step = descending ? -1 : 1;
+            this.end = descending ? from - 1 : to;
+            this.position = descending ? to : from - 1;
+        }
+
+        /**
+         * Moves to the next amount.
+         * @return false if there is none.
+         */
+        boolean advance() {
+            if (segment == null) {
+                if (!values.hasNext()) {
+                    return false;
+                }
+                Map.Entry<Long, Index.Postings> next = values.next();
+                amount = next.getKey();
+                postings = next.getValue();
+                return true;
+            }
+            position += step;
+            if (position == end) {
+                return false;
+            }
+            amount = segment.value(Segment.AMOUNT, position);
+            return true;
+        }
+
+        /**
+         * Ids are read lazily and stay readable after cursor advances.
+         * @return ids of current amount within id range, ascending or descending.
+         */
+        PrimitiveIterator.OfLong ids(long minId, long maxId, boolean descending) {
+            if (segment == null) {
+                NavigableSet<Long> ids = postings.ids().subSet(minId, true, maxId, true);
+                return unboxed(descending ? ids.descendingIterator() : ids.iterator());
+            }
+            return segment.idsAt(Segment.AMOUNT, position, minId, maxId, descending);
+        }
+    }
+
+    private static PrimitiveIterator.OfLong unboxed(Iterator<Long> ids) {
+        return new PrimitiveIterator.OfLong() {
+            @Override
+            public boolean hasNext() {
+                return ids.hasNext();
+            }
+
+            @Override
+            public long nextLong() {
+                return ids.next();
+            }
+        };
+    }
+
+    /**
+     * Merges iterators of ids, all ascending or all descending, through a heap of their next ids. Id found in
+     * several of them is returned once: id of chunk being moved to segment may be in both of them.
+     */
+    private static class MergedIds implements PrimitiveIterator.OfLong {
+        private final PriorityQueue<Head> heads;
+        private long previous = -1;
+
+        MergedIds(List<PrimitiveIterator.OfLong> iterators, boolean descending) {
+            Comparator<Head> order = Comparator.comparingLong(head -> head.next);
+            heads = new PriorityQueue<>(Math.max(iterators.size(), 1), descending ? order.reversed() : order);
+            for (PrimitiveIterator.OfLong ids : iterators) {
+                Head head = new Head(ids);
+                if (head.advance()) {
+                    heads.add(head);
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (!heads.isEmpty() && heads.peek().next == previous) {
+                Head head = heads.poll();
+                if (head.advance()) {
+                    heads.add(head);
+                }
+            }
+            return !heads.isEmpty();
+        }
+
+        @Override
+        public long nextLong() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Head head = heads.poll();
+            previous = head.next;
+            if (head.advance()) {
+                heads.add(head);
+            }
+            return previous;
+        }
+
+        private static final class Head {
+            final PrimitiveIterator.OfLong ids;
+            long next;
+
+            Head(PrimitiveIterator.OfLong ids) {
+                this.ids = ids;
+            }
+
+            boolean advance() {
+                if (!ids.hasNext()) {
+                    return false;
+                }
+                next = ids.nextLong();
+                return true;
+            }
+        }
+    }
+
+    private class ScanIterator implements Iterator<Transaction> {
+        private final PrimitiveIterator.OfLong ids;
+        private final Query query;
+        private final long version;
+        private Transaction next;
+
+        ScanIterator(PrimitiveIterator.OfLong ids, Query query, long version) {
+            this.ids = ids;
+            this.query = query;
+            this.version = version;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && ids.hasNext()) {
+                long id = ids.nextLong();
+                // Indexes are updated apart from transaction itself, so its fields are checked once more.
+                if (transactions.matches(id, query.getSource(), query.getDestination(), query.getAmount(), version)) {
+                    Transaction found = transactions.get(id, version);
+                    if (found != null && query.matches(found)) {
+                        next = found;
+                    }
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public Transaction next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Transaction result = next;
+            next = null;
+            return result;
         }
     }
 
@@ -73,48 +742,334 @@ public class Storage {
      * Return an Account object for given id. Creates new account if nothing found.
      * @param id long Id of account to search.
      * @return Account object.
+     * @throws IllegalArgumentException if account is internal and belongs to another shard.
      */
     @NotNull
     public Account getAccount(long id) {
-        lock.lock();
-        try {
-            return accounts.computeIfAbsent(id, Account::new);
-        } finally {
-            lock.unlock();
+        if (!owns(id)) {
+            throw new IllegalArgumentException("Account " + id + " belongs to another shard");
         }
-
+        return accounts.getOrCreate(id);
     }
 
-    void updateAccount(Account account) {
-        lock.lock();
-        try {
-            accounts.put(account.getId(), account);
-        } finally {
-            lock.unlock();
+    /**
+     * @return Account with specified id, or null if nothing touched it yet. Unlike getAccount(), doesn't create it.
+     */
+    public Account findAccount(long id) {
+        if (!owns(id)) {
+            throw new IllegalArgumentException("Account " + id + " belongs to another shard");
         }
+        return accounts.get(id);
+    }
+
+    /**
+     * Sets balance of account, e.g. while recovering from journal.
+     * Caller should make sure nobody else modifies the account concurrently.
+     */
+    void restoreAccount(long id, long money, long hold) {
+        getAccount(id).restore(money, hold);
+    }
+
+    /**
+     * @return state of transaction or null if it doesn't exist.
+     */
+    Transaction.State getTransactionState(long id) {
+        return transactions.state(id);
+    }
+
+    /**
+     * Fields of transaction besides state never change, so they can be read without locks.
+     * Transaction should exist.
+     */
+    long getTransactionSource(long id) {
+        return transactions.source(id);
+    }
+
+    long getTransactionDestination(long id) {
+        return transactions.destination(id);
+    }
+
+    long getTransactionAmount(long id) {
+        return transactions.amount(id);
     }
 
+    /**
+     * Changes state of existing transaction. Caller should hold locks of transaction source and destination
+     * accounts.
+     */
+    void setTransactionState(long id, Transaction.State state, long version) {
+        transactions.setState(id, state, version);
+    }
+
+    /**
+     * Replaces transaction. Caller should hold locks of transaction source and destination accounts.
+     */
     void updateTransaction(Transaction transaction) {
-        lock.lock();
-        try {
-            transactions.put(transaction.getId(), transaction);
-        } finally {
-            lock.unlock();
+        Transaction previous = transactions.get(transaction.getId());
+        transactions.put(transaction.getId(),
+                transaction.getSource(),
+                transaction.getDestination(),
+                transaction.getAmount(),
+                transaction.getState());
+        if (previous != null) {
+            reindex(previous, transaction);
+        } else {
+            index(transaction);
+        }
+    }
+
+    long insertTransaction(long source_id, long destination_id, long amount, long version) {
+        GlobalIds global = shards.length > 1 ? globalIds : null;
+        long id = global != null ? global.insert(shard, max_transaction_id) : max_transaction_id.incrementAndGet();
+        transactions.put(id, source_id, destination_id, amount, Transaction.State.INITIATED, version);
+        sourceIndex.add(source_id, id);
+        destinationIndex.add(destination_id, id);
+        amountIndex.add(amount, id);
+        return id;
+    }
+
+    private void index(Transaction transaction) {
+        sourceIndex.add(transaction.getSource(), transaction.getId());
+        destinationIndex.add(transaction.getDestination(), transaction.getId());
+        amountIndex.add(transaction.getAmount(), transaction.getId());
+    }
+
+    private void reindex(Transaction previous, Transaction transaction) {
+        long id = transaction.getId();
+        if (previous.getSource() != transaction.getSource()) {
+            sourceIndex.remove(previous.getSource(), id);
+            sourceIndex.add(transaction.getSource(), id);
+        }
+        if (previous.getDestination() != transaction.getDestination()) {
+            destinationIndex.remove(previous.getDestination(), id);
+            destinationIndex.add(transaction.getDestination(), id);
+        }
+        if (previous.getAmount() != transaction.getAmount()) {
+            amountIndex.remove(previous.getAmount(), id);
+            amountIndex.add(transaction.getAmount(), id);
+        }
+    }
+
+    /**
+     * Moves chunk of transactions into a new segment file if all its rows are installed, see installedUpTo(), at
+     * most a few of them may still change and open Views read all of them as they are: moves transactions still
+     * initiated to a small table in memory, see TransactionStore.movePending(), writes the rest to segment and
+     * attaches it, removes their ids from in-memory indexes, which then only index transactions in memory, and
+     * drops the chunk. Once transactions left in memory are confirmed or cancelled and every View reads them so,
+     * writes segment again with all of them and drops them from memory. Readers see every transaction throughout.
+     * @param number int Number of chunk, see TransactionStore.
+     * @param file Path of new segment file.
+     * @param cache BlockCache for reading the segment.
+     * @return true if chunk was moved, false if it isn't in memory, some of its rows are still being inserted or
+     * too many of its transactions may change.
+     * @throws IOException if segment can't be written.
+     */
+    boolean tierChunk(int number, Path file, BlockCache cache) throws IOException {
+        long first = (long) number << TransactionStore.CHUNK_BITS;
+        long horizon = versions.horizon();
+        if (transactions.isTiered(number)) {
+            if (!transactions.isSettled(number, horizon)) {
+                return false;
+            }
+            transactions.attach(number, Segment.write(file, transactions, first, TransactionStore.CHUNK_ROWS,
+                    id -> true, cache));
+            unindex(transactions.dropPending(number));
+            return true;
+        }
+        // Row missing below the last id may belong to commit in flight, which would then write detached chunk.
+        if (installedUpTo(horizon) < first + TransactionStore.CHUNK_ROWS - 1
+                || !transactions.isTerminal(number, horizon)) {
+            return false;
+        }
+        transactions.movePending(number);
+        Segment segment = Segment.write(file, transactions, first, TransactionStore.CHUNK_ROWS,
+                id -> !transactions.isPending(id), cache);
+        transactions.attach(number, segment);
+        for (long id = first; id < first + TransactionStore.CHUNK_ROWS; id++) {
+            if (transactions.contains(id) && !transactions.isPending(id)) {
+                unindex(id);
+            }
+        }
+        transactions.detach(number);
+        return true;
+    }
+
+    private void unindex(long... ids) {
+        for (long id : ids) {
+            sourceIndex.remove(transactions.source(id), id);
+            destinationIndex.remove(transactions.destination(id), id);
+            amountIndex.remove(transactions.amount(id), id);
+        }
+    }
+
+    /**
+     * Attaches segment written before restart to empty storage about to be recovered from journal, so its
+     * transactions aren't loaded into memory again: recovery skips them, see restoreTransaction(). Transactions
+     * initiated when the segment was written aren't in it, and recovery keeps them in memory beside it, see
+     * TransactionStore.put(). Caller should make sure nobody else modifies storage concurrently.
+     * @param number int Number of chunk, see TransactionStore.
+     * @param segment Segment of the chunk.
+     * @throws IllegalStateException if storage holds some transactions of the chunk already.
+     */
+    void attachSegment(int number, Segment segment) {
+        transactions.reattach(number, segment);
+        for (long id = segment.getFirstId(); id < segment.getFirstId() + segment.getRows(); id++) {
+            Transaction transaction = segment.get(id);
+            if (transaction != null) {
+                restoreTransfer(transaction, 1);
+                restoreMaxTransactionId(id);
+            }
+        }
+    }
+
+    /**
+     * @return true if chunk is moved to segment with all its transactions.
+     */
+    boolean isChunkTiered(int number) {
+        return transactions.isTieredEntirely(number);
+    }
+
+    /**
+     * @return number of transaction chunks moved to segment files.
+     */
+    public int getSegmentCount() {
+        return transactions.segmentCount();
+    }
+
+    /**
+     * @return total size of segment files in bytes.
+     */
+    public long getSegmentBytes() {
+        return transactions.segmentBytes();
+    }
+
+    /**
+     * @return copy of list of all accounts. Accounts added concurrently may or may not be included.
+     */
+    Collection<Account> getAccounts() {
+        return accounts.values();
+    }
+
+    long getMaxTransactionId() {
+        return max_transaction_id.get();
+    }
+
+    /**
+     * Caller should make sure nobody else modifies storage concurrently. Transactions restored up to id are found
+     * by scans as installedUpTo() passes them, see restoreInstalled().
+     */
+    void restoreMaxTransactionId(long id) {
+        max_transaction_id.accumulateAndGet(id, Math::max);
+    }
+
+    /**
+     * Lets scans find every transaction up to id even if some are missing, after bulk recovery restored all that
+     * will ever be there: ids taken by commits lost in a crash are never restored, and installedUpTo() would stop
+     * at the first of them for good. Records applied one by one, e.g. by Replica, arrive in order of commits
+     * rather than ids, so a missing transaction may still come and they leave installedUpTo() to pass it.
+     * @param id long Id every transaction up to which is restored or will never be.
+     */
+    void restoreInstalled(long id) {
+        installed.accumulateAndGet(Math.min(id, max_transaction_id.get()), Math::max);
+    }
+
+    /**
+     * Puts transaction with its own id into storage, e.g. while recovering from journal.
+     * Caller should make sure nobody else modifies storage concurrently.
+     */
+    void restoreTransaction(Transaction transaction) {
+        // Transaction of segment attached before recovery is there in its final state, see attachSegment().
+        if (transactions.isInSegment(transaction.getId())) {
+            restoreMaxTransactionId(transaction.getId());
+            return;
+        }
+        // Aggregates of accounts follow the transaction from what it was to what it is.
+        Transaction previous = transactions.get(transaction.getId());
+        if (previous != null) {
+            restoreTransfer(previous, -1);
+        }
+        restoreTransfer(transaction, 1);
+        updateTransaction(transaction);
+        restoreMaxTransactionId(transaction.getId());
+    }
+
+    private void restoreTransfer(Transaction transaction, int sign) {
+        if (Account.isAccountInternal(transaction.getSource()) && owns(transaction.getSource())) {
+            getAccount(transaction.getSource()).restoreTransfer(true, transaction.getState(),
+                    transaction.getAmount(), sign);
+        }
+        if (Account.isAccountInternal(transaction.getDestination()) && owns(transaction.getDestination())) {
+            getAccount(transaction.getDestination()).restoreTransfer(false, transaction.getState(),
+                    transaction.getAmount(), sign);
+        }
+    }
+
+    /**
+     * @return counters of commits since start.
+     */
+    public CommitMetrics getCommitMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @param state Transaction.State to count.
+     * @return number of transactions in state.
+     */
+    public long getTransactionCount(Transaction.State state) {
+        return transactions.count(state);
+    }
+
+    /**
+     * Finds accounts whose locks were most often found taken by other commits. Scans all accounts.
+     * @param limit int Maximum number of accounts to return.
+     * @return ids of accounts mapped to number of contentions, in descending order of contentions. Accounts
+     * without contention are omitted.
+     */
+    public Map<Long, Long> getMostContendedAccounts(int limit) {
+        // Counts keep growing, so every one is read once: {contentions, id}.
+        PriorityQueue<long[]> top = new PriorityQueue<>(Comparator.comparingLong((long[] entry) -> entry[0]));
+        for (Account account : accounts.values()) {
+            long contentions = account.contentions();
+            if (contentions > 0 && limit > 0) {
+                top.add(new long[]{contentions, account.getId()});
+                if (top.size() > limit) {
+                    top.poll();
+                }
+            }
+        }
+        List<long[]> sorted = new ArrayList<>(top);
+        sorted.sort(Comparator.comparingLong((long[] entry) -> entry[0]).reversed());
+        Map<Long, Long> result = new LinkedHashMap<>();
+        for (long[] entry : sorted) {
+            result.put(entry[1], entry[0]);
+        }
+        return result;
+    }
+
+    /**
+     * Registers listener notified about every successful commit.
+     * @param listener CommitListener to register.
+     */
+    public void addCommitListener(CommitListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * @param listener CommitListener to unregister.
+     */
+    public void removeCommitListener(CommitListener listener) {
+        listeners.remove(listener);
+    }
+
+    void committed(Changes changes) {
+        for (CommitListener listener : listeners) {
+            listener.committed(changes);
         }
     }
 
-    Long insertTransaction(long source_id, long destination_id, long amount) {
-        lock.lock();
-        try {
-            Transaction tr = new Transaction(max_transaction_id + 1,
-                    source_id,
-                    destination_id,
-                    amount, Transaction.State.INITIATED);
-            transactions.put(tr.getId(), tr);
-            max_transaction_id++;
-            return tr.getId();
-        } finally {
-            lock.unlock();
+    void released(Changes changes) {
+        for (CommitListener listener : listeners) {
+            listener.released(changes);
         }
     }
 
@@ -123,9 +1078,13 @@ public class Storage {
      */
     public void reset() {
         accounts.clear();
-        accountLocks.clear();
         transactions.clear();
-        max_transaction_id = 0;
+        sourceIndex.clear();
+        destinationIndex.clear();
+        amountIndex.clear();
+        max_transaction_id.set(0);
+        installed.set(0);
+        halted = null;
     }
 
 }
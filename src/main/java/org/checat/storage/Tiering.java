@@ -0,0 +1,164 @@
+package org.checat.storage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Periodically moves chunks of transactions that will never change out of memory into segment files.
+ *
+ * Chunk is moved once it is older than the newest hotTransactions ones and at most a few of its transactions are
+ * still initiated, see Storage.tierChunk(). Those stay in memory until they are confirmed or cancelled, then the
+ * segment is written again with them. Reads of moved transactions go through memory-mapped segment
+ * and shared BlockCache.
+ *
+ * Segments hold the final state of rows that journal and snapshots also hold. Storage recovered from the journal
+ * they were written next to attaches them again before recovery, which then keeps in memory only transactions
+ * that aren't in segments, see Storage.attachSegment(). Otherwise, e.g. when follower becomes primary, they are
+ * deleted and written anew.
+ */
+public class Tiering implements Closeable {
+
+    private static final Logger LOGGER = Logger.getLogger(Tiering.class.getName());
+
+    static final String SEGMENT_PREFIX = "segment-";
+    static final String SEGMENT_SUFFIX = ".dat";
+
+    private final Storage storage;
+    private final Path directory;
+    private final long hotTransactions;
+    private final long intervalSeconds;
+    private final BlockCache cache;
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "tiering");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Prepares moving transactions of storage, see start().
+     * @param storage Storage to move transactions of.
+     * @param directory Path Directory of segment files. Created if absent.
+     * @param hotTransactions long Number of the newest transactions always kept in memory.
+     * @param intervalSeconds long Interval between checks for chunks to move.
+     * @param cacheBlocks int Number of decoded segment blocks kept in memory.
+     * @param reattach boolean true to attach segments found in directory to empty storage about to be recovered
+     * from journal, false to delete them. Segments that can't be read are deleted either way.
+     * @throws IOException if directory can't be prepared.
+     */
+    public Tiering(Storage storage, Path directory, long hotTransactions, long intervalSeconds, int cacheBlocks,
+                   boolean reattach) throws IOException {
+        this.storage = storage;
+        this.directory = directory;
+        this.hotTransactions = hotTransactions;
+        this.intervalSeconds = intervalSeconds;
+        this.cache = new BlockCache(cacheBlocks);
+        Files.createDirectories(directory);
+        int attached = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*")) {
+            for (Path file : files) {
+                if (reattach && attach(file)) {
+                    attached++;
+                } else {
+                    Files.delete(file);
+                }
+            }
+        }
+        if (attached > 0) {
+            LOGGER.log(Level.INFO, "Attached {0} segments of transactions.", attached);
+        }
+    }
+
+    /**
+     * @return true if file is segment of the chunk its name tells and is attached to storage.
+     */
+    private boolean attach(Path file) {
+        String name = file.getFileName().toString();
+        if (!name.endsWith(SEGMENT_SUFFIX)) {
+            return false;
+        }
+        try {
+            int number = Integer.parseInt(name.substring(SEGMENT_PREFIX.length(),
+                    name.length() - SEGMENT_SUFFIX.length()));
+            Segment segment = Segment.open(file, cache);
+            if (segment.getFirstId() != (long) number << TransactionStore.CHUNK_BITS
+                    || segment.getRows() != TransactionStore.CHUNK_ROWS) {
+                throw new IOException("Segment doesn't hold chunk " + number);
+            }
+            storage.attachSegment(number, segment);
+            return true;
+        } catch (IOException | RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Can't attach segment " + file + ", deleting it.", e);
+            return false;
+        }
+    }
+
+    /**
+     * Starts moving transactions periodically. Storage should be recovered by then.
+     */
+    public void start() {
+        executor.scheduleWithFixedDelay(this::tierSafely, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    private void tierSafely() {
+        try {
+            tier();
+        } catch (IOException | RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Tiering failed.", e);
+        }
+    }
+
+    /**
+     * Moves every eligible chunk now.
+     * @return number of moved chunks.
+     * @throws IOException if segment can't be written.
+     */
+    int tier() throws IOException {
+        long coldUpTo = storage.getMaxTransactionId() - hotTransactions;
+        int moved = 0;
+        for (int number = 0; ((long) (number + 1) << TransactionStore.CHUNK_BITS) - 1 <= coldUpTo; number++) {
+            if (!storage.isChunkTiered(number) && storage.tierChunk(number,
+                    directory.resolve(String.format("%s%08d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX)), cache)) {
+                moved++;
+            }
+        }
+        if (moved > 0) {
+            LOGGER.log(Level.INFO, "Moved {0} chunks of transactions to segments.", moved);
+        }
+        return moved;
+    }
+
+    /**
+     * @return number of reads of moved transactions served by cached block.
+     */
+    public long getCacheHits() {
+        return cache.getHits();
+    }
+
+    /**
+     * @return number of reads of moved transactions that decoded block from segment file.
+     */
+    public long getCacheMisses() {
+        return cache.getMisses();
+    }
+
+    /**
+     * Stops moving transactions. Moved ones stay readable from their segments.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
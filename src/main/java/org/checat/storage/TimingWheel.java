@@ -0,0 +1,115 @@
+package org.checat.storage;
+
+import java.util.Arrays;
+import java.util.function.LongConsumer;
+
+/**
+ * Hierarchical timing wheel of primitive ids with deadlines counted in ticks.
+ *
+ * Level L has SLOTS buckets of SLOTS^L ticks each. Id is put on the lowest level whose range covers time left to
+ * its deadline, into bucket picked by the deadline's digit of that level. When current tick crosses the start of
+ * a bucket of level L > 0, the bucket is emptied onto lower levels; the bucket of level 0 matching current tick
+ * holds exactly the expired ids. Scheduling and expiry thus cost O(1) per level for every id, independently of
+ * number of scheduled ids, and buckets are primitive arrays reused after they are emptied.
+ *
+ * Not thread safe.
+ */
+class TimingWheel {
+    private static final int LEVEL_BITS = 6;
+    private static final int SLOTS = 1 << LEVEL_BITS;
+    private static final int MASK = SLOTS - 1;
+    private static final int LEVELS = 4;
+    /**
+     * Deadline should be less than this number of ticks ahead.
+     */
+    static final long MAX_DELAY = 1L << (LEVEL_BITS * LEVELS);
+    private static final int INITIAL_BUCKET = 8;
+
+    // Bucket level * SLOTS + slot holds pairs of id and deadline.
+    private final long[][] buckets = new long[LEVELS * SLOTS][];
+    private final int[] sizes = new int[LEVELS * SLOTS];
+    private long tick;
+    private int size;
+
+    /**
+     * @param tick long Current tick.
+     */
+    TimingWheel(long tick) {
+        this.tick = tick;
+    }
+
+    long getTick() {
+        return tick;
+    }
+
+    /**
+     * @return number of scheduled ids.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Schedules id to expire at deadline. Deadline not after current tick expires at the next one.
+     * @param id long Id to schedule.
+     * @param deadline long Tick to expire at.
+     * @throws IllegalArgumentException if deadline is MAX_DELAY or more ticks ahead.
+     */
+    void schedule(long id, long deadline) {
+        if (deadline - tick >= MAX_DELAY) {
+            throw new IllegalArgumentException("Deadline " + deadline + " is too far from tick " + tick);
+        }
+        add(id, Math.max(deadline, tick + 1));
+        size++;
+    }
+
+    private void add(long id, long deadline) {
+        long delay = deadline - tick;
+        int level = delay < SLOTS ? 0 : (63 - Long.numberOfLeadingZeros(delay)) / LEVEL_BITS;
+        int bucket = level * SLOTS + ((int) (deadline >>> (level * LEVEL_BITS)) & MASK);
+        long[] entries = buckets[bucket];
+        int used = sizes[bucket];
+        if (entries == null) {
+            entries = buckets[bucket] = new long[2 * INITIAL_BUCKET];
+        } else if (used == entries.length) {
+            entries = buckets[bucket] = Arrays.copyOf(entries, used * 2);
+        }
+        entries[used] = id;
+        entries[used + 1] = deadline;
+        sizes[bucket] = used + 2;
+    }
+
+    /**
+     * Moves to the next tick.
+     * @param expired LongConsumer Receives every id whose deadline is the new tick.
+     */
+    void advance(LongConsumer expired) {
+        tick++;
+        for (int level = LEVELS - 1; level > 0; level--) {
+            if ((tick & ((1L << (level * LEVEL_BITS)) - 1)) == 0) {
+                cascade(level * SLOTS + ((int) (tick >>> (level * LEVEL_BITS)) & MASK));
+            }
+        }
+        int bucket = (int) tick & MASK;
+        long[] entries = buckets[bucket];
+        int used = sizes[bucket];
+        sizes[bucket] = 0;
+        for (int i = 0; i < used; i += 2) {
+            expired.accept(entries[i]);
+        }
+        size -= used / 2;
+    }
+
+    /**
+     * Spreads bucket over lower levels. Deadlines of its entries are at or after current tick and closer than
+     * range of bucket's level, so none of them returns into the bucket.
+     */
+    private void cascade(int bucket) {
+        long[] entries = buckets[bucket];
+        int used = sizes[bucket];
+        sizes[bucket] = 0;
+        for (int i = 0; i < used; i += 2) {
+            add(entries[i], entries[i + 1]);
+        }
+    }
+}
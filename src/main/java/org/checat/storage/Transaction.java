@@ -11,43 +11,6 @@ public class Transaction {
     public long amount;
     public State state;
 
-    /**
-     * Makes a copy of transaction with state changed to State.CANCELED.
-     * @param transaction transaction to transform
-     * @return new transformed transaction
-     */
-    public static Transaction cancelTransaction(Transaction transaction) {
-        return new Transaction(
-                transaction.getId(),
-                transaction.getSource(),
-                transaction.getDestination(),
-                transaction.getAmount(),
-                State.CANCELED);
-    }
-
-    /**
-     * Makes a copy of transaction with state changed to State.CONFIRMED.
-     * @param transaction transaction to transform
-     * @return new transformed transaction
-     */
-    public static Transaction confirmTransaction(Transaction transaction) {
-        return new Transaction(
-                transaction.getId(),
-                transaction.getSource(),
-                transaction.getDestination(),
-                transaction.getAmount(),
-                State.CONFIRMED);
-    }
-
-    /**
-     * Checks that transaction is in State.INITIATED state.
-     * @param transaction Transaction object to check.
-     * @return true if transaction is in State.INITIATED state, false otherwise.
-     */
-    public static boolean isTransactionInitiated(Transaction transaction) {
-        return transaction.getState().equals(State.INITIATED);
-    }
-
     public enum State {
         INITIATED,
         CONFIRMED,
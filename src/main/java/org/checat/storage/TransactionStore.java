@@ -0,0 +1,767 @@
+package org.checat.storage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Columnar storage of transactions indexed by id.
+ *
+ * Ids are dense and sequential, so a transaction is a row number: no keys, map nodes or objects are kept per
+ * transaction here. Source, destination and amount are kept in primitive long columns and state in one byte, 25
+ * bytes per transaction, plus versions of commits that inserted the row and changed its state, 16 more bytes.
+ * Columns grow in chunks of fixed size, so growth never copies existing rows. Transaction objects are created only
+ * when requested.
+ *
+ * That is not the whole cost of a transaction in memory: secondary indexes of Storage hold its boxed id in a skip
+ * list node for each of source, destination and amount, about 55 bytes each, so a row in memory costs about 200
+ * bytes in total. Rows moved to segments leave the indexes, see Segment.
+ *
+ * States of four rows are packed into one int of AtomicIntegerArray. Row is written by setting its state last,
+ * so reader seeing non-empty state also sees all other columns of the row.
+ *
+ * State of a row changes at most once, from Transaction.State.INITIATED, so reader of an older version than the
+ * change sees it initiated, and row inserted after the version isn't there at all, see Versions.
+ *
+ * Chunk whose rows will never change may be moved into a Segment file, see Storage.tierChunk(). Segment is
+ * attached before chunk is detached, so readers find every row in one of them; rows of detached chunks can't be
+ * written. A few rows still in Transaction.State.INITIATED don't keep the chunk in memory: they are moved into
+ * Pending, a small table consulted before the segment, which takes their state changes from then on. Chunk marks
+ * such rows MOVED, so writers and readers of the chunk turn to Pending even before the chunk is detached.
+ */
+class TransactionStore {
+    static final int CHUNK_BITS = 16;
+    static final int CHUNK_ROWS = 1 << CHUNK_BITS;
+    private static final int ROW_MASK = CHUNK_ROWS - 1;
+    private static final int ABSENT = 0;
+    // State of row of chunk being moved to segment, kept by Pending since.
+    private static final int MOVED = 0xFF;
+    // Initiated rows that may be left in memory for a chunk moved to segment, about 50 bytes each.
+    static final int MAX_PENDING_ROWS = CHUNK_ROWS / 64;
+    private static final Transaction.State[] STATES = Transaction.State.values();
+
+    private static final class Chunk {
+        final long[] source = new long[CHUNK_ROWS];
+        final long[] destination = new long[CHUNK_ROWS];
+        final long[] amount = new long[CHUNK_ROWS];
+        final long[] inserted = new long[CHUNK_ROWS];
+        final long[] changed = new long[CHUNK_ROWS];
+        // Byte of row r is (r & 3)-th byte of int r >> 2, 0 if row is absent, state ordinal + 1 otherwise.
+        final AtomicIntegerArray states = new AtomicIntegerArray(CHUNK_ROWS / 4);
+
+        int state(int row) {
+            return (states.get(row >> 2) >>> ((row & 3) << 3)) & 0xFF;
+        }
+
+        /**
+         * Sets state of row if it is expected one.
+         * @return true if state was set.
+         */
+        boolean casState(int row, int expected, int state) {
+            int index = row >> 2;
+            int shift = (row & 3) << 3;
+            while (true) {
+                int word = states.get(index);
+                if (((word >>> shift) & 0xFF) != expected) {
+                    return false;
+                }
+                int updated = word & ~(0xFF << shift) | state << shift;
+                if (states.compareAndSet(index, word, updated)) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Sets state of row unless it is MOVED.
+         * @return previous state of row.
+         */
+        int setState(int row, int state) {
+            int index = row >> 2;
+            int shift = (row & 3) << 3;
+            while (true) {
+                int word = states.get(index);
+                if (((word >>> shift) & 0xFF) == MOVED) {
+                    return MOVED;
+                }
+                int updated = word & ~(0xFF << shift) | state << shift;
+                if (states.compareAndSet(index, word, updated)) {
+                    return (word >>> shift) & 0xFF;
+                }
+            }
+        }
+    }
+
+    /**
+     * Rows of chunk moved to segment that were initiated then, so their state may still change. Ids ascend. Row is
+     * written the same way as in Chunk, state last. Rows are added only while restoring, see put().
+     */
+    private static final class Pending {
+        final long[] ids;
+        final long[] source;
+        final long[] destination;
+        final long[] amount;
+        final long[] changed;
+        // 0 if row is absent, state ordinal + 1 otherwise.
+        final AtomicIntegerArray states;
+
+        Pending(long[] ids) {
+            this.ids = ids;
+            source = new long[ids.length];
+            destination = new long[ids.length];
+            amount = new long[ids.length];
+            changed = new long[ids.length];
+            states = new AtomicIntegerArray(ids.length);
+        }
+
+        /**
+         * @return row of id, negative if there is none.
+         */
+        int row(long id) {
+            return Arrays.binarySearch(ids, id);
+        }
+
+        /**
+         * @return copy of this with absent row of id added, see put().
+         */
+        Pending with(long id) {
+            int at = -row(id) - 1;
+            long[] grown = new long[ids.length + 1];
+            System.arraycopy(ids, 0, grown, 0, at);
+            grown[at] = id;
+            System.arraycopy(ids, at, grown, at + 1, ids.length - at);
+            Pending copy = new Pending(grown);
+            for (int row = 0; row < ids.length; row++) {
+                int to = row < at ? row : row + 1;
+                copy.source[to] = source[row];
+                copy.destination[to] = destination[row];
+                copy.amount[to] = amount[row];
+                copy.changed[to] = changed[row];
+                copy.states.set(to, states.get(row));
+            }
+            return copy;
+        }
+
+        /**
+         * @return true if every row is absent or in its final state and none changed after horizon.
+         */
+        boolean isSettled(long horizon) {
+            int initiated = Transaction.State.INITIATED.ordinal() + 1;
+            for (int row = 0; row < ids.length; row++) {
+                if (states.get(row) == initiated || changed[row] > horizon) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private volatile Chunk[] chunks = new Chunk[0];
+    // Segments of chunks moved out of memory, indexed by chunk number.
+    private volatile Segment[] segments = new Segment[0];
+    // Initiated rows of chunks moved out of memory, indexed by chunk number, see Pending.
+    private volatile Pending[] pendings = new Pending[0];
+    // Number of rows in every state, indexed by packed state.
+    private volatile LongAdder[] counts = newCounts();
+
+    private static LongAdder[] newCounts() {
+        LongAdder[] counts = new LongAdder[STATES.length + 1];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = new LongAdder();
+        }
+        return counts;
+    }
+
+    private void count(int previous, int state) {
+        LongAdder[] current = counts;
+        current[previous].decrement();
+        current[state].increment();
+    }
+
+    private Chunk chunk(long id) {
+        if (id < 0) {
+            return null;
+        }
+        long number = id >>> CHUNK_BITS;
+        Chunk[] current = chunks;
+        return number < current.length ? current[(int) number] : null;
+    }
+
+    private Segment segment(long id) {
+        if (id < 0) {
+            return null;
+        }
+        long number = id >>> CHUNK_BITS;
+        Segment[] current = segments;
+        return number < current.length ? current[(int) number] : null;
+    }
+
+    /**
+     * @return Pending holding row of id or null if there is none.
+     */
+    private Pending pending(long id) {
+        if (id < 0) {
+            return null;
+        }
+        long number = id >>> CHUNK_BITS;
+        Pending[] current = pendings;
+        Pending pending = number < current.length ? current[(int) number] : null;
+        return pending != null && pending.row(id) >= 0 ? pending : null;
+    }
+
+    /**
+     * @return true if row of chunk is moved to Pending.
+     */
+    private static boolean isMoved(Chunk chunk, long id) {
+        return chunk.state((int) (id & ROW_MASK)) == MOVED;
+    }
+
+    private static IllegalStateException tiered(long id) {
+        return new IllegalStateException("Transaction " + id + " is moved to segment and can't change");
+    }
+
+    private synchronized Chunk createChunk(long id) {
+        int number = (int) (id >>> CHUNK_BITS);
+        if (segment(id) != null) {
+            throw tiered(id);
+        }
+        Chunk[] current = chunks;
+        if (number >= current.length) {
+            current = Arrays.copyOf(current, Math.max(number + 1, current.length * 2));
+        }
+        if (current[number] == null) {
+            current[number] = new Chunk();
+        }
+        chunks = current;
+        return current[number];
+    }
+
+    /**
+     * Writes all columns of row visible to every version, e.g. while restoring.
+     */
+    void put(long id, long source, long destination, long amount, Transaction.State state) {
+        put(id, source, destination, amount, state, 0);
+    }
+
+    /**
+     * Writes all columns of row. Caller should make sure nobody writes the same row concurrently. Row of chunk
+     * moved to segment can only be restored, e.g. transaction that was initiated when the chunk was moved, and is
+     * then kept in Pending.
+     * @param version long Version of commit writing the row, 0 if row is restored and visible to every version.
+     */
+    void put(long id, long source, long destination, long amount, Transaction.State state, long version) {
+        Chunk chunk = chunk(id);
+        if (chunk == null && segment(id) != null) {
+            putPending(id, source, destination, amount, state);
+            return;
+        }
+        if (chunk == null) {
+            chunk = createChunk(id);
+        }
+        int row = (int) (id & ROW_MASK);
+        chunk.source[row] = source;
+        chunk.destination[row] = destination;
+        chunk.amount[row] = amount;
+        chunk.inserted[row] = version;
+        chunk.changed[row] = version;
+        int previous = chunk.setState(row, state.ordinal() + 1);
+        if (previous == MOVED) {
+            throw tiered(id);
+        }
+        count(previous, state.ordinal() + 1);
+    }
+
+    private synchronized void putPending(long id, long source, long destination, long amount,
+                                         Transaction.State state) {
+        int number = (int) (id >>> CHUNK_BITS);
+        Pending pending = pending(id);
+        if (pending == null) {
+            Pending[] current = pendings;
+            if (number >= current.length) {
+                current = Arrays.copyOf(current, Math.max(number + 1, current.length * 2));
+            }
+            pending = current[number] != null ? current[number].with(id) : new Pending(new long[]{id});
+            current[number] = pending;
+            pendings = current;
+        }
+        int row = pending.row(id);
+        pending.source[row] = source;
+        pending.destination[row] = destination;
+        pending.amount[row] = amount;
+        pending.changed[row] = 0;
+        count(pending.states.getAndSet(row, state.ordinal() + 1), state.ordinal() + 1);
+    }
+
+    /**
+     * Changes state of existing row.
+     * @return true if row exists and its state was expected one.
+     */
+    boolean compareAndSetState(long id, Transaction.State expected, Transaction.State state) {
+        Chunk chunk = chunk(id);
+        if (chunk != null && chunk.casState((int) (id & ROW_MASK), expected.ordinal() + 1, state.ordinal() + 1)) {
+            count(expected.ordinal() + 1, state.ordinal() + 1);
+            return true;
+        }
+        Pending pending = chunk == null || isMoved(chunk, id) ? pending(id) : null;
+        if (pending != null && pending.states.compareAndSet(pending.row(id), expected.ordinal() + 1,
+                state.ordinal() + 1)) {
+            count(expected.ordinal() + 1, state.ordinal() + 1);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Sets state of existing row.
+     * @param version long Version of commit changing the state.
+     */
+    void setState(long id, Transaction.State state, long version) {
+        Chunk chunk = chunk(id);
+        if (chunk != null) {
+            int row = (int) (id & ROW_MASK);
+            chunk.changed[row] = version;
+            int previous = chunk.setState(row, state.ordinal() + 1);
+            if (previous != MOVED) {
+                count(previous, state.ordinal() + 1);
+                return;
+            }
+        }
+        Pending pending = pending(id);
+        if (pending == null) {
+            throw tiered(id);
+        }
+        int row = pending.row(id);
+        pending.changed[row] = version;
+        count(pending.states.getAndSet(row, state.ordinal() + 1), state.ordinal() + 1);
+    }
+
+    /**
+     * Column getters of existing rows. Only state of a row changes after it is written, so chunk keeps columns of
+     * MOVED rows as well.
+     */
+    long source(long id) {
+        Chunk chunk = chunk(id);
+        if (chunk != null) {
+            return chunk.source[(int) (id & ROW_MASK)];
+        }
+        Pending pending = pending(id);
+        return pending != null ? pending.source[pending.row(id)] : segment(id).source(id);
+    }
+
+    long destination(long id) {
+        Chunk chunk = chunk(id);
+        if (chunk != null) {
+            return chunk.destination[(int) (id & ROW_MASK)];
+        }
+        Pending pending = pending(id);
+        return pending != null ? pending.destination[pending.row(id)] : segment(id).destination(id);
+    }
+
+    long amount(long id) {
+        Chunk chunk = chunk(id);
+        if (chunk != null) {
+            return chunk.amount[(int) (id & ROW_MASK)];
+        }
+        Pending pending = pending(id);
+        return pending != null ? pending.amount[pending.row(id)] : segment(id).amount(id);
+    }
+
+    boolean contains(long id) {
+        return state(id) != null;
+    }
+
+    /**
+     * @return state of transaction or null if it is absent.
+     */
+    Transaction.State state(long id) {
+        Chunk chunk = chunk(id);
+        if (chunk == null || isMoved(chunk, id)) {
+            Pending pending = pending(id);
+            if (pending != null) {
+                int state = pending.states.get(pending.row(id));
+                return state == ABSENT ? null : STATES[state - 1];
+            }
+            Segment segment = segment(id);
+            return segment != null ? segment.state(id) : null;
+        }
+        int state = chunk.state((int) (id & ROW_MASK));
+        return state == ABSENT ? null : STATES[state - 1];
+    }
+
+    /**
+     * State of row as of version. State is read before versions, which are written before it.
+     */
+    private static int state(Chunk chunk, int row, long version) {
+        int state = chunk.state(row);
+        if (state == ABSENT || chunk.inserted[row] > version) {
+            return ABSENT;
+        }
+        return chunk.changed[row] > version ? Transaction.State.INITIATED.ordinal() + 1 : state;
+    }
+
+    /**
+     * State of row of Pending as of version, see state(Chunk, int, long).
+     */
+    private static int state(Pending pending, int row, long version) {
+        int state = pending.states.get(row);
+        if (state == ABSENT) {
+            return ABSENT;
+        }
+        return pending.changed[row] > version ? Transaction.State.INITIATED.ordinal() + 1 : state;
+    }
+
+    /**
+     * @return version of commit that inserted row, 0 if row is restored or in segment, Long.MAX_VALUE if row is
+     * absent.
+     */
+    long insertedAt(long id) {
+        Chunk chunk = chunk(id);
+        if (chunk == null) {
+            Pending pending = pending(id);
+            if (pending != null) {
+                return pending.states.get(pending.row(id)) != ABSENT ? 0 : Long.MAX_VALUE;
+            }
+            Segment segment = segment(id);
+            return segment != null && segment.state(id) != null ? 0 : Long.MAX_VALUE;
+        }
+        int row = (int) (id & ROW_MASK);
+        return chunk.state(row) == ABSENT ? Long.MAX_VALUE : chunk.inserted[row];
+    }
+
+    /**
+     * Checks that transaction exists and matches all not null criteria.
+     */
+    boolean matches(long id, Long source, Long destination, Long amount) {
+        return matches(id, source, destination, amount, Long.MAX_VALUE);
+    }
+
+    /**
+     * Checks that transaction exists as of version and matches all not null criteria.
+     * @param version long Version to read, Long.MAX_VALUE for the latest state.
+     */
+    boolean matches(long id, Long source, Long destination, Long amount, long version) {
+        Chunk chunk = chunk(id);
+        if (chunk == null || isMoved(chunk, id)) {
+            Pending pending = pending(id);
+            if (pending != null) {
+                int row = pending.row(id);
+                return state(pending, row, version) != ABSENT
+                        && (source == null || source == pending.source[row])
+                        && (destination == null || destination == pending.destination[row])
+                        && (amount == null || amount == pending.amount[row]);
+            }
+            Segment segment = segment(id);
+            return segment != null && segment.matches(id, source, destination, amount);
+        }
+        int row = (int) (id & ROW_MASK);
+        return state(chunk, row, version) != ABSENT
+                && (source == null || source == chunk.source[row])
+                && (destination == null || destination == chunk.destination[row])
+                && (amount == null || amount == chunk.amount[row]);
+    }
+
+    /**
+     * @return Transaction object built from row or null if it is absent.
+     */
+    Transaction get(long id) {
+        return get(id, Long.MAX_VALUE);
+    }
+
+    /**
+     * Rows in segments are older than any version open View may read, see Versions.horizon().
+     * @param version long Version to read, Long.MAX_VALUE for the latest state.
+     * @return Transaction object built from row as of version or null if it is absent.
+     */
+    Transaction get(long id, long version) {
+        Chunk chunk = chunk(id);
+        if (chunk == null || isMoved(chunk, id)) {
+            Pending pending = pending(id);
+            if (pending != null) {
+                int row = pending.row(id);
+                int state = state(pending, row, version);
+                return state == ABSENT ? null : new Transaction(id, pending.source[row], pending.destination[row],
+                        pending.amount[row], STATES[state - 1]);
+            }
+            Segment segment = segment(id);
+            return segment != null ? segment.get(id) : null;
+        }
+        int row = (int) (id & ROW_MASK);
+        int state = state(chunk, row, version);
+        if (state == ABSENT) {
+            return null;
+        }
+        return new Transaction(id, chunk.source[row], chunk.destination[row], chunk.amount[row], STATES[state - 1]);
+    }
+
+    /**
+     * @return number of rows in state. Exact when no row changes concurrently.
+     */
+    long count(Transaction.State state) {
+        return counts[state.ordinal() + 1].sum();
+    }
+
+    /**
+     * @param horizon long The oldest version open Views may read.
+     * @return true if chunk is in memory, at most MAX_PENDING_ROWS of its rows are in Transaction.State.INITIATED,
+     * so the rest will never change, and none changed after horizon, so every View reads them as they are. Rows
+     * still absent are expected to stay absent, which caller should make sure of, see Storage.installedUpTo().
+     */
+    boolean isTerminal(int number, long horizon) {
+        Chunk[] current = chunks;
+        if (number >= current.length || current[number] == null) {
+            return false;
+        }
+        Chunk chunk = current[number];
+        int initiated = Transaction.State.INITIATED.ordinal() + 1;
+        int pending = 0;
+        for (int row = 0; row < CHUNK_ROWS; row++) {
+            if (chunk.state(row) == initiated && ++pending > MAX_PENDING_ROWS || chunk.changed[row] > horizon) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param horizon long The oldest version open Views may read.
+     * @return true if chunk is moved to segment while some of its rows are kept in Pending, none of which will
+     * change any more or changed after horizon, so segment may be written again with them, see dropPending().
+     */
+    boolean isSettled(int number, long horizon) {
+        Pending[] current = pendings;
+        return isTiered(number) && number < current.length && current[number] != null
+                && current[number].isSettled(horizon);
+    }
+
+    /**
+     * @return true if chunk is moved to segment.
+     */
+    boolean isTiered(int number) {
+        Segment[] current = segments;
+        return number < current.length && current[number] != null;
+    }
+
+    /**
+     * @return true if chunk is moved to segment and none of its rows is kept in Pending.
+     */
+    boolean isTieredEntirely(int number) {
+        Pending[] current = pendings;
+        return isTiered(number) && (number >= current.length || current[number] == null);
+    }
+
+    /**
+     * @return true if row is kept in Pending rather than in chunk or segment.
+     */
+    boolean isPending(long id) {
+        Chunk chunk = chunk(id);
+        return (chunk == null || isMoved(chunk, id)) && pending(id) != null;
+    }
+
+    /**
+     * Moves initiated rows of chunk into Pending before chunk is written to segment, see isTerminal(). Row that
+     * is confirmed or cancelled meanwhile stays in chunk, and Pending keeps a copy of it.
+     * @return ids of rows moved, ascending.
+     */
+    synchronized long[] movePending(int number) {
+        Chunk chunk = chunks[number];
+        long first = (long) number << CHUNK_BITS;
+        int initiated = Transaction.State.INITIATED.ordinal() + 1;
+        long[] ids = new long[MAX_PENDING_ROWS];
+        int size = 0;
+        for (int row = 0; row < CHUNK_ROWS && size < ids.length; row++) {
+            if (chunk.state(row) == initiated) {
+                ids[size++] = first + row;
+            }
+        }
+        if (size == 0) {
+            return new long[0];
+        }
+        Pending pending = new Pending(Arrays.copyOf(ids, size));
+        for (int row = 0; row < size; row++) {
+            int chunkRow = (int) (pending.ids[row] & ROW_MASK);
+            pending.source[row] = chunk.source[chunkRow];
+            pending.destination[row] = chunk.destination[chunkRow];
+            pending.amount[row] = chunk.amount[chunkRow];
+            pending.changed[row] = chunk.changed[chunkRow];
+            pending.states.set(row, initiated);
+        }
+        Pending[] current = pendings;
+        if (number >= current.length) {
+            current = Arrays.copyOf(current, Math.max(number + 1, current.length * 2));
+        }
+        current[number] = pending;
+        pendings = current;
+        // Writers that find row MOVED turn to Pending published above. Row changed before it is marked is copied
+        // once more: it is in its final state, so nobody writes it again.
+        for (int row = 0; row < size; row++) {
+            int chunkRow = (int) (pending.ids[row] & ROW_MASK);
+            if (!chunk.casState(chunkRow, initiated, MOVED)) {
+                pending.changed[row] = chunk.changed[chunkRow];
+                pending.states.set(row, chunk.state(chunkRow));
+            }
+        }
+        return pending.ids;
+    }
+
+    /**
+     * Drops Pending of chunk after segment holding its rows is attached, see isSettled().
+     * @return ids of rows dropped, ascending.
+     */
+    synchronized long[] dropPending(int number) {
+        Pending[] current = Arrays.copyOf(pendings, pendings.length);
+        long[] ids = current[number].ids;
+        current[number] = null;
+        pendings = current;
+        return ids;
+    }
+
+    /**
+     * Makes segment holding the same rows as chunk visible to readers. Chunk stays in memory until detached.
+     */
+    synchronized void attach(int number, Segment segment) {
+        Segment[] current = segments;
+        if (number >= current.length) {
+            current = Arrays.copyOf(current, Math.max(number + 1, current.length * 2));
+        }
+        current[number] = segment;
+        segments = current;
+    }
+
+    /**
+     * Attaches segment written before restart while none of its rows is here, counting its rows, see
+     * Storage.attachSegment().
+     * @throws IllegalStateException if some rows of chunk are here already.
+     */
+    synchronized void reattach(int number, Segment segment) {
+        Chunk[] current = chunks;
+        Pending[] pending = pendings;
+        if (number < current.length && current[number] != null || number < pending.length && pending[number] != null
+                || isTiered(number)) {
+            throw new IllegalStateException("Chunk " + number + " is in storage already");
+        }
+        attach(number, segment);
+        for (long id = segment.getFirstId(); id < segment.getFirstId() + segment.getRows(); id++) {
+            Transaction.State state = segment.state(id);
+            if (state != null) {
+                count(ABSENT, state.ordinal() + 1);
+            }
+        }
+    }
+
+    /**
+     * @return true if row is in segment, so it is in its final state.
+     */
+    boolean isInSegment(long id) {
+        if (chunk(id) != null || pending(id) != null) {
+            return false;
+        }
+        Segment segment = segment(id);
+        return segment != null && segment.state(id) != null;
+    }
+
+    /**
+     * Drops chunk from memory after its segment is attached.
+     */
+    synchronized void detach(int number) {
+        Chunk[] current = Arrays.copyOf(chunks, chunks.length);
+        current[number] = null;
+        chunks = current;
+    }
+
+    /**
+     * @return ids of rows in segments having value of field, from min_id to max_id inclusive, ascending or
+     * descending.
+     * @param field int Segment.SOURCE, Segment.DESTINATION or Segment.AMOUNT.
+     */
+    PrimitiveIterator.OfLong segmentIds(int field, long value, long min_id, long max_id, boolean descending) {
+        Segment[] current = segments;
+        int first = min_id < 0 ? 0 : (int) Math.min(min_id >>> CHUNK_BITS, current.length);
+        int last = max_id < 0 ? -1 : (int) Math.min(max_id >>> CHUNK_BITS, current.length - 1);
+        return new PrimitiveIterator.OfLong() {
+            private int number = descending ? last : first;
+            private long[] ids = new long[0];
+            private int index;
+            private int end;
+
+            @Override
+            public boolean hasNext() {
+                while (index == end) {
+                    if (number < first || number > last) {
+                        return false;
+                    }
+                    Segment segment = current[descending ? number-- : number++];
+                    ids = segment != null ? segment.ids(field, value) : new long[0];
+                    int from = 0;
+                    while (from < ids.length && ids[from] < min_id) {
+                        from++;
+                    }
+                    int to = ids.length;
+                    while (to > from && ids[to - 1] > max_id) {
+                        to--;
+                    }
+                    index = descending ? to : from;
+                    end = descending ? from : to;
+                }
+                return true;
+            }
+
+            @Override
+            public long nextLong() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return descending ? ids[--index] : ids[index++];
+            }
+        };
+    }
+
+    /**
+     * @return segments attached now, in order of their chunks.
+     */
+    List<Segment> segments() {
+        List<Segment> attached = new ArrayList<>();
+        for (Segment segment : segments) {
+            if (segment != null) {
+                attached.add(segment);
+            }
+        }
+        return attached;
+    }
+
+    /**
+     * @return number of chunks moved to segments.
+     */
+    int segmentCount() {
+        int count = 0;
+        for (Segment segment : segments) {
+            if (segment != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return total size of segment files in bytes.
+     */
+    long segmentBytes() {
+        long bytes = 0;
+        for (Segment segment : segments) {
+            if (segment != null) {
+                bytes += segment.getBytes();
+            }
+        }
+        return bytes;
+    }
+
+    synchronized void clear() {
+        chunks = new Chunk[0];
+        segments = new Segment[0];
+        pendings = new Pending[0];
+        counts = newCounts();
+    }
+}
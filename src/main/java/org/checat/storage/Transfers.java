@@ -0,0 +1,123 @@
+package org.checat.storage;
+
+/**
+ * Builds DataTransactions for steps of moving money between accounts.
+ * Returned DataTransactions are not committed yet, so they can be committed one by one or together.
+ *
+ * Every step comes in two forms: one starting new DataTransaction, and one filling DataTransaction given by
+ * caller, e.g. Storage.borrowDataTransaction(), which doesn't allocate.
+ */
+public final class Transfers {
+
+    private Transfers() {}
+
+    /**
+     * Prepares initiation of moving positive amount of money from source account to destination account.
+     * Source and destination ids of accounts are internal if positive. Non-positive ids indicate moving money
+     * into system or withdrawing money from system. At least one of them should be internal.
+     * Money of internal source account are put on hold if it has enough.
+     *
+     * @param storage Storage to work with.
+     * @param source long Id of account from which money are paid.
+     * @param destination long Id of account to which money are paid.
+     * @param amount long Amount of money transferred. Must be positive.
+     * @return DataTransaction inserting one transaction or null if request is invalid.
+     */
+    public static DataTransaction initiate(Storage storage, long source, long destination, long amount) {
+        DataTransaction dataTransaction = storage.startDataTransaction();
+        return initiate(dataTransaction, source, destination, amount) ? dataTransaction : null;
+    }
+
+    /**
+     * Fills empty DataTransaction with initiation, see initiate(Storage, long, long, long).
+     * @return true if request is valid.
+     */
+    public static boolean initiate(DataTransaction dataTransaction, long source, long destination, long amount) {
+        if (amount <= 0 || !Account.isAccountInternal(source) && !Account.isAccountInternal(destination)) {
+            return false;
+        }
+        if (Account.isAccountInternal(source)) {
+            dataTransaction.requireMoney(source, amount);
+            dataTransaction.holdMoney(source, amount);
+        }
+        dataTransaction.insertTransaction(source, destination, amount);
+        return true;
+    }
+
+    /**
+     * Prepares confirmation of transaction in Transaction.State.INITIATED state: moves money from source account
+     * to destination account. Does nothing when committed if transaction is in another state.
+     *
+     * @param storage Storage to work with.
+     * @param transaction_id long Id of transaction to confirm.
+     * @return DataTransaction confirming transaction or null if there is no such transaction.
+     */
+    public static DataTransaction confirm(Storage storage, long transaction_id) {
+        DataTransaction dataTransaction = storage.startDataTransaction();
+        return confirm(dataTransaction, transaction_id) ? dataTransaction : null;
+    }
+
+    /**
+     * Fills empty DataTransaction with confirmation, see confirm(Storage, long).
+     * @return true if transaction exists.
+     */
+    public static boolean confirm(DataTransaction dataTransaction, long transaction_id) {
+        Storage storage = dataTransaction.getStorage();
+        if (storage.getTransactionState(transaction_id) == null) {
+            return false;
+        }
+        long source = storage.getTransactionSource(transaction_id);
+        long destination = storage.getTransactionDestination(transaction_id);
+        long amount = storage.getTransactionAmount(transaction_id);
+        dataTransaction.requireTransactionState(transaction_id, Transaction.State.INITIATED);
+        dataTransaction.setTransactionState(transaction_id, Transaction.State.CONFIRMED);
+        if (Account.isAccountInternal(source)) {
+            dataTransaction.transferMoney(source, amount);
+        }
+        if (Account.isAccountInternal(destination)) {
+            dataTransaction.addMoney(destination, amount);
+        }
+        return true;
+    }
+
+    /**
+     * Prepares cancellation of transaction in Transaction.State.INITIATED state: releases money put on hold.
+     * Does nothing when committed if transaction is in another state.
+     *
+     * @param storage Storage to work with.
+     * @param transaction_id long Id of transaction to cancel.
+     * @return DataTransaction cancelling transaction or null if there is no such transaction.
+     */
+    public static DataTransaction cancel(Storage storage, long transaction_id) {
+        DataTransaction dataTransaction = storage.startDataTransaction();
+        return cancel(dataTransaction, transaction_id) ? dataTransaction : null;
+    }
+
+    /**
+     * Fills empty DataTransaction with cancellation, see cancel(Storage, long).
+     * @return true if transaction exists.
+     */
+    public static boolean cancel(DataTransaction dataTransaction, long transaction_id) {
+        Storage storage = dataTransaction.getStorage();
+        if (storage.getTransactionState(transaction_id) == null) {
+            return false;
+        }
+        long source = storage.getTransactionSource(transaction_id);
+        dataTransaction.requireTransactionState(transaction_id, Transaction.State.INITIATED);
+        dataTransaction.setTransactionState(transaction_id, Transaction.State.CANCELED);
+        if (Account.isAccountInternal(source)) {
+            dataTransaction.releaseMoney(source, storage.getTransactionAmount(transaction_id));
+        }
+        return true;
+    }
+
+    /**
+     * @param storage Storage to work with.
+     * @param transaction_id long Id of transaction to check.
+     * @param state expected state.
+     * @return true if transaction exists and is in expected state.
+     */
+    public static boolean isInState(Storage storage, long transaction_id, Transaction.State state) {
+        return storage.getTransactionState(transaction_id) == state;
+    }
+}
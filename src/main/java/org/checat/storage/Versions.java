@@ -0,0 +1,153 @@
+package org.checat.storage;
+
+import java.util.Comparator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Commit versions of storage and versions held by open Views.
+ *
+ * Every successful commit takes the next version while it holds its accounts, stamps everything it writes with
+ * it and ends it when done. Commits end out of order, so the visible version only advances over a run of ended
+ * ones: reader of visible version sees every commit up to it completely and none after it. Ended versions are
+ * marked in a ring, so advancing never allocates; version whose slot still holds one not yet passed goes to a
+ * set aside instead. Commits never wait for each other here: one ending before earlier ones just isn't visible
+ * yet, and it is readers who wait for it, see await().
+ *
+ * Horizon is the oldest version any open View may read: older versions of balances are reclaimed by commits,
+ * see Account.publish(), and chunks are moved to segments only when all their rows are older, see Tiering.
+ */
+final class Versions {
+    private static final int RING = 1 << 12;
+    private static final int MASK = RING - 1;
+    private static final int SPINS = 64;
+    private static final long PARK_NANOS = 10_000;
+
+    /**
+     * Registration of open View. Pin is visible version read before registration, not later than the version
+     * the View reads.
+     */
+    static final class Reader {
+        private static final AtomicLong SERIALS = new AtomicLong();
+
+        final long pin;
+        private final long serial = SERIALS.incrementAndGet();
+
+        private Reader(long pin) {
+            this.pin = pin;
+        }
+    }
+
+    private final AtomicLong last = new AtomicLong();
+    private final AtomicLong visible = new AtomicLong();
+    private final AtomicLong latestEnded = new AtomicLong();
+    // Slot of version holds the version once it ended.
+    private final AtomicLongArray ended = new AtomicLongArray(RING);
+    // Ended versions whose slots were still taken, practically always empty.
+    private final ConcurrentSkipListSet<Long> overflow = new ConcurrentSkipListSet<>();
+    private final ConcurrentSkipListSet<Reader> readers = new ConcurrentSkipListSet<>(
+            Comparator.comparingLong((Reader reader) -> reader.pin).thenComparingLong(reader -> reader.serial));
+
+    /**
+     * @return new version of commit. Caller should end it whatever happens.
+     */
+    long begin() {
+        return last.incrementAndGet();
+    }
+
+    /**
+     * Marks version as ended and advances visible version as far as possible.
+     */
+    void end(long version) {
+        // Slot is reused only once visible version passed its previous owner.
+        if (version - visible.get() > RING) {
+            overflow.add(version);
+        } else {
+            ended.set((int) version & MASK, version);
+        }
+        if (latestEnded.get() < version) {
+            latestEnded.accumulateAndGet(version, Math::max);
+        }
+        long current = visible.get();
+        while (isEnded(current + 1)) {
+            visible.compareAndSet(current, current + 1);
+            current = visible.get();
+        }
+    }
+
+    private boolean isEnded(long version) {
+        if (ended.get((int) version & MASK) == version) {
+            return true;
+        }
+        return !overflow.isEmpty() && overflow.remove(version);
+    }
+
+    /**
+     * Waits until version is visible, e.g. so reader sees commit that already returned. Only readers wait:
+     * commits before version are in flight and end without waiting for anything.
+     */
+    void await(long version) {
+        for (int spins = 0; visible.get() < version; spins++) {
+            if (spins < SPINS) {
+                Thread.yield();
+            } else {
+                LockSupport.parkNanos(this, PARK_NANOS);
+            }
+        }
+    }
+
+    /**
+     * @return the latest version ended, visible or not, so every commit returned by now is at or before it.
+     */
+    long getLatestEnded() {
+        return latestEnded.get();
+    }
+
+    /**
+     * @return version of the latest commit begun.
+     */
+    long getLast() {
+        return last.get();
+    }
+
+    long getVisible() {
+        return visible.get();
+    }
+
+    /**
+     * Registers reader. Commits computing horizon after this see its pin, ones that computed it before saw
+     * visible version not later than the one read after registration, so the reader may read that version.
+     * @return registered reader. Caller should read visible version after this returns.
+     */
+    Reader open() {
+        Reader reader = new Reader(visible.get());
+        readers.add(reader);
+        return reader;
+    }
+
+    void close(Reader reader) {
+        readers.remove(reader);
+    }
+
+    /**
+     * @return the oldest version any open View may read.
+     */
+    long horizon() {
+        long horizon = visible.get();
+        if (!readers.isEmpty()) {
+            try {
+                horizon = Math.min(horizon, readers.first().pin);
+            } catch (NoSuchElementException e) {
+                // The last reader closed meanwhile.
+            }
+        }
+        return horizon;
+    }
+
+    int readerCount() {
+        return readers.size();
+    }
+}
@@ -0,0 +1,226 @@
+package org.checat.storage;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Consistent read-only view of storage as of one commit version, see Storage.openView().
+ *
+ * Everything read through the view reflects exactly the commits up to its version, however long ago it was
+ * opened, and reading takes no locks, so commits never wait for it. Balances of internal accounts are read from
+ * versions kept while the view is open; external accounts keep no versions and are read as they are now.
+ *
+ * View of several shards, see Shards.openView(), combines views of every shard and reads transactions by their
+ * global ids. Searches go to the only shard that may keep matching transactions if criteria tell which one,
+ * and merge transactions of all shards in order of global ids otherwise, up to the greatest global id every
+ * transaction below which is present, see GlobalIds.installedUpTo().
+ */
+public class View implements AutoCloseable {
+    private final Storage storage;
+    private final Versions.Reader reader;
+    private final long version;
+    // Views of all shards, null if view reads single storage.
+    private final View[] shards;
+    private final GlobalIds ids;
+    private boolean closed;
+
+    View(Storage storage, Versions.Reader reader, long version) {
+        this.storage = storage;
+        this.reader = reader;
+        this.version = version;
+        this.shards = null;
+        this.ids = null;
+    }
+
+    View(View[] shards, GlobalIds ids) {
+        this.storage = null;
+        this.reader = null;
+        this.version = shards[0].version;
+        this.shards = shards;
+        this.ids = ids;
+    }
+
+    /**
+     * @return commit version the view reads, of the first shard if view reads several of them.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @param id long Id of requested transaction.
+     * @return Transaction object or null if it wasn't present as of version.
+     */
+    public Transaction getTransaction(long id) {
+        if (shards != null) {
+            int shard = ids.shard(id);
+            return Shards.globalize(shards[shard].getTransaction(ids.local(id)), ids, shard);
+        }
+        return storage.getTransaction(id, version);
+    }
+
+    /**
+     * Same as Storage.findTransactions(), as of version.
+     */
+    public List<Transaction> findTransactions(Long source, Long destination, Long amount) {
+        List<Transaction> result = new ArrayList<>();
+        scanTransactions(source, destination, amount, 0).forEachRemaining(result::add);
+        return result;
+    }
+
+    /**
+     * Same as Storage.scanTransactions(), as of version. Iterator should be used before the view is closed.
+     */
+    public Iterator<Transaction> scanTransactions(Long source, Long destination, Long amount, long after_id) {
+        return scanTransactions(Query.of(source, destination, amount).after(after_id));
+    }
+
+    /**
+     * Same as Storage.scanTransactions(Query), as of version, with ranges of global ids. Iterator should be used
+     * before the view is closed.
+     */
+    public Iterator<Transaction> scanTransactions(Query query) {
+        if (shards == null) {
+            return storage.scanTransactions(query, version);
+        }
+        // Transaction is kept on shard of its source, or of its destination if source is external.
+        Long source = query.getSource();
+        Long destination = query.getDestination();
+        Long owner = null;
+        if (source != null && Account.isAccountInternal(source)) {
+            owner = source;
+        } else if (source != null && destination != null && Account.isAccountInternal(destination)) {
+            owner = destination;
+        }
+        if (owner != null) {
+            int shard = Shards.shardOfAccount(owner, shards.length);
+            return new ShardIterator(shard, query);
+        }
+        Query installed = query.withIds(query.getMinId(), Math.min(query.getMaxId(), ids.installedUpTo(shards)));
+        ShardIterator[] iterators = new ShardIterator[shards.length];
+        for (int i = 0; i < shards.length; i++) {
+            iterators[i] = new ShardIterator(i, installed);
+        }
+        return new MergedIterator(iterators, query.getOrder().comparator());
+    }
+
+    /**
+     * @param id long Id of account.
+     * @return copy of account with balance as of version, zero if there is no such account.
+     */
+    public Account getAccount(long id) {
+        if (shards != null) {
+            return shards[Account.isAccountInternal(id) ? Shards.shardOfAccount(id, shards.length) : 0]
+                    .getAccount(id);
+        }
+        return storage.getAccount(id, version);
+    }
+
+    /**
+     * @return true if transaction with local id is present in view of single storage.
+     */
+    boolean isInstalled(long id) {
+        return storage.isInstalled(id, version);
+    }
+
+    /**
+     * @return true if transaction with local id is present in every open and future view of single storage.
+     */
+    boolean isInstalledForAll(long id) {
+        return storage.isInstalledForAll(id);
+    }
+
+    /**
+     * Lets commits reclaim versions kept for the view. Calling it again does nothing.
+     */
+    @Override
+    public synchronized void close() {
+        if (!closed) {
+            closed = true;
+            if (shards != null) {
+                for (View shard : shards) {
+                    shard.close();
+                }
+            } else {
+                storage.closeView(reader);
+            }
+        }
+    }
+
+    /**
+     * Transactions of one shard with global ids, in order of query.
+     */
+    private class ShardIterator implements Iterator<Transaction> {
+        private final int shard;
+        private final Iterator<Transaction> transactions;
+        private Transaction next;
+
+        ShardIterator(int shard, Query query) {
+            this.shard = shard;
+            transactions = shards[shard].scanTransactions(query.onShard(shard, ids));
+        }
+
+        Transaction peek() {
+            if (next == null && transactions.hasNext()) {
+                next = Shards.globalize(transactions.next(), ids, shard);
+            }
+            return next;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return peek() != null;
+        }
+
+        @Override
+        public Transaction next() {
+            if (peek() == null) {
+                throw new NoSuchElementException();
+            }
+            Transaction result = next;
+            next = null;
+            return result;
+        }
+    }
+
+    /**
+     * Transactions of all shards in order of query, by global ids.
+     */
+    private static class MergedIterator implements Iterator<Transaction> {
+        private final ShardIterator[] iterators;
+        private final Comparator<Transaction> order;
+
+        MergedIterator(ShardIterator[] iterators, Comparator<Transaction> order) {
+            this.iterators = iterators;
+            this.order = order;
+        }
+
+        private ShardIterator lowest() {
+            ShardIterator lowest = null;
+            for (ShardIterator iterator : iterators) {
+                Transaction next = iterator.peek();
+                if (next != null && (lowest == null || order.compare(next, lowest.peek()) < 0)) {
+                    lowest = iterator;
+                }
+            }
+            return lowest;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return lowest() != null;
+        }
+
+        @Override
+        public Transaction next() {
+            ShardIterator lowest = lowest();
+            if (lowest == null) {
+                throw new NoSuchElementException();
+            }
+            return lowest.next();
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package org.checat;
+
+import org.checat.storage.Storage;
+import org.checat.storage.Transaction;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import static org.junit.Assert.*;
+
+public class BinaryServerTest {
+
+    private final Storage storage = Storage.STORAGE;
+    private BinaryServer server;
+    private SocketChannel channel;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new BinaryServer(new InetSocketAddress("localhost", 0), 2, 2);
+        channel = SocketChannel.open(new InetSocketAddress("localhost", server.getPort()));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        channel.close();
+        server.close();
+        storage.reset();
+    }
+
+    private static void putRequest(ByteBuffer buffer, int tag, byte operation, long first, long second,
+                                   long third) {
+        buffer.putInt(tag).put(operation).put((byte) 0).put((byte) 0).put((byte) 0);
+        buffer.putLong(first).putLong(second).putLong(third);
+    }
+
+    private void send(ByteBuffer requests) throws IOException {
+        requests.flip();
+        while (requests.hasRemaining()) {
+            channel.write(requests);
+        }
+    }
+
+    private ByteBuffer receive(int responses) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(responses * BinaryProtocol.RESPONSE_BYTES);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new IOException("Connection closed");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private long call(byte operation, long first, long second, long third, byte status) throws IOException {
+        ByteBuffer request = ByteBuffer.allocate(BinaryProtocol.REQUEST_BYTES);
+        putRequest(request, 7, operation, first, second, third);
+        send(request);
+        ByteBuffer response = receive(1);
+        assertEquals(7, response.getInt());
+        assertEquals(status, response.get());
+        response.position(response.position() + 3);
+        return response.getLong();
+    }
+
+    /**
+     * Test that operations have the same outcomes as through HTTP.
+     */
+    @Test
+    public void testOperations() throws Exception {
+        long deposit = call(BinaryProtocol.INITIATE, -1, 1, 1000, BinaryProtocol.OK);
+        assertEquals(deposit, call(BinaryProtocol.CONFIRM, deposit, 0, 0, BinaryProtocol.OK));
+        // Transaction is confirmed already, as HTTP endpoint reports.
+        call(BinaryProtocol.CONFIRM, deposit, 0, 0, BinaryProtocol.OK);
+        call(BinaryProtocol.INITIATE, 1, 2, 5000, BinaryProtocol.REJECTED);
+        call(BinaryProtocol.INITIATE, 1, 2, 0, BinaryProtocol.REJECTED);
+        long held = call(BinaryProtocol.INITIATE, 1, 2, 300, BinaryProtocol.OK);
+        assertEquals(held, call(BinaryProtocol.CANCEL, held, 0, 0, BinaryProtocol.OK));
+        call(BinaryProtocol.CONFIRM, held, 0, 0, BinaryProtocol.REJECTED);
+        call(BinaryProtocol.CANCEL, 12345, 0, 0, BinaryProtocol.REJECTED);
+        call((byte) 42, 0, 0, 0, BinaryProtocol.BAD_REQUEST);
+
+        assertEquals(Transaction.State.CONFIRMED, storage.getTransaction(deposit).getState());
+        assertEquals(Transaction.State.CANCELED, storage.getTransaction(held).getState());
+        assertEquals(1000, storage.getAccount(1).getMoney());
+        assertEquals(0, storage.getAccount(1).getHold());
+        assertEquals(1, server.getConnections());
+    }
+
+    /**
+     * Test that pipelined requests, split at arbitrary bytes, get responses in order.
+     */
+    @Test
+    public void testPipelining() throws Exception {
+        long deposit = call(BinaryProtocol.INITIATE, -1, 1, 1000, BinaryProtocol.OK);
+        call(BinaryProtocol.CONFIRM, deposit, 0, 0, BinaryProtocol.OK);
+        int count = 2000;
+        ByteBuffer requests = ByteBuffer.allocate(count * BinaryProtocol.REQUEST_BYTES);
+        for (int i = 0; i < count; i++) {
+            putRequest(requests, i, BinaryProtocol.INITIATE, 1, 2, 1);
+        }
+        requests.flip();
+        // Odd sized pieces cut requests in the middle.
+        while (requests.hasRemaining()) {
+            ByteBuffer piece = requests.slice();
+            piece.limit(Math.min(piece.remaining(), 1001));
+            requests.position(requests.position() + piece.limit());
+            while (piece.hasRemaining()) {
+                channel.write(piece);
+            }
+        }
+        ByteBuffer responses = receive(count);
+        long previous = deposit;
+        for (int i = 0; i < count; i++) {
+            assertEquals(i, responses.getInt());
+            byte status = responses.get();
+            responses.position(responses.position() + 3);
+            long id = responses.getLong();
+            if (i < 1000) {
+                assertEquals(BinaryProtocol.OK, status);
+                assertTrue(id > previous);
+                previous = id;
+            } else {
+                assertEquals(BinaryProtocol.REJECTED, status);
+            }
+        }
+        assertEquals(1000, storage.getAccount(1).getHold());
+        assertEquals(count + 2, server.getRequests());
+    }
+}
@@ -0,0 +1,67 @@
+package org.checat;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class IdempotencyCacheTest {
+
+    private final AtomicLong now = new AtomicLong();
+    private final IdempotencyCache cache = new IdempotencyCache(10, TimeUnit.NANOSECONDS, 3, now::get);
+
+    private IdempotencyCache.Entry claim(String key) {
+        return cache.claim(cache.newEntry(key, 1, 2, 100));
+    }
+
+    /**
+     * Test that only the first request claims key and others get its outcome.
+     */
+    @Test
+    public void testClaim() throws Exception {
+        IdempotencyCache.Entry first = cache.newEntry("key", 1, 2, 100);
+        assertNull(cache.claim(first));
+        IdempotencyCache.Entry earlier = claim("key");
+        assertSame(first, earlier);
+        assertFalse(earlier.result().isDone());
+        cache.complete(first, 7L);
+        assertEquals(Long.valueOf(7), earlier.result().get());
+        assertTrue(earlier.matches(1, 2, 100));
+        assertFalse(earlier.matches(1, 2, 200));
+    }
+
+    /**
+     * Test that key of failed request can be claimed again.
+     */
+    @Test
+    public void testFail() {
+        IdempotencyCache.Entry first = cache.newEntry("key", 1, 2, 100);
+        assertNull(cache.claim(first));
+        cache.fail(first, new IllegalStateException());
+        assertTrue(first.result().isCompletedExceptionally());
+        assertNull(claim("key"));
+    }
+
+    /**
+     * Test that entries are evicted once expired or when there are too many of them.
+     */
+    @Test
+    public void testEviction() {
+        assertNull(claim("a"));
+        now.set(5);
+        assertNull(claim("b"));
+        assertNull(claim("c"));
+        assertNotNull(claim("a"));
+        assertNull(claim("d"));
+        assertEquals(3, cache.size());
+        assertNull(claim("a"));
+        assertNotNull(claim("d"));
+        now.set(15);
+        assertNull(claim("e"));
+        assertEquals(1, cache.size());
+        assertNotNull(claim("e"));
+        assertNull(claim("a"));
+    }
+}
@@ -1,9 +1,16 @@
 package org.checat;
 
+import org.checat.audit.AuditLog;
+import org.checat.storage.ChangeFeed;
+import org.checat.storage.CommitMode;
+import org.checat.storage.Journal;
+import org.checat.storage.Replica;
+import org.checat.storage.Shards;
 import org.checat.storage.Storage;
 import org.checat.storage.Transaction;
 import org.glassfish.grizzly.http.server.HttpServer;
 import org.hamcrest.CoreMatchers;
+import org.hamcrest.collection.IsIterableContainingInOrder;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -13,10 +20,28 @@ import javax.ws.rs.client.ClientBuilder;
 import javax.ws.rs.client.Entity;
 import javax.ws.rs.client.WebTarget;
 import javax.ws.rs.core.GenericType;
+import javax.ws.rs.core.Response;
+import java.io.BufferedReader;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static org.hamcrest.CoreMatchers.is;
 import static org.junit.Assert.*;
@@ -311,4 +336,631 @@ public class TransactionsTest {
         assertNull(forthTransactionId);
     }
 
+    /**
+     * Test that concurrent transfers between accounts neither lose nor create money.
+     */
+    @Test
+    public void testConcurrentTransfers() throws Exception {
+        checkConcurrentTransfers();
+    }
+
+    /**
+     * Test that concurrent transfers give the same result in partitioned commit mode.
+     */
+    @Test
+    public void testConcurrentTransfersPartitioned() throws Exception {
+        Storage.STORAGE.setCommitMode(CommitMode.PARTITIONED, 3);
+        try {
+            checkConcurrentTransfers();
+            testMoneyCounting();
+        } finally {
+            Storage.STORAGE.setCommitMode(CommitMode.LOCKING, 0);
+        }
+    }
+
+    /**
+     * Test that concurrent transfers give the same result in optimistic commit mode.
+     */
+    @Test
+    public void testConcurrentTransfersOptimistic() throws Exception {
+        Storage.STORAGE.setCommitMode(CommitMode.OPTIMISTIC, 0);
+        try {
+            checkConcurrentTransfers();
+            testMoneyCounting();
+        } finally {
+            Storage.STORAGE.setCommitMode(CommitMode.LOCKING, 0);
+        }
+    }
+
+    /**
+     * Test that transfers between accounts of different shards neither lose nor create money and transactions
+     * of all shards are found by their global ids.
+     */
+    @Test
+    public void testShards() throws Exception {
+        Shards.SHARDS.configure(3);
+        try {
+            checkConcurrentTransfers();
+            List<BatchResult> transfers = target.path("transaction/batch")
+                    .request()
+                    .post(Entity.json(Arrays.asList(
+                            BatchOperation.initiate(1, 2, 5),
+                            BatchOperation.initiate(2, 3, 5),
+                            BatchOperation.initiate(-1, 6, 5))))
+                    .readEntity(new GenericType<List<BatchResult>>() {});
+            assertEquals(3, transfers.size());
+            for (BatchResult result : transfers) {
+                assertTrue(result.success);
+                Transaction transaction = target.path("transaction/" + result.id)
+                        .request().get(Transaction.class);
+                assertEquals((long) result.id, transaction.getId());
+                assertEquals(Transaction.State.INITIATED, transaction.getState());
+            }
+            List<BatchResult> settled = target.path("transaction/batch")
+                    .request()
+                    .post(Entity.json(Arrays.asList(
+                            BatchOperation.confirm(transfers.get(0).id),
+                            BatchOperation.confirm(transfers.get(1).id))))
+                    .readEntity(new GenericType<List<BatchResult>>() {});
+            assertTrue(settled.get(0).success);
+            assertTrue(settled.get(1).success);
+            List<Transaction> found = target.path("transaction").queryParam("amount", 5)
+                    .request().get().readEntity(new GenericType<List<Transaction>>() {});
+            assertEquals(3, found.size());
+            assertTrue(found.get(0).getId() < found.get(1).getId());
+            assertTrue(found.get(1).getId() < found.get(2).getId());
+            assertTrue(Shards.SHARDS.getCrossShardCommits() >= 2);
+        } finally {
+            Shards.SHARDS.reset();
+            Shards.SHARDS.configure(1);
+        }
+    }
+
+    /**
+     * Test that storage of several shards is refused at startup unless it is allowed as experimental.
+     */
+    @Test
+    public void testShardsExperimental() {
+        System.setProperty(Settings.SHARDS, "2");
+        try {
+            Main.configureStorage();
+            fail("Several shards without experimental setting");
+        } catch (IllegalArgumentException e) {
+            assertEquals(1, Shards.SHARDS.getCount());
+        } finally {
+            System.clearProperty(Settings.SHARDS);
+        }
+    }
+
+    /**
+     * Test that account resource returns balance with aggregates of transfers.
+     */
+    @Test
+    public void testAccount() {
+        Long deposit = target.path("transaction/initiate/-1/1/1000").request().post(Entity.text(""))
+                .readEntity(Long.class);
+        target.path("transaction/confirm/" + deposit).request().post(Entity.text(""));
+        Long sent = target.path("transaction/initiate/1/2/300").request().post(Entity.text(""))
+                .readEntity(Long.class);
+        target.path("transaction/confirm/" + sent).request().post(Entity.text(""));
+        Long cancelled = target.path("transaction/initiate/1/2/50").request().post(Entity.text(""))
+                .readEntity(Long.class);
+        target.path("transaction/cancel/" + cancelled).request().post(Entity.text(""));
+        target.path("transaction/initiate/1/-1/200").request().post(Entity.text(""));
+        target.path("transaction/initiate/1/2/100").request().post(Entity.text(""));
+
+        Map<String, Long> account = target.path("account/1").request()
+                .get(new GenericType<Map<String, Long>>() {});
+        assertEquals(1L, (long) account.get("id"));
+        assertEquals(700L, (long) account.get("money"));
+        assertEquals(300L, (long) account.get("hold"));
+        assertEquals(2L, (long) account.get("holds"));
+        assertEquals(300L, (long) account.get("sent"));
+        assertEquals(1000L, (long) account.get("received"));
+        assertEquals(1L, (long) account.get("confirmed"));
+        assertEquals(1L, (long) account.get("cancelled"));
+
+        account = target.path("account/2").request().get(new GenericType<Map<String, Long>>() {});
+        assertEquals(300L, (long) account.get("money"));
+        assertEquals(300L, (long) account.get("received"));
+        assertEquals(0L, (long) account.get("confirmed"));
+        account = target.path("account/3").request().get(new GenericType<Map<String, Long>>() {});
+        assertEquals(0L, (long) account.get("money"));
+        assertEquals(404, target.path("account/-1").request().get().getStatus());
+    }
+
+    /**
+     * Test that read-only follower serves reads and refuses changes.
+     */
+    @Test
+    public void testReadOnly() {
+        Long id = target.path("transaction/initiate/-1/1/100").request().post(Entity.text(""))
+                .readEntity(Long.class);
+        Transactions.setReadOnly(true);
+        try {
+            assertEquals(403, target.path("transaction/confirm/" + id).request().post(Entity.text(""))
+                    .getStatus());
+            assertEquals(403, target.path("transaction/batch").request()
+                    .post(Entity.json(Collections.singletonList(BatchOperation.cancel(id)))).getStatus());
+            assertEquals(Transaction.State.INITIATED,
+                    target.path("transaction/" + id).request().get(Transaction.class).getState());
+            assertEquals(1, target.path("transaction").request().get()
+                    .readEntity(new GenericType<List<Transaction>>() {}).size());
+        } finally {
+            Transactions.setReadOnly(false);
+        }
+        assertEquals(200, target.path("transaction/confirm/" + id).request().post(Entity.text("")).getStatus());
+    }
+
+    /**
+     * Test that promoted follower stops following, accepts changes and journals them over the state it has.
+     */
+    @Test
+    public void testPromote() throws Exception {
+        Long id = target.path("transaction/initiate/-1/1/100").request().post(Entity.text(""))
+                .readEntity(Long.class);
+        Path directory = Files.createTempDirectory("journal");
+        int port;
+        try (ServerSocketChannel unused = ServerSocketChannel.open().bind(new InetSocketAddress("localhost", 0))) {
+            port = unused.socket().getLocalPort();
+        }
+        System.setProperty(Settings.JOURNAL_DIRECTORY, directory.toString());
+        try {
+            // Primary is gone, follower keeps what it has applied.
+            Node node = Node.start(new Replica(Storage.STORAGE, new InetSocketAddress("localhost", port), 1000));
+            Admin.setNode(node);
+            try {
+                assertTrue(node.isFollower());
+                assertEquals(403, target.path("transaction/confirm/" + id).request().post(Entity.text(""))
+                        .getStatus());
+
+                assertEquals(204, target.path("admin/promote").request().post(Entity.text("")).getStatus());
+                assertFalse(node.isFollower());
+                assertEquals(409, target.path("admin/promote").request().post(Entity.text("")).getStatus());
+                assertEquals(200, target.path("transaction/confirm/" + id).request().post(Entity.text(""))
+                        .getStatus());
+                assertEquals(100, Storage.STORAGE.getAccount(1).getMoney());
+            } finally {
+                Admin.setNode(null);
+                Transactions.setReadOnly(false);
+                node.close();
+            }
+        } finally {
+            System.clearProperty(Settings.JOURNAL_DIRECTORY);
+        }
+        Storage.STORAGE.reset();
+        try (Journal journal = Journal.open(directory, Journal.Durability.GROUP, 1 << 20, 10, Storage.STORAGE)) {
+            assertEquals(Transaction.State.CONFIRMED, Storage.STORAGE.getTransaction(id).getState());
+            assertEquals(100, Storage.STORAGE.getAccount(1).getMoney());
+        }
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    /**
+     * Test that retries of initiate with the same idempotency key, including concurrent ones, hold money once.
+     */
+    @Test
+    public void testIdempotentInitiate() throws Exception {
+        Long deposit = target.path("transaction/initiate/-1/1/1000").request().post(Entity.text(""))
+                .readEntity(Long.class);
+        target.path("transaction/confirm/" + deposit).request().post(Entity.text(""));
+        Long id;
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Long>> futures = new ArrayList<>();
+            for (int i = 0; i < 16; i++) {
+                futures.add(executor.submit(() -> target.path("transaction/initiate/1/2/100").request()
+                        .header(Transactions.IDEMPOTENCY_KEY_HEADER, "retry")
+                        .post(Entity.text("")).readEntity(Long.class)));
+            }
+            id = futures.get(0).get();
+            assertNotNull(id);
+            for (Future<Long> future : futures) {
+                assertEquals(id, future.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(100, Storage.STORAGE.getAccount(1).getHold());
+        assertEquals(422, target.path("transaction/initiate/1/2/200").request()
+                .header(Transactions.IDEMPOTENCY_KEY_HEADER, "retry")
+                .post(Entity.text("")).getStatus());
+        Long other = target.path("transaction/initiate/1/2/100").request()
+                .header(Transactions.IDEMPOTENCY_KEY_HEADER, "other")
+                .post(Entity.text("")).readEntity(Long.class);
+        assertNotEquals(id, other);
+        assertEquals(200, Storage.STORAGE.getAccount(1).getHold());
+    }
+
+    /**
+     * Test that initiate, confirm and cancel requests are audited with their outcome.
+     */
+    @Test
+    public void testAuditLog() throws Exception {
+        Path directory = Files.createTempDirectory("audit");
+        AuditLog auditLog = AuditLog.open(directory, AuditLog.Overflow.BLOCK, 16, 1 << 20, 1);
+        Transactions.setAuditLog(auditLog);
+        try {
+            Long id = target.path("transaction/initiate/-1/1/1000").request().post(Entity.text(""))
+                    .readEntity(Long.class);
+            target.path("transaction/confirm/" + id).request().post(Entity.text("")).close();
+            target.path("transaction/cancel/" + id).request().post(Entity.text("")).close();
+        } finally {
+            Transactions.setAuditLog(null);
+            auditLog.close();
+        }
+        List<AuditLog.Record> records = AuditLog.read(directory);
+        assertEquals(3, records.size());
+        assertEquals(AuditLog.Event.INITIATE, records.get(0).getEvent());
+        assertTrue(records.get(0).isSuccess());
+        assertEquals(-1, records.get(0).getSource());
+        assertEquals(1000, records.get(0).getAmount());
+        assertEquals(AuditLog.Event.CONFIRM, records.get(1).getEvent());
+        assertTrue(records.get(1).isSuccess());
+        assertEquals(records.get(0).getId(), records.get(1).getId());
+        assertEquals(AuditLog.Event.CANCEL, records.get(2).getEvent());
+        assertFalse(records.get(2).isSuccess());
+        for (Path file : AuditLog.files(directory)) {
+            Files.delete(file);
+        }
+        Files.delete(directory);
+    }
+
+    private void checkConcurrentTransfers() throws Exception {
+        for (long account = 1; account <= 4; account++) {
+            Long id = target.path("transaction/initiate/-1/" + account + "/1000")
+                    .request().post(Entity.text("")).readEntity(Long.class);
+            target.path("transaction/confirm/" + id).request().post(Entity.text(""));
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < 200; i++) {
+                long source = i % 4 + 1;
+                long destination = (i + 1) % 4 + 1;
+                futures.add(executor.submit(() -> {
+                    Long id = target.path("transaction/initiate/" + source + "/" + destination + "/10")
+                            .request().post(Entity.text("")).readEntity(Long.class);
+                    if (id != null) {
+                        target.path("transaction/confirm/" + id).request().post(Entity.text(""));
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        long total = 0;
+        for (long account = 1; account <= 4; account++) {
+            Storage storage = Shards.SHARDS.forAccount(account);
+            assertEquals(0, storage.getAccount(account).getHold());
+            total += storage.getAccount(account).getMoney();
+        }
+        assertEquals(4000, total);
+    }
+
+    /**
+     * Test on paging through transactions with limit and cursor.
+     */
+    @Test
+    public void testPagination() {
+        for (int i = 0; i < 5; i++) {
+            target.path("transaction/initiate/-1/123/" + (i + 1)).request().post(Entity.text(""));
+        }
+        Response first = target.path("transaction").queryParam("limit", 2).request().get();
+        assertThat(first.readEntity(new GenericType<List<Transaction>>() {}), IsIterableContainingInOrder.contains(
+                new Transaction(1, -1, 123, 1, Transaction.State.INITIATED),
+                new Transaction(2, -1, 123, 2, Transaction.State.INITIATED)
+        ));
+        String cursor = first.getHeaderString(Transactions.NEXT_CURSOR_HEADER);
+        assertNotNull(cursor);
+        Response second = target.path("transaction")
+                .queryParam("limit", 3)
+                .queryParam("after", cursor)
+                .request().get();
+        assertThat(second.readEntity(new GenericType<List<Transaction>>() {}), IsIterableContainingInOrder.contains(
+                new Transaction(3, -1, 123, 3, Transaction.State.INITIATED),
+                new Transaction(4, -1, 123, 4, Transaction.State.INITIATED),
+                new Transaction(5, -1, 123, 5, Transaction.State.INITIATED)
+        ));
+        assertNull(second.getHeaderString(Transactions.NEXT_CURSOR_HEADER));
+        assertEquals(400, target.path("transaction").queryParam("after", "garbage").request().get().getStatus());
+    }
+
+    /**
+     * Test on range filters, newest first pages and top amounts.
+     */
+    @Test
+    public void testRangeQueries() {
+        long[] amounts = {50, 10, 40, 30, 20};
+        for (long amount : amounts) {
+            target.path("transaction/initiate/-1/123/" + amount).request().post(Entity.text(""));
+        }
+        target.path("transaction/confirm/2").request().post(Entity.text(""));
+        assertThat(target.path("transaction").queryParam("minAmount", 20).queryParam("maxAmount", 40)
+                        .request().get().readEntity(new GenericType<List<Transaction>>() {}),
+                IsIterableContainingInOrder.contains(
+                        new Transaction(3, -1, 123, 40, Transaction.State.INITIATED),
+                        new Transaction(4, -1, 123, 30, Transaction.State.INITIATED),
+                        new Transaction(5, -1, 123, 20, Transaction.State.INITIATED)));
+        assertThat(target.path("transaction").queryParam("state", "CONFIRMED")
+                        .request().get().readEntity(new GenericType<List<Transaction>>() {}),
+                IsIterableContainingInOrder.contains(new Transaction(2, -1, 123, 10, Transaction.State.CONFIRMED)));
+
+        Response newest = target.path("transaction").queryParam("order", "-id").queryParam("limit", 2)
+                .queryParam("minId", 2).request().get();
+        assertThat(newest.readEntity(new GenericType<List<Transaction>>() {}), IsIterableContainingInOrder.contains(
+                new Transaction(5, -1, 123, 20, Transaction.State.INITIATED),
+                new Transaction(4, -1, 123, 30, Transaction.State.INITIATED)));
+        List<Transaction> older = target.path("transaction").queryParam("order", "-id").queryParam("minId", 2)
+                .queryParam("after", newest.getHeaderString(Transactions.NEXT_CURSOR_HEADER))
+                .request().get().readEntity(new GenericType<List<Transaction>>() {});
+        assertEquals(Arrays.asList(3L, 2L), older.stream().map(Transaction::getId).collect(Collectors.toList()));
+
+        Response top = target.path("transaction").queryParam("order", "-amount").queryParam("limit", 2)
+                .request().get();
+        assertThat(top.readEntity(new GenericType<List<Transaction>>() {}), IsIterableContainingInOrder.contains(
+                new Transaction(1, -1, 123, 50, Transaction.State.INITIATED),
+                new Transaction(3, -1, 123, 40, Transaction.State.INITIATED)));
+        assertNull(top.getHeaderString(Transactions.NEXT_CURSOR_HEADER));
+        assertEquals(400, target.path("transaction").queryParam("order", "amount")
+                .queryParam("after", Cursor.encode(1)).request().get().getStatus());
+        assertEquals(400, target.path("transaction").queryParam("order", "size").request().get().getStatus());
+        assertEquals(400, target.path("transaction").queryParam("state", "LOST").request().get().getStatus());
+    }
+
+    /**
+     * Test that change feed streams changes as Server-Sent Events and resumes after the last event id.
+     */
+    @Test
+    public void testEvents() throws Exception {
+        assertEquals(404, target.path("transaction/events").request().get().getStatus());
+        ChangeFeed feed = new ChangeFeed(Shards.SHARDS, 16);
+        Transactions.setChangeFeed(feed, 50, 16);
+        String epoch = feed.getEpoch() + "-";
+        try {
+            HttpURLConnection connection = (HttpURLConnection) Main.baseUri()
+                    .resolve("transaction/events?account=1").toURL().openConnection();
+            connection.setReadTimeout(10_000);
+            assertEquals(200, connection.getResponseCode());
+            assertEquals(Transactions.EVENT_STREAM, connection.getContentType());
+            List<String> events = new ArrayList<>();
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream(),
+                    StandardCharsets.UTF_8))) {
+                Long id = target.path("transaction/initiate/-1/1/100").request().post(Entity.text(""))
+                        .readEntity(Long.class);
+                target.path("transaction/initiate/-1/2/100").request().post(Entity.text(""));
+                target.path("transaction/confirm/" + id).request().post(Entity.text(""));
+                while (events.size() < 5) {
+                    String line = reader.readLine();
+                    if (!line.isEmpty() && !line.startsWith(":")) {
+                        events.add(line);
+                    }
+                }
+            }
+            assertEquals(Arrays.asList("id: " + epoch + "1", "event: transaction",
+                    "data: {\"id\":1,\"source\":-1,\"destination\":1,\"amount\":100,\"state\":\"INITIATED\"}",
+                    "id: " + epoch + "3", "event: transaction"), events);
+
+            Response resumed = target.path("transaction/events").request()
+                    .header(Transactions.LAST_EVENT_ID_HEADER, epoch + "2").get();
+            assertEquals(200, resumed.getStatus());
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    resumed.readEntity(InputStream.class), StandardCharsets.UTF_8))) {
+                String line = reader.readLine();
+                while (line.startsWith(":") || line.isEmpty()) {
+                    line = reader.readLine();
+                }
+                assertEquals("id: " + epoch + "3", line);
+            }
+            assertEquals(410, target.path("transaction/events").queryParam("after", epoch + "100").request().get()
+                    .getStatus());
+            // Sequence without epoch, or of an earlier feed, says nothing about changes of this one.
+            assertEquals(410, target.path("transaction/events").queryParam("after", 2).request().get()
+                    .getStatus());
+            assertEquals(410, target.path("transaction/events").queryParam("after", (feed.getEpoch() - 1) + "-2")
+                    .request().get().getStatus());
+            assertEquals(400, target.path("transaction/events").queryParam("after", epoch + "x").request().get()
+                    .getStatus());
+        } finally {
+            feed.close();
+            Transactions.setChangeFeed(null, 0, 0);
+        }
+    }
+
+    /**
+     * Test that change matching filters is sent at once even when only changes not matching them follow it.
+     */
+    @Test
+    public void testEventFollowedByOthers() throws Exception {
+        ChangeFeed feed = new ChangeFeed(Shards.SHARDS, 16);
+        // Heartbeat never comes during the test, so nothing but the change itself ends the wait for it.
+        Transactions.setChangeFeed(feed, 60_000, 16);
+        try {
+            target.path("transaction/initiate/-1/1/100").request().post(Entity.text(""));
+            target.path("transaction/initiate/-1/2/100").request().post(Entity.text(""));
+            target.path("transaction/initiate/-1/3/100").request().post(Entity.text(""));
+            HttpURLConnection connection = (HttpURLConnection) Main.baseUri()
+                    .resolve("transaction/events?account=1&after=" + feed.getEpoch() + "-0").toURL()
+                    .openConnection();
+            connection.setReadTimeout(5_000);
+            assertEquals(200, connection.getResponseCode());
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream(),
+                    StandardCharsets.UTF_8))) {
+                String line = reader.readLine();
+                while (line.startsWith(":") || line.isEmpty()) {
+                    line = reader.readLine();
+                }
+                assertEquals("id: " + feed.getEpoch() + "-1", line);
+            }
+        } finally {
+            feed.close();
+            Transactions.setChangeFeed(null, 0, 0);
+        }
+    }
+
+    /**
+     * Test that subscribers beyond the maximum are refused while the feed streams to as many as it may.
+     */
+    @Test
+    public void testEventSubscribersLimited() throws Exception {
+        ChangeFeed feed = new ChangeFeed(Shards.SHARDS, 16);
+        Transactions.setChangeFeed(feed, 50, 1);
+        try {
+            HttpURLConnection first = (HttpURLConnection) Main.baseUri().resolve("transaction/events").toURL()
+                    .openConnection();
+            assertEquals(200, first.getResponseCode());
+            assertEquals(503, target.path("transaction/events").request().get().getStatus());
+            first.disconnect();
+            // Stream ends with the next heartbeat written to closed connection, then its thread is free again.
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            Response second = target.path("transaction/events").request().get();
+            while (second.getStatus() == 503) {
+                assertTrue(System.nanoTime() < deadline);
+                Thread.sleep(10);
+                second = target.path("transaction/events").request().get();
+            }
+            assertEquals(200, second.getStatus());
+            second.close();
+        } finally {
+            feed.close();
+            Transactions.setChangeFeed(null, 0, 0);
+        }
+    }
+
+    /**
+     * Test on streaming transactions as newline delimited JSON.
+     */
+    @Test
+    public void testStream() {
+        target.path("transaction/initiate/-1/123/100").request().post(Entity.text(""));
+        target.path("transaction/initiate/0/124/200").request().post(Entity.text(""));
+        target.path("transaction/initiate/0/125/300").request().post(Entity.text(""));
+        String[] lines = target.path("transaction/stream")
+                .queryParam("source", 0)
+                .request(Transactions.NDJSON)
+                .get(String.class)
+                .split("\n");
+        assertEquals(2, lines.length);
+        assertTrue(lines[0].contains("\"id\":2"));
+        assertTrue(lines[1].contains("\"id\":3"));
+        String[] page = target.path("transaction/stream")
+                .queryParam("limit", 1)
+                .request(Transactions.NDJSON)
+                .get(String.class)
+                .split("\n");
+        assertEquals(2, page.length);
+        assertTrue(page[0].contains("\"id\":1"));
+        assertTrue(page[1].startsWith("{\"next\":"));
+    }
+
+    /**
+     * Test that startup times are reported.
+     */
+    @Test
+    public void testStatus() {
+        Map<String, Object> status = target.path("status")
+                .request()
+                .get(new GenericType<Map<String, Object>>() {});
+        assertTrue(((Number) status.get("readyMillis")).longValue() >= 0);
+        assertTrue(((Number) status.get("firstRequestMillis")).longValue() >= 0);
+    }
+
+    /**
+     * Test that metrics count commits and transactions by state and time requests by endpoint.
+     */
+    @Test
+    public void testMetrics() {
+        Long id = target.path("transaction/initiate/-1/1/1000").request().post(Entity.text("")).readEntity(Long.class);
+        target.path("transaction/confirm/" + id).request().post(Entity.text("")).close();
+        target.path("transaction/initiate/1/2/2000").request().post(Entity.text("")).close();
+        String metrics = target.path("metrics").request().get(String.class);
+        assertTrue(metrics.contains("transactions_stored{state=\"INITIATED\"} 0\n"));
+        assertTrue(metrics.contains("transactions_stored{state=\"CONFIRMED\"} 1\n"));
+        assertTrue(metrics.contains("# TYPE transactions_commits_total counter\n"));
+        assertTrue(metrics.contains("transactions_http_request_duration_seconds_count"
+                + "{method=\"POST\",path=\"/transaction/initiate/{source}/{destination}/{amount}\"} "));
+        assertTrue(metrics.contains("transactions_commit_lock_hold_seconds_bucket{le=\"+Inf\"} "));
+    }
+
+    /**
+     * Test that metrics refuse negative number of the most contended accounts.
+     */
+    @Test
+    public void testMetricsNegativeTop() {
+        assertEquals(400, target.path("metrics").queryParam("top", -1).request().get().getStatus());
+    }
+
+    /**
+     * Test that batch with more operations than configured maximum is refused with 413 status and changes nothing.
+     */
+    @Test
+    public void testBatchTooLarge() {
+        Transactions.configureBatch(2);
+        try {
+            Response response = target.path("transaction/batch")
+                    .request()
+                    .post(Entity.json(Arrays.asList(
+                            BatchOperation.initiate(-1, 1, 1000),
+                            BatchOperation.initiate(-1, 2, 500),
+                            BatchOperation.initiate(-1, 3, 100))));
+            assertEquals(413, response.getStatus());
+            response.close();
+            assertNull(target.path("transaction/1").request().get(Transaction.class));
+        } finally {
+            Transactions.configureBatch(10_000);
+        }
+    }
+
+    /**
+     * Test on batch of operations.
+     */
+    @Test
+    public void testBatch() {
+        List<BatchResult> initiated = target.path("transaction/batch")
+                .request()
+                .post(Entity.json(Arrays.asList(
+                        BatchOperation.initiate(-1, 1, 1000),
+                        BatchOperation.initiate(-1, 2, 500),
+                        BatchOperation.initiate(1, 2, 100),
+                        BatchOperation.initiate(0, 0, 100))))
+                .readEntity(new GenericType<List<BatchResult>>() {});
+        assertEquals(Arrays.asList(
+                new BatchResult(1L, true),
+                new BatchResult(2L, true),
+                new BatchResult(null, false),
+                new BatchResult(null, false)), initiated);
+        List<BatchResult> settled = target.path("transaction/batch")
+                .request()
+                .post(Entity.json(Arrays.asList(
+                        BatchOperation.confirm(1),
+                        BatchOperation.cancel(2),
+                        BatchOperation.confirm(2),
+                        BatchOperation.confirm(42))))
+                .readEntity(new GenericType<List<BatchResult>>() {});
+        assertEquals(Arrays.asList(
+                new BatchResult(1L, true),
+                new BatchResult(2L, true),
+                new BatchResult(2L, false),
+                new BatchResult(42L, false)), settled);
+        List<BatchResult> transfers = target.path("transaction/batch")
+                .request()
+                .post(Entity.json(Arrays.asList(
+                        BatchOperation.initiate(1, 2, 600),
+                        BatchOperation.initiate(1, 2, 600))))
+                .readEntity(new GenericType<List<BatchResult>>() {});
+        assertEquals(Arrays.asList(
+                new BatchResult(3L, true),
+                new BatchResult(null, false)), transfers);
+        assertEquals(1000, Storage.STORAGE.getAccount(1).getMoney());
+        assertEquals(600, Storage.STORAGE.getAccount(1).getHold());
+        assertEquals(400, target.path("transaction/batch")
+                .request()
+                .post(Entity.json("[{\"amount\": 1}]"))
+                .getStatus());
+    }
 }
@@ -0,0 +1,54 @@
+package org.checat.audit;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Measures cost of audit record paid by request thread, with writer draining to disk meanwhile.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AuditLogBenchmark {
+
+    @Param({"BLOCK", "DROP"})
+    public AuditLog.Overflow overflow;
+
+    private Path directory;
+    private AuditLog log;
+
+    @Setup
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("audit-benchmark");
+        log = AuditLog.open(directory, overflow, 1 << 16, 64L << 20, 2);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        log.close();
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void recordSingleThread() {
+        log.record(AuditLog.Event.INITIATE, true, 1, 2, 3, 100);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void recordShared() {
+        log.record(AuditLog.Event.INITIATE, true, 1, 2, 3, 100);
+    }
+}
@@ -0,0 +1,119 @@
+package org.checat.audit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class AuditLogTest {
+
+    private static final int THREADS = 4;
+    private static final int RECORDS = 2000;
+
+    private Path directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("audit");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    private void recordConcurrently(AuditLog log) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int thread = 0; thread < THREADS; thread++) {
+                long source = thread + 1;
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < RECORDS; i++) {
+                        log.record(AuditLog.Event.INITIATE, true, i + 1, source, 0, i);
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Test that with BLOCK overflow every record is written once, in order of sequence, across rotated files.
+     */
+    @Test
+    public void testBlock() throws Exception {
+        AuditLog log = AuditLog.open(directory, AuditLog.Overflow.BLOCK, 16, 100 * AuditLog.RECORD_BYTES,
+                Integer.MAX_VALUE);
+        recordConcurrently(log);
+        log.close();
+        assertEquals(0, log.getDropped());
+        List<AuditLog.Record> records = AuditLog.read(directory);
+        assertEquals(THREADS * RECORDS, records.size());
+        long[] next = new long[THREADS];
+        for (int i = 0; i < records.size(); i++) {
+            AuditLog.Record record = records.get(i);
+            assertEquals(i, record.getSequence());
+            assertEquals(AuditLog.Event.INITIATE, record.getEvent());
+            assertTrue(record.isSuccess());
+            int thread = (int) record.getSource() - 1;
+            // Records of one thread keep their order.
+            assertEquals(next[thread]++, record.getAmount());
+        }
+        assertTrue("small files should rotate", AuditLog.files(directory).size() > 1);
+    }
+
+    /**
+     * Test that with DROP overflow every record is either written or counted as dropped.
+     */
+    @Test
+    public void testDrop() throws Exception {
+        AuditLog log = AuditLog.open(directory, AuditLog.Overflow.DROP, 2, 1 << 20, 1);
+        recordConcurrently(log);
+        log.close();
+        assertEquals(THREADS * RECORDS, AuditLog.read(directory).size() + log.getDropped());
+        log.record(AuditLog.Event.CANCEL, false, 1, 0, 0, 0);
+        assertEquals(THREADS * RECORDS + 1, AuditLog.read(directory).size() + log.getDropped());
+    }
+
+    /**
+     * Test that only the newest files are kept and reopened log continues sequence.
+     */
+    @Test
+    public void testRotation() throws Exception {
+        AuditLog log = AuditLog.open(directory, AuditLog.Overflow.BLOCK, 4, 10 * AuditLog.RECORD_BYTES, 2);
+        for (int i = 0; i < 100; i++) {
+            log.record(AuditLog.Event.CONFIRM, true, i, 0, 0, 0);
+        }
+        log.close();
+        assertTrue(AuditLog.files(directory).size() <= 2);
+        log = AuditLog.open(directory, AuditLog.Overflow.BLOCK, 4, 10 * AuditLog.RECORD_BYTES, 2);
+        log.record(AuditLog.Event.CANCEL, true, 100, 0, 0, 0);
+        log.close();
+        List<AuditLog.Record> records = AuditLog.read(directory);
+        AuditLog.Record last = records.get(records.size() - 1);
+        assertEquals(100, last.getSequence());
+        assertEquals(AuditLog.Event.CANCEL, last.getEvent());
+        for (int i = 1; i < records.size(); i++) {
+            assertEquals(records.get(i - 1).getSequence() + 1, records.get(i).getSequence());
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package org.checat.benchmark;
+
+import org.checat.BatchOperation;
+import org.checat.BatchResult;
+import org.checat.Transactions;
+import org.checat.storage.DataTransaction;
+import org.checat.storage.Storage;
+import org.checat.storage.Transfers;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures Transactions.batch with batches of different size.
+ * Divide time of one invocation by batchSize to compare cost of one operation.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BatchBenchmark {
+
+    @Param({"1", "100", "10000"})
+    public int batchSize;
+
+    @Param({"1000"})
+    public long accounts;
+
+    @Param({"UNIFORM", "HOT"})
+    public Contention contention;
+
+    private final Transactions resource = new Transactions();
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Storage.STORAGE.reset();
+        for (long id = 1; id <= accounts; id++) {
+            DataTransaction initiation = Transfers.initiate(Storage.STORAGE, -1, id, Long.MAX_VALUE / 2);
+            initiation.commit();
+            Transfers.confirm(Storage.STORAGE, initiation.getInsertedId(0)).commit();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Storage.STORAGE.reset();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public List<BatchResult> initiateBatch() {
+        List<BatchOperation> operations = new ArrayList<>(batchSize);
+        for (int i = 0; i < batchSize; i++) {
+            operations.add(BatchOperation.initiate(contention.pick(accounts), contention.pick(accounts), 1));
+        }
+        return resource.batch(operations);
+    }
+}
@@ -0,0 +1,122 @@
+package org.checat.benchmark;
+
+import org.checat.BinaryProtocol;
+import org.checat.BinaryServer;
+import org.checat.storage.Storage;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures initiate followed by confirm through binary listener against in-process BinaryServer, to compare with
+ * EndToEndBenchmark doing the same through HTTP, and pipelined initiates.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BinaryBenchmark {
+
+    private static final long INITIAL_MONEY = 1_000_000_000L;
+    private static final int PIPELINE = 16;
+
+    @Param({"1000"})
+    public long accounts;
+
+    @Param({"UNIFORM", "HOT"})
+    public Contention contention;
+
+    private BinaryServer server;
+
+    @State(Scope.Thread)
+    public static class ClientState {
+        SocketChannel channel;
+        final ByteBuffer requests = ByteBuffer.allocateDirect(PIPELINE * BinaryProtocol.REQUEST_BYTES);
+        final ByteBuffer responses = ByteBuffer.allocateDirect(PIPELINE * BinaryProtocol.RESPONSE_BYTES);
+
+        @Setup(Level.Trial)
+        public void setUp(BinaryBenchmark benchmark) throws IOException {
+            channel = SocketChannel.open(new InetSocketAddress("localhost", benchmark.server.getPort()));
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            channel.close();
+        }
+
+        void add(byte operation, long first, long second, long third) {
+            requests.putInt(0).put(operation).put((byte) 0).put((byte) 0).put((byte) 0);
+            requests.putLong(first).putLong(second).putLong(third);
+        }
+
+        /**
+         * Sends added requests and reads their responses.
+         * @return value of the last response if it succeeded, -1 otherwise.
+         */
+        long exchange() throws IOException {
+            int count = requests.position() / BinaryProtocol.REQUEST_BYTES;
+            requests.flip();
+            while (requests.hasRemaining()) {
+                channel.write(requests);
+            }
+            requests.clear();
+            responses.clear().limit(count * BinaryProtocol.RESPONSE_BYTES);
+            while (responses.hasRemaining()) {
+                if (channel.read(responses) < 0) {
+                    throw new IOException("Connection closed");
+                }
+            }
+            int last = (count - 1) * BinaryProtocol.RESPONSE_BYTES;
+            return responses.get(last + Integer.BYTES) == BinaryProtocol.OK ? responses.getLong(last + 8) : -1;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        int processors = Runtime.getRuntime().availableProcessors();
+        server = new BinaryServer(new InetSocketAddress("localhost", 0), processors, 2 * processors);
+        ClientState funding = new ClientState();
+        funding.setUp(this);
+        for (long id = 1; id <= accounts; id++) {
+            funding.add(BinaryProtocol.INITIATE, -1, id, INITIAL_MONEY);
+            long transaction = funding.exchange();
+            funding.add(BinaryProtocol.CONFIRM, transaction, 0, 0);
+            funding.exchange();
+        }
+        funding.tearDown();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        server.close();
+        Storage.STORAGE.reset();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public long initiateAndConfirm(ClientState state) throws IOException {
+        state.add(BinaryProtocol.INITIATE, contention.pick(accounts), contention.pick(accounts), 1);
+        long id = state.exchange();
+        if (id < 0) {
+            return id;
+        }
+        state.add(BinaryProtocol.CONFIRM, id, 0, 0);
+        return state.exchange();
+    }
+
+    @Benchmark
+    @Threads(8)
+    @OperationsPerInvocation(PIPELINE)
+    public long pipelinedInitiates(ClientState state) throws IOException {
+        for (int i = 0; i < PIPELINE; i++) {
+            state.add(BinaryProtocol.INITIATE, contention.pick(accounts), contention.pick(accounts), 1);
+        }
+        return state.exchange();
+    }
+}
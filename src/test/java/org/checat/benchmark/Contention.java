@@ -0,0 +1,60 @@
+package org.checat.benchmark;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Distribution of accounts touched by benchmark operations.
+ */
+public enum Contention {
+    /**
+     * Every account is equally likely to be chosen.
+     */
+    UNIFORM {
+        @Override
+        public long pick(long accounts) {
+            return ThreadLocalRandom.current().nextLong(accounts) + 1;
+        }
+    },
+    /**
+     * Nine of ten operations go to one of few hot accounts, the rest are spread uniformly.
+     */
+    HOT {
+        @Override
+        public long pick(long accounts) {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            if (random.nextInt(10) < 9) {
+                return random.nextLong(Math.min(HOT_ACCOUNTS, accounts)) + 1;
+            }
+            return random.nextLong(accounts) + 1;
+        }
+    };
+
+    private static final long HOT_ACCOUNTS = 4;
+
+    /**
+     * Picks internal account id in range [1, accounts].
+     * @param accounts long Number of accounts to choose from.
+     * @return id of account.
+     */
+    public abstract long pick(long accounts);
+
+    /**
+     * Picks internal account id in range [1, accounts] different from all ids in excluded[0, count).
+     * @param accounts long Number of accounts to choose from. Should be greater than count.
+     * @param excluded ids that should not be returned.
+     * @param count number of meaningful elements in excluded.
+     * @return id of account.
+     */
+    public long pickDistinct(long accounts, long[] excluded, int count) {
+        while (true) {
+            long id = pick(accounts);
+            boolean unique = true;
+            for (int i = 0; i < count; i++) {
+                unique &= excluded[i] != id;
+            }
+            if (unique) {
+                return id;
+            }
+        }
+    }
+}
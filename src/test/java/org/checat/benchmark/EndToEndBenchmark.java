@@ -0,0 +1,83 @@
+package org.checat.benchmark;
+
+import org.checat.Main;
+import org.checat.storage.Storage;
+import org.glassfish.grizzly.http.server.HttpServer;
+import org.openjdk.jmh.annotations.*;
+
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.ClientBuilder;
+import javax.ws.rs.client.Entity;
+import javax.ws.rs.client.WebTarget;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures initiate followed by confirm through HTTP against in-process Grizzly server.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EndToEndBenchmark {
+
+    private static final long INITIAL_MONEY = 1_000_000_000L;
+
+    @Param({"1000"})
+    public long accounts;
+
+    @Param({"UNIFORM", "HOT"})
+    public Contention contention;
+
+    private HttpServer server;
+
+    @State(Scope.Thread)
+    public static class ClientState {
+        WebTarget target;
+        Client client;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            client = ClientBuilder.newClient();
+            target = client.target(Main.BASE_URI).path("transaction");
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            client.close();
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        server = Main.startServer();
+        ClientState funding = new ClientState();
+        funding.setUp();
+        for (long id = 1; id <= accounts; id++) {
+            Long transaction = funding.target.path("initiate/-1/" + id + "/" + INITIAL_MONEY)
+                    .request().post(Entity.text("")).readEntity(Long.class);
+            funding.target.path("confirm/" + transaction).request().post(Entity.text("")).close();
+        }
+        funding.tearDown();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        server.shutdownNow();
+        Storage.STORAGE.reset();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public Boolean initiateAndConfirm(ClientState state) {
+        long source = contention.pick(accounts);
+        long destination = contention.pick(accounts);
+        Long id = state.target.path("initiate/" + source + "/" + destination + "/1")
+                .request().post(Entity.text("")).readEntity(Long.class);
+        if (id == null) {
+            return false;
+        }
+        return state.target.path("confirm/" + id).request().post(Entity.text("")).readEntity(Boolean.class);
+    }
+}
@@ -0,0 +1,109 @@
+package org.checat.benchmark;
+
+import org.checat.ExecutionMode;
+import org.checat.Main;
+import org.checat.storage.Journal;
+import org.checat.storage.Storage;
+import org.checat.storage.Transaction;
+import org.glassfish.grizzly.http.server.HttpServer;
+import org.openjdk.jmh.annotations.*;
+
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.ClientBuilder;
+import javax.ws.rs.client.Entity;
+import javax.ws.rs.client.WebTarget;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Shows how latency of cheap reads depends on ExecutionMode while commits contend for few hot accounts.
+ * Writers outnumber Grizzly workers and every commit waits for fsync of SYNC journal, so in WORKER mode reads
+ * queue behind blocked writers, while in ASYNC mode writers wait on commit threads and workers stay free.
+ * Compare percentiles of read in SampleTime results.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ExecutionModeBenchmark {
+
+    private static final long INITIAL_MONEY = 1_000_000_000L;
+    private static final long ACCOUNTS = 100;
+
+    @Param({"WORKER", "ASYNC"})
+    public ExecutionMode mode;
+
+    @Param({"4"})
+    public int workerThreads;
+
+    private HttpServer server;
+    private Journal journal;
+    private Path directory;
+
+    @State(Scope.Thread)
+    public static class ClientState {
+        WebTarget target;
+        Client client;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            client = ClientBuilder.newClient();
+            target = client.target(Main.BASE_URI).path("transaction");
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            client.close();
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("journal");
+        journal = Journal.open(directory, Journal.Durability.SYNC, 64L << 20, 10, Storage.STORAGE);
+        server = Main.startServer(mode, workerThreads);
+        ClientState funding = new ClientState();
+        funding.setUp();
+        for (long id = 1; id <= ACCOUNTS; id++) {
+            Long transaction = funding.target.path("initiate/-1/" + id + "/" + INITIAL_MONEY)
+                    .request().post(Entity.text("")).readEntity(Long.class);
+            funding.target.path("confirm/" + transaction).request().post(Entity.text("")).close();
+        }
+        funding.tearDown();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        server.shutdownNow();
+        journal.close();
+        Storage.STORAGE.reset();
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(16)
+    public Long write(ClientState state) {
+        long source = Contention.HOT.pick(ACCOUNTS);
+        long destination = Contention.HOT.pick(ACCOUNTS);
+        return state.target.path("initiate/" + source + "/" + destination + "/1")
+                .request().post(Entity.text("")).readEntity(Long.class);
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(2)
+    public Transaction read(ClientState state) {
+        long id = ThreadLocalRandom.current().nextLong(2 * ACCOUNTS) + 1;
+        return state.target.path(Long.toString(id)).request().get(Transaction.class);
+    }
+}
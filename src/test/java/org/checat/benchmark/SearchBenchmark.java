@@ -0,0 +1,91 @@
+package org.checat.benchmark;
+
+import org.checat.Transactions;
+import org.checat.storage.DataTransaction;
+import org.checat.storage.Storage;
+import org.openjdk.jmh.annotations.*;
+
+import javax.ws.rs.core.Response;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures Transactions.search over storages of different size.
+ * Selective queries ask for history of one account, full queries return every transaction. Range queries ask for
+ * a narrow band of amounts, newest transactions and top amounts, each answered from indexes without a sort.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+@State(Scope.Benchmark)
+public class SearchBenchmark {
+
+    @Param({"10000", "100000", "1000000", "10000000"})
+    public int transactions;
+
+    @Param({"1000"})
+    public long accounts;
+
+    @Param({"UNIFORM", "HOT"})
+    public Contention contention;
+
+    private final Transactions resource = new Transactions();
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Storage.STORAGE.reset();
+        for (int i = 0; i < transactions; i++) {
+            DataTransaction dataTransaction = Storage.STORAGE.startDataTransaction();
+            dataTransaction.insertTransaction(-1, contention.pick(accounts), i % 1000 + 1);
+            dataTransaction.commit();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Storage.STORAGE.reset();
+    }
+
+    @Benchmark
+    public Response searchByDestination() {
+        return resource.search(null, contention.pick(accounts), null, null, null, null, null, null, null, null,
+                null);
+    }
+
+    @Benchmark
+    public Response searchByDestinationAndAmount() {
+        return resource.search(null,
+                contention.pick(accounts),
+                ThreadLocalRandom.current().nextLong(1000) + 1,
+                null, null, null, null, null, null, null,
+                null);
+    }
+
+    @Benchmark
+    public Response searchAll() {
+        return resource.search(null, null, null, null, null, null, null, null, null, null, null);
+    }
+
+    @Benchmark
+    public Response searchFirstPage() {
+        return resource.search(null, null, null, null, null, null, null, null, null, 100, null);
+    }
+
+    @Benchmark
+    public Response searchAmountRange() {
+        long from = ThreadLocalRandom.current().nextLong(1000) + 1;
+        return resource.search(null, null, null, from, from + 1, null, null, null, null, null, null);
+    }
+
+    @Benchmark
+    public Response searchNewest() {
+        return resource.search(null, null, null, null, null, null, null, null, "-id", 100, null);
+    }
+
+    @Benchmark
+    public Response searchTopAmounts() {
+        return resource.search(null, null, null, null, null, null, null, null, "-amount", 100, null);
+    }
+}
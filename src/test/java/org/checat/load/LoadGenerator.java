@@ -0,0 +1,440 @@
+package org.checat.load;
+
+import org.checat.Main;
+import org.checat.metrics.Histogram;
+import org.checat.storage.DataTransaction;
+import org.checat.storage.Shards;
+import org.checat.storage.Storage;
+import org.checat.storage.Transfers;
+import org.glassfish.grizzly.http.server.HttpServer;
+
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.ClientBuilder;
+import javax.ws.rs.client.Entity;
+import javax.ws.rs.client.WebTarget;
+import javax.ws.rs.core.Response;
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Open-loop load generator driving the HTTP API of the server started in the same JVM by Main.startServer(), so
+ * server settings are taken from system properties as usual. Run headless with
+ * mvn -P load test-compile exec:exec -Dload.args="rate=2000 duration=60"
+ * or pass name=value arguments to main(), see Options for names and defaults.
+ *
+ * Requests are sent at constant arrival rate: every worker thread has a fixed schedule, together they issue one
+ * request every 1/rate seconds, and a worker never waits for the server longer than its schedule allows. A request
+ * sent late because the previous one took too long is still timed from when it should have been sent, so the
+ * stall is reported in every request it delayed instead of only the one that stalled (coordinated omission).
+ * Latency measured from actual sending is reported next to it for comparison.
+ *
+ * Operations are chosen by weights of the mix; accounts of initiate and search follow Zipf distribution. Confirm
+ * and cancel take the oldest transaction initiated by the same worker and still pending, or initiate one if there
+ * is none. Everything random is drawn from generators seeded by the seed option, so the same options replay the
+ * same sequence of operations per worker.
+ */
+public class LoadGenerator {
+
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+    private static final long NANOS_PER_MICRO = TimeUnit.MICROSECONDS.toNanos(1);
+    private static final long INITIAL_MONEY = 1_000_000_000_000L;
+    private static final int MAX_PENDING = 100_000;
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999, 0.9999, 1.0};
+
+    public enum Operation {
+        INITIATE, CONFIRM, CANCEL, SEARCH
+    }
+
+    enum Outcome {
+        /**
+         * Request succeeded.
+         */
+        OK,
+        /**
+         * Server answered that operation can't be done, e.g. no content for initiate or false for confirm.
+         */
+        REJECTED,
+        /**
+         * Request failed or server answered with error status.
+         */
+        ERROR
+    }
+
+    /**
+     * Parameters of a run.
+     */
+    static final class Options {
+        /**
+         * Requests per second issued by all workers together.
+         */
+        double rate = 1000;
+        /**
+         * Seconds of measured load.
+         */
+        long duration = 30;
+        /**
+         * Seconds of load before measurement starts, not reported.
+         */
+        long warmup = 10;
+        /**
+         * Number of worker threads, which is the most requests that can be outstanding.
+         */
+        int concurrency = 16;
+        /**
+         * Number of accounts, funded before the run.
+         */
+        long accounts = 10_000;
+        /**
+         * Exponent of Zipf distribution of accounts, 0 for uniform.
+         */
+        double skew = 0.99;
+        /**
+         * Relative weights of operations, in order of Operation.
+         */
+        int[] mix = {50, 30, 5, 15};
+        /**
+         * Limit of search requests.
+         */
+        int searchLimit = 20;
+        /**
+         * Largest amount of initiated transactions, chosen uniformly from 1.
+         */
+        long maxAmount = 100;
+        long seed = 1;
+
+        /**
+         * @param args name=value pairs, mix given as initiate:confirm:cancel:search weights.
+         * @return Options with defaults for missing names.
+         * @throws IllegalArgumentException if name is unknown or value is invalid.
+         */
+        static Options parse(String... args) {
+            Options options = new Options();
+            for (String arg : args) {
+                int separator = arg.indexOf('=');
+                if (separator < 0) {
+                    throw new IllegalArgumentException("Expected name=value: " + arg);
+                }
+                String value = arg.substring(separator + 1);
+                switch (arg.substring(0, separator)) {
+                    case "rate": options.rate = Double.parseDouble(value); break;
+                    case "duration": options.duration = Long.parseLong(value); break;
+                    case "warmup": options.warmup = Long.parseLong(value); break;
+                    case "concurrency": options.concurrency = Integer.parseInt(value); break;
+                    case "accounts": options.accounts = Long.parseLong(value); break;
+                    case "skew": options.skew = Double.parseDouble(value); break;
+                    case "mix": options.mix = parseMix(value); break;
+                    case "searchLimit": options.searchLimit = Integer.parseInt(value); break;
+                    case "maxAmount": options.maxAmount = Long.parseLong(value); break;
+                    case "seed": options.seed = Long.parseLong(value); break;
+                    default: throw new IllegalArgumentException("Unknown option: " + arg);
+                }
+            }
+            if (options.rate <= 0 || options.duration <= 0 || options.warmup < 0 || options.concurrency <= 0
+                    || options.accounts < 2 || options.searchLimit <= 0 || options.maxAmount <= 0) {
+                throw new IllegalArgumentException("Invalid options: " + options);
+            }
+            return options;
+        }
+
+        private static int[] parseMix(String value) {
+            String[] weights = value.split(":");
+            if (weights.length != Operation.values().length) {
+                throw new IllegalArgumentException("Mix should have weights of initiate:confirm:cancel:search");
+            }
+            int[] mix = new int[weights.length];
+            int total = 0;
+            for (int i = 0; i < weights.length; i++) {
+                mix[i] = Integer.parseInt(weights[i]);
+                if (mix[i] < 0) {
+                    throw new IllegalArgumentException("Weights should not be negative");
+                }
+                total += mix[i];
+            }
+            if (total == 0) {
+                throw new IllegalArgumentException("Some weight should be positive");
+            }
+            return mix;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder mix = new StringBuilder();
+            for (int weight : this.mix) {
+                mix.append(mix.length() == 0 ? "" : ":").append(weight);
+            }
+            return "rate=" + rate + " duration=" + duration + " warmup=" + warmup + " concurrency=" + concurrency
+                    + " accounts=" + accounts + " skew=" + skew + " mix=" + mix + " searchLimit=" + searchLimit
+                    + " maxAmount=" + maxAmount + " seed=" + seed;
+        }
+    }
+
+    /**
+     * Latencies and outcomes of one operation measured during a run.
+     */
+    static final class Stats {
+        /**
+         * Time from when request should have been sent to its response.
+         */
+        final Histogram corrected = new Histogram();
+        /**
+         * Time from when request was actually sent to its response.
+         */
+        final Histogram uncorrected = new Histogram();
+        final LongAdder rejected = new LongAdder();
+        final LongAdder errors = new LongAdder();
+
+        void record(Outcome outcome, long corrected, long uncorrected) {
+            this.corrected.record(corrected);
+            this.uncorrected.record(uncorrected);
+            if (outcome == Outcome.REJECTED) {
+                rejected.increment();
+            } else if (outcome == Outcome.ERROR) {
+                errors.increment();
+            }
+        }
+    }
+
+    /**
+     * Outcome of a run.
+     */
+    static final class Result {
+        final Stats[] operations = new Stats[Operation.values().length];
+        final Stats total = new Stats();
+        /**
+         * The most a request was sent after its scheduled time, in nanoseconds.
+         */
+        final LongAccumulator maxLag = new LongAccumulator(Math::max, 0);
+        /**
+         * System.nanoTime() of the end of the last measured request.
+         */
+        final LongAccumulator lastDone = new LongAccumulator(Math::max, Long.MIN_VALUE);
+        private final long measured;
+
+        /**
+         * @param measured long System.nanoTime() requests scheduled from are measured.
+         */
+        Result(long measured) {
+            this.measured = measured;
+            for (int i = 0; i < operations.length; i++) {
+                operations[i] = new Stats();
+            }
+        }
+
+        void record(Operation operation, Outcome outcome, long corrected, long uncorrected) {
+            operations[operation.ordinal()].record(outcome, corrected, uncorrected);
+            total.record(outcome, corrected, uncorrected);
+        }
+
+        /**
+         * @return nanoseconds from start of measurement to the end of the last measured request.
+         */
+        long getElapsedNanos() {
+            return Math.max(lastDone.get() - measured, 1);
+        }
+
+        void print(PrintStream out) {
+            out.printf("%-9s %9s %9s %8s %8s | %s | %s%n", "operation", "count", "ops/s", "rejected", "errors",
+                    "corrected latency, us: p50 p90 p99 p99.9 p99.99 max", "uncorrected: p50 p99 max");
+            for (Operation operation : Operation.values()) {
+                print(out, operation.name().toLowerCase(), operations[operation.ordinal()]);
+            }
+            print(out, "total", total);
+            out.printf("Largest delay of sending behind schedule: %d us%n", maxLag.get() / NANOS_PER_MICRO);
+        }
+
+        private void print(PrintStream out, String name, Stats stats) {
+            long count = stats.corrected.getCount();
+            StringBuilder corrected = new StringBuilder();
+            for (double quantile : QUANTILES) {
+                corrected.append(' ').append(stats.corrected.getValueAtQuantile(quantile) / NANOS_PER_MICRO);
+            }
+            out.printf("%-9s %9d %9.1f %8d %8d |%s | %d %d %d%n", name, count,
+                    count * (double) NANOS_PER_SECOND / getElapsedNanos(), stats.rejected.sum(), stats.errors.sum(),
+                    corrected, stats.uncorrected.getValueAtQuantile(0.5) / NANOS_PER_MICRO,
+                    stats.uncorrected.getValueAtQuantile(0.99) / NANOS_PER_MICRO,
+                    stats.uncorrected.getValueAtQuantile(1.0) / NANOS_PER_MICRO);
+        }
+    }
+
+    private final Options options;
+    private final Zipf accounts;
+    private final int mixTotal;
+
+    LoadGenerator(Options options) {
+        this.options = options;
+        accounts = new Zipf(options.accounts, options.skew);
+        int total = 0;
+        for (int weight : options.mix) {
+            total += weight;
+        }
+        mixTotal = total;
+    }
+
+    /**
+     * Gives every account money enough to never run out during a run. Done directly in storage, it is not measured.
+     * @param shards Shards of storage to fund accounts in.
+     */
+    void fund(Shards shards) {
+        for (long id = 1; id <= options.accounts; id++) {
+            Storage storage = shards.forAccount(id);
+            DataTransaction deposit = Transfers.initiate(storage, -1, id, INITIAL_MONEY);
+            if (!deposit.commit() || !Transfers.confirm(storage, deposit.getInsertedId(0)).commit()) {
+                throw new IllegalStateException("Can't fund account " + id);
+            }
+        }
+    }
+
+    /**
+     * Sends requests on schedule for warmup and duration seconds and waits for outstanding ones.
+     * @param uri String Base URI of the server.
+     * @return Result of the measured part.
+     * @throws InterruptedException if interrupted while waiting for workers.
+     */
+    Result run(String uri) throws InterruptedException {
+        if (System.getProperty("http.maxConnections") == null) {
+            // Otherwise HttpURLConnection keeps only 5 idle connections and the rest of workers reconnect.
+            System.setProperty("http.maxConnections", Integer.toString(options.concurrency));
+        }
+        double period = NANOS_PER_SECOND / options.rate;
+        // Leave workers time to create their clients before the first scheduled request.
+        long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+        long measured = start + options.warmup * NANOS_PER_SECOND;
+        long end = measured + options.duration * NANOS_PER_SECOND;
+        Result result = new Result(measured);
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < options.concurrency; i++) {
+            int worker = i;
+            Thread thread = new Thread(() -> work(uri, worker, start, period, measured, end, result), "load-" + i);
+            thread.setDaemon(true);
+            workers.add(thread);
+            thread.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return result;
+    }
+
+    private void work(String uri, int worker, long start, double period, long measured, long end, Result result) {
+        Client client = ClientBuilder.newClient();
+        try {
+            WebTarget target = client.target(uri).path("transaction");
+            Random random = new Random(options.seed * 1_000_003 + worker);
+            ArrayDeque<Long> pending = new ArrayDeque<>();
+            for (long i = worker; ; i += options.concurrency) {
+                long intended = start + (long) (i * period);
+                if (intended >= end) {
+                    return;
+                }
+                long now;
+                while ((now = System.nanoTime()) < intended) {
+                    LockSupport.parkNanos(intended - now);
+                }
+                Operation operation = pick(random);
+                Long id = operation == Operation.CONFIRM || operation == Operation.CANCEL ? pending.poll() : null;
+                if (id == null && operation != Operation.SEARCH) {
+                    operation = Operation.INITIATE;
+                }
+                Outcome outcome;
+                try {
+                    outcome = execute(target, operation, id, random, pending);
+                } catch (ProcessingException e) {
+                    outcome = Outcome.ERROR;
+                }
+                long done = System.nanoTime();
+                if (intended >= measured) {
+                    result.record(operation, outcome, done - intended, done - now);
+                    result.maxLag.accumulate(now - intended);
+                    result.lastDone.accumulate(done);
+                }
+            }
+        } finally {
+            client.close();
+        }
+    }
+
+    private Operation pick(Random random) {
+        int point = random.nextInt(mixTotal);
+        for (Operation operation : Operation.values()) {
+            point -= options.mix[operation.ordinal()];
+            if (point < 0) {
+                return operation;
+            }
+        }
+        throw new AssertionError();
+    }
+
+    private Outcome execute(WebTarget target, Operation operation, Long id, Random random, ArrayDeque<Long> pending) {
+        switch (operation) {
+            case INITIATE: {
+                long source = accounts.sample(random.nextDouble());
+                long destination;
+                do {
+                    destination = accounts.sample(random.nextDouble());
+                } while (destination == source);
+                long amount = 1 + (long) (random.nextDouble() * options.maxAmount);
+                try (Response response = target.path("initiate/" + source + "/" + destination + "/" + amount)
+                        .request().post(Entity.text(""))) {
+                    if (response.getStatus() == Response.Status.NO_CONTENT.getStatusCode()) {
+                        return Outcome.REJECTED;
+                    }
+                    if (response.getStatus() != Response.Status.OK.getStatusCode()) {
+                        return Outcome.ERROR;
+                    }
+                    if (pending.size() == MAX_PENDING) {
+                        pending.poll();
+                    }
+                    pending.add(response.readEntity(Long.class));
+                    return Outcome.OK;
+                }
+            }
+            case CONFIRM:
+            case CANCEL: {
+                String path = (operation == Operation.CONFIRM ? "confirm/" : "cancel/") + id;
+                try (Response response = target.path(path).request().post(Entity.text(""))) {
+                    if (response.getStatus() != Response.Status.OK.getStatusCode()) {
+                        return Outcome.ERROR;
+                    }
+                    return response.readEntity(Boolean.class) ? Outcome.OK : Outcome.REJECTED;
+                }
+            }
+            case SEARCH: {
+                long source = accounts.sample(random.nextDouble());
+                try (Response response = target.queryParam("source", source)
+                        .queryParam("limit", options.searchLimit).request().get()) {
+                    if (response.getStatus() != Response.Status.OK.getStatusCode()) {
+                        return Outcome.ERROR;
+                    }
+                    response.readEntity(String.class);
+                    return Outcome.OK;
+                }
+            }
+            default:
+                throw new AssertionError(operation);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = Options.parse(args);
+        LoadGenerator generator = new LoadGenerator(options);
+        System.out.println("Load: " + options);
+        Main.configureStorage();
+        HttpServer server = Main.startServer();
+        try {
+            generator.fund(Shards.SHARDS);
+            Result result = generator.run(Main.BASE_URI);
+            result.print(System.out);
+        } finally {
+            server.shutdownNow();
+            Shards.SHARDS.reset();
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package org.checat.load;
+
+import org.checat.Main;
+import org.checat.storage.Shards;
+import org.checat.storage.Storage;
+import org.glassfish.grizzly.http.server.HttpServer;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class LoadGeneratorTest {
+
+    @After
+    public void tearDown() {
+        Storage.STORAGE.reset();
+    }
+
+    /**
+     * Test that Zipf ranks stay in range and the top one is chosen as often as expected.
+     */
+    @Test
+    public void testZipf() {
+        Zipf zipf = new Zipf(1000, 0.99);
+        Random random = new Random(1);
+        int samples = 100_000;
+        int top = 0;
+        int lowerHalf = 0;
+        for (int i = 0; i < samples; i++) {
+            long rank = zipf.sample(random.nextDouble());
+            assertTrue(rank >= 1 && rank <= 1000);
+            top += rank == 1 ? 1 : 0;
+            lowerHalf += rank > 500 ? 1 : 0;
+        }
+        assertEquals(zipf.getTopProbability(), top / (double) samples, 0.01);
+        assertTrue(lowerHalf < samples / 10);
+
+        Zipf uniform = new Zipf(1000, 0);
+        lowerHalf = 0;
+        for (int i = 0; i < samples; i++) {
+            lowerHalf += uniform.sample(random.nextDouble()) > 500 ? 1 : 0;
+        }
+        assertEquals(0.5, lowerHalf / (double) samples, 0.01);
+    }
+
+    /**
+     * Test that options are parsed and invalid ones are refused.
+     */
+    @Test
+    public void testOptions() {
+        LoadGenerator.Options options = LoadGenerator.Options.parse("rate=50.5", "mix=1:0:0:3", "skew=0");
+        assertEquals(50.5, options.rate, 0);
+        assertEquals("[1, 0, 0, 3]", Arrays.toString(options.mix));
+        assertEquals(LoadGenerator.Options.parse(options.toString().split(" ")).toString(), options.toString());
+        for (String invalid : new String[]{"rate", "rate=0", "mix=1:2", "mix=0:0:0:0", "unknown=1"}) {
+            try {
+                LoadGenerator.Options.parse(invalid);
+                fail("Accepted " + invalid);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    /**
+     * Test that a short run against in-process server sends requests at the scheduled rate.
+     */
+    @Test
+    public void testRun() throws Exception {
+        LoadGenerator.Options options = LoadGenerator.Options.parse("rate=200", "duration=1", "warmup=0",
+                "concurrency=4", "accounts=100");
+        LoadGenerator generator = new LoadGenerator(options);
+        HttpServer server = Main.startServer();
+        try {
+            generator.fund(Shards.SHARDS);
+            LoadGenerator.Result result = generator.run(Main.BASE_URI);
+            assertEquals(200, result.total.corrected.getCount());
+            assertEquals(0, result.total.errors.sum());
+            long counted = 0;
+            for (LoadGenerator.Stats stats : result.operations) {
+                counted += stats.corrected.getCount();
+            }
+            assertEquals(200, counted);
+            assertTrue(result.operations[LoadGenerator.Operation.INITIATE.ordinal()].corrected.getCount() > 0);
+            assertTrue(result.operations[LoadGenerator.Operation.SEARCH.ordinal()].corrected.getCount() > 0);
+            assertTrue(result.total.corrected.getValueAtQuantile(0.5)
+                    >= result.total.uncorrected.getValueAtQuantile(0.5));
+        } finally {
+            server.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package org.checat.load;
+
+/**
+ * Zipfian distribution of ranks in range [1, n]: rank k is chosen with probability proportional to 1 / k^skew, so
+ * account 1 is the hottest one.
+ *
+ * Sampling takes constant time by the approximation of Gray et al. "Quickly Generating Billion-Record Synthetic
+ * Databases", as YCSB does; only the normalizing sum over all ranks is computed upfront. Instances are immutable
+ * and may be shared by threads, each drawing from its own source of uniform numbers.
+ */
+final class Zipf {
+    private final long n;
+    private final double skew;
+    private final double zetaN;
+    private final double alpha;
+    private final double eta;
+    private final double secondThreshold;
+
+    /**
+     * @param n long Number of ranks. Must be positive.
+     * @param skew double Exponent in range [0, 1). 0 gives uniform distribution, YCSB uses 0.99.
+     */
+    Zipf(long n, double skew) {
+        if (n <= 0) {
+            throw new IllegalArgumentException("Number of ranks should be positive");
+        }
+        if (skew < 0 || skew >= 1) {
+            throw new IllegalArgumentException("Skew should be in range [0, 1)");
+        }
+        this.n = n;
+        this.skew = skew;
+        zetaN = zeta(n, skew);
+        alpha = 1 / (1 - skew);
+        eta = n > 1 ? (1 - Math.pow(2.0 / n, 1 - skew)) / (1 - zeta(2, skew) / zetaN) : 1;
+        secondThreshold = 1 + Math.pow(0.5, skew);
+    }
+
+    private static double zeta(long n, double skew) {
+        double sum = 0;
+        for (long i = 1; i <= n; i++) {
+            sum += 1 / Math.pow(i, skew);
+        }
+        return sum;
+    }
+
+    /**
+     * @return probability of rank 1.
+     */
+    double getTopProbability() {
+        return 1 / zetaN;
+    }
+
+    /**
+     * @param uniform double Uniformly distributed number in range [0, 1).
+     * @return rank in range [1, n].
+     */
+    long sample(double uniform) {
+        double scaled = uniform * zetaN;
+        if (scaled < 1) {
+            return 1;
+        }
+        if (scaled < secondThreshold && n > 1) {
+            return 2;
+        }
+        long rank = 1 + (long) (n * Math.pow(eta * uniform - eta + 1, alpha));
+        return Math.min(rank, n);
+    }
+
+    @Override
+    public String toString() {
+        return "Zipf(" + n + ", " + skew + ")";
+    }
+}
@@ -0,0 +1,31 @@
+package org.checat.metrics;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures cost of recording into Histogram, with nanoTime() call as in real use.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HistogramBenchmark {
+
+    private final Histogram histogram = new Histogram();
+
+    @Benchmark
+    @Threads(1)
+    public void recordSingleThread() {
+        histogram.record(System.nanoTime() & 0xFFFFF);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void recordShared() {
+        histogram.record(System.nanoTime() & 0xFFFFF);
+    }
+}
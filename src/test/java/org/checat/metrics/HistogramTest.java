@@ -0,0 +1,49 @@
+package org.checat.metrics;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class HistogramTest {
+
+    /**
+     * Test that every value falls into bucket whose bounds hold it and buckets are no wider than 1/16 of value.
+     */
+    @Test
+    public void testBuckets() {
+        long[] values = {0, 1, 15, 16, 17, 31, 32, 33, 1000, 1023, 1024, 123456789, Long.MAX_VALUE / 3,
+                Long.MAX_VALUE};
+        for (long value : values) {
+            int index = Histogram.index(value);
+            assertTrue(value < Histogram.upperBound(index) || value == Long.MAX_VALUE);
+            assertTrue(index == 0 || value >= Histogram.upperBound(index - 1));
+            assertTrue(Histogram.upperBound(index) - value <= Math.max(1, value / 16));
+        }
+        assertEquals(0, Histogram.index(-5));
+    }
+
+    /**
+     * Test quantiles and Prometheus buckets of recorded values.
+     */
+    @Test
+    public void testRecord() {
+        Histogram histogram = new Histogram();
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i * 1000L);
+        }
+        assertEquals(100, histogram.getCount());
+        assertEquals(5050 * 1000L, histogram.getSum());
+        long median = histogram.getValueAtQuantile(0.5);
+        assertTrue(median > 50_000 && median <= 50_000 * 17 / 16);
+        long max = histogram.getValueAtQuantile(1);
+        assertTrue(max > 100_000 && max <= 100_000 * 17 / 16);
+
+        Exposition out = new Exposition();
+        histogram.writeTo(out, "latency", "path=\"/x\"");
+        String text = out.toString();
+        assertTrue(text.contains("latency_bucket{path=\"/x\",le=\"1.0E-6\"} 0\n"));
+        assertTrue(text.contains("latency_bucket{path=\"/x\",le=\"+Inf\"} 100\n"));
+        assertTrue(text.contains("latency_count{path=\"/x\"} 100\n"));
+        assertTrue(text.contains("latency_sum{path=\"/x\"} 0.00505\n"));
+    }
+}
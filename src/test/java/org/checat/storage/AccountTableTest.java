@@ -0,0 +1,51 @@
+package org.checat.storage;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class AccountTableTest {
+
+    /**
+     * Test that concurrent lookups across table growth return the one account for every id.
+     */
+    @Test
+    public void testConcurrentGrowth() throws Exception {
+        AccountTable table = new AccountTable();
+        int ids = 50_000;
+        Account[][] seen = new Account[4][ids + 1];
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < seen.length; t++) {
+            Account[] found = seen[t];
+            threads.add(new Thread(() -> {
+                for (int id = 1; id <= ids; id++) {
+                    found[id] = table.getOrCreate(id * 31L);
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Set<Long> values = new HashSet<>();
+        for (Account account : table.values()) {
+            assertTrue(values.add(account.getId()));
+        }
+        assertEquals(ids, values.size());
+        for (int id = 1; id <= ids; id++) {
+            Account account = table.get(id * 31L);
+            assertEquals(id * 31L, account.getId());
+            for (Account[] found : seen) {
+                assertSame(account, found[id]);
+            }
+        }
+        assertNull(table.get(-1));
+        table.clear();
+        assertNull(table.get(31));
+    }
+}
@@ -0,0 +1,93 @@
+package org.checat.storage;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures initiate and confirm cycle of a transfer with change feed open, by number of subscribers reading it on
+ * threads of their own. Without feed, commits pay nothing; with it, they only write their rows into the ring and
+ * wake up waiting subscribers.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ChangeFeedBenchmark {
+
+    @Param({"1000"})
+    public long accounts;
+
+    @Param({"false", "true"})
+    public boolean feed;
+
+    @Param({"0", "1", "16"})
+    public int subscribers;
+
+    private final Storage storage = Storage.STORAGE;
+    private ChangeFeed changeFeed;
+    private final List<Thread> readers = new ArrayList<>();
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        storage.reset();
+        for (long id = 1; id <= accounts; id++) {
+            storage.restoreAccount(id, Long.MAX_VALUE / 2, 0);
+        }
+        if (!feed) {
+            return;
+        }
+        changeFeed = new ChangeFeed(Shards.SHARDS, 1 << 16);
+        for (int i = 0; i < subscribers; i++) {
+            Thread reader = new Thread(() -> {
+                ChangeFeed.Subscription subscription = changeFeed.subscribe(null, null, null, null);
+                while (!changeFeed.isClosed()) {
+                    try {
+                        subscription.next(TimeUnit.MILLISECONDS.toNanos(100));
+                    } catch (IllegalStateException e) {
+                        subscription = changeFeed.subscribe(null, null, null, null);
+                    }
+                }
+            });
+            reader.setDaemon(true);
+            reader.start();
+            readers.add(reader);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        if (changeFeed != null) {
+            changeFeed.close();
+        }
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        storage.reset();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean initiateAndConfirm() {
+        long source = ThreadLocalRandom.current().nextLong(accounts) + 1;
+        long destination = source % accounts + 1;
+        DataTransaction dataTransaction = storage.borrowDataTransaction();
+        try {
+            Transfers.initiate(dataTransaction, source, destination, 1);
+            if (!dataTransaction.commit()) {
+                return false;
+            }
+            long id = dataTransaction.getInsertedId(0);
+            dataTransaction.reset();
+            Transfers.confirm(dataTransaction, id);
+            return dataTransaction.commit();
+        } finally {
+            storage.giveBack(dataTransaction);
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package org.checat.storage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ChangeFeedTest {
+
+    private static final long TIMEOUT = TimeUnit.SECONDS.toNanos(10);
+
+    private final Storage storage = Storage.STORAGE;
+    private ChangeFeed feed;
+
+    @Before
+    public void setUp() {
+        storage.reset();
+        feed = new ChangeFeed(Shards.SHARDS, 16);
+    }
+
+    @After
+    public void tearDown() {
+        feed.close();
+        storage.reset();
+        Shards.SHARDS.reset();
+        Shards.SHARDS.configure(1);
+    }
+
+    private long initiate(Storage storage, long source, long destination, long amount) {
+        DataTransaction dataTransaction = Transfers.initiate(storage, source, destination, amount);
+        assertTrue(dataTransaction.commit());
+        return dataTransaction.getInsertedId(0);
+    }
+
+    /**
+     * Test that subscriber gets every insert and state change made after it subscribed, matching its filters.
+     */
+    @Test
+    public void testEvents() {
+        initiate(storage, -1, 3, 5);
+        ChangeFeed.Subscription all = feed.subscribe(null, null, null, null);
+        ChangeFeed.Subscription toTwo = feed.subscribe(null, null, 2L, null);
+        ChangeFeed.Subscription ofOne = feed.subscribe(null, null, null, 1L);
+        long deposit = initiate(storage, -1, 1, 100);
+        assertTrue(Transfers.confirm(storage, deposit).commit());
+        long moved = initiate(storage, 1, 2, 30);
+        assertTrue(Transfers.cancel(storage, moved).commit());
+        assertEquals(5, feed.getSequence());
+
+        ChangeFeed.Event event = all.next(TIMEOUT);
+        assertEquals(2, event.getSequence());
+        assertEquals(new Transaction(deposit, -1, 1, 100, Transaction.State.INITIATED), event.getTransaction());
+        assertEquals(Transaction.State.CONFIRMED, all.next(TIMEOUT).getTransaction().getState());
+        assertEquals(Transaction.State.INITIATED, all.next(TIMEOUT).getTransaction().getState());
+        assertEquals(new Transaction(moved, 1, 2, 30, Transaction.State.CANCELED), all.next(TIMEOUT).getTransaction());
+        assertNull(all.next(TimeUnit.MILLISECONDS.toNanos(10)));
+
+        assertEquals(4, toTwo.next(TIMEOUT).getSequence());
+        assertEquals(5, toTwo.next(TIMEOUT).getSequence());
+        assertNull(toTwo.next(0));
+        assertEquals(2, ofOne.next(TIMEOUT).getSequence());
+        assertEquals(3, ofOne.next(TIMEOUT).getSequence());
+        assertEquals(4, ofOne.next(TIMEOUT).getSequence());
+        assertEquals(3, feed.getSubscriberCount());
+        all.close();
+        all.close();
+        assertEquals(2, feed.getSubscriberCount());
+    }
+
+    /**
+     * Test that subscriber resumes after sequence it has seen while the changes following it are kept.
+     */
+    @Test
+    public void testResume() {
+        for (int i = 0; i < 10; i++) {
+            initiate(storage, -1, 1, i + 1);
+        }
+        ChangeFeed.Subscription resumed = feed.subscribe(7L, null, null, null);
+        assertEquals(8, resumed.next(TIMEOUT).getSequence());
+        assertNull(feed.subscribe(11L, null, null, null));
+        assertNotNull(feed.subscribe(0L, null, null, null));
+
+        for (int i = 0; i < 20; i++) {
+            initiate(storage, -1, 1, 1);
+        }
+        // Ring of 16 keeps changes 15 to 30.
+        assertNull(feed.subscribe(7L, null, null, null));
+        assertEquals(15, feed.subscribe(14L, null, null, null).next(TIMEOUT).getSequence());
+    }
+
+    /**
+     * Test that subscriber that falls behind by more than capacity is told so instead of holding commits.
+     */
+    @Test
+    public void testSlowSubscriber() {
+        ChangeFeed.Subscription slow = feed.subscribe(null, null, null, null);
+        for (int i = 0; i < 40; i++) {
+            initiate(storage, -1, 1, 1);
+        }
+        try {
+            slow.next(TIMEOUT);
+            fail("Overwritten changes should be reported");
+        } catch (IllegalStateException e) {
+            assertEquals(1, feed.getLostCount());
+        }
+    }
+
+    /**
+     * Test that waiting subscriber is woken up by commit and by close of feed.
+     */
+    @Test
+    public void testWakeUp() throws Exception {
+        ChangeFeed.Subscription waiting = feed.subscribe(null, null, null, null);
+        CompletableFuture<ChangeFeed.Event> event = CompletableFuture.supplyAsync(() -> waiting.next(TIMEOUT));
+        Thread.sleep(50);
+        long started = System.nanoTime();
+        long id = initiate(storage, -1, 1, 1);
+        assertEquals(id, event.get(10, TimeUnit.SECONDS).getTransaction().getId());
+        assertTrue(System.nanoTime() - started < TIMEOUT / 2);
+
+        CompletableFuture<ChangeFeed.Event> none = CompletableFuture.supplyAsync(() -> waiting.next(TIMEOUT));
+        Thread.sleep(50);
+        feed.close();
+        assertNull(none.get(5, TimeUnit.SECONDS));
+        initiate(storage, -1, 1, 1);
+        assertEquals(1, feed.getSequence());
+    }
+
+    /**
+     * Test that ids of events carry epoch of their feed, which grows with every feed opened.
+     */
+    @Test
+    public void testEpochs() {
+        ChangeFeed.Subscription subscription = feed.subscribe(null, null, null, null);
+        initiate(storage, -1, 1, 1);
+        assertEquals(feed.getEpoch() + "-1", subscription.next(TIMEOUT).getId());
+        ChangeFeed later = new ChangeFeed(Shards.SHARDS, 16);
+        try {
+            assertTrue(later.getEpoch() > feed.getEpoch());
+        } finally {
+            later.close();
+        }
+    }
+
+    /**
+     * Test that changes of every shard are fed with global ids.
+     */
+    @Test
+    public void testShards() {
+        feed.close();
+        Shards shards = Shards.SHARDS;
+        shards.reset();
+        shards.configure(2);
+        feed = new ChangeFeed(shards, 16);
+        ChangeFeed.Subscription subscription = feed.subscribe(null, null, null, null);
+        long first = shards.globalId(shards.forAccount(1), initiate(shards.forAccount(1), -1, 1, 10));
+        long second = shards.globalId(shards.forAccount(2), initiate(shards.forAccount(2), -1, 2, 20));
+        assertEquals(shards.getTransaction(first), subscription.next(TIMEOUT).getTransaction());
+        assertEquals(shards.getTransaction(second), subscription.next(TIMEOUT).getTransaction());
+        assertNotEquals(first, second);
+    }
+}
@@ -0,0 +1,203 @@
+package org.checat.storage;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.Assert.*;
+
+public class CommitModeTest {
+
+    private static final long ACCOUNTS = 4;
+    private static final long INITIAL_MONEY = 10_000;
+
+    private final Storage storage = Storage.STORAGE;
+
+    @After
+    public void tearDown() {
+        storage.setCommitMode(CommitMode.LOCKING, 0);
+        storage.reset();
+    }
+
+    @Test
+    public void testLocking() throws Exception {
+        checkBalances(CommitMode.LOCKING);
+    }
+
+    @Test
+    public void testPartitioned() throws Exception {
+        checkBalances(CommitMode.PARTITIONED);
+    }
+
+    /**
+     * Test that DataTransaction committed again and again by partitions, alone or across them, keeps the state of
+     * its first commit, so steady stream of commits allocates nothing.
+     */
+    @Test
+    public void testPartitionedReuse() {
+        storage.setCommitMode(CommitMode.PARTITIONED, 3);
+        DataTransaction deposit = Transfers.initiate(storage, -1, 1, INITIAL_MONEY);
+        assertTrue(deposit.commit());
+        assertTrue(Transfers.confirm(storage, deposit.getInsertedId(0)).commit());
+        DataTransaction dataTransaction = storage.borrowDataTransaction();
+        PartitionedCommitEngine.Commit commit = null;
+        long initiated = 0;
+        for (int i = 0; i < 999; i++) {
+            dataTransaction.reset();
+            // External accounts belong to no partition, accounts 1 and 2 to different ones.
+            if (i % 3 == 0) {
+                Transfers.initiate(dataTransaction, -1, 2, 1);
+            } else if (i % 3 == 1) {
+                Transfers.initiate(dataTransaction, 1, 2, 1);
+            } else {
+                Transfers.confirm(dataTransaction, initiated);
+            }
+            assertTrue(dataTransaction.commit());
+            if (i % 3 == 1) {
+                initiated = dataTransaction.getInsertedId(0);
+            }
+            if (commit == null) {
+                commit = dataTransaction.getPartitionedCommit();
+            }
+            assertSame(commit, dataTransaction.getPartitionedCommit());
+        }
+        storage.giveBack(dataTransaction);
+        assertEquals(INITIAL_MONEY - 333, storage.getAccount(1).getMoney());
+        assertEquals(333, storage.getAccount(2).getMoney());
+    }
+
+    /**
+     * Few accounts and many threads make optimistic commits conflict and fall back to locks.
+     */
+    @Test
+    public void testOptimistic() throws Exception {
+        checkBalances(CommitMode.OPTIMISTIC);
+    }
+
+    /**
+     * Test that commit made by listener in the middle of another commit on the same thread borrows its own
+     * DataTransaction, and given back ones are lent again reset.
+     */
+    @Test
+    public void testNestedBorrow() {
+        DataTransaction outer = storage.borrowDataTransaction();
+        List<Long> nested = new ArrayList<>();
+        storage.addCommitListener(new CommitListener() {
+            @Override
+            public void committed(Changes changes) {}
+
+            @Override
+            public void released(Changes changes) {
+                storage.removeCommitListener(this);
+                DataTransaction inner = storage.borrowDataTransaction();
+                assertNotSame(outer, inner);
+                Transfers.initiate(inner, -1, 2, 5);
+                assertTrue(inner.commit());
+                nested.add(inner.getInsertedId(0));
+                storage.giveBack(inner);
+            }
+        });
+        Transfers.initiate(outer, -1, 1, 10);
+        assertTrue(outer.commit());
+        assertEquals(1, outer.getInsertedId(0));
+        assertEquals(1, storage.getTransaction(outer.getInsertedId(0)).getDestination());
+        assertEquals(1, nested.size());
+        assertEquals(2, storage.getTransaction(nested.get(0)).getDestination());
+        storage.giveBack(outer);
+
+        DataTransaction again = storage.borrowDataTransaction();
+        assertTrue(again.isEmpty());
+        storage.giveBack(again);
+    }
+
+    /**
+     * Runs random transfers, confirmations, cancellations and batches of them concurrently, then checks that
+     * balances of accounts are exactly what their transactions imply.
+     */
+    private void checkBalances(CommitMode mode) throws Exception {
+        storage.setCommitMode(mode, 3);
+        for (long account = 1; account <= ACCOUNTS; account++) {
+            DataTransaction deposit = Transfers.initiate(storage, -1, account, INITIAL_MONEY);
+            deposit.commit();
+            assertTrue(Transfers.confirm(storage, deposit.getInsertedId(0)).commit());
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            futures.add(executor.submit(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int i = 0; i < 5_000; i++) {
+                    long source = random.nextLong(ACCOUNTS) + 1;
+                    long destination = random.nextLong(ACCOUNTS + 1);
+                    DataTransaction dataTransaction = storage.borrowDataTransaction();
+                    Transfers.initiate(dataTransaction, source, destination, random.nextLong(100) + 1);
+                    boolean committed = dataTransaction.commit();
+                    long id = committed ? dataTransaction.getInsertedId(0) : 0;
+                    storage.giveBack(dataTransaction);
+                    if (!committed) {
+                        continue;
+                    }
+                    switch (random.nextInt(4)) {
+                        case 0:
+                            break;
+                        case 1:
+                            dataTransaction = storage.borrowDataTransaction();
+                            Transfers.cancel(dataTransaction, id);
+                            dataTransaction.commit();
+                            storage.giveBack(dataTransaction);
+                            break;
+                        case 2:
+                            List<DataTransaction> batch = new ArrayList<>();
+                            batch.add(Transfers.confirm(storage, id));
+                            batch.add(Transfers.cancel(storage, id));
+                            batch.add(Transfers.initiate(storage, destination + 1, source, 1));
+                            storage.commitAll(batch);
+                            assertTrue(batch.get(0).isCommitted());
+                            assertFalse(batch.get(1).isCommitted());
+                            break;
+                        default:
+                            dataTransaction = storage.borrowDataTransaction();
+                            Transfers.confirm(dataTransaction, id);
+                            dataTransaction.commit();
+                            storage.giveBack(dataTransaction);
+                            break;
+                    }
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+
+        Map<Long, Long> money = new HashMap<>();
+        Map<Long, Long> hold = new HashMap<>();
+        for (Transaction transaction : storage.getTransactions()) {
+            switch (transaction.getState()) {
+                case INITIATED:
+                    hold.merge(transaction.getSource(), transaction.getAmount(), Long::sum);
+                    break;
+                case CONFIRMED:
+                    money.merge(transaction.getSource(), -transaction.getAmount(), Long::sum);
+                    money.merge(transaction.getDestination(), transaction.getAmount(), Long::sum);
+                    break;
+                case CANCELED:
+                    break;
+            }
+        }
+        for (long id = 1; id <= ACCOUNTS; id++) {
+            Account account = storage.getAccount(id);
+            assertEquals(money.getOrDefault(id, 0L).longValue(), account.getMoney());
+            assertEquals(hold.getOrDefault(id, 0L).longValue(), account.getHold());
+            assertTrue(account.getMoney() >= account.getHold());
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package org.checat.storage;
+
+import org.checat.benchmark.Contention;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures DataTransaction.commit() holding different number of account locks.
+ * Each commit checks and updates lockedAccounts distinct accounts.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DataTransactionBenchmark {
+
+    @Param({"1000"})
+    public long accounts;
+
+    @Param({"1", "2", "8"})
+    public int lockedAccounts;
+
+    @Param({"UNIFORM", "HOT"})
+    public Contention contention;
+
+    @Param({"LOCKING", "PARTITIONED", "OPTIMISTIC"})
+    public CommitMode mode;
+
+    @Param({"4"})
+    public int partitions;
+
+    private final Storage storage = Storage.STORAGE;
+
+    @State(Scope.Thread)
+    public static class Ids {
+        long[] ids;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        storage.reset();
+        storage.setCommitMode(mode, partitions);
+        for (long id = 1; id <= accounts; id++) {
+            storage.restoreAccount(id, Long.MAX_VALUE / 2, 0);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        storage.setCommitMode(CommitMode.LOCKING, 0);
+        storage.reset();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean commit(Ids state) {
+        if (state.ids == null) {
+            state.ids = new long[lockedAccounts];
+        }
+        for (int i = 0; i < lockedAccounts; i++) {
+            state.ids[i] = contention.pickDistinct(accounts, state.ids, i);
+        }
+        DataTransaction dataTransaction = storage.borrowDataTransaction();
+        try {
+            for (long id : state.ids) {
+                dataTransaction.requireMoney(id, 1);
+                dataTransaction.addMoney(id, 1);
+            }
+            return dataTransaction.commit();
+        } finally {
+            storage.giveBack(dataTransaction);
+        }
+    }
+}
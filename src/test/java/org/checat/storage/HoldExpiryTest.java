@@ -0,0 +1,89 @@
+package org.checat.storage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class HoldExpiryTest {
+
+    private final Storage storage = Storage.STORAGE;
+
+    @Before
+    public void setUp() {
+        storage.reset();
+    }
+
+    @After
+    public void tearDown() {
+        storage.reset();
+    }
+
+    private long initiate(long source, long destination, long amount) {
+        DataTransaction dataTransaction = Transfers.initiate(storage, source, destination, amount);
+        assertTrue(dataTransaction.commit());
+        return dataTransaction.getInsertedId(0);
+    }
+
+    /**
+     * Test that transactions left initiated are cancelled after TTL and confirmed ones are kept.
+     */
+    @Test
+    public void testExpiry() throws Exception {
+        Transfers.confirm(storage, initiate(-1, 1, 1000)).commit();
+        // Initiated before expiry starts, found at start.
+        long recovered = initiate(1, 2, 100);
+        HoldExpiry expiry = new HoldExpiry(storage, 200, 10);
+        try {
+            long confirmed = initiate(1, 2, 200);
+            long stale = initiate(1, 2, 300);
+            Transfers.confirm(storage, confirmed).commit();
+            assertEquals(400, storage.getAccount(1).getHold());
+            long deadline = System.currentTimeMillis() + 5000;
+            while (expiry.getExpired() < 2 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(2, expiry.getExpired());
+            assertEquals(Transaction.State.CANCELED, storage.getTransaction(recovered).getState());
+            assertEquals(Transaction.State.CANCELED, storage.getTransaction(stale).getState());
+            assertEquals(Transaction.State.CONFIRMED, storage.getTransaction(confirmed).getState());
+            assertEquals(0, storage.getAccount(1).getHold());
+            assertEquals(800, storage.getAccount(1).getMoney());
+            assertEquals(200, storage.getAccount(2).getMoney());
+        } finally {
+            expiry.close();
+        }
+    }
+
+    /**
+     * Test that transactions initiated concurrently, more than one chunk of inbox holds, all expire.
+     */
+    @Test
+    public void testConcurrentInitiates() throws Exception {
+        HoldExpiry expiry = new HoldExpiry(storage, 100, 10);
+        try {
+            Thread[] threads = new Thread[4];
+            for (int i = 0; i < threads.length; i++) {
+                long destination = i + 1;
+                threads[i] = new Thread(() -> {
+                    for (int j = 0; j < 1000; j++) {
+                        initiate(-1, destination, 1);
+                    }
+                });
+                threads[i].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            long deadline = System.currentTimeMillis() + 10000;
+            while (expiry.getExpired() < 4000 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(4000, expiry.getExpired());
+            assertEquals(4000, storage.getTransactionCount(Transaction.State.CANCELED));
+        } finally {
+            expiry.close();
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package org.checat.storage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class IndexTest {
+
+    private final Storage storage = Storage.STORAGE;
+
+    @Before
+    public void setUp() {
+        storage.reset();
+    }
+
+    @After
+    public void tearDown() {
+        storage.reset();
+    }
+
+    private static List<Long> values(Iterator<Map.Entry<Long, Index.Postings>> range) {
+        List<Long> values = new ArrayList<>();
+        range.forEachRemaining(entry -> values.add(entry.getKey()));
+        return values;
+    }
+
+    private static List<Long> ids(List<Transaction> transactions) {
+        List<Long> ids = new ArrayList<>();
+        for (Transaction transaction : transactions) {
+            ids.add(transaction.getId());
+        }
+        return ids;
+    }
+
+    /**
+     * Test that postings of value keep its ids in ascending order and empty postings are dropped.
+     */
+    @Test
+    public void testLookups() {
+        Index index = new Index(false);
+        index.add(7, 3);
+        index.add(7, 1);
+        index.add(7, 2);
+        index.add(7, 2);
+        index.add(8, 4);
+        assertEquals(Arrays.asList(1L, 2L, 3L), new ArrayList<>(index.get(7).ids()));
+        assertEquals(3, index.get(7).size());
+        assertTrue(index.get(8).contains(4));
+        assertFalse(index.get(8).contains(3));
+        assertEquals(0, index.get(9).size());
+
+        index.remove(7, 2);
+        index.remove(7, 5);
+        assertEquals(Arrays.asList(1L, 3L), new ArrayList<>(index.get(7).ids()));
+        assertEquals(2, index.get(7).size());
+        index.remove(8, 4);
+        assertEquals(0, index.get(8).size());
+        // Dropped postings are recreated by the next add.
+        index.add(8, 5);
+        assertEquals(Collections.singletonList(5L), new ArrayList<>(index.get(8).ids()));
+    }
+
+    /**
+     * Test that sorted index walks values within range in both orders.
+     */
+    @Test
+    public void testRanges() {
+        Index index = new Index(true);
+        for (long value : new long[]{50, 10, 40, 20, 30}) {
+            index.add(value, value * 2);
+        }
+        assertEquals(Arrays.asList(20L, 30L, 40L), values(index.range(15, 40, false)));
+        assertEquals(Arrays.asList(40L, 30L, 20L), values(index.range(15, 40, true)));
+        assertEquals(Arrays.asList(10L, 20L, 30L, 40L, 50L), values(index.range(Long.MIN_VALUE, Long.MAX_VALUE,
+                false)));
+        assertEquals(Collections.emptyList(), values(index.range(41, 49, false)));
+        assertEquals(Collections.emptyList(), values(index.range(40, 20, false)));
+        index.remove(30, 60);
+        assertEquals(Arrays.asList(20L, 40L), values(index.range(15, 40, false)));
+    }
+
+    /**
+     * Test that transactions stay found by their fields while their state changes, and found only by new values
+     * once their fields are replaced.
+     */
+    @Test
+    public void testUpdates() {
+        DataTransaction deposit = Transfers.initiate(storage, -1, 1, 1000);
+        assertTrue(deposit.commit());
+        assertTrue(Transfers.confirm(storage, deposit.getInsertedId(0)).commit());
+        DataTransaction first = Transfers.initiate(storage, 1, 2, 10);
+        assertTrue(first.commit());
+        DataTransaction second = Transfers.initiate(storage, 1, 3, 20);
+        assertTrue(second.commit());
+        long confirmed = first.getInsertedId(0);
+        long cancelled = second.getInsertedId(0);
+        assertTrue(Transfers.confirm(storage, confirmed).commit());
+        assertTrue(Transfers.cancel(storage, cancelled).commit());
+
+        assertEquals(Arrays.asList(confirmed, cancelled), ids(storage.findTransactions(1L, null, null)));
+        assertEquals(Collections.singletonList(confirmed), ids(storage.findTransactions(null, 2L, 10L)));
+        assertEquals(Transaction.State.CANCELED,
+                storage.findTransactions(null, 3L, 20L).get(0).getState());
+        assertEquals(Collections.singletonList(cancelled), ids(storage.findTransactions(1L, null, 20L)));
+        assertEquals(Collections.emptyList(), storage.findTransactions(2L, null, null));
+
+        // Follower replaces transaction with what primary has, see Replica.
+        storage.restoreTransaction(new Transaction(cancelled, 1, 2, 30, Transaction.State.CANCELED));
+        assertEquals(Collections.emptyList(), storage.findTransactions(null, 3L, null));
+        assertEquals(Collections.emptyList(), storage.findTransactions(null, null, 20L));
+        assertEquals(Arrays.asList(confirmed, cancelled), ids(storage.findTransactions(1L, 2L, null)));
+        assertEquals(Collections.singletonList(cancelled), ids(storage.findTransactions(null, null, 30L)));
+    }
+}
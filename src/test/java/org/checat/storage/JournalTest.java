@@ -0,0 +1,221 @@
+package org.checat.storage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class JournalTest {
+
+    private final Storage storage = Storage.STORAGE;
+    private Path directory;
+
+    @Before
+    public void setUp() throws IOException {
+        storage.reset();
+        directory = Files.createTempDirectory("journal");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        storage.reset();
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    private long initiate(long source, long destination, long amount) {
+        DataTransaction dataTransaction = Transfers.initiate(storage, source, destination, amount);
+        dataTransaction.commit();
+        return dataTransaction.getInsertedId(0);
+    }
+
+    private void confirm(long id) {
+        Transfers.confirm(storage, id).commit();
+    }
+
+    private void checkRecovery(Journal.Durability durability) throws IOException {
+        Journal journal = Journal.open(directory, durability, 1 << 10, 1, storage);
+        confirm(initiate(-1, 1, 1000));
+        for (int i = 0; i < 50; i++) {
+            confirm(initiate(1, 2, 10));
+        }
+        long held = initiate(2, 1, 100);
+        journal.close();
+        List<Transaction> before = storage.findTransactions(null, null, null);
+        storage.reset();
+
+        Journal recovered = Journal.open(directory, durability, 1 << 10, 1, storage);
+        assertEquals(before, storage.findTransactions(null, null, null));
+        assertEquals(500, storage.getAccount(1).getMoney());
+        assertEquals(500, storage.getAccount(2).getMoney());
+        assertEquals(100, storage.getAccount(2).getHold());
+        assertEquals(1, storage.getAccount(2).getHolds());
+        assertEquals(500, storage.getAccount(1).getSent());
+        assertEquals(1000, storage.getAccount(1).getReceived());
+        assertEquals(50, storage.getAccount(1).getConfirmed());
+        assertEquals(500, storage.getAccount(2).getReceived());
+        assertEquals(0, storage.getAccount(2).getConfirmed());
+        assertEquals(Transaction.State.INITIATED, storage.getTransaction(held).getState());
+        // Ids continue after recovered ones.
+        assertEquals(held + 1, initiate(-1, 1, 1));
+        recovered.close();
+        assertTrue("small segments should rotate", Journal.segments(directory).size() > 1);
+    }
+
+    /**
+     * Test that journal created over storage as it is recovers it from its first snapshot, while files of an
+     * earlier journal in the same directory are moved aside rather than replayed.
+     */
+    @Test
+    public void testCreate() throws IOException {
+        Journal earlier = Journal.open(directory, Journal.Durability.SYNC, 1 << 10, 1, storage);
+        for (int i = 0; i < 20; i++) {
+            confirm(initiate(-1, 3, 7));
+        }
+        Snapshot.write(storage, earlier);
+        earlier.close();
+        storage.reset();
+
+        // Follower got this state from primary, not from journal.
+        confirm(initiate(-1, 1, 1000));
+        Journal created = Journal.create(directory, Journal.Durability.SYNC, 1 << 10, 1, storage);
+        long held = initiate(1, 2, 100);
+        created.close();
+        List<Transaction> before = storage.findTransactions(null, null, null);
+        storage.reset();
+
+        Journal recovered = Journal.open(directory, Journal.Durability.SYNC, 1 << 10, 1, storage);
+        assertEquals(before, storage.findTransactions(null, null, null));
+        assertEquals(1000, storage.getAccount(1).getMoney());
+        assertEquals(100, storage.getAccount(1).getHold());
+        assertEquals(0, storage.getAccount(3).getMoney());
+        assertEquals(Transaction.State.INITIATED, storage.getTransaction(held).getState());
+        recovered.close();
+        try (Stream<Path> files = Files.list(directory)) {
+            assertEquals(1, files.filter(path -> path.getFileName().toString().startsWith("replaced-")).count());
+        }
+    }
+
+    @Test
+    public void testRecoverySync() throws IOException {
+        checkRecovery(Journal.Durability.SYNC);
+    }
+
+    @Test
+    public void testRecoveryGroup() throws IOException {
+        checkRecovery(Journal.Durability.GROUP);
+    }
+
+    @Test
+    public void testRecoveryAsync() throws IOException {
+        checkRecovery(Journal.Durability.ASYNC);
+    }
+
+    /**
+     * Test that record torn by crash in the middle of write is ignored.
+     */
+    @Test
+    public void testTornRecordIgnored() throws IOException {
+        Journal journal = Journal.open(directory, Journal.Durability.SYNC, 1 << 20, 1, storage);
+        long id = initiate(-1, 1, 1000);
+        journal.close();
+        List<Path> segments = Journal.segments(directory);
+        try (FileChannel file = FileChannel.open(segments.get(segments.size() - 1), StandardOpenOption.APPEND)) {
+            file.write(ByteBuffer.wrap(new byte[]{0, 0, 0, 100, 1, 2, 3}));
+        }
+        storage.reset();
+        Journal recovered = Journal.open(directory, Journal.Durability.SYNC, 1 << 20, 1, storage);
+        assertNotNull(storage.getTransaction(id));
+        assertEquals(id + 1, initiate(-1, 1, 1));
+        recovered.close();
+        storage.reset();
+        Journal.open(directory, Journal.Durability.SYNC, 1 << 20, 1, storage).close();
+        assertNotNull(storage.getTransaction(id + 1));
+    }
+
+    /**
+     * Test that recovery starts from snapshot and replays only journal tail after it.
+     */
+    @Test
+    public void testRecoveryFromSnapshot() throws IOException {
+        Journal journal = Journal.open(directory, Journal.Durability.GROUP, 1 << 10, 1, storage);
+        confirm(initiate(-1, 1, 1000));
+        for (int i = 0; i < 20; i++) {
+            confirm(initiate(1, 2, 10));
+        }
+        long sequence = journal.getAppendedSequence();
+        Snapshot.write(storage, journal);
+        for (int i = 0; i < 5; i++) {
+            confirm(initiate(2, 1, 10));
+        }
+        long held = initiate(1, 2, 100);
+        Snapshot.write(storage, journal);
+        Snapshot.prune(directory, 1);
+        try {
+            Snapshot.prune(directory, 0);
+            fail("The last snapshot should be kept");
+        } catch (IllegalArgumentException e) {
+            assertEquals(1, Snapshot.snapshots(directory).size());
+        }
+        journal.close();
+        List<Transaction> before = storage.findTransactions(null, null, null);
+        storage.reset();
+
+        Journal recovered = Journal.open(directory, Journal.Durability.GROUP, 1 << 10, 1, storage);
+        assertEquals(sequence + 11, recovered.getRecoveredSnapshotSequence());
+        assertEquals(0, recovered.getReplayedRecords());
+        assertEquals(before, storage.findTransactions(null, null, null));
+        assertEquals(850, storage.getAccount(1).getMoney());
+        assertEquals(100, storage.getAccount(1).getHold());
+        assertEquals(held + 1, initiate(-1, 1, 1));
+        recovered.close();
+        storage.reset();
+
+        Journal tail = Journal.open(directory, Journal.Durability.GROUP, 1 << 10, 1, storage);
+        assertEquals(1, tail.getReplayedRecords());
+        assertNotNull(storage.getTransaction(held + 1));
+        tail.close();
+    }
+
+    /**
+     * Test that failed journal write halts storage: committer of applied commit is told it may be lost and later
+     * commits are refused before they change anything.
+     */
+    @Test
+    public void testFailureHalts() throws IOException {
+        Journal journal = Journal.open(directory, Journal.Durability.SYNC, 1, 1, storage);
+        long deposit = initiate(-1, 1, 1000);
+        for (Path file : Journal.segments(directory)) {
+            Files.delete(file);
+        }
+        Files.delete(directory);
+        try {
+            Transfers.confirm(storage, deposit).commit();
+            fail("Commit that can't be journaled should be reported");
+        } catch (IllegalStateException e) {
+            assertTrue(storage.isHalted());
+        }
+        assertEquals(Transaction.State.CONFIRMED, storage.getTransaction(deposit).getState());
+        try {
+            Transfers.initiate(storage, 1, 2, 10).commit();
+            fail("Halted storage should refuse commits");
+        } catch (IllegalStateException e) {
+            assertEquals(1000, storage.getAccount(1).getMoney());
+            assertEquals(0, storage.getAccount(1).getHold());
+        }
+        journal.close();
+        Files.createDirectories(directory);
+    }
+}
@@ -0,0 +1,168 @@
+package org.checat.storage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class QueryTest {
+
+    private static final int COUNT = TransactionStore.CHUNK_ROWS + 5000;
+
+    private final Storage storage = Storage.STORAGE;
+    private final Random random = new Random(7);
+    private final List<Transaction> all = new ArrayList<>();
+    private Path directory;
+
+    @Before
+    public void setUp() throws Exception {
+        storage.reset();
+        directory = Files.createTempDirectory("query");
+        for (long id = 1; id <= COUNT; id++) {
+            // Only transactions beyond the first chunk stay initiated, so it can be moved to segment.
+            Transaction.State state = id > TransactionStore.CHUNK_ROWS && id % 3 == 0 ? Transaction.State.INITIATED
+                    : id % 4 == 0 ? Transaction.State.CANCELED : Transaction.State.CONFIRMED;
+            Transaction transaction = new Transaction(id, random.nextInt(50) - 1, random.nextInt(50),
+                    random.nextInt(2000) + 1, state);
+            storage.restoreTransaction(transaction);
+            all.add(transaction);
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        storage.reset();
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    private List<Transaction> expected(Query query, int limit) {
+        return all.stream().filter(query::matches).sorted(query.getOrder().comparator()).limit(limit)
+                .collect(Collectors.toList());
+    }
+
+    private static List<Transaction> first(Iterator<Transaction> transactions, int limit) {
+        List<Transaction> result = new ArrayList<>();
+        while (transactions.hasNext() && result.size() < limit) {
+            result.add(transactions.next());
+        }
+        return result;
+    }
+
+    private Query randomQuery() {
+        Query query = Query.ALL;
+        switch (random.nextInt(4)) {
+            case 0:
+                query = Query.of((long) random.nextInt(50) - 1, null, null);
+                break;
+            case 1:
+                query = Query.of(null, (long) random.nextInt(50), null);
+                break;
+            case 2:
+                query = Query.of(null, null, (long) random.nextInt(2000) + 1);
+                break;
+            default:
+                break;
+        }
+        if (random.nextBoolean()) {
+            long from = random.nextInt(2000);
+            query = query.withAmounts(from, random.nextBoolean() ? from + random.nextInt(20) : null);
+        }
+        if (random.nextBoolean()) {
+            long from = random.nextInt(COUNT);
+            query = query.withIds(from, from + random.nextInt(COUNT));
+        }
+        if (random.nextBoolean()) {
+            query = query.withState(Transaction.State.values()[random.nextInt(3)]);
+        }
+        return query.withOrder(Query.Order.values()[random.nextInt(4)]);
+    }
+
+    private void checkRandomQueries() {
+        for (int i = 0; i < 300; i++) {
+            Query query = randomQuery();
+            int limit = random.nextBoolean() ? 10 : Integer.MAX_VALUE;
+            assertEquals(expected(query, limit), first(storage.scanTransactions(query), limit));
+        }
+    }
+
+    /**
+     * Test that ranges, state and every order give the same transactions as filtering and sorting all of them.
+     */
+    @Test
+    public void testQueries() {
+        checkRandomQueries();
+
+        Query top = Query.ALL.withOrder(Query.Order.AMOUNT_DESCENDING);
+        List<Transaction> topTen = first(storage.scanTransactions(top), 10);
+        assertEquals(10, topTen.size());
+        assertEquals(2000, topTen.get(0).getAmount());
+        Query newest = Query.ALL.withOrder(Query.Order.ID_DESCENDING).withState(Transaction.State.INITIATED);
+        assertEquals(COUNT, first(storage.scanTransactions(newest), 1).get(0).getId());
+        assertEquals(COUNT - 3, first(storage.scanTransactions(newest.after(COUNT)), 1).get(0).getId());
+    }
+
+    /**
+     * Test that queries find transactions of segments together with those in memory.
+     */
+    @Test
+    public void testQueriesWithSegments() throws Exception {
+        Tiering tiering = new Tiering(storage, directory, 0, 3600, 64, false);
+        try {
+            assertEquals(1, tiering.tier());
+            checkRandomQueries();
+        } finally {
+            tiering.close();
+        }
+    }
+
+    /**
+     * Test that views of several shards merge transactions of all of them in order of query.
+     */
+    @Test
+    public void testShards() {
+        Shards shards = Shards.SHARDS;
+        storage.reset();
+        shards.configure(3);
+        try {
+            for (long account = 1; account <= 30; account++) {
+                shards.forAccount(account).restoreAccount(account, 100000, 0);
+            }
+            for (int i = 0; i < 300; i++) {
+                long source = random.nextInt(30) + 1;
+                Storage shard = shards.forInitiate(source, 1);
+                assertTrue(Transfers.initiate(shard, source, random.nextInt(30) + 1, random.nextInt(100) + 1)
+                        .commit());
+            }
+            try (View view = shards.openView()) {
+                List<Transaction> everything = first(view.scanTransactions(Query.ALL), Integer.MAX_VALUE);
+                assertEquals(300, everything.size());
+                for (int i = 0; i < 100; i++) {
+                    Query query = Query.ALL.withAmounts((long) random.nextInt(100), null)
+                            .withIds((long) random.nextInt(300), null)
+                            .withOrder(Query.Order.values()[random.nextInt(4)]);
+                    assertEquals(everything.stream().filter(query::matches).sorted(query.getOrder().comparator())
+                                    .collect(Collectors.toList()),
+                            first(view.scanTransactions(query), Integer.MAX_VALUE));
+                }
+            }
+        } finally {
+            shards.reset();
+            shards.configure(1);
+        }
+    }
+}
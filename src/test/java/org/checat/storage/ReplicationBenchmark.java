@@ -0,0 +1,76 @@
+package org.checat.storage;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures initiate and confirm cycle of a transfer on primary with one follower in the same JVM connected over
+ * loopback, by ack mode. Without follower, commits pay only for encoding their records.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ReplicationBenchmark {
+
+    @Param({"1000"})
+    public long accounts;
+
+    @Param({"ASYNC", "APPLIED"})
+    public Replicator.Ack ack;
+
+    @Param({"true", "false"})
+    public boolean follower;
+
+    private final Storage primary = new Storage();
+    private Replicator replicator;
+    private Replica replica;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, InterruptedException {
+        for (long id = 1; id <= accounts; id++) {
+            primary.restoreAccount(id, Long.MAX_VALUE / 2, 0);
+        }
+        replicator = new Replicator(primary, new InetSocketAddress("localhost", 0), ack, 10_000);
+        if (follower) {
+            replica = new Replica(new Storage(), new InetSocketAddress("localhost", replicator.getPort()), 100);
+            while (replicator.getFollowerCount() == 0 || !replica.isConnected()) {
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        if (replica != null) {
+            replica.close();
+        }
+        replicator.close();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean initiateAndConfirm() {
+        long source = ThreadLocalRandom.current().nextLong(accounts) + 1;
+        long destination = source % accounts + 1;
+        DataTransaction dataTransaction = primary.borrowDataTransaction();
+        try {
+            Transfers.initiate(dataTransaction, source, destination, 1);
+            if (!dataTransaction.commit()) {
+                return false;
+            }
+            long id = dataTransaction.getInsertedId(0);
+            dataTransaction.reset();
+            Transfers.confirm(dataTransaction, id);
+            return dataTransaction.commit();
+        } finally {
+            primary.giveBack(dataTransaction);
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package org.checat.storage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.*;
+
+public class ReplicationTest {
+
+    private final Storage primary = new Storage();
+    private final Storage follower = new Storage();
+    private Replicator replicator;
+    private Replica replica;
+
+    @Before
+    public void setUp() throws IOException {
+        replicator = start(primary, 0, Replicator.Ack.ASYNC);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (replica != null) {
+            replica.close();
+        }
+        replicator.close();
+    }
+
+    private static Replicator start(Storage storage, int port, Replicator.Ack ack) throws IOException {
+        return new Replicator(storage, new InetSocketAddress("localhost", port), ack, 500);
+    }
+
+    private void follow() {
+        replica = new Replica(follower, new InetSocketAddress("localhost", replicator.getPort()), 20);
+        awaitCaughtUp();
+    }
+
+    private void awaitCaughtUp() {
+        await(() -> replica.isConnected() && replica.getAppliedSequence() == replicator.getAppendedSequence()
+                && follower.findTransactions(null, null, null).equals(primary.findTransactions(null, null, null)));
+    }
+
+    private static void await(BooleanSupplier condition) {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.getAsBoolean()) {
+            assertTrue("Condition isn't met in time", System.nanoTime() < deadline);
+            try {
+                Thread.sleep(5);
+            } catch (InterruptedException e) {
+                throw new AssertionError(e);
+            }
+        }
+    }
+
+    private long initiate(long source, long destination, long amount) {
+        DataTransaction dataTransaction = Transfers.initiate(primary, source, destination, amount);
+        assertTrue(dataTransaction.commit());
+        return dataTransaction.getInsertedId(0);
+    }
+
+    private void confirm(long id) {
+        assertTrue(Transfers.confirm(primary, id).commit());
+    }
+
+    private void assertSameAccounts(long... ids) {
+        for (long id : ids) {
+            assertEquals(primary.getAccount(id).getMoney(), follower.getAccount(id).getMoney());
+            assertEquals(primary.getAccount(id).getHold(), follower.getAccount(id).getHold());
+        }
+    }
+
+    /**
+     * Test that follower gets image of commits made before it connected and every commit after.
+     */
+    @Test
+    public void testImageAndStream() {
+        confirm(initiate(-1, 1, 1000));
+        for (int i = 0; i < 20; i++) {
+            confirm(initiate(1, 2, 10));
+        }
+        follow();
+        assertSameAccounts(1, 2);
+        assertEquals(1, replicator.getFollowerCount());
+
+        for (int i = 0; i < 20; i++) {
+            confirm(initiate(2, 3, 5));
+        }
+        long held = initiate(1, 3, 100);
+        awaitCaughtUp();
+        assertSameAccounts(1, 2, 3);
+        assertEquals(Transaction.State.INITIATED, follower.getTransaction(held).getState());
+        assertEquals(primary.getMaxTransactionId(), follower.getMaxTransactionId());
+        assertEquals(0L, (long) replicator.getLagRecords().values().iterator().next());
+        try (View view = follower.openView()) {
+            assertEquals(20, view.findTransactions(2L, 3L, null).size());
+        }
+    }
+
+    /**
+     * Test that with Ack.APPLIED commit returns after follower applied it.
+     */
+    @Test
+    public void testAppliedAck() throws IOException {
+        replicator.close();
+        replicator = start(primary, 0, Replicator.Ack.APPLIED);
+        follow();
+        for (int i = 0; i < 50; i++) {
+            long id = initiate(-1, 1, 10);
+            assertEquals(Transaction.State.INITIATED, follower.getTransaction(id).getState());
+            confirm(id);
+            assertEquals(Transaction.State.CONFIRMED, follower.getTransaction(id).getState());
+            assertEquals(10 * (i + 1), follower.getAccount(1).getMoney());
+        }
+        assertEquals(0, replicator.getAckTimeouts());
+    }
+
+    /**
+     * Test that follower which doesn't acknowledge commits is disconnected instead of stopping them.
+     */
+    @Test
+    public void testAckTimeout() throws IOException {
+        replicator.close();
+        replicator = start(primary, 0, Replicator.Ack.APPLIED);
+        try (SocketChannel silent = SocketChannel.open(new InetSocketAddress("localhost", replicator.getPort()))) {
+            await(() -> replicator.getFollowerCount() == 1);
+            long started = System.nanoTime();
+            initiate(-1, 1, 10);
+            assertTrue(System.nanoTime() - started >= TimeUnit.MILLISECONDS.toNanos(400));
+            assertEquals(1, replicator.getAckTimeouts());
+            assertEquals(0, replicator.getFollowerCount());
+            started = System.nanoTime();
+            initiate(-1, 1, 10);
+            assertTrue(System.nanoTime() - started < TimeUnit.MILLISECONDS.toNanos(400));
+        }
+    }
+
+    /**
+     * Test that follower reconnects after primary restarts and replaces what it had with the new image.
+     */
+    @Test
+    public void testReconnect() throws IOException {
+        confirm(initiate(-1, 1, 1000));
+        follow();
+        int port = replicator.getPort();
+        replicator.close();
+        await(() -> !replica.isConnected());
+
+        primary.reset();
+        confirm(initiate(-1, 2, 300));
+        replicator = start(primary, port, Replicator.Ack.ASYNC);
+        awaitCaughtUp();
+        assertEquals(2, replica.getConnections());
+        assertEquals(0, follower.getAccount(1).getMoney());
+        assertSameAccounts(2);
+        assertEquals(1, follower.findTransactions(null, null, null).size());
+    }
+
+    /**
+     * Test that records of concurrent commits, released in any order, reach follower in order of sequences.
+     */
+    @Test
+    public void testConcurrentCommits() throws Exception {
+        follow();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> committers = new ArrayList<>();
+            for (int i = 1; i <= 4; i++) {
+                long account = i;
+                committers.add(executor.submit(() -> {
+                    for (int j = 0; j < 500; j++) {
+                        confirm(initiate(-1, account, 1));
+                    }
+                }));
+            }
+            for (Future<?> committer : committers) {
+                committer.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        awaitCaughtUp();
+        assertEquals(1, replica.getConnections());
+        assertSameAccounts(1, 2, 3, 4);
+    }
+
+    /**
+     * Test that follower applying records out of order of ids finds a transaction only once every one with a
+     * smaller id is applied.
+     */
+    @Test
+    public void testRecordsOutOfIdOrder() {
+        Journal.apply(record(new Transaction(2, -1, 1, 20, Transaction.State.INITIATED)), follower);
+        assertEquals(0, follower.findTransactions(null, null, null).size());
+        Journal.apply(record(new Transaction(1, -1, 1, 10, Transaction.State.INITIATED)), follower);
+        assertEquals(2, follower.findTransactions(null, null, null).size());
+    }
+
+    /**
+     * Test that follower finds transactions past ids primary lost for good, once image ends.
+     */
+    @Test
+    public void testImagePastLostIds() {
+        primary.restoreTransaction(new Transaction(2, -1, 1, 20, Transaction.State.INITIATED));
+        primary.restoreInstalled(2);
+        assertEquals(1, primary.findTransactions(null, null, null).size());
+        follow();
+        assertEquals(1, follower.findTransactions(null, null, null).size());
+    }
+
+    /**
+     * @return body of record holding transaction, positioned after sequence.
+     */
+    private static ByteBuffer record(Transaction transaction) {
+        ByteBuffer body = ByteBuffer.allocate(Journal.bodyBytes(1, 0));
+        body.putInt(1);
+        body.putInt(0);
+        body.putLong(transaction.getId());
+        body.putLong(transaction.getSource());
+        body.putLong(transaction.getDestination());
+        body.putLong(transaction.getAmount());
+        body.put((byte) transaction.getState().ordinal());
+        body.flip();
+        return body;
+    }
+}
@@ -0,0 +1,74 @@
+package org.checat.storage;
+
+import org.checat.benchmark.Contention;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures full initiate and confirm cycle of a transfer with storage split into shards. Fraction crossShard of
+ * transfers goes to an account of another shard, so its confirm takes locks of both shards and the cut; the rest
+ * stay within the shard of the source.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ShardBenchmark {
+
+    @Param({"1000"})
+    public long accounts;
+
+    @Param({"1", "2", "4"})
+    public int count;
+
+    @Param({"0", "0.1", "0.5"})
+    public double crossShard;
+
+    @Param({"UNIFORM", "HOT"})
+    public Contention contention;
+
+    private final Shards shards = Shards.SHARDS;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        shards.reset();
+        shards.configure(count);
+        for (long id = 1; id <= accounts; id++) {
+            shards.forAccount(id).restoreAccount(id, Long.MAX_VALUE / 2, 0);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        shards.reset();
+        shards.configure(1);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean initiateAndConfirm() {
+        long source = contention.pick(accounts);
+        // Accounts count apart belong to the same shard while accounts is a multiple of count.
+        long destination = count > 1 && ThreadLocalRandom.current().nextDouble() < crossShard
+                ? source % accounts + 1
+                : (source - 1 + count) % accounts + 1;
+        Storage storage = shards.forAccount(source);
+        DataTransaction dataTransaction = storage.borrowDataTransaction();
+        try {
+            Transfers.initiate(dataTransaction, source, destination, 1);
+            if (!dataTransaction.commit()) {
+                return false;
+            }
+            long id = dataTransaction.getInsertedId(0);
+            dataTransaction.reset();
+            Transfers.confirm(dataTransaction, id);
+            return dataTransaction.commit();
+        } finally {
+            storage.giveBack(dataTransaction);
+        }
+    }
+}
@@ -0,0 +1,281 @@
+package org.checat.storage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class ShardsTest {
+
+    private final Shards shards = Shards.SHARDS;
+
+    @Before
+    public void setUp() {
+        shards.configure(4);
+    }
+
+    @After
+    public void tearDown() {
+        shards.reset();
+        shards.configure(1);
+        Storage.STORAGE.reset();
+    }
+
+    private long initiate(long source, long destination, long amount) {
+        Storage storage = shards.forInitiate(source, destination);
+        DataTransaction dataTransaction = Transfers.initiate(storage, source, destination, amount);
+        assertTrue(dataTransaction.commit());
+        return shards.globalId(storage, dataTransaction.getInsertedId(0));
+    }
+
+    private boolean confirm(long id) {
+        DataTransaction dataTransaction = Transfers.confirm(shards.forTransaction(id), shards.localId(id));
+        return dataTransaction != null && dataTransaction.commit();
+    }
+
+    private boolean cancel(long id) {
+        DataTransaction dataTransaction = Transfers.cancel(shards.forTransaction(id), shards.localId(id));
+        return dataTransaction != null && dataTransaction.commit();
+    }
+
+    private long money(long account) {
+        return shards.forAccount(account).getAccount(account).getMoney();
+    }
+
+    private long hold(long account) {
+        return shards.forAccount(account).getAccount(account).getHold();
+    }
+
+    /**
+     * Test that accounts and transactions are kept by their shards and global ids lead to them.
+     */
+    @Test
+    public void testRouting() {
+        assertSame(Storage.STORAGE, shards.get(0));
+        assertSame(shards.get(1), shards.forAccount(5));
+        assertSame(shards.get(0), shards.forAccount(-1));
+        assertSame(shards.get(3), shards.forInitiate(-1, 7));
+        assertTrue(shards.localId(0) <= 0);
+        assertTrue(shards.localId(1) <= 0);
+
+        long deposit = initiate(-1, 6, 1000);
+        assertSame(shards.get(2), shards.forTransaction(deposit));
+        assertEquals(1, shards.get(2).getMaxTransactionId());
+        assertEquals(0, Storage.STORAGE.getMaxTransactionId());
+        Transaction transaction = shards.getTransaction(deposit);
+        assertEquals(deposit, transaction.getId());
+        assertEquals(6, transaction.getDestination());
+        assertNull(shards.getTransaction(deposit + 1));
+        for (long account = 1; account <= 8; account++) {
+            long id = initiate(-1, account, 10);
+            assertEquals(id, shards.globalId(shards.forTransaction(id), shards.localId(id)));
+        }
+        try {
+            Storage.STORAGE.getAccount(6);
+            fail("Account of another shard");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Test that confirm moving money between shards changes both of them or none.
+     */
+    @Test
+    public void testCrossShardConfirm() {
+        assertTrue(confirm(initiate(-1, 1, 1000)));
+        long cancelled = initiate(1, 2, 100);
+        long moved = initiate(1, 2, 300);
+        assertEquals(400, hold(1));
+        assertEquals(0, shards.getCrossShardCommits());
+
+        assertTrue(cancel(cancelled));
+        assertTrue(confirm(moved));
+        assertEquals(700, money(1));
+        assertEquals(0, hold(1));
+        assertEquals(300, money(2));
+        assertEquals(1, shards.getCrossShardCommits());
+        // Aggregates of both sides are kept by the shards owning them.
+        assertEquals(300, shards.forAccount(1).getAccount(1).getSent());
+        assertEquals(1, shards.forAccount(1).getAccount(1).getCancelled());
+        assertEquals(300, shards.forAccount(2).getAccount(2).getReceived());
+        assertEquals(Transaction.State.CONFIRMED, shards.getTransaction(moved).getState());
+
+        // Condition on source shard fails, so destination shard is left alone too.
+        assertFalse(confirm(moved));
+        assertFalse(confirm(cancelled));
+        assertEquals(700, money(1));
+        assertEquals(300, money(2));
+        assertEquals(1, shards.getCrossShardCommits());
+
+        // Group of DataTransactions of different shards sees changes of earlier ones.
+        List<DataTransaction> batch = new ArrayList<>();
+        batch.add(Transfers.initiate(shards.forAccount(2), 2, 3, 300));
+        batch.add(Transfers.initiate(shards.forAccount(3), 3, 1, 1));
+        batch.add(Transfers.initiate(shards.forAccount(2), 2, 3, 1));
+        shards.commitAll(batch);
+        assertTrue(batch.get(0).isCommitted());
+        assertFalse(batch.get(1).isCommitted());
+        assertFalse(batch.get(2).isCommitted());
+        assertEquals(300, hold(2));
+    }
+
+    /**
+     * Test that view of several shards finds transactions of all of them in order of global ids.
+     */
+    @Test
+    public void testView() {
+        List<Long> ids = new ArrayList<>();
+        for (long account = 1; account <= 8; account++) {
+            long deposit = initiate(-1, account, 100);
+            assertTrue(confirm(deposit));
+            ids.add(deposit);
+        }
+        for (long account = 1; account <= 8; account++) {
+            ids.add(initiate(account, account % 8 + 1, 10));
+        }
+        ids.sort(null);
+        try (View view = shards.openView()) {
+            List<Long> found = new ArrayList<>();
+            for (Transaction transaction : view.findTransactions(null, null, null)) {
+                found.add(transaction.getId());
+            }
+            assertEquals(ids, found);
+            assertEquals(8, view.findTransactions(null, null, 10L).size());
+            List<Transaction> fromThree = view.findTransactions(3L, null, null);
+            assertEquals(1, fromThree.size());
+            assertEquals(4, fromThree.get(0).getDestination());
+            assertEquals(fromThree.get(0), view.getTransaction(fromThree.get(0).getId()));
+            assertEquals(1, view.findTransactions(-1L, 5L, null).size());
+            assertEquals(2, view.findTransactions(null, 5L, null).size());
+            assertEquals(100, view.getAccount(5).getMoney());
+            assertEquals(10, view.getAccount(5).getHold());
+
+            Iterator<Transaction> page = view.scanTransactions(null, null, null, ids.get(5));
+            for (int i = 6; i < ids.size(); i++) {
+                assertEquals((long) ids.get(i), page.next().getId());
+            }
+            assertFalse(page.hasNext());
+        }
+        assertEquals(0, shards.get(1).getOpenViewCount());
+    }
+
+    /**
+     * Test that global ids follow inserts across shards, so paging after an id, descending order and ranges of
+     * ids find the newest transactions whatever shard they are on.
+     */
+    @Test
+    public void testIdsFollowInserts() {
+        long previous = 0;
+        for (int i = 0; i < 5; i++) {
+            long id = initiate(-1, 1, 10);
+            assertEquals(previous + 1, id);
+            previous = id;
+        }
+        long other = initiate(-1, 2, 20);
+        assertEquals(previous + 1, other);
+        assertEquals(1, shards.localId(other));
+        try (View view = shards.openView()) {
+            Iterator<Transaction> after = view.scanTransactions(null, null, null, previous);
+            assertEquals(other, after.next().getId());
+            assertFalse(after.hasNext());
+            Iterator<Transaction> newest = view.scanTransactions(Query.ALL.withOrder(Query.Order.ID_DESCENDING));
+            assertEquals(other, newest.next().getId());
+            assertEquals(previous, newest.next().getId());
+            List<Long> window = new ArrayList<>();
+            view.scanTransactions(Query.ALL.withIds(previous - 1, other))
+                    .forEachRemaining(transaction -> window.add(transaction.getId()));
+            assertEquals(Arrays.asList(previous - 1, previous, other), window);
+        }
+    }
+
+    /**
+     * Test that every view of several shards sees money moved between them either before or after each
+     * transfer, never half of it.
+     */
+    @Test
+    public void testConsistentBalances() throws Exception {
+        assertTrue(confirm(initiate(-1, 1, 1_000_000)));
+        AtomicBoolean stop = new AtomicBoolean();
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            List<Future<?>> writers = new ArrayList<>();
+            for (int writer = 0; writer < 2; writer++) {
+                long source = writer + 1;
+                writers.add(executor.submit(() -> {
+                    while (!stop.get()) {
+                        Storage storage = shards.forAccount(source);
+                        DataTransaction initiate = Transfers.initiate(storage, source, 3 - source, 1);
+                        if (initiate.commit()) {
+                            assertTrue(confirm(shards.globalId(storage, initiate.getInsertedId(0))));
+                        }
+                    }
+                }));
+            }
+            Future<Integer> reader = executor.submit(() -> {
+                int views = 0;
+                for (; views < 300; views++) {
+                    try (View view = shards.openView()) {
+                        Account first = view.getAccount(1);
+                        Account second = view.getAccount(2);
+                        assertEquals(1_000_000, first.getMoney() + second.getMoney());
+                        // Transfers of one source are found on its shard alone, so scans of all shards don't stop
+                        // before those of the other writer still being inserted, see GlobalIds.installedUpTo().
+                        long held = 0;
+                        for (long source = 1; source <= 2; source++) {
+                            for (Transaction transaction : view.findTransactions(source, null, null)) {
+                                if (transaction.getState() == Transaction.State.INITIATED) {
+                                    held += transaction.getAmount();
+                                }
+                            }
+                        }
+                        assertEquals(held, first.getHold() + second.getHold());
+                    }
+                }
+                return views;
+            });
+            assertEquals(300, (int) reader.get());
+            stop.set(true);
+            for (Future<?> writer : writers) {
+                writer.get();
+            }
+        } finally {
+            stop.set(true);
+            executor.shutdown();
+        }
+        assertTrue(shards.getCrossShardCommits() > 0);
+    }
+
+    /**
+     * Test that partitioned commit mode, which doesn't take account locks, is refused with several shards.
+     */
+    @Test
+    public void testPartitionedRefused() {
+        try {
+            shards.get(1).setCommitMode(CommitMode.PARTITIONED, 2);
+            fail("Partitioned mode with shards");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        shards.configure(1);
+        Storage.STORAGE.setCommitMode(CommitMode.PARTITIONED, 2);
+        try {
+            shards.configure(2);
+            fail("Shards with partitioned mode");
+        } catch (IllegalArgumentException e) {
+            // expected
+        } finally {
+            Storage.STORAGE.setCommitMode(CommitMode.LOCKING, 0);
+        }
+    }
+}
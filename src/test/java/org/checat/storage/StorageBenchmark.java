@@ -0,0 +1,37 @@
+package org.checat.storage;
+
+import org.checat.benchmark.Contention;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures raw insertion of transactions into Storage.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StorageBenchmark {
+
+    @Param({"1000"})
+    public long accounts;
+
+    @Param({"UNIFORM", "HOT"})
+    public Contention contention;
+
+    private final Storage storage = Storage.STORAGE;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        storage.reset();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Long insertTransaction() {
+        return storage.insertTransaction(contention.pick(accounts), contention.pick(accounts), 1, 0);
+    }
+}
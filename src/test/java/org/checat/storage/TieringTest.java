@@ -0,0 +1,190 @@
+package org.checat.storage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class TieringTest {
+
+    private static final int CONFIRMED = TransactionStore.CHUNK_ROWS + 4000;
+
+    private final Storage storage = Storage.STORAGE;
+    private Path directory;
+
+    @Before
+    public void setUp() throws Exception {
+        storage.reset();
+        directory = Files.createTempDirectory("segments");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        storage.reset();
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    /**
+     * Test that confirmed chunk moved to segment reads exactly as it did from memory.
+     */
+    @Test
+    public void testTier() throws Exception {
+        for (long id = 1; id <= CONFIRMED; id++) {
+            storage.restoreTransaction(new Transaction(id, id % 100 - 1, id % 37, id % 1000 * 1000000,
+                    id % 5 == 0 ? Transaction.State.CANCELED : Transaction.State.CONFIRMED));
+        }
+        long initiated = CONFIRMED + 1;
+        storage.restoreTransaction(new Transaction(initiated, 5, 6, 7000, Transaction.State.INITIATED));
+        Transaction cold = storage.getTransaction(12345);
+        List<Transaction> bySource = storage.findTransactions(4L, null, null);
+        List<Transaction> byAmount = storage.findTransactions(null, null, 7000000L);
+        List<Transaction> byBoth = storage.findTransactions(-1L, 0L, null);
+        long confirmed = storage.getTransactionCount(Transaction.State.CONFIRMED);
+
+        Tiering tiering = new Tiering(storage, directory, 0, 3600, 64, false);
+        try {
+            // The second chunk holds initiated transaction.
+            assertEquals(1, tiering.tier());
+            assertEquals(0, tiering.tier());
+            assertEquals(1, storage.getSegmentCount());
+            assertTrue(storage.getSegmentBytes() > 0);
+            // Varints of small values take a few bytes per row.
+            assertTrue(storage.getSegmentBytes() < TransactionStore.CHUNK_ROWS * 16);
+
+            assertEquals(cold, storage.getTransaction(12345));
+            assertEquals(bySource, storage.findTransactions(4L, null, null));
+            assertEquals(byAmount, storage.findTransactions(null, null, 7000000L));
+            assertEquals(byBoth, storage.findTransactions(-1L, 0L, null));
+            assertEquals(CONFIRMED + 1, storage.getTransactions().size());
+            assertEquals(confirmed, storage.getTransactionCount(Transaction.State.CONFIRMED));
+            assertNull(storage.getTransaction(initiated + 1));
+            assertTrue(tiering.getCacheMisses() > 0);
+            assertTrue(tiering.getCacheHits() > 0);
+
+            // Transactions of segment never change.
+            assertFalse(Transfers.cancel(storage, 12345).commit());
+            assertEquals(cold, storage.getTransaction(12345));
+
+            // Newer ones still do, and are found together with the cold ones.
+            DataTransaction confirm = Transfers.confirm(storage, initiated);
+            assertNotNull(confirm);
+            assertTrue(confirm.commit());
+            List<Transaction> byDestination = storage.findTransactions(null, 6L, null);
+            assertEquals(initiated, byDestination.get(byDestination.size() - 1).getId());
+            assertEquals(Transaction.State.CONFIRMED, byDestination.get(byDestination.size() - 1).getState());
+            assertTrue(byDestination.get(0).getId() < TransactionStore.CHUNK_ROWS);
+        } finally {
+            tiering.close();
+        }
+    }
+
+    /**
+     * Test that a few initiated transactions don't keep their chunk in memory, still change, and are moved to
+     * segment once all of them are confirmed or cancelled.
+     */
+    @Test
+    public void testTierWithInitiated() throws Exception {
+        for (long id = 1; id <= CONFIRMED; id++) {
+            storage.restoreTransaction(new Transaction(id, id % 100 - 1, id % 37, id % 1000 * 1000000,
+                    id % 10000 == 0 ? Transaction.State.INITIATED : Transaction.State.CONFIRMED));
+        }
+        List<Transaction> bySource = storage.findTransactions(-1L, null, null);
+        long initiated = storage.getTransactionCount(Transaction.State.INITIATED);
+
+        Tiering tiering = new Tiering(storage, directory, 0, 3600, 64, false);
+        try {
+            assertEquals(1, tiering.tier());
+            assertEquals(0, tiering.tier());
+            assertEquals(1, storage.getSegmentCount());
+            assertFalse(storage.isChunkTiered(0));
+            assertEquals(bySource, storage.findTransactions(-1L, null, null));
+            assertEquals(initiated, storage.getTransactionCount(Transaction.State.INITIATED));
+            assertEquals(Transaction.State.INITIATED, storage.getTransaction(10000).getState());
+
+            for (long id = 10000; id < TransactionStore.CHUNK_ROWS; id += 10000) {
+                DataTransaction settle = id == 10000 ? Transfers.cancel(storage, id) : Transfers.confirm(storage, id);
+                assertNotNull(settle);
+                assertTrue(settle.commit());
+                assertEquals(id == 60000 ? 1 : 0, tiering.tier());
+            }
+            assertTrue(storage.isChunkTiered(0));
+            assertEquals(Transaction.State.CANCELED, storage.getTransaction(10000).getState());
+            assertEquals(Transaction.State.CONFIRMED, storage.getTransaction(60000).getState());
+            assertEquals(initiated - 6, storage.getTransactionCount(Transaction.State.INITIATED));
+            List<Transaction> settled = storage.findTransactions(-1L, null, null);
+            assertEquals(bySource.size(), settled.size());
+            assertEquals(Transaction.State.CONFIRMED, settled.stream().filter(transaction ->
+                    transaction.getId() == 40000).findFirst().get().getState());
+        } finally {
+            tiering.close();
+        }
+    }
+
+    /**
+     * Test that segments written before restart are attached again, so recovery keeps in memory only transactions
+     * missing from them, and that they are deleted when storage isn't recovered.
+     */
+    @Test
+    public void testReattach() throws Exception {
+        for (long id = 1; id <= CONFIRMED; id++) {
+            storage.restoreTransaction(transaction(id));
+        }
+        Tiering tiering = new Tiering(storage, directory, 0, 3600, 64, false);
+        try {
+            assertEquals(1, tiering.tier());
+        } finally {
+            tiering.close();
+        }
+        List<Transaction> all = new ArrayList<>(storage.getTransactions());
+        List<Transaction> bySource = storage.findTransactions(-1L, null, null);
+        long confirmed = storage.getTransactionCount(Transaction.State.CONFIRMED);
+        long sent = storage.getAccount(-1).getSent();
+        long holds = storage.getAccount(-1).getHolds();
+
+        storage.reset();
+        tiering = new Tiering(storage, directory, 0, 3600, 64, true);
+        try {
+            assertEquals(1, storage.getSegmentCount());
+            // Recovery restores every transaction again, but only initiated ones of the segment stay in memory.
+            for (long id = 1; id <= CONFIRMED; id++) {
+                storage.restoreTransaction(transaction(id));
+            }
+            assertFalse(storage.isChunkTiered(0));
+            assertEquals(all, new ArrayList<>(storage.getTransactions()));
+            assertEquals(bySource, storage.findTransactions(-1L, null, null));
+            assertEquals(confirmed, storage.getTransactionCount(Transaction.State.CONFIRMED));
+            assertEquals(sent, storage.getAccount(-1).getSent());
+            assertEquals(holds, storage.getAccount(-1).getHolds());
+            DataTransaction confirm = Transfers.confirm(storage, 10000);
+            assertNotNull(confirm);
+            assertTrue(confirm.commit());
+            assertEquals(Transaction.State.CONFIRMED, storage.getTransaction(10000).getState());
+        } finally {
+            tiering.close();
+        }
+
+        storage.reset();
+        new Tiering(storage, directory, 0, 3600, 64, false).close();
+        assertEquals(0, storage.getSegmentCount());
+        try (Stream<Path> files = Files.list(directory)) {
+            assertEquals(0, files.count());
+        }
+    }
+
+    private static Transaction transaction(long id) {
+        return new Transaction(id, id % 100 - 1, id % 37, id % 1000 * 1000000,
+                id % 10000 == 0 ? Transaction.State.INITIATED : Transaction.State.CONFIRMED);
+    }
+}
@@ -0,0 +1,68 @@
+package org.checat.storage;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TimingWheelTest {
+
+    /**
+     * Test that every id expires exactly at its deadline, across all levels and their boundaries.
+     */
+    @Test
+    public void testExpiresAtDeadline() {
+        Random random = new Random(16);
+        long start = 4095 - 70;
+        TimingWheel wheel = new TimingWheel(start);
+        int count = 20000;
+        long[] deadlines = new long[count];
+        long last = start;
+        for (int id = 0; id < count; id++) {
+            long delay = 1 + (id % 4 == 0 ? random.nextInt(300000) : random.nextInt(5000));
+            deadlines[id] = start + delay;
+            last = Math.max(last, deadlines[id]);
+            wheel.schedule(id, deadlines[id]);
+        }
+        assertEquals(count, wheel.size());
+        List<Long> expired = new ArrayList<>();
+        int seen = 0;
+        int scheduled = count;
+        while (wheel.getTick() < last) {
+            expired.clear();
+            wheel.advance(expired::add);
+            for (Long id : expired) {
+                long deadline = id >= 0 ? deadlines[id.intValue()] : 64 - id;
+                assertEquals("id " + id, deadline, wheel.getTick());
+            }
+            seen += expired.size();
+            // Ids scheduled while wheel runs behave the same.
+            if (wheel.getTick() % 1000 == 0) {
+                wheel.schedule(-wheel.getTick(), wheel.getTick() + 64);
+                scheduled++;
+            }
+        }
+        assertEquals(scheduled, seen + wheel.size());
+    }
+
+    /**
+     * Test that deadline in the past expires at the next tick and too far one is refused.
+     */
+    @Test
+    public void testBounds() {
+        TimingWheel wheel = new TimingWheel(100);
+        wheel.schedule(1, 50);
+        List<Long> expired = new ArrayList<>();
+        wheel.advance(expired::add);
+        assertEquals(1, expired.size());
+        try {
+            wheel.schedule(2, 101 + TimingWheel.MAX_DELAY);
+            fail("deadline too far should be refused");
+        } catch (IllegalArgumentException e) {
+            assertEquals(0, wheel.size());
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package org.checat.storage;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TransactionStoreTest {
+
+    /**
+     * Test that rows survive growth across chunks and neighbouring states don't affect each other.
+     */
+    @Test
+    public void testRowsAcrossChunks() {
+        TransactionStore store = new TransactionStore();
+        int rows = 200_000;
+        for (long id = 1; id <= rows; id++) {
+            store.put(id, -id, id, id * 10, Transaction.State.INITIATED);
+        }
+        for (long id = 1; id <= rows; id += 3) {
+            assertTrue(store.compareAndSetState(id, Transaction.State.INITIATED, Transaction.State.CONFIRMED));
+        }
+        assertFalse(store.compareAndSetState(1, Transaction.State.INITIATED, Transaction.State.CANCELED));
+        for (long id = 1; id <= rows; id++) {
+            Transaction.State state = id % 3 == 1 ? Transaction.State.CONFIRMED : Transaction.State.INITIATED;
+            assertEquals(new Transaction(id, -id, id, id * 10, state), store.get(id));
+        }
+        assertNull(store.get(0));
+        assertNull(store.get(rows + 1));
+        assertNull(store.get(Long.MAX_VALUE));
+        assertFalse(store.matches(rows + 1, null, null, null));
+        assertTrue(store.matches(7, -7L, null, 70L));
+        assertFalse(store.matches(7, -7L, null, 71L));
+    }
+}
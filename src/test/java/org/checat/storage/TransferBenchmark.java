@@ -0,0 +1,62 @@
+package org.checat.storage;
+
+import org.checat.benchmark.Contention;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures full initiate and confirm cycle of a transfer between two internal accounts through the
+ * thread-local DataTransaction. Run with -prof gc to see allocation per cycle: the cycle itself changes balances
+ * and transaction state in place, so what remains is what growing storage needs for the new transaction, i.e.
+ * index entries.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TransferBenchmark {
+
+    @Param({"1000"})
+    public long accounts;
+
+    @Param({"UNIFORM", "HOT"})
+    public Contention contention;
+
+    private final Storage storage = Storage.STORAGE;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        storage.reset();
+        for (long id = 1; id <= accounts; id++) {
+            storage.restoreAccount(id, Long.MAX_VALUE / 2, 0);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        storage.reset();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean initiateAndConfirm() {
+        long source = contention.pick(accounts);
+        long destination = source % accounts + 1;
+        DataTransaction dataTransaction = storage.borrowDataTransaction();
+        try {
+            Transfers.initiate(dataTransaction, source, destination, 1);
+            if (!dataTransaction.commit()) {
+                return false;
+            }
+            long id = dataTransaction.getInsertedId(0);
+            dataTransaction.reset();
+            Transfers.confirm(dataTransaction, id);
+            return dataTransaction.commit();
+        } finally {
+            storage.giveBack(dataTransaction);
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package org.checat.storage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class ViewTest {
+
+    private final Storage storage = Storage.STORAGE;
+
+    @Before
+    public void setUp() {
+        storage.reset();
+    }
+
+    @After
+    public void tearDown() {
+        storage.reset();
+    }
+
+    private long initiate(long source, long destination, long amount) {
+        DataTransaction dataTransaction = Transfers.initiate(storage, source, destination, amount);
+        assertTrue(dataTransaction.commit());
+        return dataTransaction.getInsertedId(0);
+    }
+
+    /**
+     * Test that view keeps reading transactions and balances as of its version while commits go on.
+     */
+    @Test
+    public void testVersion() {
+        long deposit = initiate(-1, 1, 1000);
+        assertTrue(Transfers.confirm(storage, deposit).commit());
+        long held = initiate(1, 2, 300);
+        try (View view = storage.openView()) {
+            assertTrue(Transfers.confirm(storage, held).commit());
+            long later = initiate(1, 2, 100);
+
+            assertEquals(Transaction.State.INITIATED, view.getTransaction(held).getState());
+            assertNull(view.getTransaction(later));
+            assertEquals(1, view.findTransactions(1L, null, null).size());
+            assertEquals(1, view.findTransactions(null, 2L, null).size());
+            assertEquals(2, view.findTransactions(null, null, null).size());
+            assertEquals(1000, view.getAccount(1).getMoney());
+            assertEquals(300, view.getAccount(1).getHold());
+            assertEquals(0, view.getAccount(2).getMoney());
+            assertEquals(0, view.getAccount(3).getMoney());
+
+            assertEquals(Transaction.State.CONFIRMED, storage.getTransaction(held).getState());
+            assertEquals(700, storage.getAccount(1).getMoney());
+            assertEquals(100, storage.getAccount(1).getHold());
+        }
+        try (View view = storage.openView()) {
+            assertEquals(Transaction.State.CONFIRMED, view.getTransaction(held).getState());
+            assertEquals(3, view.findTransactions(null, null, null).size());
+            assertEquals(700, view.getAccount(1).getMoney());
+            assertEquals(100, view.getAccount(1).getHold());
+            assertEquals(300, view.getAccount(2).getMoney());
+        }
+    }
+
+    /**
+     * Test that versions of balance are kept only while some view may read them.
+     */
+    @Test
+    public void testReclaim() {
+        assertTrue(Transfers.confirm(storage, initiate(-1, 1, 1000)).commit());
+        for (int i = 0; i < 10; i++) {
+            initiate(1, 2, 1);
+        }
+        Account account = storage.getAccount(1);
+        assertTrue(account.versionCount() <= 2);
+        View view = storage.openView();
+        for (int i = 0; i < 10; i++) {
+            initiate(1, 2, 1);
+        }
+        assertTrue(account.versionCount() > 10);
+        assertEquals(10, view.getAccount(1).getHold());
+        assertEquals(1, storage.getOpenViewCount());
+        view.close();
+        view.close();
+        assertEquals(0, storage.getOpenViewCount());
+        initiate(1, 2, 1);
+        assertTrue(account.versionCount() <= 2);
+    }
+
+    /**
+     * Test that view doesn't find transaction while one with a smaller id is yet to become visible, so paging
+     * after the last id found never skips it.
+     */
+    @Test
+    public void testInstalledIds() {
+        Versions versions = storage.getVersions();
+        long slower = versions.begin();
+        long faster = versions.begin();
+        long first = storage.insertTransaction(-1, 1, 10, faster);
+        long second = storage.insertTransaction(-1, 2, 20, slower);
+        versions.end(slower);
+        try (View view = storage.openView()) {
+            assertEquals(second, view.getTransaction(second).getId());
+            assertNull(view.getTransaction(first));
+            assertEquals(0, view.findTransactions(null, null, null).size());
+            assertEquals(0, view.findTransactions(null, 2L, null).size());
+        }
+        assertEquals(2, storage.findTransactions(null, null, null).size());
+        versions.end(faster);
+        try (View view = storage.openView()) {
+            assertEquals(2, view.findTransactions(null, null, null).size());
+            assertEquals(1, view.scanTransactions(null, null, null, first).next().getId() - first);
+        }
+    }
+
+    /**
+     * Test that commits ending before a slow earlier one never wait for it, however many they are, while view
+     * opened meanwhile waits for it to read everything returned by then.
+     */
+    @Test
+    public void testOutOfOrderEnds() throws Exception {
+        Versions versions = storage.getVersions();
+        long slow = versions.begin();
+        long latest = 0;
+        for (int i = 0; i < 10_000; i++) {
+            latest = versions.begin();
+            versions.end(latest);
+        }
+        assertEquals(slow - 1, versions.getVisible());
+        CompletableFuture<Long> opened = CompletableFuture.supplyAsync(() -> {
+            try (View view = storage.openView()) {
+                return versions.getVisible();
+            }
+        });
+        Thread.sleep(50);
+        assertFalse(opened.isDone());
+        versions.end(slow);
+        assertEquals(latest, (long) opened.get(10, TimeUnit.SECONDS));
+        assertEquals(latest, versions.getVisible());
+    }
+
+    /**
+     * Test that every view sees money moved between accounts either before or after each transfer, never
+     * half of it.
+     */
+    @Test
+    public void testConsistentBalances() throws Exception {
+        long deposit = initiate(-1, 1, 1_000_000);
+        assertTrue(Transfers.confirm(storage, deposit).commit());
+        AtomicBoolean stop = new AtomicBoolean();
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            List<Future<?>> writers = new ArrayList<>();
+            for (int writer = 0; writer < 2; writer++) {
+                long source = writer + 1;
+                writers.add(executor.submit(() -> {
+                    while (!stop.get()) {
+                        DataTransaction initiate = Transfers.initiate(storage, source, 3 - source, 1);
+                        if (initiate.commit()) {
+                            assertTrue(Transfers.confirm(storage, initiate.getInsertedId(0)).commit());
+                        }
+                    }
+                }));
+            }
+            Future<Integer> reader = executor.submit(() -> {
+                int views = 0;
+                for (; views < 300; views++) {
+                    try (View view = storage.openView()) {
+                        Account first = view.getAccount(1);
+                        Account second = view.getAccount(2);
+                        assertEquals(1_000_000, first.getMoney() + second.getMoney());
+                        long held = 0;
+                        for (Transaction transaction : view.findTransactions(null, null, 1L)) {
+                            if (transaction.getState() == Transaction.State.INITIATED) {
+                                held += transaction.getAmount();
+                            }
+                        }
+                        assertEquals(held, first.getHold() + second.getHold());
+                    }
+                }
+                return views;
+            });
+            assertEquals(300, (int) reader.get());
+            stop.set(true);
+            for (Future<?> writer : writers) {
+                writer.get();
+            }
+        } finally {
+            stop.set(true);
+            executor.shutdown();
+        }
+    }
+}